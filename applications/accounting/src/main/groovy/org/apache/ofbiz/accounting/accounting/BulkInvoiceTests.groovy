@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.accounting.accounting
+
+import org.apache.ofbiz.accounting.invoice.InvoiceWorker
+import org.apache.ofbiz.base.util.UtilDateTime
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.entity.condition.EntityCondition
+import org.apache.ofbiz.entity.condition.EntityOperator
+import org.apache.ofbiz.service.ServiceUtil
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class BulkInvoiceTests extends OFBizTestCase {
+
+    BulkInvoiceTests(String name) {
+        super(name)
+    }
+
+    /**
+     * The bulk billing gives the same invoices as createInvoicesFromShipments for the same shipments: the orders sharing
+     * a shipment are billed on one invoice, the others on their own, and billing again creates nothing.
+     */
+    void testBulkMatchesCreateInvoicesFromShipments() {
+        createShipments('BIT-A')
+        createShipments('BIT-B')
+
+        // createInvoicesFromShipments adds all the orders to the invoice of the first shipment of the list, so it is
+        // called for each set of shipments sharing orders
+        [['BIT-A-S1', 'BIT-A-S2'], ['BIT-A-S3']].each { shipmentIds ->
+            Map serviceResult = dispatcher.runSync('createInvoicesFromShipments', [shipmentIds: shipmentIds, userLogin: userLogin])
+            assert ServiceUtil.isSuccess(serviceResult)
+        }
+        Map bulkResult = dispatcher.runSync('createInvoicesFromShipmentsBulk', [shipmentIds: ['BIT-B-S3', 'BIT-B-S2', 'BIT-B-S1'],
+                threads: 4, userLogin: userLogin])
+        assert ServiceUtil.isSuccess(bulkResult)
+        assert bulkResult.ordersBilled == 3
+        assert !bulkResult.failedOrderIds
+        assert bulkResult.invoicesCreated.size() == 2
+
+        Set<List<String>> invoices = getInvoices('BIT-A')
+        assert invoices.size() == 2
+        assert getInvoices('BIT-B') == invoices
+        assert getInvoiceTotals('BIT-B') == getInvoiceTotals('BIT-A')
+        assert from('ShipmentItemBilling').where('shipmentId', 'BIT-B-S1').queryCount() == 2
+
+        // everything is billed already
+        bulkResult = dispatcher.runSync('createInvoicesFromShipmentsBulk', [shipmentIds: ['BIT-B-S1', 'BIT-B-S2', 'BIT-B-S3'],
+                userLogin: userLogin])
+        assert ServiceUtil.isSuccess(bulkResult)
+        assert bulkResult.ordersBilled == 0
+        assert !bulkResult.invoicesCreated
+        assert getInvoices('BIT-B') == invoices
+    }
+
+    /** Three orders, the first two sharing the shipment S1 and the second also shipped in S2, the third in S3. */
+    private void createShipments(String prefix) {
+        ['S1', 'S2', 'S3'].each { shipment ->
+            delegator.create('Shipment', [shipmentId: "${prefix}-${shipment}".toString(), shipmentTypeId: 'SALES_SHIPMENT',
+                    statusId: 'SHIPMENT_SHIPPED', partyIdTo: 'DemoCustomer'])
+        }
+        createOrder(prefix, '1', [['00001', 2, 10.00, 'S1', '00001']])
+        createOrder(prefix, '2', [['00001', 1, 30.00, 'S1', '00002'], ['00002', 3, 5.00, 'S2', '00001']])
+        createOrder(prefix, '3', [['00001', 4, 7.50, 'S3', '00001']])
+    }
+
+    private void createOrder(String prefix, String order, List<List> items) {
+        String orderId = "${prefix}-${order}"
+        delegator.create('OrderHeader', [orderId: orderId, orderTypeId: 'SALES_ORDER', statusId: 'ORDER_COMPLETED', productStoreId: '9000',
+                orderDate: UtilDateTime.nowTimestamp(), entryDate: UtilDateTime.nowTimestamp(), currencyUom: 'USD'])
+        delegator.create('OrderRole', [orderId: orderId, partyId: 'DemoCustomer', roleTypeId: 'BILL_TO_CUSTOMER'])
+        delegator.create('OrderRole', [orderId: orderId, partyId: 'Company', roleTypeId: 'BILL_FROM_VENDOR'])
+        delegator.create('OrderItemShipGroup', [orderId: orderId, shipGroupSeqId: '00001'])
+        items.each { orderItemSeqId, quantity, unitPrice, shipment, shipmentItemSeqId ->
+            String shipmentId = "${prefix}-${shipment}"
+            delegator.create('OrderItem', [orderId: orderId, orderItemSeqId: orderItemSeqId, orderItemTypeId: 'PRODUCT_ORDER_ITEM',
+                    productId: 'GZ-2644', quantity: quantity as BigDecimal, unitPrice: unitPrice, statusId: 'ITEM_COMPLETED'])
+            delegator.create('OrderItemShipGroupAssoc', [orderId: orderId, orderItemSeqId: orderItemSeqId, shipGroupSeqId: '00001',
+                    quantity: quantity as BigDecimal])
+            delegator.create('ShipmentItem', [shipmentId: shipmentId, shipmentItemSeqId: shipmentItemSeqId, productId: 'GZ-2644',
+                    quantity: quantity as BigDecimal])
+            delegator.create('ItemIssuance', [itemIssuanceId: "${orderId}-${orderItemSeqId}".toString(), orderId: orderId,
+                    orderItemSeqId: orderItemSeqId, shipGroupSeqId: '00001', shipmentId: shipmentId, shipmentItemSeqId: shipmentItemSeqId,
+                    quantity: quantity as BigDecimal, issuedDateTime: UtilDateTime.nowTimestamp()])
+        }
+    }
+
+    /** Gets the billed lines of the orders of a data set, by invoice, without the prefix of the set. */
+    private Set<List<String>> getInvoices(String prefix) {
+        List<GenericValue> billings = from('OrderItemBilling').where(orderIdLike(prefix)).queryList()
+        return billings.groupBy { it.invoiceId }.values().collect { invoiceBillings ->
+            invoiceBillings.collect { billing ->
+                [billing.orderId - prefix, billing.orderItemSeqId, billing.quantity.stripTrailingZeros().toPlainString(),
+                        billing.amount.stripTrailingZeros().toPlainString()].join('|')
+            }.sort()
+        } as Set
+    }
+
+    private List<BigDecimal> getInvoiceTotals(String prefix) {
+        List<String> invoiceIds = from('OrderItemBilling').where(orderIdLike(prefix)).queryList()*.invoiceId.unique()
+        return invoiceIds.collect { InvoiceWorker.getInvoiceTotal(delegator, it) }.sort()
+    }
+
+    private static EntityCondition orderIdLike(String prefix) {
+        return EntityCondition.makeCondition('orderId', EntityOperator.LIKE, "${prefix}-%".toString())
+    }
+}
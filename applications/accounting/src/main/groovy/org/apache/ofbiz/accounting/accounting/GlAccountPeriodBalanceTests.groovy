@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.accounting.accounting
+
+import java.sql.Date
+import java.sql.Timestamp
+
+import org.apache.ofbiz.accounting.ledger.GlAccountPeriodBalanceServices
+import org.apache.ofbiz.base.util.UtilProperties
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.entity.condition.EntityCondition
+import org.apache.ofbiz.entity.condition.EntityOperator
+import org.apache.ofbiz.service.ServiceUtil
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class GlAccountPeriodBalanceTests extends OFBizTestCase {
+
+    private static final String ORGANIZATION = 'GLPB-ORG'
+
+    GlAccountPeriodBalanceTests(String name) {
+        super(name)
+    }
+
+    /**
+     * The totals read from the store match the AcctgTransEntrySums view, for the entries posted before the rebuild,
+     * for those posted after it through postAcctgTrans, and for those posted while the store was disabled once it is
+     * rebuilt.
+     */
+    void testTotalsMatchEntrySums() {
+        String balanceEnable = UtilProperties.getPropertyValue('accounting', 'gl.period.balance.enable', 'N')
+        String postingTimeout = UtilProperties.getPropertyValue('accounting', 'gl.period.balance.posting.timeout', '600')
+        try {
+            UtilProperties.setPropertyValueInMemory('accounting', 'gl.period.balance.enable', 'Y')
+            // no posting is running while the test rebuilds the store
+            UtilProperties.setPropertyValueInMemory('accounting', 'gl.period.balance.posting.timeout', '0')
+            delegator.create('Party', [partyId: ORGANIZATION, partyTypeId: 'PARTY_GROUP'])
+            delegator.create('CustomTimePeriod', [customTimePeriodId: 'GLPB-2001', organizationPartyId: ORGANIZATION,
+                    periodTypeId: 'FISCAL_YEAR', fromDate: Date.valueOf('2001-01-01'), thruDate: Date.valueOf('2002-01-01'), isClosed: 'N'])
+
+            // posted before the store is built: neither a status nor balances are created
+            post('GLPB-1', '2001-01-15 10:00:00', 'SALES', 100.00)
+            assert !from('GlAccountPeriodBalanceStatus').where('organizationPartyId', ORGANIZATION).queryOne()
+            assert from('GlAccountPeriodBalance').where('organizationPartyId', ORGANIZATION).queryCount() == 0
+            assert findTotals(true, '2001-01-01 00:00:00', '2001-03-01 00:00:00') == null
+
+            assert rebuild() == 2
+            assert from('GlAccountPeriodBalanceStatus').where('organizationPartyId', ORGANIZATION).queryOne().rebuiltDate
+
+            // posted once the store is built
+            post('GLPB-2', '2001-01-31 23:00:00', 'SALES', 40.00)
+            post('GLPB-3', '2001-02-10 10:00:00', 'SALES', 25.50)
+            post('GLPB-4', '2001-02-28 12:00:00', 'PERIOD_CLOSING', 60.00)
+            assert from('GlAccountPeriodBalanceStatus').where('organizationPartyId', ORGANIZATION).queryOne().lastAcctgTransId == 'GLPB-4'
+            assertTotalsMatch()
+
+            // posted while the store is disabled: left out until the store is rebuilt
+            UtilProperties.setPropertyValueInMemory('accounting', 'gl.period.balance.enable', 'N')
+            post('GLPB-5', '2001-03-03 10:00:00', 'SALES', 12.25)
+            UtilProperties.setPropertyValueInMemory('accounting', 'gl.period.balance.enable', 'Y')
+            assert from('GlAccountPeriodBalance').where('organizationPartyId', ORGANIZATION, 'periodFromDate',
+                    Timestamp.valueOf('2001-03-01 00:00:00')).queryCount() == 0
+            assert rebuild() == 8
+            assertTotalsMatch()
+            Map<String, BigDecimal> accountTotals = GlAccountPeriodBalanceServices.findAccountTotals(delegator, ORGANIZATION, '400000',
+                    'ACTUAL', Timestamp.valueOf('2001-03-15 00:00:00'))
+            assert accountTotals.C == 237.75
+            assert accountTotals.D == 0
+        } finally {
+            UtilProperties.setPropertyValueInMemory('accounting', 'gl.period.balance.enable', balanceEnable)
+            UtilProperties.setPropertyValueInMemory('accounting', 'gl.period.balance.posting.timeout', postingTimeout)
+        }
+    }
+
+    /** Posts a sale of the amount, from the cash account to the sales account, with postAcctgTrans. */
+    private void post(String acctgTransId, String transactionDate, String acctgTransTypeId, BigDecimal amount) {
+        delegator.create('AcctgTrans', [acctgTransId: acctgTransId, acctgTransTypeId: acctgTransTypeId, glFiscalTypeId: 'ACTUAL',
+                transactionDate: Timestamp.valueOf(transactionDate), isPosted: 'N'])
+        [['00001', '111100', 'D'], ['00002', '400000', 'C']].each { acctgTransEntrySeqId, glAccountId, debitCreditFlag ->
+            delegator.create('AcctgTransEntry', [acctgTransId: acctgTransId, acctgTransEntrySeqId: acctgTransEntrySeqId,
+                    acctgTransEntryTypeId: '_NA_', organizationPartyId: ORGANIZATION, glAccountId: glAccountId,
+                    debitCreditFlag: debitCreditFlag, amount: amount, currencyUomId: 'USD'])
+        }
+        assert ServiceUtil.isSuccess(dispatcher.runSync('postAcctgTrans', [acctgTransId: acctgTransId, userLogin: userLogin]))
+        assert from('AcctgTrans').where('acctgTransId', acctgTransId).queryOne().isPosted == 'Y'
+    }
+
+    private int rebuild() {
+        Map serviceResult = dispatcher.runSync('rebuildGlAccountPeriodBalances', [organizationPartyId: ORGANIZATION, userLogin: userLogin])
+        assert ServiceUtil.isSuccess(serviceResult)
+        return serviceResult.balanceCount
+    }
+
+    private void assertTotalsMatch() {
+        [[null, '2001-03-15 00:00:00'], ['2001-01-10 00:00:00', '2001-04-01 00:00:00'], ['2001-02-01 00:00:00', '2001-03-01 00:00:00'],
+         ['2001-01-20 00:00:00', '2001-02-20 00:00:00'], ['2001-02-05 00:00:00', '2001-02-25 00:00:00']].each { fromDate, thruDate ->
+            [true, false].each { excludeClosing ->
+                List<Map<String, Object>> totals = findTotals(excludeClosing, fromDate, thruDate)
+                assert totals != null
+                assert toAmounts(totals) == toAmounts(findEntrySums(excludeClosing, fromDate, thruDate))
+            }
+        }
+    }
+
+    private List<Map<String, Object>> findTotals(boolean excludeClosing, String fromDate, String thruDate) {
+        return GlAccountPeriodBalanceServices.findTransactionTotals(delegator, [ORGANIZATION], 'ACTUAL', excludeClosing,
+                fromDate ? Timestamp.valueOf(fromDate) : null, Timestamp.valueOf(thruDate), null)
+    }
+
+    private List<GenericValue> findEntrySums(boolean excludeClosing, String fromDate, String thruDate) {
+        List<EntityCondition> conditions = [
+            EntityCondition.makeCondition('organizationPartyId', ORGANIZATION),
+            EntityCondition.makeCondition('glFiscalTypeId', 'ACTUAL'),
+            EntityCondition.makeCondition('isPosted', 'Y'),
+            EntityCondition.makeCondition('transactionDate', EntityOperator.LESS_THAN, Timestamp.valueOf(thruDate))
+        ]
+        if (fromDate) {
+            conditions << EntityCondition.makeCondition('transactionDate', EntityOperator.GREATER_THAN_EQUAL_TO, Timestamp.valueOf(fromDate))
+        }
+        if (excludeClosing) {
+            conditions << EntityCondition.makeCondition('acctgTransTypeId', EntityOperator.NOT_EQUAL, 'PERIOD_CLOSING')
+        }
+        return select('glAccountId', 'debitCreditFlag', 'amount').from('AcctgTransEntrySums').where(conditions).queryList()
+    }
+
+    private static Map<String, String> toAmounts(List<Map<String, Object>> totals) {
+        return totals.collectEntries { total ->
+            ["${total.glAccountId}|${total.debitCreditFlag}".toString(), (total.amount as BigDecimal).stripTrailingZeros().toPlainString()]
+        }
+    }
+}
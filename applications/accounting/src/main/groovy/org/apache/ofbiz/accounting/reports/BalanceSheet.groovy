@@ -18,6 +18,7 @@
 */
 package org.apache.ofbiz.accounting.reports
 
+import org.apache.ofbiz.accounting.ledger.GlAccountPeriodBalanceServices
 import org.apache.ofbiz.accounting.util.UtilAccounting
 import org.apache.ofbiz.base.util.UtilDateTime
 import org.apache.ofbiz.base.util.UtilMisc
@@ -179,6 +180,21 @@ Closure<List<AccountEntrySum>> getAccountEntrySumsForCondition = { Collection<En
  * @return A collection of AccountEntrySum objects corresponding to the given accountClassIds.
  */
 Closure<List<AccountEntrySum>> getAccountEntrySumsForClassIds = { Collection<String> accountClassIds ->
+    // the GL balance store gives the same sums when it is built for the divisions
+    List<Map> storedTotals = GlAccountPeriodBalanceServices.findTransactionTotals(delegator, partyIds, glFiscalTypeId, true,
+            fromDate, thruDate, accountClassIds)
+    if (storedTotals != null) {
+        return storedTotals.collect { entrySum ->
+            new AccountEntrySum(
+                    glAccountId: entrySum.glAccountId,
+                    accountName: entrySum.accountName,
+                    accountCode: entrySum.accountCode,
+                    debitCreditFlag: entrySum.debitCreditFlag,
+                    amount: (BigDecimal) entrySum.amount
+            )
+        }
+    }
+
     List conditions = [
             EntityCondition.makeCondition('glAccountClassId', EntityOperator.IN, accountClassIds),
             EntityCondition.makeCondition('organizationPartyId', EntityOperator.IN, partyIds),
@@ -23,6 +23,7 @@ import org.apache.ofbiz.base.util.UtilMisc
 import org.apache.ofbiz.entity.GenericValue
 import org.apache.ofbiz.entity.condition.EntityCondition
 import org.apache.ofbiz.entity.condition.EntityOperator
+import org.apache.ofbiz.accounting.ledger.GlAccountPeriodBalanceServices
 import org.apache.ofbiz.accounting.util.UtilAccounting
 import org.apache.ofbiz.party.party.PartyWorker
 
@@ -68,6 +69,14 @@ mainAndExprs.add(EntityCondition.makeCondition('acctgTransTypeId', EntityOperato
 mainAndExprs.add(EntityCondition.makeCondition('transactionDate', EntityOperator.GREATER_THAN_EQUAL_TO, fromDate))
 mainAndExprs.add(EntityCondition.makeCondition('transactionDate', EntityOperator.LESS_THAN, thruDate))
 
+// Read the totals from the GL balance store when it is built for the divisions, as summed from the entries otherwise
+Closure<List> findTransactionTotals = { List andExprs, List accountClassIds ->
+    List storedTotals = GlAccountPeriodBalanceServices.findTransactionTotals(delegator, partyIds, glFiscalTypeId, true, fromDate, thruDate,
+            accountClassIds)
+    storedTotals != null ? storedTotals : select('glAccountId', 'accountName', 'accountCode', 'debitCreditFlag', 'amount')
+            .from('AcctgTransEntrySums').where(andExprs).orderBy('glAccountId').queryList()
+}
+
 List balanceTotalList = []
 
 // REVENUE
@@ -77,8 +86,7 @@ transactionTotals = []
 balanceTotal = BigDecimal.ZERO
 List revenueAndExprs = mainAndExprs as LinkedList
 revenueAndExprs.add(EntityCondition.makeCondition('glAccountClassId', EntityOperator.IN, revenueAccountClassIds))
-transactionTotals = select('glAccountId', 'accountName', 'accountCode', 'debitCreditFlag', 'amount')
-        .from('AcctgTransEntrySums').where(revenueAndExprs).orderBy('glAccountId').queryList()
+transactionTotals = findTransactionTotals(revenueAndExprs, revenueAccountClassIds)
 if (transactionTotals) {
     Map transactionTotalsMap = [:]
     balanceTotalCredit = BigDecimal.ZERO
@@ -121,8 +129,7 @@ transactionTotals = []
 balanceTotal = BigDecimal.ZERO
 List contraRevenueAndExprs = mainAndExprs as LinkedList
 contraRevenueAndExprs.add(EntityCondition.makeCondition('glAccountClassId', EntityOperator.IN, contraRevenueAccountClassIds))
-transactionTotals = select('glAccountId', 'accountName', 'accountCode', 'debitCreditFlag', 'amount')
-        .from('AcctgTransEntrySums').where(contraRevenueAndExprs).orderBy('glAccountId').queryList()
+transactionTotals = findTransactionTotals(contraRevenueAndExprs, contraRevenueAccountClassIds)
 if (transactionTotals) {
     Map transactionTotalsMap = [:]
     balanceTotalCredit = BigDecimal.ZERO
@@ -164,8 +171,7 @@ transactionTotals = []
 balanceTotal = BigDecimal.ZERO
 List expenseAndExprs = mainAndExprs as LinkedList
 expenseAndExprs.add(EntityCondition.makeCondition('glAccountClassId', EntityOperator.IN, expenseAccountClassIds))
-transactionTotals = select('glAccountId', 'accountName', 'accountCode', 'debitCreditFlag', 'amount')
-        .from('AcctgTransEntrySums').where(expenseAndExprs).queryList()
+transactionTotals = findTransactionTotals(expenseAndExprs, expenseAccountClassIds)
 if (transactionTotals) {
     Map transactionTotalsMap = [:]
     balanceTotalCredit = BigDecimal.ZERO
@@ -208,8 +214,7 @@ transactionTotals = []
 balanceTotal = BigDecimal.ZERO
 List cogsExpenseAndExprs = mainAndExprs as LinkedList
 cogsExpenseAndExprs.add(EntityCondition.makeCondition('glAccountClassId', EntityOperator.IN, cogsExpenseAccountClassIds))
-transactionTotals = select('glAccountId', 'accountName', 'accountCode', 'debitCreditFlag', 'amount')
-        .from('AcctgTransEntrySums').where(cogsExpenseAndExprs).orderBy('glAccountId').queryList()
+transactionTotals = findTransactionTotals(cogsExpenseAndExprs, cogsExpenseAccountClassIds)
 if (transactionTotals) {
     Map transactionTotalsMap = [:]
     balanceTotalCredit = BigDecimal.ZERO
@@ -251,8 +256,7 @@ transactionTotals = []
 balanceTotal = BigDecimal.ZERO
 List sgaExpenseAndExprs = mainAndExprs as LinkedList
 sgaExpenseAndExprs.add(EntityCondition.makeCondition('glAccountClassId', EntityOperator.IN, sgaExpenseAccountClassIds))
-transactionTotals = select('glAccountId', 'accountName', 'accountCode', 'debitCreditFlag', 'amount')
-        .from('AcctgTransEntrySums').where(sgaExpenseAndExprs).orderBy('glAccountId').queryList()
+transactionTotals = findTransactionTotals(sgaExpenseAndExprs, sgaExpenseAccountClassIds)
 if (transactionTotals) {
     Map transactionTotalsMap = [:]
     balanceTotalCredit = BigDecimal.ZERO
@@ -293,8 +297,7 @@ transactionTotals = []
 balanceTotal = BigDecimal.ZERO
 List depreciationAndExprs = mainAndExprs as LinkedList
 depreciationAndExprs.add(EntityCondition.makeCondition('glAccountClassId', EntityOperator.IN, depreciationAccountClassIds))
-transactionTotals = select('glAccountId', 'accountName', 'accountCode', 'debitCreditFlag', 'amount')
-        .from('AcctgTransEntrySums').where(depreciationAndExprs).orderBy('glAccountId').queryList()
+transactionTotals = findTransactionTotals(depreciationAndExprs, depreciationAccountClassIds)
 if (transactionTotals) {
     Map transactionTotalsMap = [:]
     balanceTotalCredit = BigDecimal.ZERO
@@ -335,8 +338,7 @@ transactionTotals = []
 balanceTotal = BigDecimal.ZERO
 List incomeAndExprs = mainAndExprs as LinkedList
 incomeAndExprs.add(EntityCondition.makeCondition('glAccountClassId', EntityOperator.IN, incomeAccountClassIds))
-transactionTotals = select('glAccountId', 'accountName', 'accountCode', 'debitCreditFlag', 'amount')
-        .from('AcctgTransEntrySums').where(incomeAndExprs).orderBy('glAccountId').queryList()
+transactionTotals = findTransactionTotals(incomeAndExprs, incomeAccountClassIds)
 if (transactionTotals) {
     Map transactionTotalsMap = [:]
     balanceTotalCredit = BigDecimal.ZERO
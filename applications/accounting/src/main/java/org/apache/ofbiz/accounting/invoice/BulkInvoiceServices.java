@@ -0,0 +1,354 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.accounting.invoice;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.ofbiz.base.concurrent.ExecutionPool;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.GeneralException;
+import org.apache.ofbiz.base.util.UtilGenerics;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilNumber;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.GenericServiceException;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * Bulk billing of shipments, for end-of-day runs over many shipments.
+ * <p>
+ * The item issuances of the sales shipments, the ordered quantities and the existing billings are read in batches of
+ * <code>invoice.bulk.prefetch.size</code> orders, then each order is billed by one of <code>invoice.bulk.threads</code>
+ * workers in its own transaction, so a failed order is reported without rolling back the others. An order is added to
+ * the invoice of its first shipment when there is one, so the orders sharing a shipment are billed one after the other by
+ * the same worker. The purchase and drop shipments are passed to createInvoicesFromShipments.
+ */
+public final class BulkInvoiceServices {
+
+    private static final String MODULE = BulkInvoiceServices.class.getName();
+    private static final String RESOURCE = "AccountingUiLabels";
+    private static final int DECIMALS = UtilNumber.getBigDecimalScale("invoice.decimals");
+    private static final RoundingMode ROUNDING = UtilNumber.getRoundingMode("invoice.rounding");
+
+    private BulkInvoiceServices() { }
+
+    /** The items of an order to bill, with the shipments they were issued in. */
+    private static final class OrderBilling {
+        private final String orderId;
+        private final List<GenericValue> issuances = new LinkedList<>();
+        private final Set<String> shipmentIds = new LinkedHashSet<>();
+
+        private OrderBilling(String orderId) {
+            this.orderId = orderId;
+        }
+    }
+
+    public static Map<String, Object> createInvoicesFromShipmentsBulk(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        LocalDispatcher dispatcher = dctx.getDispatcher();
+        Locale locale = (Locale) context.get("locale");
+        List<String> shipmentIds = UtilGenerics.cast(context.get("shipmentIds"));
+        boolean setToReady = Boolean.TRUE.equals(context.get("setInvoicesToReady"));
+        int prefetchSize = EntityUtilProperties.getPropertyAsInteger("accounting", "invoice.bulk.prefetch.size", 500);
+        Integer threads = (Integer) context.get("threads");
+        if (threads == null || threads < 1) {
+            threads = EntityUtilProperties.getPropertyAsInteger("accounting", "invoice.bulk.threads", 4);
+        }
+        long startTime = System.currentTimeMillis();
+
+        List<String> invoicesCreated = Collections.synchronizedList(new LinkedList<>());
+        List<String> failedOrderIds = Collections.synchronizedList(new LinkedList<>());
+        Map<String, OrderBilling> orders = new LinkedHashMap<>();
+        try {
+            // the shipments other than sales shipments keep the regular billing, one call per type
+            Map<String, List<String>> otherShipmentIds = new LinkedHashMap<>();
+            List<String> salesShipmentIds = new ArrayList<>();
+            for (List<String> chunk : partition(new ArrayList<>(new LinkedHashSet<>(shipmentIds)), prefetchSize)) {
+                for (GenericValue shipment : EntityQuery.use(delegator).select("shipmentId", "shipmentTypeId").from("Shipment")
+                        .where(EntityCondition.makeCondition("shipmentId", EntityOperator.IN, chunk)).orderBy("shipmentId").queryList()) {
+                    String shipmentTypeId = shipment.getString("shipmentTypeId");
+                    if ("PURCHASE_SHIPMENT".equals(shipmentTypeId) || "DROP_SHIPMENT".equals(shipmentTypeId)) {
+                        otherShipmentIds.computeIfAbsent(shipmentTypeId, k -> new LinkedList<>()).add(shipment.getString("shipmentId"));
+                    } else {
+                        salesShipmentIds.add(shipment.getString("shipmentId"));
+                    }
+                }
+            }
+            for (List<String> typeShipmentIds : otherShipmentIds.values()) {
+                Map<String, Object> result = dispatcher.runSync("createInvoicesFromShipments", UtilMisc.toMap("shipmentIds", typeShipmentIds,
+                        "createSalesInvoicesForDropShipments", context.get("createSalesInvoicesForDropShipments"), "eventDate",
+                        context.get("eventDate"), "userLogin", context.get("userLogin")), 0, true);
+                if (ServiceUtil.isError(result)) {
+                    return ServiceUtil.returnError(ServiceUtil.getErrorMessage(result));
+                }
+                List<String> created = UtilGenerics.cast(result.get("invoicesCreated"));
+                if (created != null) {
+                    created.stream().filter(UtilValidate::isNotEmpty).forEach(invoicesCreated::add);
+                }
+            }
+
+            // group the issuances of the sales shipments by order
+            for (List<String> chunk : partition(salesShipmentIds, prefetchSize)) {
+                for (GenericValue issuance : EntityQuery.use(delegator).from("ItemIssuance")
+                        .where(EntityCondition.makeCondition("shipmentId", EntityOperator.IN, chunk)).orderBy("shipmentId", "itemIssuanceId")
+                        .queryList()) {
+                    OrderBilling order = orders.computeIfAbsent(issuance.getString("orderId"), OrderBilling::new);
+                    order.issuances.add(issuance);
+                    order.shipmentIds.add(issuance.getString("shipmentId"));
+                }
+            }
+        } catch (GenericEntityException | GenericServiceException e) {
+            Debug.logError(e, "Problem getting issued items from shipments", MODULE);
+            return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE, "AccountingProblemGettingItemsFromShipments", locale));
+        }
+        long prefetchTime = System.currentTimeMillis() - startTime;
+
+        // bill the orders of each batch in parallel, reading the quantities ordered and billed of the batch first
+        int total = orders.size();
+        int progressInterval = EntityUtilProperties.getPropertyAsInteger("accounting", "invoice.bulk.progress.interval", 100);
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger billed = new AtomicInteger();
+        ScheduledExecutorService executor = ExecutionPool.getScheduledExecutor(new ThreadGroup(MODULE), "bulk-invoice",
+                Math.min(threads, Math.max(total, 1)), 0, false);
+        try {
+            for (List<String> orderIds : partition(new ArrayList<>(orders.keySet()), prefetchSize)) {
+                long batchStart = System.currentTimeMillis();
+                Map<String, BigDecimal> orderedQuantities = new HashMap<>();
+                Map<String, List<GenericValue>> billingsByOrder = new HashMap<>();
+                try {
+                    EntityCondition inOrders = EntityCondition.makeCondition("orderId", EntityOperator.IN, orderIds);
+                    for (GenericValue orderItem : EntityQuery.use(delegator).select("orderId", "orderItemSeqId", "quantity").from("OrderItem")
+                            .where(inOrders).queryList()) {
+                        orderedQuantities.put(orderItem.getString("orderId") + "|" + orderItem.getString("orderItemSeqId"),
+                                orderItem.getBigDecimal("quantity"));
+                    }
+                    for (GenericValue billing : EntityQuery.use(delegator).from("OrderItemBillingAndInvoiceAndItem").where(inOrders,
+                            EntityCondition.makeCondition("statusId", EntityOperator.NOT_EQUAL, "INVOICE_CANCELLED")).queryList()) {
+                        billingsByOrder.computeIfAbsent(billing.getString("orderId"), k -> new LinkedList<>()).add(billing);
+                    }
+                } catch (GenericEntityException e) {
+                    Debug.logError(e, "Problem getting OrderItem/OrderItemBilling records of orders " + orderIds, MODULE);
+                    return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE, "AccountingProblemGettingOrderItemOrderItemBilling",
+                            UtilMisc.toMap("lookup", orderIds), locale));
+                }
+                prefetchTime += System.currentTimeMillis() - batchStart;
+
+                List<Future<?>> futures = new ArrayList<>(orderIds.size());
+                for (List<String> group : groupBySharedShipment(orderIds, orders)) {
+                    futures.add(executor.submit(() -> {
+                        for (String orderId : group) {
+                            OrderBilling order = orders.get(orderId);
+                            List<GenericValue> toBillItems = getItemsToBill(order, orderedQuantities,
+                                    billingsByOrder.getOrDefault(orderId, Collections.emptyList()));
+                            if (!toBillItems.isEmpty()) {
+                                String invoiceId = billOrder(dctx, context, order, toBillItems, setToReady);
+                                if (invoiceId == null) {
+                                    failedOrderIds.add(orderId);
+                                } else {
+                                    billed.incrementAndGet();
+                                    if (!invoiceId.isEmpty() && !invoicesCreated.contains(invoiceId)) {
+                                        invoicesCreated.add(invoiceId);
+                                    }
+                                }
+                            }
+                            int count = done.incrementAndGet();
+                            if (count % progressInterval == 0 || count == total) {
+                                long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+                                Debug.logInfo("Bulk billing: " + count + " of " + total + " orders, " + invoicesCreated.size() + " invoices, "
+                                        + failedOrderIds.size() + " failed, " + (count * 1000L / elapsed) + " orders/s", MODULE);
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ServiceUtil.returnError(e.getMessage());
+        } catch (ExecutionException e) {
+            Debug.logError(e.getCause(), "Bulk billing worker failed", MODULE);
+            return ServiceUtil.returnError(String.valueOf(e.getCause().getMessage()));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        Debug.logInfo("Bulk billing of " + shipmentIds.size() + " shipments: " + total + " sales orders, " + invoicesCreated.size()
+                + " invoices, " + failedOrderIds.size() + " failed orders in " + elapsedTime + " ms (prefetch " + prefetchTime + " ms)", MODULE);
+        Map<String, Object> response = ServiceUtil.returnSuccess();
+        response.put("invoicesCreated", new ArrayList<>(invoicesCreated));
+        response.put("failedOrderIds", new ArrayList<>(failedOrderIds));
+        response.put("ordersBilled", billed.get());
+        response.put("elapsedTime", elapsedTime);
+        response.put("throughput", BigDecimal.valueOf(total * 1000L).divide(BigDecimal.valueOf(Math.max(elapsedTime, 1)), 2,
+                RoundingMode.HALF_UP));
+        return response;
+    }
+
+    /**
+     * Groups the orders sharing a shipment, directly or through other orders, keeping the order of the list in each group.
+     */
+    private static List<List<String>> groupBySharedShipment(List<String> orderIds, Map<String, OrderBilling> orders) {
+        Map<String, String> parents = new HashMap<>();
+        Map<String, String> shipmentOrderIds = new HashMap<>();
+        for (String orderId : orderIds) {
+            parents.put(orderId, orderId);
+            for (String shipmentId : orders.get(orderId).shipmentIds) {
+                String sharingOrderId = shipmentOrderIds.putIfAbsent(shipmentId, orderId);
+                if (sharingOrderId != null) {
+                    parents.put(findRoot(parents, orderId), findRoot(parents, sharingOrderId));
+                }
+            }
+        }
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String orderId : orderIds) {
+            groups.computeIfAbsent(findRoot(parents, orderId), k -> new LinkedList<>()).add(orderId);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private static String findRoot(Map<String, String> parents, String orderId) {
+        String root = orderId;
+        while (!root.equals(parents.get(root))) {
+            root = parents.get(root);
+        }
+        return root;
+    }
+
+    /**
+     * Selects the issuances of an order not billed yet, limited to the quantity left to bill of each item, as
+     * createInvoicesFromShipments does with a query per issuance.
+     */
+    private static List<GenericValue> getItemsToBill(OrderBilling order, Map<String, BigDecimal> orderedQuantities,
+            List<GenericValue> billings) {
+        Set<String> billedIssuanceIds = new LinkedHashSet<>();
+        Map<String, BigDecimal> billedQuantities = new HashMap<>();
+        for (GenericValue billing : billings) {
+            if (billing.get("itemIssuanceId") != null) {
+                billedIssuanceIds.add(billing.getString("orderItemSeqId") + "|" + billing.getString("itemIssuanceId"));
+            }
+            BigDecimal quantity = billing.getBigDecimal("quantity");
+            if (quantity != null) {
+                billedQuantities.merge(billing.getString("orderItemSeqId"), quantity, (a, b) -> a.add(b).setScale(DECIMALS, ROUNDING));
+            }
+        }
+
+        List<GenericValue> toBillItems = new LinkedList<>();
+        Map<String, BigDecimal> itemQtyAvail = new HashMap<>();
+        for (GenericValue issue : order.issuances) {
+            String orderItemSeqId = issue.getString("orderItemSeqId");
+            if (billedIssuanceIds.contains(orderItemSeqId + "|" + issue.getString("itemIssuanceId"))) {
+                continue;
+            }
+            BigDecimal issueQty = issue.getBigDecimal("quantity");
+            BigDecimal billAvail = itemQtyAvail.get(orderItemSeqId);
+            if (billAvail == null) {
+                BigDecimal orderedQty = orderedQuantities.get(order.orderId + "|" + orderItemSeqId);
+                BigDecimal billedQty = billedQuantities.get(orderItemSeqId);
+                billAvail = orderedQty != null && billedQty != null ? orderedQty.subtract(billedQty).setScale(DECIMALS, ROUNDING) : orderedQty;
+            }
+
+            // no available means we cannot bill anymore
+            if (billAvail != null && billAvail.signum() == 1) {
+                if (issueQty != null && issueQty.compareTo(billAvail) > 0) {
+                    // can only bill some of the issuance; others have been billed already
+                    issue.set("quantity", billAvail);
+                    billAvail = BigDecimal.ZERO;
+                } else {
+                    billAvail = billAvail.subtract(issueQty != null ? issueQty : BigDecimal.ZERO).setScale(DECIMALS, ROUNDING);
+                }
+                toBillItems.add(issue);
+            }
+            itemQtyAvail.put(orderItemSeqId, billAvail);
+        }
+        return toBillItems;
+    }
+
+    /**
+     * Bills an order in its own transaction, returns the invoiceId, empty when no invoice was needed, or {@code null} when it failed,
+     * also on a runtime exception.
+     */
+    private static String billOrder(DispatchContext dctx, Map<String, ? extends Object> context, OrderBilling order,
+            List<GenericValue> toBillItems, boolean setToReady) {
+        try {
+            return TransactionUtil.doNewTransaction(() -> {
+                Map<String, Object> result = InvoiceServices.billShippedOrder(dctx, context, order.orderId, toBillItems,
+                        new ArrayList<>(order.shipmentIds), false, false, null);
+                if (ServiceUtil.isError(result)) {
+                    throw new GeneralException(ServiceUtil.getErrorMessage(result));
+                }
+                String invoiceId = (String) result.get("invoiceId");
+                if (invoiceId != null && setToReady) {
+                    GenericValue invoice = EntityQuery.use(dctx.getDelegator()).from("Invoice").where("invoiceId", invoiceId).queryOne();
+                    if (invoice != null && "INVOICE_IN_PROCESS".equals(invoice.getString("statusId"))) {
+                        Map<String, Object> statusResult = dctx.getDispatcher().runSync("setInvoiceStatus", UtilMisc.toMap("invoiceId",
+                                invoiceId, "statusId", "INVOICE_READY", "userLogin", context.get("userLogin")));
+                        if (ServiceUtil.isError(statusResult)) {
+                            throw new GeneralException(ServiceUtil.getErrorMessage(statusResult));
+                        }
+                    }
+                }
+                return invoiceId != null ? invoiceId : "";
+            }, "Bulk billing of order " + order.orderId, 0, false);
+        } catch (GenericEntityException e) {
+            Debug.logError("Order [" + order.orderId + "] not billed: " + e.getMessage(), MODULE);
+            return null;
+        } catch (RuntimeException e) {
+            // a failure of one order must not stop the worker billing the other orders of its group
+            Debug.logError(e, "Order [" + order.orderId + "] not billed", MODULE);
+            return null;
+        }
+    }
+
+    private static <T> List<List<T>> partition(List<T> values, int size) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < values.size(); i += size) {
+            chunks.add(values.subList(i, Math.min(i + size, values.size())));
+        }
+        return chunks;
+    }
+}
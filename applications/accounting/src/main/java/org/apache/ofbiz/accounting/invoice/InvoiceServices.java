@@ -195,7 +195,7 @@ public class InvoiceServices {
             }
 
             // Make an order read helper from the order
-            OrderReadHelper orh = new OrderReadHelper(orderHeader);
+            OrderReadHelper orh = OrderReadHelper.getSnapshotHelper(orderHeader);
 
             // get the product store
             GenericValue productStore = orh.getProductStore();
@@ -554,7 +554,7 @@ public class InvoiceServices {
                         orderItem.get("orderItemSeqId")).queryOne();
 
                 // create the item adjustment as line items
-                List<GenericValue> itemAdjustments = OrderReadHelper.getOrderItemAdjustmentList(orderItem, orh.getAdjustments());
+                List<GenericValue> itemAdjustments = orh.getOrderItemAdjustments(orderItem);
                 for (GenericValue adj : itemAdjustments) {
 
                     // Check against OrderAdjustmentBilling to see how much of this adjustment has already been invoiced
@@ -1391,7 +1391,6 @@ public class InvoiceServices {
 
     public static Map<String, Object> createInvoicesFromShipments(DispatchContext dctx, Map<String, ? extends Object> context) {
         Delegator delegator = dctx.getDelegator();
-        LocalDispatcher dispatcher = dctx.getDispatcher();
         List<String> shipmentIds = UtilGenerics.cast(context.get("shipmentIds"));
         Locale locale = (Locale) context.get("locale");
         Boolean createSalesInvoicesForDropShipments = (Boolean) context.get("createSalesInvoicesForDropShipments");
@@ -1630,312 +1629,334 @@ public class InvoiceServices {
                 itemQtyAvail.put(issue.getString("orderItemSeqId"), billAvail);
             }
 
-            OrderReadHelper orh = new OrderReadHelper(delegator, orderId);
+            Map<String, Object> billResult = billShippedOrder(dctx, context, orderId, toBillItems, shipmentIds, dropShipmentFound,
+                    createSalesInvoicesForDropShipments, orderItemAssocs);
+            if (ServiceUtil.isError(billResult)) {
+                return billResult;
+            }
+            invoicesCreated.add((String) billResult.get("invoiceId"));
+        }
 
-            GenericValue productStore = orh.getProductStore();
-            String prorateShipping = productStore != null ? productStore.getString("prorateShipping") : "N";
+        Map<String, Object> response = ServiceUtil.returnSuccess();
+        response.put("invoicesCreated", invoicesCreated);
+        return response;
+    }
 
-            // If shipping charges are not prorated, the shipments need to be examined for additional shipping charges
-            if ("N".equalsIgnoreCase(prorateShipping)) {
+    /**
+     * Bills the items of an order shipped in the given shipments: adds and authorizes the additional shipping charges of the
+     * shipments unless the store prorates shipping, then calls createInvoiceForOrder.
+     * @return the service result, with the invoiceId on success
+     */
+    static Map<String, Object> billShippedOrder(DispatchContext dctx, Map<String, ? extends Object> context, String orderId,
+            List<GenericValue> toBillItems, List<String> shipmentIds, boolean dropShipmentFound, boolean createSalesInvoicesForDropShipments,
+            List<GenericValue> orderItemAssocs) {
+        Delegator delegator = dctx.getDelegator();
+        LocalDispatcher dispatcher = dctx.getDispatcher();
+        Locale locale = (Locale) context.get("locale");
 
-                // Get the set of filtered shipments
-                List<GenericValue> invoiceableShipments = null;
-                try {
-                    if (dropShipmentFound) {
+        OrderReadHelper orh = new OrderReadHelper(delegator, orderId);
 
-                        List<String> invoiceablePrimaryOrderIds = null;
-                        if (createSalesInvoicesForDropShipments) {
+        GenericValue productStore = orh.getProductStore();
+        String prorateShipping = productStore != null ? productStore.getString("prorateShipping") : "N";
 
-                            // If a sales invoice is being created for the drop shipment, we need to reference back to the original purchase order IDs
+        // If shipping charges are not prorated, the shipments need to be examined for additional shipping charges
+        if ("N".equalsIgnoreCase(prorateShipping)) {
 
-                            // Get the IDs for orders which have billable items
-                            List<String> invoiceableLinkedOrderIds = EntityUtil.getFieldListFromEntityList(toBillItems, "orderId", true);
+            // Get the set of filtered shipments
+            List<GenericValue> invoiceableShipments = null;
+            try {
+                if (dropShipmentFound) {
 
-                            // Get back the IDs of the purchase orders - this will be a list of the purchase order items which are billable by
-                            // virtue of not having been
-                            //  invoiced in a previous sales invoice
-                            List<GenericValue> reverseOrderItemAssocs = EntityUtil.filterByCondition(orderItemAssocs,
-                                    EntityCondition.makeCondition("orderId", EntityOperator.IN, invoiceableLinkedOrderIds));
-                            invoiceablePrimaryOrderIds = EntityUtil.getFieldListFromEntityList(reverseOrderItemAssocs, "toOrderId", true);
+                    List<String> invoiceablePrimaryOrderIds = null;
+                    if (createSalesInvoicesForDropShipments) {
 
-                        } else {
+                        // If a sales invoice is being created for the drop shipment, we need to reference back to the original purchase order IDs
 
-                            // If a purchase order is being created for a drop shipment, the purchase order IDs can be used directly
-                            invoiceablePrimaryOrderIds = EntityUtil.getFieldListFromEntityList(toBillItems, "orderId", true);
+                        // Get the IDs for orders which have billable items
+                        List<String> invoiceableLinkedOrderIds = EntityUtil.getFieldListFromEntityList(toBillItems, "orderId", true);
 
-                        }
+                        // Get back the IDs of the purchase orders - this will be a list of the purchase order items which are billable by
+                        // virtue of not having been
+                        //  invoiced in a previous sales invoice
+                        List<GenericValue> reverseOrderItemAssocs = EntityUtil.filterByCondition(orderItemAssocs,
+                                EntityCondition.makeCondition("orderId", EntityOperator.IN, invoiceableLinkedOrderIds));
+                        invoiceablePrimaryOrderIds = EntityUtil.getFieldListFromEntityList(reverseOrderItemAssocs, "toOrderId", true);
 
-                        // Get the list of shipments which are associated with the filtered purchase orders
-                        if (!UtilValidate.isEmpty(invoiceablePrimaryOrderIds)) {
-                            invoiceableShipments = EntityQuery.use(delegator).from("Shipment").where(
-                                    UtilMisc.toList(
-                                            EntityCondition.makeCondition("primaryOrderId", EntityOperator.IN, invoiceablePrimaryOrderIds),
-                                            EntityCondition.makeCondition("shipmentId", EntityOperator.IN, shipmentIds))).queryList();
-                        }
                     } else {
-                        List<String> invoiceableShipmentIds = EntityUtil.getFieldListFromEntityList(toBillItems, "shipmentId", true);
-                        if (UtilValidate.isNotEmpty(invoiceableShipmentIds)) {
-                            invoiceableShipments = EntityQuery.use(delegator).from("Shipment").where(EntityCondition.makeCondition("shipmentId",
-                                    EntityOperator.IN, invoiceableShipmentIds)).queryList();
-                        }
+
+                        // If a purchase order is being created for a drop shipment, the purchase order IDs can be used directly
+                        invoiceablePrimaryOrderIds = EntityUtil.getFieldListFromEntityList(toBillItems, "orderId", true);
+
+                    }
+
+                    // Get the list of shipments which are associated with the filtered purchase orders
+                    if (!UtilValidate.isEmpty(invoiceablePrimaryOrderIds)) {
+                        invoiceableShipments = EntityQuery.use(delegator).from("Shipment").where(
+                                UtilMisc.toList(
+                                        EntityCondition.makeCondition("primaryOrderId", EntityOperator.IN, invoiceablePrimaryOrderIds),
+                                        EntityCondition.makeCondition("shipmentId", EntityOperator.IN, shipmentIds))).queryList();
+                    }
+                } else {
+                    List<String> invoiceableShipmentIds = EntityUtil.getFieldListFromEntityList(toBillItems, "shipmentId", true);
+                    if (UtilValidate.isNotEmpty(invoiceableShipmentIds)) {
+                        invoiceableShipments = EntityQuery.use(delegator).from("Shipment").where(EntityCondition.makeCondition("shipmentId",
+                                EntityOperator.IN, invoiceableShipmentIds)).queryList();
                     }
-                } catch (GenericEntityException e) {
-                    Debug.logError(e, "Trouble calling createInvoicesFromShipments service", MODULE);
-                    return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
-                            "AccountingTroubleCallingCreateInvoicesFromShipmentsService", locale));
                 }
+            } catch (GenericEntityException e) {
+                Debug.logError(e, "Trouble calling createInvoicesFromShipments service", MODULE);
+                return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
+                        "AccountingTroubleCallingCreateInvoicesFromShipmentsService", locale));
+            }
 
-                // Total the additional shipping charges for the shipments
-                Map<GenericValue, BigDecimal> additionalShippingCharges = new HashMap<>();
-                BigDecimal totalAdditionalShippingCharges = BigDecimal.ZERO;
-                if (UtilValidate.isNotEmpty(invoiceableShipments)) {
-                    for (GenericValue shipment : invoiceableShipments) {
-                        if (shipment.get("additionalShippingCharge") == null) {
-                            continue;
-                        }
-                        BigDecimal shipmentAdditionalShippingCharges = shipment.getBigDecimal("additionalShippingCharge").setScale(DECIMALS,
-                                ROUNDING);
-                        additionalShippingCharges.put(shipment, shipmentAdditionalShippingCharges);
-                        totalAdditionalShippingCharges = totalAdditionalShippingCharges.add(shipmentAdditionalShippingCharges);
-                    }
-                }
-
-                // If the additional shipping charges are greater than zero, process them
-                if (totalAdditionalShippingCharges.signum() == 1) {
-
-                    // Add an OrderAdjustment to the order for each additional shipping charge
-                    for (Map.Entry<GenericValue, BigDecimal> entry : additionalShippingCharges.entrySet()) {
-                        GenericValue shipment = entry.getKey();
-                        BigDecimal additionalShippingCharge = entry.getValue();
-                        String shipmentId = shipment.getString("shipmentId");
-                        Map<String, Object> createOrderAdjustmentContext = new HashMap<>();
-                        createOrderAdjustmentContext.put("orderId", orderId);
-                        createOrderAdjustmentContext.put("orderAdjustmentTypeId", "SHIPPING_CHARGES");
-                        String addtlChargeDescription = shipment.getString("addtlShippingChargeDesc");
-                        if (UtilValidate.isEmpty(addtlChargeDescription)) {
-                            addtlChargeDescription = UtilProperties.getMessage(RESOURCE, "AccountingAdditionalShippingChargeForShipment",
-                                    UtilMisc.toMap("shipmentId", shipmentId), locale);
-                        }
-                        createOrderAdjustmentContext.put("description", addtlChargeDescription);
-                        createOrderAdjustmentContext.put("sourceReferenceId", shipmentId);
-                        createOrderAdjustmentContext.put("amount", additionalShippingCharge);
-                        createOrderAdjustmentContext.put("userLogin", context.get("userLogin"));
-                        String shippingOrderAdjustmentId = null;
-                        try {
-                            Map<String, Object> createOrderAdjustmentResult = dispatcher.runSync("createOrderAdjustment",
-                                    createOrderAdjustmentContext);
-                            if (ServiceUtil.isError(createOrderAdjustmentResult)) {
-                                return ServiceUtil.returnError(ServiceUtil.getErrorMessage(createOrderAdjustmentResult));
-                            }
-                            shippingOrderAdjustmentId = (String) createOrderAdjustmentResult.get("orderAdjustmentId");
-                        } catch (GenericServiceException e) {
-                            Debug.logError(e, "Trouble calling createOrderAdjustment service", MODULE);
-                            return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
-                                    "AccountingTroubleCallingCreateOrderAdjustmentService", locale));
+            // Total the additional shipping charges for the shipments
+            Map<GenericValue, BigDecimal> additionalShippingCharges = new HashMap<>();
+            BigDecimal totalAdditionalShippingCharges = BigDecimal.ZERO;
+            if (UtilValidate.isNotEmpty(invoiceableShipments)) {
+                for (GenericValue shipment : invoiceableShipments) {
+                    if (shipment.get("additionalShippingCharge") == null) {
+                        continue;
+                    }
+                    BigDecimal shipmentAdditionalShippingCharges = shipment.getBigDecimal("additionalShippingCharge").setScale(DECIMALS,
+                            ROUNDING);
+                    additionalShippingCharges.put(shipment, shipmentAdditionalShippingCharges);
+                    totalAdditionalShippingCharges = totalAdditionalShippingCharges.add(shipmentAdditionalShippingCharges);
+                }
+            }
+
+            // If the additional shipping charges are greater than zero, process them
+            if (totalAdditionalShippingCharges.signum() == 1) {
+
+                // Add an OrderAdjustment to the order for each additional shipping charge
+                for (Map.Entry<GenericValue, BigDecimal> entry : additionalShippingCharges.entrySet()) {
+                    GenericValue shipment = entry.getKey();
+                    BigDecimal additionalShippingCharge = entry.getValue();
+                    String shipmentId = shipment.getString("shipmentId");
+                    Map<String, Object> createOrderAdjustmentContext = new HashMap<>();
+                    createOrderAdjustmentContext.put("orderId", orderId);
+                    createOrderAdjustmentContext.put("orderAdjustmentTypeId", "SHIPPING_CHARGES");
+                    String addtlChargeDescription = shipment.getString("addtlShippingChargeDesc");
+                    if (UtilValidate.isEmpty(addtlChargeDescription)) {
+                        addtlChargeDescription = UtilProperties.getMessage(RESOURCE, "AccountingAdditionalShippingChargeForShipment",
+                                UtilMisc.toMap("shipmentId", shipmentId), locale);
+                    }
+                    createOrderAdjustmentContext.put("description", addtlChargeDescription);
+                    createOrderAdjustmentContext.put("sourceReferenceId", shipmentId);
+                    createOrderAdjustmentContext.put("amount", additionalShippingCharge);
+                    createOrderAdjustmentContext.put("userLogin", context.get("userLogin"));
+                    String shippingOrderAdjustmentId = null;
+                    try {
+                        Map<String, Object> createOrderAdjustmentResult = dispatcher.runSync("createOrderAdjustment",
+                                createOrderAdjustmentContext);
+                        if (ServiceUtil.isError(createOrderAdjustmentResult)) {
+                            return ServiceUtil.returnError(ServiceUtil.getErrorMessage(createOrderAdjustmentResult));
                         }
+                        shippingOrderAdjustmentId = (String) createOrderAdjustmentResult.get("orderAdjustmentId");
+                    } catch (GenericServiceException e) {
+                        Debug.logError(e, "Trouble calling createOrderAdjustment service", MODULE);
+                        return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
+                                "AccountingTroubleCallingCreateOrderAdjustmentService", locale));
+                    }
 
-                        // Obtain a list of OrderAdjustments due to tax on the shipping charges, if any
-                        GenericValue billToParty = orh.getBillToParty();
-                        GenericValue payToParty = orh.getBillFromParty();
-                        GenericValue destinationContactMech = null;
-                        try {
-                            destinationContactMech = shipment.getRelatedOne("DestinationPostalAddress", false);
-                        } catch (GenericEntityException e) {
-                            Debug.logError(e, "Trouble calling createInvoicesFromShipment service; invoice not created for shipment " + shipmentId,
-                                    MODULE);
-                            return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
-                                    "AccountingTroubleCallingCreateInvoicesFromShipmentService", locale));
-                        }
+                    // Obtain a list of OrderAdjustments due to tax on the shipping charges, if any
+                    GenericValue billToParty = orh.getBillToParty();
+                    GenericValue payToParty = orh.getBillFromParty();
+                    GenericValue destinationContactMech = null;
+                    try {
+                        destinationContactMech = shipment.getRelatedOne("DestinationPostalAddress", false);
+                    } catch (GenericEntityException e) {
+                        Debug.logError(e, "Trouble calling createInvoicesFromShipment service; invoice not created for shipment " + shipmentId,
+                                MODULE);
+                        return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
+                                "AccountingTroubleCallingCreateInvoicesFromShipmentService", locale));
+                    }
 
-                        List<Object> emptyList = new LinkedList<>();
-                        Map<String, Object> calcTaxContext = new HashMap<>();
-                        calcTaxContext.put("productStoreId", orh.getProductStoreId());
-                        calcTaxContext.put("payToPartyId", payToParty.getString("partyId"));
-                        calcTaxContext.put("billToPartyId", billToParty.getString("partyId"));
-                        calcTaxContext.put("orderShippingAmount", totalAdditionalShippingCharges);
-                        calcTaxContext.put("shippingAddress", destinationContactMech);
-
-                        // These parameters don't matter if we're only worried about adjustments on the shipping charges
-                        calcTaxContext.put("itemProductList", emptyList);
-                        calcTaxContext.put("itemAmountList", emptyList);
-                        calcTaxContext.put("itemPriceList", emptyList);
-                        calcTaxContext.put("itemQuantityList", emptyList);
-                        calcTaxContext.put("itemShippingList", emptyList);
-
-                        Map<String, Object> calcTaxResult = null;
-                        try {
-                            calcTaxResult = dispatcher.runSync("calcTax", calcTaxContext);
-                            if (ServiceUtil.isError(calcTaxResult)) {
-                                return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
-                                        "AccountingTroubleCallingCalcTaxService", locale));
-                            }
-                        } catch (GenericServiceException e) {
-                            Debug.logError(e, "Trouble calling calcTaxService", MODULE);
+                    List<Object> emptyList = new LinkedList<>();
+                    Map<String, Object> calcTaxContext = new HashMap<>();
+                    calcTaxContext.put("productStoreId", orh.getProductStoreId());
+                    calcTaxContext.put("payToPartyId", payToParty.getString("partyId"));
+                    calcTaxContext.put("billToPartyId", billToParty.getString("partyId"));
+                    calcTaxContext.put("orderShippingAmount", totalAdditionalShippingCharges);
+                    calcTaxContext.put("shippingAddress", destinationContactMech);
+
+                    // These parameters don't matter if we're only worried about adjustments on the shipping charges
+                    calcTaxContext.put("itemProductList", emptyList);
+                    calcTaxContext.put("itemAmountList", emptyList);
+                    calcTaxContext.put("itemPriceList", emptyList);
+                    calcTaxContext.put("itemQuantityList", emptyList);
+                    calcTaxContext.put("itemShippingList", emptyList);
+
+                    Map<String, Object> calcTaxResult = null;
+                    try {
+                        calcTaxResult = dispatcher.runSync("calcTax", calcTaxContext);
+                        if (ServiceUtil.isError(calcTaxResult)) {
                             return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
                                     "AccountingTroubleCallingCalcTaxService", locale));
                         }
-                        List<GenericValue> orderAdjustments = UtilGenerics.cast(calcTaxResult.get("orderAdjustments"));
-
-                        // If we have any OrderAdjustments due to tax on shipping, store them and add them to the total
-                        if (orderAdjustments != null) {
-                            for (GenericValue orderAdjustment : orderAdjustments) {
-                                totalAdditionalShippingCharges =
-                                        totalAdditionalShippingCharges.add(orderAdjustment.getBigDecimal("amount").setScale(DECIMALS, ROUNDING));
-                                orderAdjustment.set("orderAdjustmentId", delegator.getNextSeqId("OrderAdjustment"));
-                                orderAdjustment.set("orderId", orderId);
-                                orderAdjustment.set("orderItemSeqId", "_NA_");
-                                orderAdjustment.set("shipGroupSeqId", shipment.getString("primaryShipGroupSeqId"));
-                                orderAdjustment.set("originalAdjustmentId", shippingOrderAdjustmentId);
-                            }
-                            try {
-                                delegator.storeAll(orderAdjustments);
-                            } catch (GenericEntityException e) {
-                                Debug.logError(e, "Problem storing OrderAdjustments: " + orderAdjustments, MODULE);
-                                return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
-                                        "AccountingProblemStoringOrderAdjustments",
-                                        UtilMisc.toMap("orderAdjustments", orderAdjustments), locale));
-                            }
+                    } catch (GenericServiceException e) {
+                        Debug.logError(e, "Trouble calling calcTaxService", MODULE);
+                        return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
+                                "AccountingTroubleCallingCalcTaxService", locale));
+                    }
+                    List<GenericValue> orderAdjustments = UtilGenerics.cast(calcTaxResult.get("orderAdjustments"));
+
+                    // If we have any OrderAdjustments due to tax on shipping, store them and add them to the total
+                    if (orderAdjustments != null) {
+                        for (GenericValue orderAdjustment : orderAdjustments) {
+                            totalAdditionalShippingCharges =
+                                    totalAdditionalShippingCharges.add(orderAdjustment.getBigDecimal("amount").setScale(DECIMALS, ROUNDING));
+                            orderAdjustment.set("orderAdjustmentId", delegator.getNextSeqId("OrderAdjustment"));
+                            orderAdjustment.set("orderId", orderId);
+                            orderAdjustment.set("orderItemSeqId", "_NA_");
+                            orderAdjustment.set("shipGroupSeqId", shipment.getString("primaryShipGroupSeqId"));
+                            orderAdjustment.set("originalAdjustmentId", shippingOrderAdjustmentId);
                         }
-
-                        // If part of the order was paid via credit card, try to charge it for the additional shipping
-                        List<GenericValue> orderPaymentPreferences = null;
                         try {
-                            orderPaymentPreferences = EntityQuery.use(delegator).from("OrderPaymentPreference")
-                                    .where("orderId", orderId, "paymentMethodTypeId", "CREDIT_CARD").queryList();
+                            delegator.storeAll(orderAdjustments);
                         } catch (GenericEntityException e) {
-                            Debug.logError(e, "Problem getting OrderPaymentPreference records", MODULE);
+                            Debug.logError(e, "Problem storing OrderAdjustments: " + orderAdjustments, MODULE);
                             return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
-                                    "AccountingProblemGettingOrderPaymentPreferences", locale));
-                        }
-
-                        //  Use the first credit card we find, for the sake of simplicity
-                        String paymentMethodId = null;
-                        GenericValue cardOrderPaymentPref = EntityUtil.getFirst(orderPaymentPreferences);
-                        if (cardOrderPaymentPref != null) {
-                            paymentMethodId = cardOrderPaymentPref.getString("paymentMethodId");
+                                    "AccountingProblemStoringOrderAdjustments",
+                                    UtilMisc.toMap("orderAdjustments", orderAdjustments), locale));
                         }
+                    }
 
-                        if (paymentMethodId != null) {
-
-                            // Release all outstanding (not settled or cancelled) authorizations, while keeping a running
-                            //  total of their amounts so that the total plus the additional shipping charges can be authorized again
-                            //  all at once.
-                            BigDecimal totalNewAuthAmount = totalAdditionalShippingCharges.setScale(DECIMALS, ROUNDING);
-                            for (GenericValue orderPaymentPreference : orderPaymentPreferences) {
-                                if (!("PAYMENT_SETTLED".equals(orderPaymentPreference.getString("statusId")) || "PAYMENT_CANCELLED"
-                                        .equals(orderPaymentPreference.getString("statusId")))) {
-                                    GenericValue authTransaction = PaymentGatewayServices.getAuthTransaction(orderPaymentPreference);
-                                    if (authTransaction != null && authTransaction.get("amount") != null) {
-
-                                        // Update the total authorized amount
-                                        totalNewAuthAmount = totalNewAuthAmount.add(authTransaction.getBigDecimal("amount").setScale(DECIMALS,
-                                                ROUNDING));
-
-                                        // Release the authorization for the OrderPaymentPreference
-                                        Map<String, Object> prefReleaseResult = null;
-                                        try {
-                                            prefReleaseResult = dispatcher.runSync("releaseOrderPaymentPreference", UtilMisc.toMap(
-                                                    "orderPaymentPreferenceId", orderPaymentPreference.getString("orderPaymentPreferenceId"),
-                                                    "userLogin", context.get("userLogin")));
-                                        } catch (GenericServiceException e) {
-                                            Debug.logError(e, "Trouble calling releaseOrderPaymentPreference service", MODULE);
-                                            return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
-                                                    "AccountingTroubleCallingReleaseOrderPaymentPreferenceService", locale));
-                                        }
-                                        if (ServiceUtil.isError(prefReleaseResult) || ServiceUtil.isFailure(prefReleaseResult)) {
-                                            String errMsg = ServiceUtil.getErrorMessage(prefReleaseResult);
-                                            Debug.logError(errMsg, MODULE);
-                                            return ServiceUtil.returnError(errMsg);
-                                        }
+                    // If part of the order was paid via credit card, try to charge it for the additional shipping
+                    List<GenericValue> orderPaymentPreferences = null;
+                    try {
+                        orderPaymentPreferences = EntityQuery.use(delegator).from("OrderPaymentPreference")
+                                .where("orderId", orderId, "paymentMethodTypeId", "CREDIT_CARD").queryList();
+                    } catch (GenericEntityException e) {
+                        Debug.logError(e, "Problem getting OrderPaymentPreference records", MODULE);
+                        return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
+                                "AccountingProblemGettingOrderPaymentPreferences", locale));
+                    }
+
+                    //  Use the first credit card we find, for the sake of simplicity
+                    String paymentMethodId = null;
+                    GenericValue cardOrderPaymentPref = EntityUtil.getFirst(orderPaymentPreferences);
+                    if (cardOrderPaymentPref != null) {
+                        paymentMethodId = cardOrderPaymentPref.getString("paymentMethodId");
+                    }
+
+                    if (paymentMethodId != null) {
+
+                        // Release all outstanding (not settled or cancelled) authorizations, while keeping a running
+                        //  total of their amounts so that the total plus the additional shipping charges can be authorized again
+                        //  all at once.
+                        BigDecimal totalNewAuthAmount = totalAdditionalShippingCharges.setScale(DECIMALS, ROUNDING);
+                        for (GenericValue orderPaymentPreference : orderPaymentPreferences) {
+                            if (!("PAYMENT_SETTLED".equals(orderPaymentPreference.getString("statusId")) || "PAYMENT_CANCELLED"
+                                    .equals(orderPaymentPreference.getString("statusId")))) {
+                                GenericValue authTransaction = PaymentGatewayServices.getAuthTransaction(orderPaymentPreference);
+                                if (authTransaction != null && authTransaction.get("amount") != null) {
+
+                                    // Update the total authorized amount
+                                    totalNewAuthAmount = totalNewAuthAmount.add(authTransaction.getBigDecimal("amount").setScale(DECIMALS,
+                                            ROUNDING));
+
+                                    // Release the authorization for the OrderPaymentPreference
+                                    Map<String, Object> prefReleaseResult = null;
+                                    try {
+                                        prefReleaseResult = dispatcher.runSync("releaseOrderPaymentPreference", UtilMisc.toMap(
+                                                "orderPaymentPreferenceId", orderPaymentPreference.getString("orderPaymentPreferenceId"),
+                                                "userLogin", context.get("userLogin")));
+                                    } catch (GenericServiceException e) {
+                                        Debug.logError(e, "Trouble calling releaseOrderPaymentPreference service", MODULE);
+                                        return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
+                                                "AccountingTroubleCallingReleaseOrderPaymentPreferenceService", locale));
+                                    }
+                                    if (ServiceUtil.isError(prefReleaseResult) || ServiceUtil.isFailure(prefReleaseResult)) {
+                                        String errMsg = ServiceUtil.getErrorMessage(prefReleaseResult);
+                                        Debug.logError(errMsg, MODULE);
+                                        return ServiceUtil.returnError(errMsg);
                                     }
                                 }
                             }
+                        }
 
-                            // Create a new OrderPaymentPreference for the order to handle the new (totalled) charge. Don't
-                            //  set the maxAmount so that it doesn't interfere with other authorizations
-                            Map<String, Object> serviceContext = UtilMisc.toMap("orderId", orderId, "paymentMethodId", paymentMethodId,
-                                    "paymentMethodTypeId", "CREDIT_CARD", "userLogin", context.get("userLogin"));
-                            String orderPaymentPreferenceId = null;
-                            try {
-                                Map<String, Object> result = dispatcher.runSync("createOrderPaymentPreference", serviceContext);
-                                if (ServiceUtil.isError(result)) {
-                                    return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
-                                            "AccountingTroubleCallingCreateOrderPaymentPreferenceService", locale));
-                                }
-                                orderPaymentPreferenceId = (String) result.get("orderPaymentPreferenceId");
-                            } catch (GenericServiceException e) {
-                                Debug.logError(e, "Trouble calling createOrderPaymentPreference service", MODULE);
+                        // Create a new OrderPaymentPreference for the order to handle the new (totalled) charge. Don't
+                        //  set the maxAmount so that it doesn't interfere with other authorizations
+                        Map<String, Object> serviceContext = UtilMisc.toMap("orderId", orderId, "paymentMethodId", paymentMethodId,
+                                "paymentMethodTypeId", "CREDIT_CARD", "userLogin", context.get("userLogin"));
+                        String orderPaymentPreferenceId = null;
+                        try {
+                            Map<String, Object> result = dispatcher.runSync("createOrderPaymentPreference", serviceContext);
+                            if (ServiceUtil.isError(result)) {
                                 return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
                                         "AccountingTroubleCallingCreateOrderPaymentPreferenceService", locale));
                             }
+                            orderPaymentPreferenceId = (String) result.get("orderPaymentPreferenceId");
+                        } catch (GenericServiceException e) {
+                            Debug.logError(e, "Trouble calling createOrderPaymentPreference service", MODULE);
+                            return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
+                                    "AccountingTroubleCallingCreateOrderPaymentPreferenceService", locale));
+                        }
 
-                            // Attempt to authorize the new orderPaymentPreference
-                            Map<String, Object> authResult = null;
-                            try {
-                                // Use an overrideAmount because the maxAmount wasn't set on the OrderPaymentPreference
-                                authResult = dispatcher.runSync("authOrderPaymentPreference", UtilMisc.toMap("orderPaymentPreferenceId",
-                                        orderPaymentPreferenceId, "overrideAmount", totalNewAuthAmount, "userLogin", context.get("userLogin")));
-                                if (ServiceUtil.isError(authResult)) {
-                                    return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
-                                            "AccountingTroubleCallingAuthOrderPaymentPreferenceService", locale));
-                                }
-                            } catch (GenericServiceException e) {
-                                Debug.logError(e, "Trouble calling authOrderPaymentPreference service", MODULE);
+                        // Attempt to authorize the new orderPaymentPreference
+                        Map<String, Object> authResult = null;
+                        try {
+                            // Use an overrideAmount because the maxAmount wasn't set on the OrderPaymentPreference
+                            authResult = dispatcher.runSync("authOrderPaymentPreference", UtilMisc.toMap("orderPaymentPreferenceId",
+                                    orderPaymentPreferenceId, "overrideAmount", totalNewAuthAmount, "userLogin", context.get("userLogin")));
+                            if (ServiceUtil.isError(authResult)) {
                                 return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
                                         "AccountingTroubleCallingAuthOrderPaymentPreferenceService", locale));
                             }
+                        } catch (GenericServiceException e) {
+                            Debug.logError(e, "Trouble calling authOrderPaymentPreference service", MODULE);
+                            return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
+                                    "AccountingTroubleCallingAuthOrderPaymentPreferenceService", locale));
+                        }
 
-                            // If the authorization fails, create the invoice anyway, but make a note of it
-                            boolean authFinished = (Boolean) authResult.get("finished");
-                            boolean authErrors = (Boolean) authResult.get("errors");
-                            if (authErrors || !authFinished) {
-                                String errMsg = UtilProperties.getMessage(RESOURCE, "AccountingUnableToAuthAdditionalShipCharges", UtilMisc.toMap(
-                                        "shipmentId", shipmentId, "paymentMethodId", paymentMethodId, "orderPaymentPreferenceId",
-                                        orderPaymentPreferenceId), locale);
-                                Debug.logError(errMsg, MODULE);
-                            }
-
+                        // If the authorization fails, create the invoice anyway, but make a note of it
+                        boolean authFinished = (Boolean) authResult.get("finished");
+                        boolean authErrors = (Boolean) authResult.get("errors");
+                        if (authErrors || !authFinished) {
+                            String errMsg = UtilProperties.getMessage(RESOURCE, "AccountingUnableToAuthAdditionalShipCharges", UtilMisc.toMap(
+                                    "shipmentId", shipmentId, "paymentMethodId", paymentMethodId, "orderPaymentPreferenceId",
+                                    orderPaymentPreferenceId), locale);
+                            Debug.logError(errMsg, MODULE);
                         }
+
                     }
                 }
-            } else {
-                Debug.logInfo(UtilProperties.getMessage(RESOURCE, "AccountingIgnoringAdditionalShipCharges", UtilMisc.toMap("productStoreId",
-                        orh.getProductStoreId()), locale), MODULE);
             }
+        } else {
+            Debug.logInfo(UtilProperties.getMessage(RESOURCE, "AccountingIgnoringAdditionalShipCharges", UtilMisc.toMap("productStoreId",
+                    orh.getProductStoreId()), locale), MODULE);
+        }
 
-            String invoiceId = null;
-            GenericValue shipmentItemBilling = null;
-            String shipmentId = shipmentIds.get(0);
-            try {
-                shipmentItemBilling = EntityQuery.use(delegator).from("ShipmentItemBilling").where("shipmentId", shipmentId).queryFirst();
-            } catch (GenericEntityException e) {
-                return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
-                        "AccountingProblemGettingShipmentItemBilling", locale));
-            }
-            if (shipmentItemBilling != null) {
-                invoiceId = shipmentItemBilling.getString("invoiceId");
-            }
+        String invoiceId = null;
+        GenericValue shipmentItemBilling = null;
+        String shipmentId = shipmentIds.get(0);
+        try {
+            shipmentItemBilling = EntityQuery.use(delegator).from("ShipmentItemBilling").where("shipmentId", shipmentId).queryFirst();
+        } catch (GenericEntityException e) {
+            return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
+                    "AccountingProblemGettingShipmentItemBilling", locale));
+        }
+        if (shipmentItemBilling != null) {
+            invoiceId = shipmentItemBilling.getString("invoiceId");
+        }
 
-            // call the createInvoiceForOrder service for each order
-            Map<String, Object> serviceContext = UtilMisc.toMap("orderId", orderId, "billItems", toBillItems, "invoiceId", invoiceId, "eventDate",
-                    context.get("eventDate"), "userLogin", context.get("userLogin"));
-            try {
-                Map<String, Object> result = dispatcher.runSync("createInvoiceForOrder", serviceContext);
-                if (ServiceUtil.isError(result)) {
-                    return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
-                            "AccountingTroubleCallingCreateInvoiceForOrderService", locale));
-                }
-                invoicesCreated.add((String) result.get("invoiceId"));
-            } catch (GenericServiceException e) {
-                Debug.logError(e, "Trouble calling createInvoiceForOrder service; invoice not created for shipment", MODULE);
+        // call the createInvoiceForOrder service for each order
+        Map<String, Object> serviceContext = UtilMisc.toMap("orderId", orderId, "billItems", toBillItems, "invoiceId", invoiceId, "eventDate",
+                context.get("eventDate"), "userLogin", context.get("userLogin"));
+        try {
+            Map<String, Object> result = dispatcher.runSync("createInvoiceForOrder", serviceContext);
+            if (ServiceUtil.isError(result)) {
                 return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
                         "AccountingTroubleCallingCreateInvoiceForOrderService", locale));
             }
+            Map<String, Object> response = ServiceUtil.returnSuccess();
+            response.put("invoiceId", result.get("invoiceId"));
+            return response;
+        } catch (GenericServiceException e) {
+            Debug.logError(e, "Trouble calling createInvoiceForOrder service; invoice not created for shipment", MODULE);
+            return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
+                    "AccountingTroubleCallingCreateInvoiceForOrderService", locale));
         }
-
-        Map<String, Object> response = ServiceUtil.returnSuccess();
-        response.put("invoicesCreated", invoicesCreated);
-        return response;
     }
 
     private static String getInvoiceItemType(Delegator delegator, String key1, String key2, String invoiceTypeId, String defaultValue) {
@@ -0,0 +1,449 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.accounting.ledger;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.model.DynamicViewEntity;
+import org.apache.ofbiz.entity.model.ModelKeyMap;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityListIterator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtil;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * Materialized GL balances: the posted AcctgTransEntry amounts summed by organization, GL account, fiscal type,
+ * transaction type, month, currency and debit/credit flag, in GlAccountPeriodBalance.
+ * <p>
+ * The store of an organization is built by {@link #rebuildGlAccountPeriodBalances}, then kept up to date by
+ * {@link #updateGlAccountPeriodBalances} when a transaction is posted, posted transactions being immutable. A posting
+ * only locks the GlAccountPeriodBalanceStatus of the organizations having one, that is those rebuilt or being rebuilt,
+ * and adds its entries to the balances of those rebuilt. The rebuild handles the postings made meanwhile: it creates the
+ * status, or clears its rebuilt date, under lock, so that the following postings leave their entries to it, then sums
+ * the posted entries and finally, under the status lock again, adds the entries of the transactions posted since it
+ * started that it did not read yet.
+ * <p>
+ * When <code>gl.period.balance.enable</code> is set, {@link #findTransactionTotals} reads the months fully within the
+ * report dates from the store and only the days at both ends from the entries, which gives the same totals as the
+ * AcctgTransEntrySums view over the whole range.
+ */
+public class GlAccountPeriodBalanceServices {
+
+    private static final String MODULE = GlAccountPeriodBalanceServices.class.getName();
+    /** Stored in place of the empty key fields. */
+    private static final String NONE = "_NA_";
+
+    /** Whether the accounting reports read the GL balance store. */
+    public static boolean isEnabled(Delegator delegator) {
+        return "Y".equals(EntityUtilProperties.getPropertyValue("accounting", "gl.period.balance.enable", "N", delegator));
+    }
+
+    /**
+     * Adds the entries of a posted AcctgTrans to the balances of the organizations whose store is rebuilt. Nothing is
+     * maintained while the store is disabled, the organizations being rebuilt when it is enabled again.
+     */
+    public static Map<String, Object> updateGlAccountPeriodBalances(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        if (!isEnabled(delegator)) {
+            return ServiceUtil.returnSuccess();
+        }
+        String acctgTransId = (String) context.get("acctgTransId");
+        try {
+            GenericValue acctgTrans = EntityQuery.use(delegator).from("AcctgTrans").where("acctgTransId", acctgTransId).queryOne();
+            if (acctgTrans == null || !"Y".equals(acctgTrans.getString("isPosted"))) {
+                return ServiceUtil.returnSuccess();
+            }
+            // the balances to add, by organization in a fixed order so concurrent postings lock them alike
+            Map<String, Map<List<Object>, BigDecimal[]>> balancesByOrganization = new TreeMap<>();
+            for (GenericValue entry : EntityQuery.use(delegator).from("AcctgTransEntry").where("acctgTransId", acctgTransId).queryList()) {
+                List<Object> key = makeKey(entry, acctgTrans);
+                if (key != null) {
+                    addToBalance(balancesByOrganization.computeIfAbsent(entry.getString("organizationPartyId"), k -> new HashMap<>()),
+                            key, entry.getBigDecimal("amount"));
+                }
+            }
+            Timestamp now = UtilDateTime.nowTimestamp();
+            for (Map.Entry<String, Map<List<Object>, BigDecimal[]>> organizationBalances : balancesByOrganization.entrySet()) {
+                String organizationPartyId = organizationBalances.getKey();
+                Map<String, Object> posted = UtilMisc.toMap("lastPostedDate", now, "lastAcctgTransId", acctgTransId);
+                if (delegator.storeByCondition("GlAccountPeriodBalanceStatus", posted,
+                        EntityCondition.makeCondition("organizationPartyId", organizationPartyId)) == 0) {
+                    // never rebuilt: the rebuild reads the posted entries
+                    continue;
+                }
+                // read once the status is locked by this transaction
+                GenericValue status = EntityQuery.use(delegator).from("GlAccountPeriodBalanceStatus")
+                        .where("organizationPartyId", organizationPartyId).queryOne();
+                if (status.get("rebuiltDate") == null) {
+                    // being rebuilt: the rebuild adds the entries posted since it started
+                    continue;
+                }
+                addBalances(delegator, organizationBalances.getValue());
+            }
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Error updating the GL balances of transaction [" + acctgTransId + "]", MODULE);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * Rebuilds the stored balances of an organization, or of all the organizations with entries, from the posted
+     * entries. Each organization is rebuilt in its own transactions, after which its balances are maintained on posting.
+     */
+    public static Map<String, Object> rebuildGlAccountPeriodBalances(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        String organizationPartyId = (String) context.get("organizationPartyId");
+        long startTime = System.currentTimeMillis();
+        int balanceCount = 0;
+        try {
+            List<String> organizationPartyIds;
+            if (UtilValidate.isNotEmpty(organizationPartyId)) {
+                organizationPartyIds = UtilMisc.toList(organizationPartyId);
+            } else {
+                organizationPartyIds = EntityUtil.getFieldListFromEntityList(EntityQuery.use(delegator).select("organizationPartyId")
+                        .from("AcctgTransEntry").where(EntityCondition.makeCondition("organizationPartyId", EntityOperator.NOT_EQUAL, null))
+                        .distinct().queryList(), "organizationPartyId", true);
+            }
+            for (String partyId : organizationPartyIds) {
+                balanceCount += rebuildOrganization(delegator, partyId);
+            }
+        } catch (GenericEntityException e) {
+            Debug.logError(e, MODULE);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        Debug.logInfo("Rebuilt " + balanceCount + " GL period balances in " + elapsedTime + " ms", MODULE);
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("balanceCount", balanceCount);
+        result.put("elapsedTime", elapsedTime);
+        return result;
+    }
+
+    private static int rebuildOrganization(Delegator delegator, String organizationPartyId) throws GenericEntityException {
+        int timeout = EntityUtilProperties.getPropertyAsInteger("accounting", "gl.period.balance.rebuild.timeout", 7200);
+        long postingTimeout = EntityUtilProperties.getPropertyAsInteger("accounting", "gl.period.balance.posting.timeout", 600) * 1000L;
+        EntityCondition ofOrganization = EntityCondition.makeCondition("organizationPartyId", organizationPartyId);
+
+        // waits for the postings holding the status lock, the following ones leaving their entries to the rebuild
+        boolean created = TransactionUtil.doNewTransaction(() -> {
+            if (delegator.storeByCondition("GlAccountPeriodBalanceStatus", UtilMisc.toMap("rebuiltDate", null), ofOrganization) > 0) {
+                return false;
+            }
+            delegator.create("GlAccountPeriodBalanceStatus", UtilMisc.toMap("organizationPartyId", organizationPartyId));
+            return true;
+        }, "Error locking the GL balance status of organization [" + organizationPartyId + "]", 0, true);
+        Timestamp startDate = UtilDateTime.nowTimestamp();
+        // a transaction posted before the rebuild started may be committed after it read the entries
+        Timestamp sinceDate = new Timestamp(startDate.getTime() - postingTimeout);
+        EntityCondition posted = EntityCondition.makeCondition(UtilMisc.toMap("organizationPartyId", organizationPartyId, "isPosted", "Y"));
+
+        Map<List<Object>, BigDecimal[]> balances = new HashMap<>();
+        Set<String> readAcctgTransIds = TransactionUtil.doNewTransaction(() -> {
+            delegator.removeByAnd("GlAccountPeriodBalance", UtilMisc.toMap("organizationPartyId", organizationPartyId));
+            Set<String> acctgTransIds = sumEntries(delegator, posted, sinceDate, Collections.emptySet(), balances);
+            for (Map.Entry<List<Object>, BigDecimal[]> balance : balances.entrySet()) {
+                storeBalance(delegator, balance.getKey(), balance.getValue());
+            }
+            return acctgTransIds;
+        }, "Error rebuilding the GL balances of organization [" + organizationPartyId + "]", timeout, true);
+
+        if (created) {
+            // the postings which found no status are not waited for by its lock, but end within their timeout
+            long waitTime = startDate.getTime() + postingTimeout - System.currentTimeMillis();
+            if (waitTime > 0) {
+                try {
+                    Thread.sleep(waitTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GenericEntityException("Interrupted rebuilding the GL balances of organization [" + organizationPartyId + "]");
+                }
+            }
+        }
+        int addedCount = TransactionUtil.doNewTransaction(() -> {
+            // waits for the postings holding the status lock, the following ones adding their entries to the rebuilt balances
+            delegator.storeByCondition("GlAccountPeriodBalanceStatus", UtilMisc.toMap("rebuiltDate", startDate), ofOrganization);
+            Map<List<Object>, BigDecimal[]> postedSince = new HashMap<>();
+            sumEntries(delegator, EntityCondition.makeCondition(posted,
+                    EntityCondition.makeCondition("postedDate", EntityOperator.GREATER_THAN_EQUAL_TO, sinceDate)),
+                    sinceDate, readAcctgTransIds, postedSince);
+            return addBalances(delegator, postedSince);
+        }, "Error completing the GL balances of organization [" + organizationPartyId + "]", 0, true);
+
+        int balanceCount = balances.size() + addedCount;
+        if (Debug.infoOn()) {
+            Debug.logInfo("Rebuilt " + balanceCount + " GL period balances of organization [" + organizationPartyId + "]", MODULE);
+        }
+        return balanceCount;
+    }
+
+    /**
+     * Sums the posted entries matching a condition, but those of the excluded transactions.
+     * @return the transactions read which were posted since the date
+     */
+    private static Set<String> sumEntries(Delegator delegator, EntityCondition condition, Timestamp sinceDate,
+            Set<String> excludedAcctgTransIds, Map<List<Object>, BigDecimal[]> balances) throws GenericEntityException {
+        DynamicViewEntity dve = new DynamicViewEntity();
+        dve.addMemberEntity("ATE", "AcctgTransEntry");
+        dve.addMemberEntity("ACT", "AcctgTrans");
+        dve.addAlias("ATE", "acctgTransId");
+        dve.addAlias("ATE", "organizationPartyId");
+        dve.addAlias("ATE", "glAccountId");
+        dve.addAlias("ATE", "currencyUomId");
+        dve.addAlias("ATE", "debitCreditFlag");
+        dve.addAlias("ATE", "amount");
+        dve.addAlias("ACT", "glFiscalTypeId");
+        dve.addAlias("ACT", "acctgTransTypeId");
+        dve.addAlias("ACT", "transactionDate");
+        dve.addAlias("ACT", "isPosted");
+        dve.addAlias("ACT", "postedDate");
+        dve.addViewLink("ATE", "ACT", Boolean.FALSE, ModelKeyMap.makeKeyMapList("acctgTransId"));
+
+        Set<String> postedSince = new HashSet<>();
+        try (EntityListIterator entries = EntityQuery.use(delegator).from(dve).where(condition).queryIterator()) {
+            GenericValue entry;
+            while ((entry = entries.next()) != null) {
+                String acctgTransId = entry.getString("acctgTransId");
+                if (excludedAcctgTransIds.contains(acctgTransId)) {
+                    continue;
+                }
+                Timestamp postedDate = entry.getTimestamp("postedDate");
+                if (postedDate != null && !postedDate.before(sinceDate)) {
+                    postedSince.add(acctgTransId);
+                }
+                List<Object> key = makeKey(entry, entry);
+                if (key != null) {
+                    addToBalance(balances, key, entry.getBigDecimal("amount"));
+                }
+            }
+        }
+        return postedSince;
+    }
+
+    /**
+     * Gets the posted totals by GL account and debit/credit flag, as the AcctgTransEntrySums view gives them.
+     * @param delegator the delegator
+     * @param organizationPartyIds the organizations
+     * @param glFiscalTypeId the fiscal type
+     * @param excludeClosing whether the PERIOD_CLOSING transactions, and those without type, are left out
+     * @param fromDate the first transaction date, {@code null} for all the entries before the thru date
+     * @param thruDate the transaction date the entries are before
+     * @param glAccountClassIds the account classes, {@code null} for all the accounts
+     * @return the maps of glAccountId, accountName, accountCode, debitCreditFlag and amount sorted by glAccountId, or
+     * {@code null} when the store is disabled or not built for all the organizations
+     * @throws GenericEntityException when a query fails
+     */
+    public static List<Map<String, Object>> findTransactionTotals(Delegator delegator, Collection<String> organizationPartyIds,
+            String glFiscalTypeId, boolean excludeClosing, Timestamp fromDate, Timestamp thruDate, Collection<String> glAccountClassIds)
+            throws GenericEntityException {
+        List<EntityCondition> conditions = new LinkedList<>();
+        conditions.add(EntityCondition.makeCondition("organizationPartyId", EntityOperator.IN, organizationPartyIds));
+        conditions.add(EntityCondition.makeCondition("glFiscalTypeId", glFiscalTypeId));
+        if (excludeClosing) {
+            conditions.add(EntityCondition.makeCondition("acctgTransTypeId", EntityOperator.NOT_EQUAL, "PERIOD_CLOSING"));
+        }
+        if (glAccountClassIds != null) {
+            conditions.add(EntityCondition.makeCondition("glAccountClassId", EntityOperator.IN, glAccountClassIds));
+        }
+        return findTotals(delegator, organizationPartyIds, conditions, excludeClosing, fromDate, thruDate);
+    }
+
+    /**
+     * Gets the posted debits and credits of a GL account before a date, including the closing transactions.
+     * @return the totals by debit/credit flag, or {@code null} when the store is disabled or not built for the organization
+     * @throws GenericEntityException when a query fails
+     */
+    public static Map<String, BigDecimal> findAccountTotals(Delegator delegator, String organizationPartyId, String glAccountId,
+            String glFiscalTypeId, Timestamp thruDate) throws GenericEntityException {
+        List<EntityCondition> conditions = UtilMisc.toList(EntityCondition.makeCondition("organizationPartyId", organizationPartyId),
+                EntityCondition.makeCondition("glAccountId", glAccountId), EntityCondition.makeCondition("glFiscalTypeId", glFiscalTypeId));
+        List<Map<String, Object>> totals = findTotals(delegator, UtilMisc.toList(organizationPartyId), conditions, false, null, thruDate);
+        if (totals == null) {
+            return null;
+        }
+        Map<String, BigDecimal> result = UtilMisc.toMap("D", BigDecimal.ZERO, "C", BigDecimal.ZERO);
+        for (Map<String, Object> total : totals) {
+            result.computeIfPresent((String) total.get("debitCreditFlag"), (k, amount) -> amount.add((BigDecimal) total.get("amount")));
+        }
+        return result;
+    }
+
+    private static List<Map<String, Object>> findTotals(Delegator delegator, Collection<String> organizationPartyIds,
+            List<EntityCondition> conditions, boolean excludeClosing, Timestamp fromDate, Timestamp thruDate)
+            throws GenericEntityException {
+        if (!isEnabled(delegator) || thruDate == null || !isBuilt(delegator, organizationPartyIds)) {
+            return null;
+        }
+        TimeZone timeZone = TimeZone.getDefault();
+        Locale locale = Locale.getDefault();
+        Timestamp storeFromDate = null;
+        if (fromDate != null) {
+            storeFromDate = UtilDateTime.getMonthStart(fromDate, timeZone, locale);
+            if (storeFromDate.before(fromDate)) {
+                storeFromDate = UtilDateTime.getMonthStart(fromDate, 0, 1, timeZone, locale);
+            }
+        }
+        Timestamp storeThruDate = UtilDateTime.getMonthStart(thruDate, timeZone, locale);
+        Map<String, Map<String, Object>> totals = new TreeMap<>();
+        if (storeFromDate != null && !storeFromDate.before(storeThruDate)) {
+            // no full month in the range
+            addTotals(totals, findEntrySums(delegator, conditions, fromDate, thruDate));
+            return new ArrayList<>(totals.values());
+        }
+
+        List<EntityCondition> storeConditions = new LinkedList<>(conditions);
+        if (excludeClosing) {
+            // the entries of transactions without type are not in the view totals either
+            storeConditions.add(EntityCondition.makeCondition("acctgTransTypeId", EntityOperator.NOT_EQUAL, NONE));
+        }
+        if (storeFromDate != null) {
+            storeConditions.add(EntityCondition.makeCondition("periodFromDate", EntityOperator.GREATER_THAN_EQUAL_TO, storeFromDate));
+        }
+        storeConditions.add(EntityCondition.makeCondition("periodFromDate", EntityOperator.LESS_THAN, storeThruDate));
+        addTotals(totals, EntityQuery.use(delegator).select("glAccountId", "accountName", "accountCode", "debitCreditFlag", "amount")
+                .from("GlAccountPeriodBalanceSums").where(storeConditions).queryList());
+        if (storeFromDate != null && fromDate.before(storeFromDate)) {
+            addTotals(totals, findEntrySums(delegator, conditions, fromDate, storeFromDate));
+        }
+        if (storeThruDate.before(thruDate)) {
+            addTotals(totals, findEntrySums(delegator, conditions, storeThruDate, thruDate));
+        }
+        return new ArrayList<>(totals.values());
+    }
+
+    private static boolean isBuilt(Delegator delegator, Collection<String> organizationPartyIds) throws GenericEntityException {
+        long builtCount = EntityQuery.use(delegator).from("GlAccountPeriodBalanceStatus")
+                .where(EntityCondition.makeCondition("organizationPartyId", EntityOperator.IN, organizationPartyIds),
+                        EntityCondition.makeCondition("rebuiltDate", EntityOperator.NOT_EQUAL, null)).queryCount();
+        return builtCount == organizationPartyIds.stream().distinct().count();
+    }
+
+    private static List<GenericValue> findEntrySums(Delegator delegator, List<EntityCondition> conditions, Timestamp fromDate,
+            Timestamp thruDate) throws GenericEntityException {
+        List<EntityCondition> entryConditions = new LinkedList<>(conditions);
+        entryConditions.add(EntityCondition.makeCondition("isPosted", "Y"));
+        entryConditions.add(EntityCondition.makeCondition("transactionDate", EntityOperator.GREATER_THAN_EQUAL_TO, fromDate));
+        entryConditions.add(EntityCondition.makeCondition("transactionDate", EntityOperator.LESS_THAN, thruDate));
+        return EntityQuery.use(delegator).select("glAccountId", "accountName", "accountCode", "debitCreditFlag", "amount")
+                .from("AcctgTransEntrySums").where(entryConditions).queryList();
+    }
+
+    private static void addTotals(Map<String, Map<String, Object>> totals, List<GenericValue> sums) {
+        for (GenericValue sum : sums) {
+            BigDecimal amount = sum.getBigDecimal("amount");
+            // sorted by glAccountId first, as the view totals
+            String key = sum.getString("glAccountId") + '\u0000' + sum.getString("debitCreditFlag");
+            Map<String, Object> total = totals.get(key);
+            if (total == null) {
+                total = new HashMap<>(sum.getAllFields());
+                total.put("amount", amount == null ? BigDecimal.ZERO : amount);
+                totals.put(key, total);
+            } else if (amount != null) {
+                total.put("amount", ((BigDecimal) total.get("amount")).add(amount));
+            }
+        }
+    }
+
+    /**
+     * Makes the balance key of an entry: organizationPartyId, glAccountId, glFiscalTypeId, acctgTransTypeId, periodFromDate,
+     * currencyUomId and debitCreditFlag, or {@code null} when the entry is in no report total.
+     */
+    private static List<Object> makeKey(GenericValue entry, GenericValue acctgTrans) {
+        String debitCreditFlag = entry.getString("debitCreditFlag");
+        Timestamp transactionDate = acctgTrans.getTimestamp("transactionDate");
+        if (entry.get("organizationPartyId") == null || entry.get("glAccountId") == null || transactionDate == null
+                || !("D".equals(debitCreditFlag) || "C".equals(debitCreditFlag))) {
+            return null;
+        }
+        return UtilMisc.toList(entry.getString("organizationPartyId"), entry.getString("glAccountId"),
+                orNone(acctgTrans.getString("glFiscalTypeId")), orNone(acctgTrans.getString("acctgTransTypeId")),
+                UtilDateTime.getMonthStart(transactionDate, TimeZone.getDefault(), Locale.getDefault()),
+                orNone(entry.getString("currencyUomId")), debitCreditFlag);
+    }
+
+    private static Map<String, Object> makePrimaryKey(List<Object> key) {
+        return UtilMisc.toMap("organizationPartyId", key.get(0), "glAccountId", key.get(1), "glFiscalTypeId", key.get(2),
+                "acctgTransTypeId", key.get(3), "periodFromDate", key.get(4), "currencyUomId", key.get(5), "debitCreditFlag", key.get(6));
+    }
+
+    private static String orNone(String value) {
+        return value == null ? NONE : value;
+    }
+
+    private static void addToBalance(Map<List<Object>, BigDecimal[]> balances, List<Object> key, BigDecimal amount) {
+        BigDecimal[] balance = balances.computeIfAbsent(key, k -> new BigDecimal[] {BigDecimal.ZERO, BigDecimal.ZERO});
+        if (amount != null) {
+            balance[0] = balance[0].add(amount);
+        }
+        balance[1] = balance[1].add(BigDecimal.ONE);
+    }
+
+    /**
+     * Adds to the stored balances, creating those missing.
+     * @return the number of balances created
+     */
+    private static int addBalances(Delegator delegator, Map<List<Object>, BigDecimal[]> balances) throws GenericEntityException {
+        int createdCount = 0;
+        for (Map.Entry<List<Object>, BigDecimal[]> balance : balances.entrySet()) {
+            GenericValue periodBalance = EntityQuery.use(delegator).from("GlAccountPeriodBalance")
+                    .where(makePrimaryKey(balance.getKey())).queryOne();
+            if (periodBalance == null) {
+                storeBalance(delegator, balance.getKey(), balance.getValue());
+                createdCount++;
+            } else {
+                periodBalance.set("postedAmount", periodBalance.getBigDecimal("postedAmount").add(balance.getValue()[0]));
+                periodBalance.set("entryCount", periodBalance.getLong("entryCount") + balance.getValue()[1].longValue());
+                periodBalance.store();
+            }
+        }
+        return createdCount;
+    }
+
+    private static void storeBalance(Delegator delegator, List<Object> key, BigDecimal[] balance) throws GenericEntityException {
+        GenericValue periodBalance = delegator.makeValue("GlAccountPeriodBalance", makePrimaryKey(key));
+        periodBalance.set("postedAmount", balance[0]);
+        periodBalance.set("entryCount", balance[1].longValue());
+        periodBalance.create();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.content.data
+
+import javax.servlet.http.HttpServletResponse
+
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+import org.apache.ofbiz.service.testtools.ServletResponseRecorder
+
+class DataResourceDeliveryTests extends OFBizTestCase {
+
+    private static final String TEXT = 'Hello range world'
+
+    DataResourceDeliveryTests(String name) {
+        super(name)
+    }
+
+    /**
+     * A DataResource is sent whole with its validators, a matching If-None-Match gets a 304 and a single byte range
+     * gets a 206 or a 416.
+     */
+    void testValidatorsAndRanges() {
+        GenericValue dataResource = createTextResource('DRD_TEST_1', TEXT)
+
+        ServletResponseRecorder full = serve(dataResource, [:])
+        assert full.status == HttpServletResponse.SC_OK
+        assert full.bodyText == TEXT
+        assert full.headers['Accept-Ranges'] == 'bytes'
+        assert full.headers['Cache-Control'] == 'public, max-age=86400'
+        assert full.contentLength == TEXT.length()
+        String eTag = full.headers.ETag
+        assert eTag
+
+        ServletResponseRecorder notModified = serve(dataResource, ['If-None-Match': eTag])
+        assert notModified.status == HttpServletResponse.SC_NOT_MODIFIED
+        assert notModified.bodyText == ''
+        assert notModified.headers.ETag == eTag
+
+        ServletResponseRecorder partial = serve(dataResource, [Range: 'bytes=6-10'])
+        assert partial.status == HttpServletResponse.SC_PARTIAL_CONTENT
+        assert partial.headers['Content-Range'] == "bytes 6-10/${TEXT.length()}".toString()
+        assert partial.bodyText == 'range'
+
+        ServletResponseRecorder suffix = serve(dataResource, [Range: 'bytes=-5'])
+        assert suffix.status == HttpServletResponse.SC_PARTIAL_CONTENT
+        assert suffix.bodyText == 'world'
+
+        ServletResponseRecorder unsatisfiable = serve(dataResource, [Range: 'bytes=100-'])
+        assert unsatisfiable.status == HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE
+        assert unsatisfiable.headers['Content-Range'] == "bytes */${TEXT.length()}".toString()
+
+        // a Range with a stale If-Range validator gets the whole resource
+        ServletResponseRecorder staleRange = serve(dataResource, [Range: 'bytes=6-10', 'If-Range': '"stale"'])
+        assert staleRange.status == HttpServletResponse.SC_OK
+        assert staleRange.bodyText == TEXT
+
+        // several ranges are not supported, the whole resource is sent
+        ServletResponseRecorder multiRange = serve(dataResource, [Range: 'bytes=0-1,4-5'])
+        assert multiRange.status == HttpServletResponse.SC_OK
+        assert multiRange.bodyText == TEXT
+    }
+
+    /**
+     * A changed DataResource gets a new ETag and is not served from the cache of the previous data.
+     */
+    void testChangedDataIsNotServedFromCache() {
+        GenericValue dataResource = createTextResource('DRD_TEST_2', TEXT)
+        ServletResponseRecorder before = serve(dataResource, [:])
+        assert before.bodyText == TEXT
+
+        // the validators have a one second precision
+        Thread.sleep(1100)
+        GenericValue electronicText = from('ElectronicText').where('dataResourceId', 'DRD_TEST_2').queryOne()
+        electronicText.textData = 'Changed text'
+        electronicText.store()
+
+        ServletResponseRecorder after = serve(dataResource, ['If-None-Match': before.headers.ETag])
+        assert after.status == HttpServletResponse.SC_OK
+        assert after.headers.ETag != before.headers.ETag
+        assert after.bodyText == 'Changed text'
+    }
+
+    private GenericValue createTextResource(String dataResourceId, String text) {
+        GenericValue dataResource = delegator.create('DataResource', [dataResourceId: dataResourceId,
+                dataResourceTypeId: 'ELECTRONIC_TEXT', mimeTypeId: 'text/plain'])
+        delegator.create('ElectronicText', [dataResourceId: dataResourceId, textData: text])
+        return dataResource
+    }
+
+    private ServletResponseRecorder serve(GenericValue dataResource, Map<String, String> requestHeaders) {
+        ServletResponseRecorder recorder = new ServletResponseRecorder()
+        assert DataResourceDelivery.serve(ServletResponseRecorder.makeRequest(null, requestHeaders), recorder.makeResponse(), dataResource,
+                true, 'text/plain', null, 'false', null, Locale.getDefault(), null)
+        return recorder
+    }
+}
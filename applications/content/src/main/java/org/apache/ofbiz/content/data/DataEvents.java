@@ -200,6 +200,24 @@ public class DataEvents {
             https = "true";
         }
 
+        // conditional, ranged and cached delivery; URL resources are still streamed below
+        if (DataResourceDelivery.isEnabled(delegator)) {
+            try {
+                if (DataResourceDelivery.serve(request, response, dataResource, "Y".equalsIgnoreCase(isPublic), mimeType, dataName, https,
+                        webSiteId, locale, contextRoot)) {
+                    return "success";
+                }
+            } catch (GeneralException e) {
+                Debug.logError(e, "Error getting DataResource data", MODULE);
+                request.setAttribute("_ERROR_MESSAGE_", e.getMessage());
+                return "error";
+            } catch (IOException e) {
+                Debug.logError(e, "Unable to write content to browser", MODULE);
+                request.setAttribute("_ERROR_MESSAGE_", e.getMessage());
+                return "io-error";
+            }
+        }
+
         // get the data RESOURCE stream and content length
         Map<String, Object> resourceData;
         try {
@@ -301,6 +319,11 @@ public class DataEvents {
                 mimeType = "application/octet-stream";
             }
 
+            if (DataResourceDelivery.isEnabled(delegator) && DataResourceDelivery.serve(request, response, dataResource,
+                    "Y".equals(dataResource.getString("isPublic")), mimeType, null, "", application.getInitParameter("webSiteId"),
+                    UtilHttp.getLocale(request), application.getRealPath("/"))) {
+                return "success";
+            }
             if (mimeType != null) {
                 response.setContentType(mimeType);
             }
@@ -0,0 +1,359 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.content.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.GeneralException;
+import org.apache.ofbiz.base.util.UtilHttp;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
+
+/**
+ * Delivers the data of a DataResource to the browser as a cacheable HTTP resource.
+ * <p>
+ * The ETag and Last-Modified validators come from the DataResource <code>lastUpdatedStamp</code>, the one of its data
+ * record and, for file resources, the file itself; matching conditional requests get a 304. Single byte ranges are
+ * honored with a 206, file resources are sent with {@link FileChannel#transferTo} and small resources can be kept in the
+ * <code>content.DataResourceDataCache</code> cache. Enabled by <code>stream.delivery.enable</code> in
+ * <code>content.properties</code>.
+ */
+public final class DataResourceDelivery {
+
+    private static final String MODULE = DataResourceDelivery.class.getName();
+    private static final UtilCache<String, CachedData> DATA_CACHE = UtilCache.createUtilCache("content.DataResourceDataCache", 500, 0);
+    private static final long[] UNSATISFIABLE = new long[0];
+    private static final Map<String, String> DATA_ENTITY_NAMES = UtilMisc.toMap("IMAGE_OBJECT", "ImageDataResource",
+            "VIDEO_OBJECT", "VideoDataResource", "AUDIO_OBJECT", "AudioDataResource", "OTHER_OBJECT", "OtherDataResource",
+            "ELECTRONIC_TEXT", "ElectronicText");
+
+    private DataResourceDelivery() { }
+
+    /** Data of a DataResource kept in memory, valid as long as its ETag is unchanged. */
+    private static final class CachedData {
+        private final String eTag;
+        private final byte[] bytes;
+
+        private CachedData(String eTag, byte[] bytes) {
+            this.eTag = eTag;
+            this.bytes = bytes;
+        }
+    }
+
+    public static boolean isEnabled(Delegator delegator) {
+        return "true".equals(EntityUtilProperties.getPropertyValue("content", "stream.delivery.enable", "false", delegator));
+    }
+
+    /**
+     * Sends the data of a DataResource, the permissions must have been checked by the caller.
+     * @param request the request, its conditional and Range headers are honored
+     * @param response the response
+     * @param dataResource the DataResource to send
+     * @param publicResource true when the resource needs no permission check, it is then sent with the public Cache-Control
+     * @param mimeType the content type, may be null
+     * @param fileName the file name for the Content-Disposition header, may be null
+     * @param https "true" when requested through HTTPS, as for {@link DataResourceWorker#getDataResourceStream}
+     * @param webSiteId the web site
+     * @param locale the locale
+     * @param contextRoot the context root, for CONTEXT_FILE resources
+     * @return false when this type of DataResource is not handled here and must be streamed by the caller, nothing
+     *         has been written to the response then
+     * @throws GeneralException when the data cannot be found, nothing has been written to the response then
+     * @throws IOException when writing to the response fails
+     */
+    public static boolean serve(HttpServletRequest request, HttpServletResponse response, GenericValue dataResource, boolean publicResource,
+            String mimeType, String fileName, String https, String webSiteId, Locale locale, String contextRoot)
+            throws GeneralException, IOException {
+        Delegator delegator = dataResource.getDelegator();
+        String dataResourceId = dataResource.getString("dataResourceId");
+        String dataResourceTypeId = dataResource.getString("dataResourceTypeId");
+        if (dataResourceTypeId == null) {
+            return false;
+        }
+
+        // resolve the validators without loading the data
+        File file = null;
+        long lastModified = stampMillis(dataResource.getTimestamp("lastUpdatedStamp"));
+        long length = -1;
+        if (dataResourceTypeId.endsWith("_FILE") || dataResourceTypeId.endsWith("_FILE_BIN")) {
+            String objectInfo = dataResource.getString("objectInfo");
+            if (UtilValidate.isEmpty(objectInfo)) {
+                throw new GeneralException("No objectInfo found for FILE type [" + dataResourceTypeId + "]; cannot stream");
+            }
+            try {
+                file = DataResourceWorker.getContentFile(dataResourceTypeId, objectInfo, contextRoot);
+            } catch (IOException e) {
+                throw new GeneralException(e.getMessage(), e);
+            }
+            if (file == null || !file.isFile()) {
+                throw new GeneralException("No file found for DataResource [" + dataResourceId + "]");
+            }
+            lastModified = Math.max(lastModified, file.lastModified());
+            length = file.length();
+        } else if (DATA_ENTITY_NAMES.containsKey(dataResourceTypeId)) {
+            GenericValue data = EntityQuery.use(delegator).select("lastUpdatedStamp").from(DATA_ENTITY_NAMES.get(dataResourceTypeId))
+                    .where("dataResourceId", dataResourceId).queryOne();
+            if (data != null) {
+                lastModified = Math.max(lastModified, stampMillis(data.getTimestamp("lastUpdatedStamp")));
+            }
+        } else if (!"SHORT_TEXT".equals(dataResourceTypeId) && !"LINK".equals(dataResourceTypeId)) {
+            // URL resources and unknown types are not ours to validate
+            return false;
+        }
+        if (lastModified <= 0) {
+            // without a stamp there is nothing to validate against
+            return false;
+        }
+        // HTTP dates have a one second precision
+        lastModified = lastModified / 1000 * 1000;
+        StringBuilder eTagBuilder = new StringBuilder("\"").append(Integer.toHexString(dataResourceId.hashCode()))
+                .append('-').append(Long.toHexString(lastModified));
+        if (length >= 0) {
+            eTagBuilder.append('-').append(Long.toHexString(length));
+        }
+        String eTag = eTagBuilder.append('"').toString();
+
+        String cacheControl = publicResource
+                ? EntityUtilProperties.getPropertyValue("content", "stream.cache.control.public", "public, max-age=86400", delegator)
+                : EntityUtilProperties.getPropertyValue("content", "stream.cache.control.private", "private, no-cache", delegator);
+        if (isNotModified(request, eTag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            setValidatorHeaders(response, eTag, lastModified, cacheControl);
+            if (Debug.verboseOn()) {
+                Debug.logVerbose("DataResource [" + dataResourceId + "] not modified", MODULE);
+            }
+            return true;
+        }
+
+        // get the data in memory unless it is a file too big for the cache
+        long maxCachedBytes = EntityUtilProperties.getPropertyAsLong("content", "stream.cache.max.bytes", 0);
+        String cacheKey = delegator.getDelegatorName() + "::" + dataResourceId;
+        byte[] bytes = null;
+        CachedData cached = maxCachedBytes > 0 ? DATA_CACHE.get(cacheKey) : null;
+        if (cached != null && cached.eTag.equals(eTag)) {
+            bytes = cached.bytes;
+        } else if (file == null || length <= maxCachedBytes) {
+            bytes = loadData(dataResource, file, https, webSiteId, locale, contextRoot);
+            if (bytes.length > 0 && bytes.length <= maxCachedBytes) {
+                DATA_CACHE.put(cacheKey, new CachedData(eTag, bytes));
+            }
+        }
+        if (bytes != null) {
+            length = bytes.length;
+        }
+        if (length <= 0) {
+            throw new GeneralException("No data is available.");
+        }
+
+        long[] range = null;
+        String rangeHeader = request.getHeader("Range");
+        if (rangeHeader != null && isRangeCurrent(request, eTag, lastModified)) {
+            range = parseRange(rangeHeader, length);
+        }
+        if (range == UNSATISFIABLE) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range", "bytes */" + length);
+            setValidatorHeaders(response, eTag, lastModified, cacheControl);
+            return true;
+        }
+        long start = 0;
+        long count = length;
+        if (range != null) {
+            start = range[0];
+            count = range[1] - range[0] + 1;
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+        }
+        setValidatorHeaders(response, eTag, lastModified, cacheControl);
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setContentLengthLong(count);
+        if (mimeType != null) {
+            response.setContentType(mimeType);
+        }
+        if (fileName != null) {
+            UtilHttp.setContentDisposition(response, fileName);
+        }
+        if ("HEAD".equalsIgnoreCase(request.getMethod())) {
+            return true;
+        }
+
+        try (OutputStream out = response.getOutputStream()) {
+            if (bytes != null) {
+                out.write(bytes, (int) start, (int) count);
+            } else {
+                transferFile(file, start, count, out);
+            }
+            out.flush();
+        }
+        return true;
+    }
+
+    private static byte[] loadData(GenericValue dataResource, File file, String https, String webSiteId, Locale locale, String contextRoot)
+            throws GeneralException {
+        try {
+            if (file != null) {
+                return Files.readAllBytes(file.toPath());
+            }
+            Map<String, Object> resourceData = DataResourceWorker.getDataResourceStream(dataResource, https, webSiteId, locale,
+                    contextRoot, false);
+            try (InputStream stream = (InputStream) resourceData.get("stream")) {
+                return IOUtils.toByteArray(stream);
+            }
+        } catch (IOException e) {
+            throw new GeneralException("Error getting DataResource data: " + e.getMessage(), e);
+        }
+    }
+
+    /** Sends a part of a file, the servlet output stream is not a file channel so the JDK copies through its own buffer. */
+    private static void transferFile(File file, long start, long count, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = start;
+            long remaining = count;
+            while (remaining > 0) {
+                long transferred = channel.transferTo(position, remaining, target);
+                if (transferred <= 0) {
+                    throw new IOException("File " + file.getName() + " was truncated while being sent");
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+    }
+
+    private static void setValidatorHeaders(HttpServletResponse response, String eTag, long lastModified, String cacheControl) {
+        response.setHeader("ETag", eTag);
+        if (lastModified > 0) {
+            response.setDateHeader("Last-Modified", lastModified);
+        }
+        if (UtilValidate.isNotEmpty(cacheControl)) {
+            response.setHeader("Cache-Control", cacheControl);
+        }
+    }
+
+    /** If-None-Match takes precedence over If-Modified-Since, as required by RFC 7232. */
+    private static boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+        String method = request.getMethod();
+        if (!"GET".equalsIgnoreCase(method) && !"HEAD".equalsIgnoreCase(method)) {
+            return false;
+        }
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if ("*".equals(tag) || eTag.equals(tag.startsWith("W/") ? tag.substring(2) : tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+        return ifModifiedSince >= 0 && lastModified > 0 && lastModified <= ifModifiedSince;
+    }
+
+    /** A Range is only honored when the If-Range validator, if any, still matches; weak ETags never do. */
+    private static boolean isRangeCurrent(HttpServletRequest request, String eTag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return eTag.equals(ifRange);
+        }
+        long date = getDateHeader(request, "If-Range");
+        return date >= 0 && date == lastModified;
+    }
+
+    /**
+     * Parses a Range header against the resource length.
+     * @return the first and last byte positions, {@code null} to send the whole resource (no usable range, or several
+     *         ranges which are not supported) or {@link #UNSATISFIABLE}
+     */
+    static long[] parseRange(String rangeHeader, long length) {
+        String header = rangeHeader.trim();
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // suffix range, the last bytes of the resource
+                long suffix = Long.parseLong(last);
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix == 0 || length == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new long[] {Math.max(0, length - suffix), length - 1};
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            if (start >= length) {
+                return UNSATISFIABLE;
+            }
+            return new long[] {start, Math.min(end, length - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static long stampMillis(Timestamp stamp) {
+        return stamp != null ? stamp.getTime() : 0;
+    }
+}
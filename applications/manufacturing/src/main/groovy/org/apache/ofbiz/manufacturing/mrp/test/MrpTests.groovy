@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.manufacturing.mrp.test
+
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.service.ServiceUtil
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class MrpTests extends OFBizTestCase {
+
+    MrpTests(String name) {
+        super(name)
+    }
+
+    void testParallelMrpMatchesSequentialMrp() {
+        Map sequential = runMrp(false)
+        Map parallel = runMrp(true)
+        assert !sequential.requirements.isEmpty()
+        assert parallel.requirements == sequential.requirements
+        assert parallel.events == sequential.events
+    }
+
+    /**
+     * Runs the MRP and returns the proposed requirements and the MRP events it created, without their ids and
+     * without the dates, which depend on the time of the run.
+     */
+    private Map runMrp(boolean parallel) {
+        Set<String> previousMrpIds = from('MrpEvent').queryList()*.mrpId as Set
+        Map serviceCtx = [
+                facilityId: 'WebStoreWarehouse',
+                mrpName: parallel ? 'ParallelMrpTest' : 'SequentialMrpTest',
+                parallel: parallel,
+                threadCount: 4,
+                userLogin: userLogin
+        ]
+        Map serviceResult = dispatcher.runSync('executeMrp', serviceCtx)
+        assert ServiceUtil.isSuccess(serviceResult)
+
+        List<String> requirements = from('Requirement')
+                .where('facilityId', 'WebStoreWarehouse', 'statusId', 'REQ_PROPOSED')
+                .queryList()
+                .collect { GenericValue requirement ->
+                    [requirement.requirementTypeId, requirement.productId, requirement.quantity?.stripTrailingZeros()].join('|')
+                }
+                .sort()
+        List<String> events = from('MrpEvent')
+                .queryList()
+                .findAll { GenericValue event -> !previousMrpIds.contains(event.mrpId) }
+                .collect { GenericValue event ->
+                    [event.productId, event.mrpEventTypeId, event.facilityId, event.quantity?.stripTrailingZeros()].join('|')
+                }
+                .sort()
+        return [requirements: requirements, events: events]
+    }
+}
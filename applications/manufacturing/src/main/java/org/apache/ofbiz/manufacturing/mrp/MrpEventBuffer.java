@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.manufacturing.mrp;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericPK;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.util.EntityQuery;
+
+/**
+ * Keeps the MrpEvent records written by an MRP run in memory until {@link #flush()} is called.
+ * <p>
+ * Updates are applied to the in-memory records exactly as {@link InventoryEventPlannedServices#createOrUpdateMrpEvent}
+ * applies them to the database, so a record updated several times is read once and written once.
+ * Records are read from the database the first time they are needed and kept afterwards.
+ */
+public final class MrpEventBuffer {
+
+    private final Delegator delegator;
+    // a null value means that the record does not exist
+    private final Map<GenericPK, GenericValue> events = new HashMap<>();
+    private final Set<GenericPK> created = new LinkedHashSet<>();
+    private final Set<GenericPK> updated = new LinkedHashSet<>();
+
+    public MrpEventBuffer(Delegator delegator) {
+        this.delegator = delegator;
+    }
+
+    private GenericValue find(GenericPK pk) throws GenericEntityException {
+        if (events.containsKey(pk)) {
+            return events.get(pk);
+        }
+        GenericValue mrpEvent = EntityQuery.use(delegator).from("MrpEvent").where(pk).queryOne();
+        events.put(pk, mrpEvent);
+        return mrpEvent;
+    }
+
+    private static Map<String, Object> copyKey(Map<String, Object> mrpEventKeyMap) {
+        Map<String, Object> key = new HashMap<>(mrpEventKeyMap);
+        Timestamp eventDate = (Timestamp) key.get("eventDate");
+        if (eventDate != null) {
+            // the event dates of the callers may be changed later on
+            key.put("eventDate", eventDate.clone());
+        }
+        return key;
+    }
+
+    /**
+     * Buffered version of {@link InventoryEventPlannedServices#createOrUpdateMrpEvent}.
+     */
+    public void createOrUpdateMrpEvent(Map<String, Object> mrpEventKeyMap, BigDecimal newQuantity, String facilityId,
+            String eventName, boolean isLate) throws GenericEntityException {
+        GenericPK pk = delegator.makePK("MrpEvent", copyKey(mrpEventKeyMap));
+        GenericValue mrpEvent = find(pk);
+        if (mrpEvent == null) {
+            mrpEvent = delegator.makeValue("MrpEvent", pk);
+            mrpEvent.put("quantity", newQuantity.doubleValue());
+            mrpEvent.put("eventName", eventName);
+            mrpEvent.put("facilityId", facilityId);
+            mrpEvent.put("isLate", (isLate ? "Y" : "N"));
+            events.put(pk, mrpEvent);
+            created.add(pk);
+        } else {
+            BigDecimal qties = newQuantity.add(mrpEvent.getBigDecimal("quantity"));
+            mrpEvent.put("quantity", qties.doubleValue());
+            if (UtilValidate.isNotEmpty(eventName)) {
+                String existingEventName = mrpEvent.getString("eventName");
+                mrpEvent.put("eventName", (UtilValidate.isEmpty(existingEventName) ? eventName : existingEventName + ", " + eventName));
+            }
+            if (isLate) {
+                mrpEvent.put("isLate", "Y");
+            }
+            if (!created.contains(pk)) {
+                updated.add(pk);
+            }
+        }
+    }
+
+    /**
+     * Buffered version of {@link MrpServices#logMrpError(String, String, Timestamp, String, Delegator)}.
+     */
+    public void logMrpError(String mrpId, String productId, Timestamp eventDate, String errorMessage) throws GenericEntityException {
+        if (UtilValidate.isEmpty(productId) || UtilValidate.isEmpty(errorMessage)) {
+            return;
+        }
+        GenericPK pk = delegator.makePK("MrpEvent", copyKey(UtilMisc.toMap("productId", productId, "mrpId", mrpId,
+                "eventDate", eventDate, "mrpEventTypeId", "ERROR")));
+        GenericValue existing = find(pk);
+        GenericValue inventoryEventError = delegator.makeValue("MrpEvent", pk);
+        inventoryEventError.put("eventName", errorMessage);
+        if (existing != null) {
+            // same as createOrStore: the fields which are not set keep their value
+            existing.setNonPKFields(inventoryEventError, false);
+            if (!created.contains(pk)) {
+                updated.add(pk);
+            }
+        } else {
+            events.put(pk, inventoryEventError);
+            created.add(pk);
+        }
+    }
+
+    /**
+     * Writes the records created or updated since the last flush.
+     * @return the number of written records
+     * @throws GenericEntityException when a record cannot be written
+     */
+    public int flush() throws GenericEntityException {
+        int count = 0;
+        for (GenericPK pk : created) {
+            events.get(pk).create();
+            count++;
+        }
+        for (GenericPK pk : updated) {
+            events.get(pk).store();
+            count++;
+        }
+        created.clear();
+        updated.clear();
+        return count;
+    }
+}
@@ -523,22 +523,26 @@ public class MrpServices {
     }
 
     public static BigDecimal findProductMrpQoh(String mrpId, String productId, String facilityId, LocalDispatcher dispatcher, Delegator delegator) {
-        Map<String, Object> resultMap = null;
         try {
-            if (facilityId == null) {
-                resultMap = dispatcher.runSync("getProductInventoryAvailable", UtilMisc.toMap("productId", productId));
-            } else {
-                resultMap = dispatcher.runSync("getInventoryAvailableByFacility", UtilMisc.toMap("productId", productId, "facilityId", facilityId));
-            }
-            if (ServiceUtil.isError(resultMap)) {
-                String errorMessage = ServiceUtil.getErrorMessage(resultMap);
-                Debug.logError(errorMessage, MODULE);
-            }
+            return findProductMrpQoh(productId, facilityId, dispatcher);
         } catch (GenericServiceException e) {
             Debug.logError(e, "Error calling getProductInventoryAvailableByFacility service", MODULE);
             logMrpError(mrpId, productId, "Unable to count inventory", delegator);
             return BigDecimal.ZERO;
         }
+    }
+
+    static BigDecimal findProductMrpQoh(String productId, String facilityId, LocalDispatcher dispatcher) throws GenericServiceException {
+        Map<String, Object> resultMap = null;
+        if (facilityId == null) {
+            resultMap = dispatcher.runSync("getProductInventoryAvailable", UtilMisc.toMap("productId", productId));
+        } else {
+            resultMap = dispatcher.runSync("getInventoryAvailableByFacility", UtilMisc.toMap("productId", productId, "facilityId", facilityId));
+        }
+        if (ServiceUtil.isError(resultMap)) {
+            String errorMessage = ServiceUtil.getErrorMessage(resultMap);
+            Debug.logError(errorMessage, MODULE);
+        }
         return ((BigDecimal) resultMap.get("quantityOnHandTotal"));
     }
 
@@ -574,6 +578,15 @@ public class MrpServices {
 
     public static void processBomComponent(String mrpId, GenericValue product, BigDecimal eventQuantity, Timestamp startDate,
                                            Map<String, Object> routingTaskStartDate, List<BOMNode> listComponent) {
+        processBomComponent(mrpId, product, eventQuantity, startDate, routingTaskStartDate, listComponent, null);
+    }
+
+    /**
+     * Same as {@link #processBomComponent(String, GenericValue, BigDecimal, Timestamp, Map, List)}, the events being
+     * written to {@code eventBuffer} when it is not {@code null}.
+     */
+    static void processBomComponent(String mrpId, GenericValue product, BigDecimal eventQuantity, Timestamp startDate,
+                                    Map<String, Object> routingTaskStartDate, List<BOMNode> listComponent, MrpEventBuffer eventBuffer) {
         // TODO : change the return type to boolean to be able to test if all is ok or if it have had a exception
         Delegator delegator = product.getDelegator();
 
@@ -592,8 +605,13 @@ public class MrpServices {
                     parameters.put("mrpEventTypeId", "MRP_REQUIREMENT");
                     BigDecimal componentEventQuantity = node.getQuantity();
                     try {
-                        InventoryEventPlannedServices.createOrUpdateMrpEvent(parameters, componentEventQuantity.negate(), null, product.get(
-                                "productId") + ": " + eventDate, false, delegator);
+                        if (eventBuffer != null) {
+                            eventBuffer.createOrUpdateMrpEvent(parameters, componentEventQuantity.negate(), null, product.get(
+                                    "productId") + ": " + eventDate, false);
+                        } else {
+                            InventoryEventPlannedServices.createOrUpdateMrpEvent(parameters, componentEventQuantity.negate(), null, product.get(
+                                    "productId") + ": " + eventDate, false, delegator);
+                        }
                     } catch (GenericEntityException e) {
                         Debug.logError("Error : findOne(\"MrpEvent\", parameters) =" + parameters + "--" + e.getMessage(), MODULE);
                         logMrpError(mrpId, node.getProduct().getString("productId"), "Unable to create event (processBomComponent)", delegator);
@@ -700,6 +718,11 @@ public class MrpServices {
             return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE, "ManufacturingMrpErrorRunningInitMrpEvents", UtilMisc.toMap(
                     "errorString", e.getMessage()), locale));
         }
+        if (Boolean.TRUE.equals(context.get("parallel"))) {
+            result = new ParallelMrpEngine(ctx, context, now, mrpId, facilityId, manufacturingFacilityId).run();
+            Debug.logInfo("return from executeMrp", MODULE);
+            return result;
+        }
         long bomLevel = 0;
         do {
             // Find all products in MrpEventView, ordered by bom and eventDate
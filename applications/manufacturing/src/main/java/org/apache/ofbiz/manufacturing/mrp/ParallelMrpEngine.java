@@ -0,0 +1,407 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.manufacturing.mrp;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilGenerics;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.manufacturing.bom.BOMNode;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.GenericServiceException;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.service.ModelService;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * Level-parallel implementation of the MRP loop of {@link MrpServices#executeMrp}.
+ * <p>
+ * The products of a bill of materials level do not depend on each other: the events they generate are
+ * for their components, which belong to the next levels. For each level this engine
+ * <ul>
+ * <li>loads the level events and, in bulk, the products and their ProductFacility records,</li>
+ * <li>plans the products in parallel: quantity on hand, bill of materials explosion, net requirements,
+ * proposed orders and their start dates. This step only reads data,</li>
+ * <li>applies the plans in the order of the sequential algorithm on the calling thread, within the service
+ * transaction: requirements are created and the MrpEvent records are accumulated in a {@link MrpEventBuffer},</li>
+ * <li>writes the MrpEvent records of the level at once.</li>
+ * </ul>
+ * The created records are the same as the ones of the sequential algorithm.
+ */
+final class ParallelMrpEngine {
+
+    private static final String MODULE = ParallelMrpEngine.class.getName();
+    private static final String RESOURCE = "ManufacturingUiLabels";
+    private static final int IN_CHUNK_SIZE = 1000;
+
+    private final Delegator delegator;
+    private final LocalDispatcher dispatcher;
+    private final GenericValue userLogin;
+    private final Locale locale;
+    private final Timestamp now;
+    private final String mrpId;
+    private final String mrpName;
+    private final String facilityId;
+    private final String manufacturingFacilityId;
+    private final int threadCount;
+    private final MrpEventBuffer eventBuffer;
+
+    ParallelMrpEngine(DispatchContext ctx, Map<String, ? extends Object> context, Timestamp now, String mrpId, String facilityId,
+            String manufacturingFacilityId) {
+        this.delegator = ctx.getDelegator();
+        this.dispatcher = ctx.getDispatcher();
+        this.userLogin = (GenericValue) context.get("userLogin");
+        this.locale = (Locale) context.get("locale");
+        this.mrpName = (String) context.get("mrpName");
+        Integer threads = (Integer) context.get("threadCount");
+        this.threadCount = threads != null && threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.now = now;
+        this.mrpId = mrpId;
+        this.facilityId = facilityId;
+        this.manufacturingFacilityId = manufacturingFacilityId;
+        this.eventBuffer = new MrpEventBuffer(delegator);
+    }
+
+    /**
+     * Runs the MRP, once the MrpEvent records have been initialized.
+     * @return the service result
+     */
+    Map<String, Object> run() {
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, r -> {
+            Thread t = new Thread(r, "OFBiz-mrp-" + mrpId + "-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            int bomLevelWithNoEvent = 0;
+            long bomLevel = 0;
+            do {
+                long startTime = System.currentTimeMillis();
+                Map<String, List<GenericValue>> eventsByProduct;
+                try {
+                    eventsByProduct = loadLevelEvents(bomLevel);
+                } catch (GenericEntityException e) {
+                    return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE, "ManufacturingMrpErrorForBomLevel", UtilMisc.toMap("bomLevel",
+                            Long.toString(bomLevel), "errorString", e.getMessage()), locale));
+                }
+                if (!eventsByProduct.isEmpty()) {
+                    bomLevelWithNoEvent = 0;
+                    Map<String, Object> errorResult = processLevel(eventsByProduct, executor);
+                    if (errorResult != null) {
+                        return errorResult;
+                    }
+                    Debug.logInfo("MRP [" + mrpId + "] processed " + eventsByProduct.size() + " products of level " + bomLevel + " in "
+                            + (System.currentTimeMillis() - startTime) + "ms", MODULE);
+                } else {
+                    bomLevelWithNoEvent += 1;
+                }
+                bomLevel += 1;
+                // if there are 3 levels with no inventoryEvenPanned we stop
+            } while (bomLevelWithNoEvent < 3);
+        } finally {
+            executor.shutdownNow();
+        }
+        Map<String, Object> result = new HashMap<>();
+        List<Object> msgResult = new LinkedList<>();
+        result.put("msgResult", msgResult);
+        result.put(ModelService.RESPONSE_MESSAGE, ModelService.RESPOND_SUCCESS);
+        return result;
+    }
+
+    private Map<String, List<GenericValue>> loadLevelEvents(long bomLevel) throws GenericEntityException {
+        EntityCondition filterByConditions = null;
+        if (bomLevel == 0) {
+            filterByConditions = EntityCondition.makeCondition(EntityCondition.makeCondition("billOfMaterialLevel", EntityOperator.EQUALS, null),
+                    EntityOperator.OR,
+                    EntityCondition.makeCondition("billOfMaterialLevel", EntityOperator.EQUALS, bomLevel));
+        } else {
+            filterByConditions = EntityCondition.makeCondition("billOfMaterialLevel", EntityOperator.EQUALS, bomLevel);
+        }
+        List<GenericValue> listInventoryEventForMRP = EntityQuery.use(delegator).from("MrpEventView")
+                .where(filterByConditions)
+                .orderBy("productId", "eventDate")
+                .queryList();
+        Map<String, List<GenericValue>> eventsByProduct = new LinkedHashMap<>();
+        for (GenericValue inventoryEventForMRP : listInventoryEventForMRP) {
+            eventsByProduct.computeIfAbsent(inventoryEventForMRP.getString("productId"), k -> new ArrayList<>()).add(inventoryEventForMRP);
+        }
+        return eventsByProduct;
+    }
+
+    private Map<String, Object> processLevel(Map<String, List<GenericValue>> eventsByProduct, ExecutorService executor) {
+        Map<String, GenericValue> products = new HashMap<>();
+        Map<String, GenericValue> productFacilities = new HashMap<>();
+        try {
+            List<String> productIds = new ArrayList<>(eventsByProduct.keySet());
+            for (int i = 0; i < productIds.size(); i += IN_CHUNK_SIZE) {
+                List<String> chunk = productIds.subList(i, Math.min(i + IN_CHUNK_SIZE, productIds.size()));
+                for (GenericValue product : EntityQuery.use(delegator).from("Product")
+                        .where(EntityCondition.makeCondition("productId", EntityOperator.IN, chunk)).queryList()) {
+                    products.put(product.getString("productId"), product);
+                }
+                for (GenericValue productFacility : EntityQuery.use(delegator).from("ProductFacility")
+                        .where(EntityCondition.makeCondition("facilityId", facilityId),
+                                EntityCondition.makeCondition("productId", EntityOperator.IN, chunk)).queryList()) {
+                    productFacilities.put(productFacility.getString("productId"), productFacility);
+                }
+            }
+        } catch (GenericEntityException e) {
+            return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE, "ManufacturingMrpCannotFindProductForEvent", locale));
+        }
+
+        List<Future<ProductPlan>> futures = new ArrayList<>(eventsByProduct.size());
+        for (Map.Entry<String, List<GenericValue>> entry : eventsByProduct.entrySet()) {
+            GenericValue product = products.get(entry.getKey());
+            if (product == null) {
+                return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE, "ManufacturingMrpCannotFindProductForEvent", locale));
+            }
+            GenericValue productFacility = productFacilities.get(entry.getKey());
+            futures.add(executor.submit(() -> planProduct(product, productFacility, entry.getValue())));
+        }
+        // plans are applied in the product order, while the next ones are still computed
+        for (Future<ProductPlan> future : futures) {
+            ProductPlan plan;
+            try {
+                plan = future.get();
+            } catch (ExecutionException e) {
+                Debug.logError(e.getCause(), "Error planning MRP [" + mrpId + "]", MODULE);
+                return ServiceUtil.returnError(e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return ServiceUtil.returnError(e.getMessage());
+            }
+            Map<String, Object> errorResult = applyPlan(plan);
+            if (errorResult != null) {
+                return errorResult;
+            }
+        }
+        try {
+            eventBuffer.flush();
+        } catch (GenericEntityException e) {
+            return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE, "ManufacturingMrpCreateOrUpdateEvent",
+                    UtilMisc.toMap("parameters", UtilMisc.toMap("mrpId", mrpId)), locale));
+        }
+        return null;
+    }
+
+    /**
+     * Computes the net requirements of a product, as the sequential loop of {@link MrpServices#executeMrp} does,
+     * without writing anything.
+     */
+    private ProductPlan planProduct(GenericValue product, GenericValue productFacility, List<GenericValue> events) {
+        ProductPlan plan = new ProductPlan(product, productFacility);
+        String productId = product.getString("productId");
+        GenericValue firstEvent = events.get(0);
+        BigDecimal eventQuantity = firstEvent.getBigDecimal("quantity");
+        BigDecimal positiveEventQuantity = eventQuantity.compareTo(BigDecimal.ZERO) > 0 ? eventQuantity : eventQuantity.negate();
+        BigDecimal stockTmp;
+        try {
+            stockTmp = MrpServices.findProductMrpQoh(productId, facilityId, dispatcher);
+        } catch (GenericServiceException e) {
+            Debug.logError(e, "Error calling getProductInventoryAvailableByFacility service", MODULE);
+            plan.qohErrorDate = new Timestamp(System.currentTimeMillis());
+            stockTmp = BigDecimal.ZERO;
+        }
+        plan.initialQoh = stockTmp;
+        // days to ship is only relevant for sales order to plan for preparatory days to ship.
+        int daysToShip = 0;
+        BigDecimal reorderQuantity;
+        BigDecimal minimumStock;
+        if (productFacility != null) {
+            reorderQuantity = (productFacility.getBigDecimal("reorderQuantity") != null ? productFacility.getBigDecimal(
+                    "reorderQuantity") : BigDecimal.ONE.negate());
+            minimumStock = (productFacility.getBigDecimal("minimumStock") != null ? productFacility.getBigDecimal("minimumStock")
+                    : BigDecimal.ZERO);
+            if ("SALES_ORDER_SHIP".equals(firstEvent.getString("mrpEventTypeId"))) {
+                daysToShip = (productFacility.getLong("daysToShip") != null ? productFacility.getLong("daysToShip").intValue() : 0);
+            }
+        } else {
+            minimumStock = BigDecimal.ZERO;
+            reorderQuantity = BigDecimal.ONE.negate();
+        }
+        Map<String, Object> serviceResponse = getManufacturingComponents(productId, positiveEventQuantity, plan);
+        if (serviceResponse == null) {
+            return plan;
+        }
+        List<BOMNode> components = UtilGenerics.cast(serviceResponse.get("components"));
+        boolean isBuilt = UtilValidate.isNotEmpty(components) && components.get(0).getParentNode().isManufactured();
+
+        int eventCount = 0;
+        for (GenericValue inventoryEventForMRP : events) {
+            eventCount++;
+            boolean isLastEvent = eventCount == events.size();
+            eventQuantity = inventoryEventForMRP.getBigDecimal("quantity");
+            stockTmp = stockTmp.add(eventQuantity);
+            if (stockTmp.compareTo(minimumStock) < 0 && (eventQuantity.compareTo(BigDecimal.ZERO) < 0 || isLastEvent)) {
+                BigDecimal qtyToStock = minimumStock.subtract(stockTmp);
+                Timestamp eventDate = inventoryEventForMRP.getTimestamp("eventDate");
+                // to be just before the requirement
+                eventDate.setTime(eventDate.getTime() - 1);
+                ProposedOrder proposedOrder = new ProposedOrder(product, facilityId, manufacturingFacilityId, isBuilt, eventDate, qtyToStock);
+                proposedOrder.setMrpName(mrpName);
+                proposedOrder.calculateQuantityToSupply(reorderQuantity, minimumStock, null);
+
+                serviceResponse = getManufacturingComponents(productId, proposedOrder.getQuantity(), plan);
+                if (serviceResponse == null) {
+                    return plan;
+                }
+                components = UtilGenerics.cast(serviceResponse.get("components"));
+                String routingId = (String) serviceResponse.get("workEffortId");
+                GenericValue routing = null;
+                if (routingId != null) {
+                    try {
+                        routing = EntityQuery.use(delegator).from("WorkEffort").where("workEffortId", routingId).queryOne();
+                    } catch (GenericEntityException e) {
+                        plan.errorResult = ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE, "ManufacturingMrpCannotFindProductForEvent",
+                                locale));
+                        return plan;
+                    }
+                }
+                isBuilt = UtilValidate.isNotEmpty(components) && components.get(0).getParentNode().isManufactured();
+
+                Proposal proposal = new Proposal(proposedOrder, eventDate, isBuilt, components);
+                proposal.routingTaskStartDate = proposedOrder.calculateStartDate(daysToShip, routing, delegator, dispatcher, userLogin);
+                proposal.componentStartDate = proposedOrder.getRequirementStartDate();
+                if (productFacility != null) {
+                    proposedOrder.calculateRequirementStartDate(delegator, dispatcher, userLogin);
+                }
+                plan.proposals.add(proposal);
+                stockTmp = stockTmp.add(proposedOrder.getQuantity());
+            }
+        }
+        return plan;
+    }
+
+    private Map<String, Object> getManufacturingComponents(String productId, BigDecimal quantity, ProductPlan plan) {
+        try {
+            Map<String, Object> serviceResponse = dispatcher.runSync("getManufacturingComponents", UtilMisc.<String, Object>toMap("productId",
+                    productId, "quantity", quantity, "excludeWIPs", Boolean.FALSE, "userLogin", userLogin));
+            if (ServiceUtil.isError(serviceResponse)) {
+                plan.errorResult = ServiceUtil.returnError(ServiceUtil.getErrorMessage(serviceResponse));
+                return null;
+            }
+            return serviceResponse;
+        } catch (GenericServiceException e) {
+            plan.errorResult = ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE, "ManufacturingMrpErrorExplodingProduct",
+                    UtilMisc.toMap("productId", productId), locale));
+            return null;
+        }
+    }
+
+    /**
+     * Writes the result of a product plan, in the order of the sequential algorithm.
+     */
+    private Map<String, Object> applyPlan(ProductPlan plan) {
+        String productId = plan.product.getString("productId");
+        Map<String, Object> parameters = UtilMisc.toMap("mrpId", mrpId, "productId", productId);
+        try {
+            if (plan.qohErrorDate != null) {
+                eventBuffer.logMrpError(mrpId, productId, plan.qohErrorDate, "Unable to count inventory");
+            }
+            eventBuffer.createOrUpdateMrpEvent(UtilMisc.<String, Object>toMap("mrpId", mrpId, "productId", productId,
+                    "mrpEventTypeId", "INITIAL_QOH", "eventDate", now), plan.initialQoh, facilityId, null, false);
+            for (Proposal proposal : plan.proposals) {
+                ProposedOrder proposedOrder = proposal.proposedOrder;
+                if (proposal.isBuilt) {
+                    // process the product components
+                    MrpServices.processBomComponent(mrpId, plan.product, proposedOrder.getQuantity(), proposal.componentStartDate,
+                            proposal.routingTaskStartDate, proposal.components, eventBuffer);
+                }
+                // create the ProposedOrder (only if the product is warehouse managed), and the MrpEvent associated
+                String requirementId = null;
+                if (plan.productFacility != null) {
+                    requirementId = proposedOrder.createRequirement(dispatcher, userLogin);
+                }
+                if (plan.productFacility == null && !proposal.isBuilt) {
+                    eventBuffer.logMrpError(mrpId, productId, now, "No ProductFacility record for [" + facilityId + "]; no requirement created.");
+                }
+                String eventName = null;
+                if (UtilValidate.isNotEmpty(requirementId)) {
+                    eventName = "*" + requirementId + " (" + proposedOrder.getRequirementStartDate() + ")*";
+                }
+                Map<String, Object> eventMap = UtilMisc.<String, Object>toMap("productId", productId,
+                        "mrpId", mrpId,
+                        "eventDate", proposal.eventDate,
+                        "mrpEventTypeId", (proposal.isBuilt ? "PROP_MANUF_O_RECP" : "PROP_PUR_O_RECP"));
+                eventBuffer.createOrUpdateMrpEvent(eventMap, proposedOrder.getQuantity(), null,
+                        eventName, (proposedOrder.getRequirementStartDate().compareTo(now) < 0));
+            }
+        } catch (GenericEntityException e) {
+            return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE, "ManufacturingMrpCreateOrUpdateEvent",
+                    UtilMisc.toMap("parameters", parameters), locale));
+        }
+        // an error of the sequential algorithm is returned after the writes done before it
+        return plan.errorResult;
+    }
+
+    /** The result of the planning of a product. */
+    private static final class ProductPlan {
+        private final GenericValue product;
+        private final GenericValue productFacility;
+        private final List<Proposal> proposals = new ArrayList<>();
+        private BigDecimal initialQoh;
+        private Timestamp qohErrorDate;
+        private Map<String, Object> errorResult;
+
+        private ProductPlan(GenericValue product, GenericValue productFacility) {
+            this.product = product;
+            this.productFacility = productFacility;
+        }
+    }
+
+    /** A proposed order and what is needed to write it. */
+    private static final class Proposal {
+        private final ProposedOrder proposedOrder;
+        private final Timestamp eventDate;
+        private final boolean isBuilt;
+        private final List<BOMNode> components;
+        private Map<String, Object> routingTaskStartDate;
+        private Timestamp componentStartDate;
+
+        private Proposal(ProposedOrder proposedOrder, Timestamp eventDate, boolean isBuilt, List<BOMNode> components) {
+            this.proposedOrder = proposedOrder;
+            this.eventDate = eventDate;
+            this.isBuilt = isBuilt;
+            this.components = components;
+        }
+    }
+}
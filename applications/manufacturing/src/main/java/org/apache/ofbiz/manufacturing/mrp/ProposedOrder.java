@@ -233,25 +233,40 @@ public class ProposedOrder {
      * @return String the requirementId
      **/
     public String create(DispatchContext ctx, GenericValue userLogin) {
+        calculateRequirementStartDate(ctx.getDelegator(), ctx.getDispatcher(), userLogin);
+        return createRequirement(ctx.getDispatcher(), userLogin);
+    }
+
+    /**
+     * For a built product, calculate the requirementStartDate from the manufacturing bill of materials
+     * and update the requirementStartDate property. This is the first step of {@link #create}.
+     **/
+    public void calculateRequirementStartDate(Delegator delegator, LocalDispatcher dispatcher, GenericValue userLogin) {
+        if (!isBuilt || "WIP".equals(product.getString("productTypeId"))) {
+            return;
+        }
+        try {
+            List<BOMNode> bom = new LinkedList<>();
+            BOMTree tree = new BOMTree(productId, "MANUF_COMPONENT", null, BOMTree.EXPLOSION_MANUFACTURING, delegator,
+                    dispatcher, userLogin);
+            tree.setRootQuantity(quantity);
+            tree.print(bom);
+            requirementStartDate = tree.getRoot().getStartDate(manufacturingFacilityId, requiredByDate, true);
+        } catch (Exception e) {
+            Debug.logError(e, "Error : computing the requirement start date. " + e.getMessage(), MODULE);
+        }
+    }
+
+    /**
+     * create the Requirement Entity record calling the createRequirement service. This is the second step of {@link #create}.
+     * @return String the requirementId
+     **/
+    public String createRequirement(LocalDispatcher dispatcher, GenericValue userLogin) {
         if ("WIP".equals(product.getString("productTypeId"))) {
             // No requirements for Work In Process products
             return null;
         }
-        LocalDispatcher dispatcher = ctx.getDispatcher();
-        Delegator delegator = ctx.getDelegator();
         Map<String, Object> parameters = UtilMisc.<String, Object>toMap("userLogin", userLogin);
-        if (isBuilt) {
-            try {
-                List<BOMNode> bom = new LinkedList<>();
-                BOMTree tree = new BOMTree(productId, "MANUF_COMPONENT", null, BOMTree.EXPLOSION_MANUFACTURING, delegator,
-                        dispatcher, userLogin);
-                tree.setRootQuantity(quantity);
-                tree.print(bom);
-                requirementStartDate = tree.getRoot().getStartDate(manufacturingFacilityId, requiredByDate, true);
-            } catch (Exception e) {
-                Debug.logError(e, "Error : computing the requirement start date. " + e.getMessage(), MODULE);
-            }
-        }
         parameters.put("productId", productId);
         parameters.put("statusId", "REQ_PROPOSED");
         parameters.put("facilityId", (isBuilt ? manufacturingFacilityId : facilityId));
@@ -116,7 +116,15 @@ if (product) {
         priceContext.partyId = cart.getPartyId() // IMPORTANT: otherwise it'll be calculating prices using
                                                  // the logged in user which could be a CSR instead of the customer
         priceContext.checkIncludeVat = 'Y'
-        priceMap = runService('calculateProductPrice', priceContext)
+        // on category pages the prices of all the listed products are calculated with the first one
+        categoryPriceMaps = request.getAttribute('categoryPriceMaps')
+        if (categoryPriceMaps == null && context.productCategoryMembers) {
+            categoryPriceContext = [*: priceContext, productIds: context.productCategoryMembers*.productId]
+            categoryPriceContext.remove('product')
+            categoryPriceMaps = runService('calculateProductPrices', categoryPriceContext).productPrices ?: [:]
+            request.setAttribute('categoryPriceMaps', categoryPriceMaps)
+        }
+        priceMap = categoryPriceMaps?.get(product.productId) ?: runService('calculateProductPrice', priceContext)
 
         context.price = priceMap
     } else {
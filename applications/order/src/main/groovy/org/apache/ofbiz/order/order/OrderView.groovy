@@ -71,7 +71,7 @@ if (orderHeader) {
     context.hasPermission = true
     context.canViewInternalDetails = true
 
-    orderReadHelper = new OrderReadHelper(orderHeader)
+    orderReadHelper = OrderReadHelper.getSnapshotHelper(orderHeader)
     orderItems = orderReadHelper.getOrderItems()
     orderAdjustments = orderReadHelper.getAdjustments()
     orderHeaderAdjustments = orderReadHelper.getOrderHeaderAdjustments()
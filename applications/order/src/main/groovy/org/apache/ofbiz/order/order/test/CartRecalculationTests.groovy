@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.order.order.test
+
+import static org.apache.ofbiz.order.order.test.ShoppingCartTestHelper.makeCart
+import static org.apache.ofbiz.order.order.test.ShoppingCartTestHelper.withProperties
+
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.order.shoppingcart.CartRecalculation
+import org.apache.ofbiz.order.shoppingcart.CheckOutHelper
+import org.apache.ofbiz.order.shoppingcart.ShoppingCart
+import org.apache.ofbiz.order.shoppingcart.ShoppingCartHelper
+import org.apache.ofbiz.order.shoppingcart.product.ProductPromoWorker
+import org.apache.ofbiz.service.ServiceUtil
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class CartRecalculationTests extends OFBizTestCase {
+
+    CartRecalculationTests(String name) {
+        super(name)
+    }
+
+    /**
+     * The promotions and the tax of an unchanged cart are not run again, and are run again once a line of the cart
+     * changed.
+     */
+    void testUnchangedCartSkipsRuns() {
+        withProperties('order', ['shoppingcart.incremental.recalc.enable': 'Y']) {
+            ShoppingCart cart = makeCart(delegator, dispatcher)
+            CartRecalculation recalculation = cart.getRecalculation()
+            CheckOutHelper checkOutHelper = new CheckOutHelper(dispatcher, delegator, cart)
+            GenericValue shipAddress = from('PostalAddress').where('contactMechId', '9015').queryOne()
+
+            ProductPromoWorker.doPromotions(cart, dispatcher)
+            checkOutHelper.calcAndAddTax(shipAddress)
+            Map<String, Long> promotions = phase(recalculation, CartRecalculation.PROMOTIONS)
+            Map<String, Long> tax = phase(recalculation, CartRecalculation.TAX)
+            BigDecimal totalTax = cart.getTotalSalesTax()
+
+            // nothing changed
+            ProductPromoWorker.doPromotions(cart, dispatcher)
+            checkOutHelper.calcAndAddTax(shipAddress)
+            assert phase(recalculation, CartRecalculation.PROMOTIONS) == promotions + [skipped: promotions.skipped + 1]
+            assert phase(recalculation, CartRecalculation.TAX) == tax + [skipped: tax.skipped + 1]
+            assert cart.getTotalSalesTax() == totalTax
+
+            // a changed line runs both again
+            cart.findCartItem(0).setQuantity(5 as BigDecimal, dispatcher, cart)
+            assert phase(recalculation, CartRecalculation.PROMOTIONS).count == promotions.count + 1
+            checkOutHelper.calcAndAddTax(shipAddress)
+            assert phase(recalculation, CartRecalculation.TAX).count == tax.count + 1
+            assert recalculation.isPromotionsCurrent(cart)
+        }
+    }
+
+    /**
+     * An update of the cart lines runs the promotions once at its end, also when a line gives an error after other
+     * lines were changed.
+     */
+    void testModifyCartRunsPromotionsOnce() {
+        withProperties('order', ['shoppingcart.incremental.recalc.enable': 'Y']) {
+            ShoppingCart cart = makeCart(delegator, dispatcher)
+            CartRecalculation recalculation = cart.getRecalculation()
+            ShoppingCartHelper cartHelper = new ShoppingCartHelper(delegator, dispatcher, cart)
+
+            ProductPromoWorker.doPromotions(cart, dispatcher)
+            long count = phase(recalculation, CartRecalculation.PROMOTIONS).count
+            assert ServiceUtil.isSuccess(cartHelper.modifyCart(dispatcher.getSecurity(), userLogin, [update_0: '3'], false, null,
+                    Locale.getDefault()))
+            assert cart.findCartItem(0).getQuantity() == 3
+            assert phase(recalculation, CartRecalculation.PROMOTIONS).count == count + 1
+            assert recalculation.isPromotionsCurrent(cart)
+
+            // the quantity is changed before the amount gives an error
+            assert ServiceUtil.isError(cartHelper.modifyCart(dispatcher.getSecurity(), userLogin, [update_0: '4', amount_0: '-1'], false,
+                    null, Locale.getDefault()))
+            assert cart.findCartItem(0).getQuantity() == 4
+            assert phase(recalculation, CartRecalculation.PROMOTIONS).count == count + 2
+            assert recalculation.isPromotionsCurrent(cart)
+
+            // nothing changed, nothing deferred
+            assert ServiceUtil.isSuccess(cartHelper.modifyCart(dispatcher.getSecurity(), userLogin, [:], false, null,
+                    Locale.getDefault()))
+            assert phase(recalculation, CartRecalculation.PROMOTIONS).count == count + 2
+
+            // a nested batch leaves the deferred promotions to the outer one
+            recalculation.beginBatch()
+            recalculation.beginBatch()
+            assert recalculation.deferPromotions(cart)
+            assert !recalculation.endBatch()
+            assert recalculation.endBatch()
+            assert !recalculation.endBatch()
+        }
+    }
+
+    /** Without the incremental recalculation the changed lines run the promotions, which an update does not run again. */
+    void testModifyCartRunsOnlyDeferredPromotions() {
+        withProperties('order', ['shoppingcart.incremental.recalc.enable': 'N']) {
+            ShoppingCart cart = makeCart(delegator, dispatcher)
+            CartRecalculation recalculation = cart.getRecalculation()
+            ShoppingCartHelper cartHelper = new ShoppingCartHelper(delegator, dispatcher, cart)
+
+            long count = phase(recalculation, CartRecalculation.PROMOTIONS).count
+            assert ServiceUtil.isSuccess(cartHelper.modifyCart(dispatcher.getSecurity(), userLogin, [update_0: '3'], false, null,
+                    Locale.getDefault()))
+            assert cart.findCartItem(0).getQuantity() == 3
+            assert phase(recalculation, CartRecalculation.PROMOTIONS).count == count + 1
+        }
+    }
+
+    private static Map<String, Long> phase(CartRecalculation recalculation, String phase) {
+        return recalculation.getPhaseTimes()[phase]?.subMap(['count', 'skipped']) ?: [count: 0L, skipped: 0L]
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.order.order.test
+
+import java.sql.Timestamp
+
+import org.apache.ofbiz.base.util.UtilProperties
+import org.apache.ofbiz.service.ServiceUtil
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class OrderLookupTests extends OFBizTestCase {
+
+    OrderLookupTests(String name) {
+        super(name)
+    }
+
+    /**
+     * findOrders gives the same page and count with the two-phase plan as with the single query, both when a member is
+     * within the candidate bound and when none is and the plan falls back to the single query.
+     */
+    void testTwoPhaseMatchesSingleQuery() {
+        createOrder('OLPT-1', '2001-03-01 10:00:00', 'ORDER_APPROVED', 'OLPT-P1')
+        createOrder('OLPT-2', '2001-03-02 10:00:00', 'ORDER_CREATED', 'OLPT-P1')
+        createOrder('OLPT-3', '2001-03-03 10:00:00', 'ORDER_APPROVED', 'OLPT-P1')
+        createOrder('OLPT-4', '2001-03-04 10:00:00', 'ORDER_APPROVED', 'OLPT-P2')
+        createOrder('OLPT-5', '2001-06-01 10:00:00', 'ORDER_CREATED', 'OLPT-P2')
+
+        List<Map<String, Object>> searches = [
+            [productId: 'OLPT-P1'],
+            [productId: 'OLPT-P1', viewSize: 2, viewIndex: 2],
+            [partyId: 'TestDemoCustomer', productId: 'OLPT-P1'],
+            [productId: 'OLPT-P2', orderStatusId: ['ORDER_APPROVED']],
+            [partyId: 'TestDemoCustomer', minDate: '2001-03-02', maxDate: '2001-03-31'],
+            [partyId: 'TestDemoCustomer', productId: 'OLPT-P2', maxDate: '2001-01-01']
+        ]
+        String twoPhaseEnable = UtilProperties.getPropertyValue('order', 'order.lookup.two.phase.enable', 'N')
+        String maxCandidates = UtilProperties.getPropertyValue('order', 'order.lookup.two.phase.max.candidates', '1000')
+        try {
+            for (Map<String, Object> search : searches) {
+                UtilProperties.setPropertyValueInMemory('order', 'order.lookup.two.phase.enable', 'N')
+                Map single = findOrders(search)
+                assert single.lookupPlan == ''
+
+                UtilProperties.setPropertyValueInMemory('order', 'order.lookup.two.phase.enable', 'Y')
+                Map twoPhase = findOrders(search)
+                assert twoPhase.lookupPlan.endsWith('OrderHeader')
+                assert twoPhase.lookupPhaseTimes.keySet() == ['resolve', 'filter', 'hydrate'] as Set
+                assertSameOrders(twoPhase, single)
+
+                // no member within the bound, the plan falls back to the single query
+                UtilProperties.setPropertyValueInMemory('order', 'order.lookup.two.phase.max.candidates', '0')
+                Map fallback = findOrders(search)
+                assert !fallback.lookupPlan.endsWith('OrderHeader')
+                assert fallback.lookupPhaseTimes.containsKey('query')
+                assertSameOrders(fallback, single)
+                UtilProperties.setPropertyValueInMemory('order', 'order.lookup.two.phase.max.candidates', maxCandidates)
+            }
+            assert orderIds(findOrders(searches[0])) == ['OLPT-3', 'OLPT-2', 'OLPT-1']
+            assert orderIds(findOrders(searches[1])) == ['OLPT-1']
+            assert orderIds(findOrders(searches[3])) == ['OLPT-4']
+            assert orderIds(findOrders(searches[4])) == ['OLPT-4', 'OLPT-3', 'OLPT-2']
+            assert findOrders(searches[5]).orderListSize == 0
+        } finally {
+            UtilProperties.setPropertyValueInMemory('order', 'order.lookup.two.phase.enable', twoPhaseEnable)
+            UtilProperties.setPropertyValueInMemory('order', 'order.lookup.two.phase.max.candidates', maxCandidates)
+        }
+    }
+
+    private void createOrder(String orderId, String orderDate, String statusId, String productId) {
+        if (!from('Product').where('productId', productId).queryOne()) {
+            delegator.create('Product', [productId: productId, productTypeId: 'FINISHED_GOOD', internalName: productId])
+        }
+        Timestamp date = Timestamp.valueOf(orderDate)
+        delegator.create('OrderHeader', [orderId: orderId, orderTypeId: 'SALES_ORDER', statusId: statusId, orderDate: date,
+                entryDate: date, currencyUom: 'USD', grandTotal: BigDecimal.TEN])
+        delegator.create('OrderRole', [orderId: orderId, partyId: 'TestDemoCustomer', roleTypeId: 'PLACING_CUSTOMER'])
+        delegator.create('OrderItem', [orderId: orderId, orderItemSeqId: '00001', orderItemTypeId: 'PRODUCT_ORDER_ITEM',
+                productId: productId, quantity: BigDecimal.ONE, unitPrice: BigDecimal.TEN, statusId: 'ITEM_CREATED'])
+    }
+
+    private Map findOrders(Map<String, Object> search) {
+        Map serviceResult = dispatcher.runSync('findOrders', search + [userLogin: userLogin])
+        assert ServiceUtil.isSuccess(serviceResult)
+        return serviceResult
+    }
+
+    private static void assertSameOrders(Map result, Map expected) {
+        assert result.orderListSize == expected.orderListSize
+        assert result.lowIndex == expected.lowIndex
+        assert result.highIndex == expected.highIndex
+        assert orderIds(result) == orderIds(expected)
+    }
+
+    private static List<String> orderIds(Map result) {
+        return result.orderList*.orderId
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.order.order.test
+
+import org.apache.ofbiz.base.util.UtilDateTime
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.order.order.OrderReadHelper
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class OrderReadHelperTests extends OFBizTestCase {
+
+    private static final String ORDER_ID = 'ORHT-1'
+
+    OrderReadHelperTests(String name) {
+        super(name)
+    }
+
+    /**
+     * A helper in snapshot mode gives the same rows and totals as a helper reading the order lazily, for an order with
+     * item and header adjustments, two ship groups and a cancelled item, even after its lists were changed by a caller.
+     */
+    void testSnapshotMatchesLiveResults() {
+        createOrder()
+        GenericValue orderHeader = from('OrderHeader').where('orderId', ORDER_ID).queryOne()
+        OrderReadHelper live = new OrderReadHelper(orderHeader)
+        OrderReadHelper snapshot = new OrderReadHelper(orderHeader).snapshot()
+
+        assertSameResults(snapshot, live)
+        assert live.getValidOrderItems().size() == 2
+        assert live.getOrderItemsSubTotal() == 90.00
+        assert live.getShippingTotal() == 7.00
+
+        // the callers may change the lists handed out
+        snapshot.getOrderHeaderAdjustments().clear()
+        snapshot.getValidOrderItems().clear()
+        snapshot.getOrderItemShipGroupAssocs(snapshot.getOrderItems()[0]).clear()
+        assertSameResults(snapshot, live)
+
+        // the totals are computed again from the rows on invalidate
+        snapshot.invalidate()
+        assertSameResults(snapshot, new OrderReadHelper(orderHeader))
+    }
+
+    private static void assertSameResults(OrderReadHelper snapshot, OrderReadHelper live) {
+        assert sorted(snapshot.getOrderItems()) == sorted(live.getOrderItems())
+        assert sorted(snapshot.getValidOrderItems()) == sorted(live.getValidOrderItems())
+        assert sorted(snapshot.getAdjustments()) == sorted(live.getAdjustments())
+        assert sorted(snapshot.getOrderHeaderAdjustments()) == sorted(live.getOrderHeaderAdjustments())
+        ['00001', '00002'].each { shipGroupSeqId ->
+            assert sorted(snapshot.getOrderHeaderAdjustments(shipGroupSeqId)) == sorted(live.getOrderHeaderAdjustments(shipGroupSeqId))
+            assert sorted(snapshot.getOrderHeaderAdjustmentsTax(shipGroupSeqId)) == sorted(live.getOrderHeaderAdjustmentsTax(shipGroupSeqId))
+        }
+        assert snapshot.getOrderItemsSubTotal() == live.getOrderItemsSubTotal()
+        assert snapshot.getOrderItemsTotal() == live.getOrderItemsTotal()
+        assert snapshot.getShippingTotal() == live.getShippingTotal()
+        assert snapshot.getHeaderTaxTotal() == live.getHeaderTaxTotal()
+        assert snapshot.getTaxTotal() == live.getTaxTotal()
+        assert snapshot.getOrderAdjustmentsTotal() == live.getOrderAdjustmentsTotal()
+        assert snapshot.getOrderGrandTotal() == live.getOrderGrandTotal()
+        live.getOrderItems().each { orderItem ->
+            assert snapshot.getOrderItemSubTotal(orderItem) == live.getOrderItemSubTotal(orderItem)
+            assert snapshot.getOrderItemTotal(orderItem) == live.getOrderItemTotal(orderItem)
+            assert snapshot.getOrderItemTax(orderItem) == live.getOrderItemTax(orderItem)
+            assert snapshot.getOrderItemShipping(orderItem) == live.getOrderItemShipping(orderItem)
+            assert snapshot.getOrderItemAdjustmentsTotal(orderItem) == live.getOrderItemAdjustmentsTotal(orderItem)
+            assert sorted(snapshot.getOrderItemAdjustments(orderItem)) == sorted(live.getOrderItemAdjustments(orderItem))
+            assert sorted(snapshot.getOrderItemShipGroupAssocs(orderItem)) == sorted(live.getOrderItemShipGroupAssocs(orderItem))
+        }
+    }
+
+    private static List<GenericValue> sorted(List<GenericValue> values) {
+        return values.sort(false) { it.getPrimaryKey().toString() }
+    }
+
+    private void createOrder() {
+        delegator.create('OrderHeader', [orderId: ORDER_ID, orderTypeId: 'SALES_ORDER', statusId: 'ORDER_APPROVED',
+                orderDate: UtilDateTime.nowTimestamp(), entryDate: UtilDateTime.nowTimestamp(), currencyUom: 'USD'])
+        ['00001', '00002'].each { shipGroupSeqId ->
+            delegator.create('OrderItemShipGroup', [orderId: ORDER_ID, shipGroupSeqId: shipGroupSeqId])
+        }
+        createItem('00001', 2, 20.00, 'ITEM_APPROVED', '00001')
+        createItem('00002', 1, 55.00, 'ITEM_APPROVED', '00002')
+        createItem('00003', 3, 10.00, 'ITEM_CANCELLED', '00002')
+        createAdjustment('9001', 'PROMOTION_ADJUSTMENT', '00001', '00001', -5.00)
+        createAdjustment('9002', 'SALES_TAX', '00002', '00002', 2.50)
+        createAdjustment('9003', 'SALES_TAX', '00003', '00002', 1.50)
+        createAdjustment('9004', 'SHIPPING_CHARGES', '_NA_', '00001', 7.00)
+        createAdjustment('9005', 'SALES_TAX', '_NA_', '00002', 1.25)
+        createAdjustment('9006', 'DISCOUNT_ADJUSTMENT', '_NA_', '00001', -3.00)
+    }
+
+    private void createItem(String orderItemSeqId, int quantity, BigDecimal unitPrice, String statusId, String shipGroupSeqId) {
+        delegator.create('OrderItem', [orderId: ORDER_ID, orderItemSeqId: orderItemSeqId, orderItemTypeId: 'PRODUCT_ORDER_ITEM',
+                productId: 'GZ-2644', quantity: quantity as BigDecimal, unitPrice: unitPrice, statusId: statusId])
+        delegator.create('OrderItemShipGroupAssoc', [orderId: ORDER_ID, orderItemSeqId: orderItemSeqId, shipGroupSeqId: shipGroupSeqId,
+                quantity: quantity as BigDecimal])
+    }
+
+    private void createAdjustment(String id, String orderAdjustmentTypeId, String orderItemSeqId, String shipGroupSeqId, BigDecimal amount) {
+        delegator.create('OrderAdjustment', [orderAdjustmentId: "ORHT-${id}".toString(), orderAdjustmentTypeId: orderAdjustmentTypeId,
+                orderId: ORDER_ID, orderItemSeqId: orderItemSeqId, shipGroupSeqId: shipGroupSeqId, amount: amount])
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.order.order.test
+
+import org.apache.ofbiz.base.util.UtilDateTime
+import org.apache.ofbiz.base.util.UtilProperties
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.order.shoppingcart.ShoppingCart
+import org.apache.ofbiz.order.shoppingcart.shipping.ShippingEstimateWrapper
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class ShippingEstimateWrapperTests extends OFBizTestCase {
+
+    ShippingEstimateWrapperTests(String name) {
+        super(name)
+    }
+
+    /** The carrier estimates computed concurrently are the ones computed one after the other. */
+    void testParallelMatchesSequential() {
+        createStore('SEWT-1')
+        ShoppingCart cart = makeCart('SEWT-1', 'SEWT-1-P', 3)
+        String parallelEnable = UtilProperties.getPropertyValue('order', 'shipping.estimate.parallel.enable', 'N')
+        try {
+            UtilProperties.setPropertyValueInMemory('order', 'shipping.estimate.parallel.enable', 'N')
+            Map<String, BigDecimal> sequential = getEstimates(cart)
+            assert sequential == ['SEWT-1-WEIGHT': 9.0, 'SEWT-1-FLAT': 18.5]
+
+            UtilProperties.setPropertyValueInMemory('order', 'shipping.estimate.parallel.enable', 'Y')
+            assert getEstimates(cart) == sequential
+        } finally {
+            UtilProperties.setPropertyValueInMemory('order', 'shipping.estimate.parallel.enable', parallelEnable)
+        }
+    }
+
+    /**
+     * The cached estimates are shared by the carts shipped to the same postal code in the same weight bucket, and are
+     * computed for the top weight of the bucket.
+     */
+    void testCachedEstimatesByWeightBucket() {
+        createStore('SEWT-2')
+        String cacheEnable = UtilProperties.getPropertyValue('order', 'shipping.estimate.cache.enable', 'N')
+        try {
+            UtilProperties.setPropertyValueInMemory('order', 'shipping.estimate.cache.enable', 'Y')
+            // 4.5 in the bucket up to 5
+            assert getEstimates(makeCart('SEWT-2', 'SEWT-2-P', 3)) == ['SEWT-2-WEIGHT': 10, 'SEWT-2-FLAT': 20]
+
+            // a change of the rates is not seen by the bucket already cached, 4.8 being in the same bucket
+            GenericValue estimate = from('ShipmentCostEstimate').where('shipmentCostEstimateId', 'SEWT-2-WEIGHT').queryOne()
+            estimate.set('weightUnitPrice', 4.0)
+            estimate.store()
+            assert getEstimates(makeCart('SEWT-2', 'SEWT-2-Q', 4)) == ['SEWT-2-WEIGHT': 10, 'SEWT-2-FLAT': 20]
+
+            // 7.5 in the bucket up to 8
+            assert getEstimates(makeCart('SEWT-2', 'SEWT-2-P', 5)) == ['SEWT-2-WEIGHT': 32, 'SEWT-2-FLAT': 29]
+
+            UtilProperties.setPropertyValueInMemory('order', 'shipping.estimate.cache.enable', 'N')
+            assert getEstimates(makeCart('SEWT-2', 'SEWT-2-P', 3)) == ['SEWT-2-WEIGHT': 18, 'SEWT-2-FLAT': 18.5]
+        } finally {
+            UtilProperties.setPropertyValueInMemory('order', 'shipping.estimate.cache.enable', cacheEnable)
+        }
+    }
+
+    /**
+     * Creates a store with two shipment methods estimated by calcShipmentCostEstimate, one by weight and one with a flat
+     * price and a lower price by weight, and two products weighing 1.5 and 1.2.
+     */
+    private void createStore(String productStoreId) {
+        delegator.create('ProductStore', [productStoreId: productStoreId, storeName: productStoreId, requireInventory: 'N'])
+        delegator.create('Party', [partyId: "${productStoreId}-CARRIER".toString(), partyTypeId: 'PARTY_GROUP'])
+        delegator.create('PartyRole', [partyId: "${productStoreId}-CARRIER".toString(), roleTypeId: 'CARRIER'])
+        [['WEIGHT', 1, 0.0, 2.0], ['FLAT', 2, 5.0, 3.0]].each { method, sequenceNumber, orderFlatPrice, weightUnitPrice ->
+            String shipMethId = "${productStoreId}-${method}"
+            delegator.create('ShipmentMethodType', [shipmentMethodTypeId: shipMethId, description: shipMethId])
+            delegator.create('CarrierShipmentMethod', [partyId: "${productStoreId}-CARRIER".toString(), roleTypeId: 'CARRIER',
+                    shipmentMethodTypeId: shipMethId])
+            delegator.create('ProductStoreShipmentMeth', [productStoreShipMethId: shipMethId, productStoreId: productStoreId,
+                    shipmentMethodTypeId: shipMethId, partyId: "${productStoreId}-CARRIER".toString(), roleTypeId: 'CARRIER',
+                    sequenceNumber: sequenceNumber])
+            delegator.create('ShipmentCostEstimate', [shipmentCostEstimateId: shipMethId, productStoreShipMethId: shipMethId,
+                    productStoreId: productStoreId, shipmentMethodTypeId: shipMethId, carrierPartyId: "${productStoreId}-CARRIER".toString(),
+                    carrierRoleTypeId: 'CARRIER', orderFlatPrice: orderFlatPrice, weightUnitPrice: weightUnitPrice])
+        }
+        [['P', 1.5], ['Q', 1.2]].each { product, productWeight ->
+            String productId = "${productStoreId}-${product}"
+            delegator.create('Product', [productId: productId, productTypeId: 'FINISHED_GOOD', internalName: productId,
+                    productWeight: productWeight])
+            delegator.create('ProductPrice', [productId: productId, productPriceTypeId: 'DEFAULT_PRICE', productPricePurposeId: 'PURCHASE',
+                    currencyUomId: 'USD', productStoreGroupId: '_NA_', fromDate: UtilDateTime.nowTimestamp(), price: 10.0])
+        }
+    }
+
+    private ShoppingCart makeCart(String productStoreId, String productId, int quantity) {
+        ShoppingCart cart = new ShoppingCart(delegator, productStoreId, Locale.getDefault(), 'USD')
+        cart.setOrderType('SALES_ORDER')
+        cart.setBillToCustomerPartyId('DemoCustomer')
+        cart.setPlacingCustomerPartyId('DemoCustomer')
+        cart.setShipToCustomerPartyId('DemoCustomer')
+        cart.addOrIncreaseItem(productId, null, quantity as BigDecimal, null, null, null, null, null, null, null, null, null, null, null,
+                null, dispatcher)
+        cart.setShippingContactMechId(0, '9015')
+        return cart
+    }
+
+    private Map<String, BigDecimal> getEstimates(ShoppingCart cart) {
+        ShippingEstimateWrapper wrapper = new ShippingEstimateWrapper(dispatcher, cart, 0)
+        return wrapper.getShippingMethods().collectEntries { shipMethod ->
+            [shipMethod.productStoreShipMethId, wrapper.getShippingEstimate(shipMethod)]
+        }
+    }
+}
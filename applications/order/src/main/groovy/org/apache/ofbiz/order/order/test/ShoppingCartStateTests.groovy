@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.order.order.test
+
+import static org.apache.ofbiz.order.order.test.ShoppingCartTestHelper.withProperties
+
+import org.apache.ofbiz.base.util.SafeObjectInputStream
+import org.apache.ofbiz.base.util.UtilProperties
+import org.apache.ofbiz.base.util.cache.UtilCache
+import org.apache.ofbiz.catalina.container.DeltaReplicationManager
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.order.shoppingcart.ShoppingCart
+import org.apache.ofbiz.order.shoppingcart.ShoppingCartState
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class ShoppingCartStateTests extends OFBizTestCase {
+
+    ShoppingCartStateTests(String name) {
+        super(name)
+    }
+
+    /**
+     * A cart serialized in its compact state is smaller and restores the same items, totals and values; the unchanged
+     * values are read back from the database and the changed ones keep their changes.
+     */
+    void testRoundTrip() {
+        withProperties('order', ['shoppingcart.compact.state.enable': 'N']) {
+            GenericValue cartUserLogin = createUserLogin('SCST-LOGIN-1')
+            ShoppingCart cart = makeCart(cartUserLogin)
+
+            byte[] whole = serialize(cart)
+            UtilProperties.setPropertyValueInMemory('order', 'shoppingcart.compact.state.enable', 'Y')
+            Map<String, Long> before = ShoppingCartState.getStatistics()
+            byte[] compact = serialize(cart)
+            assert compact.length < whole.length
+            assert ShoppingCartState.getStatistics().writeCount == before.writeCount + 1
+
+            ShoppingCart restored = deserialize(compact)
+            assert ShoppingCartState.getStatistics().readCount == before.readCount + 1
+            assertSameCart(restored, cart)
+            assert restored.getUserLogin() == cartUserLogin
+            assert restored.getUserLogin().isMutable()
+            assert !restored.getUserLogin().hasChanged()
+
+            // the raw state round trip, without deflation
+            assertSameCart(ShoppingCartState.decode(ShoppingCartState.encode(cart)), cart)
+
+            // a changed value is written whole and keeps its change
+            cartUserLogin.set('lastLocale', 'fr')
+            assert deserialize(serialize(cart)).getUserLogin().getString('lastLocale') == 'fr'
+        }
+    }
+
+    /**
+     * A compact state referencing a row removed since it was written fails to restore instead of giving a value with
+     * only the primary key.
+     */
+    void testRemovedValueFailsToRestore() {
+        withProperties('order', ['shoppingcart.compact.state.enable': 'Y']) {
+            ShoppingCart cart = makeCart(createUserLogin('SCST-LOGIN-2'))
+            byte[] compact = serialize(cart)
+            delegator.removeByAnd('UserLogin', [userLoginId: 'SCST-LOGIN-2'])
+
+            long readFailures = ShoppingCartState.getStatistics().readFailures
+            try {
+                deserialize(compact)
+                fail('The cart state was restored without its UserLogin')
+            } catch (InvalidObjectException e) {
+                assert ShoppingCartState.getStatistics().readFailures == readFailures + 1
+            }
+        }
+    }
+
+    /**
+     * A cart replicated again is written as its changes from the state last replicated and restored from the state kept
+     * by the receiver, the whole state being written again every full interval; changes from a state the receiver does
+     * not have fail to restore.
+     */
+    void testReplicatedChanges() {
+        withProperties('order', ['shoppingcart.compact.state.enable': 'Y', 'shoppingcart.compact.state.delta.enable': 'Y',
+                'shoppingcart.compact.state.delta.full.interval': '3']) {
+            ShoppingCart cart = makeCart(createUserLogin('SCST-LOGIN-3'))
+            long deltaCount = ShoppingCartState.getStatistics().deltaCount
+            byte[] whole = replicate(cart)
+            assertSameCart(deserialize(whole), cart)
+            assert ShoppingCartState.getStatistics().deltaCount == deltaCount
+
+            cart.setPoNumber('SCST-PO-1')
+            byte[] changes = replicate(cart)
+            assert ShoppingCartState.getStatistics().deltaCount == deltaCount + 1
+            assert changes.length < whole.length
+            ShoppingCart restored = deserialize(changes)
+            assertSameCart(restored, cart)
+            assert restored.getPoNumber() == 'SCST-PO-1'
+
+            cart.setPoNumber('SCST-PO-2')
+            assert deserialize(replicate(cart)).getPoNumber() == 'SCST-PO-2'
+            assert ShoppingCartState.getStatistics().deltaCount == deltaCount + 2
+            // the third replication after the whole state writes it whole again, as does the session persistence
+            assertSameCart(deserialize(replicate(cart)), cart)
+            assertSameCart(deserialize(serialize(cart)), cart)
+            assert ShoppingCartState.getStatistics().deltaCount == deltaCount + 2
+
+            cart.setPoNumber('SCST-PO-3')
+            byte[] orphan = replicate(cart)
+            UtilCache.clearCache('order.ShoppingCartState.restored')
+            long readFailures = ShoppingCartState.getStatistics().readFailures
+            try {
+                deserialize(orphan)
+                fail('The cart state changes were restored without their base state')
+            } catch (InvalidObjectException e) {
+                assert ShoppingCartState.getStatistics().readFailures == readFailures + 1
+            }
+        }
+    }
+
+    /** The changes between two raw states give the new state back from the base only. */
+    void testDiffAndPatch() {
+        byte[] base = ShoppingCartState.encode(makeCart(createUserLogin('SCST-LOGIN-4')))
+        ShoppingCart cart = makeCart(createUserLogin('SCST-LOGIN-5'))
+        cart.setPoNumber('SCST-PO-4')
+        byte[] state = ShoppingCartState.encode(cart)
+        byte[] delta = ShoppingCartState.diff(base, state)
+        assert ShoppingCartState.patch(base, delta) == state
+        assert delta.length < state.length
+        try {
+            ShoppingCartState.patch(state, delta)
+            fail('The delta was applied to another state than its base')
+        } catch (StreamCorruptedException e) {
+            assert e.message.contains('another state')
+        }
+    }
+
+    private GenericValue createUserLogin(String userLoginId) {
+        delegator.create('UserLogin', [userLoginId: userLoginId, partyId: 'DemoCustomer', enabled: 'Y'])
+        return from('UserLogin').where('userLoginId', userLoginId).queryOne()
+    }
+
+    private ShoppingCart makeCart(GenericValue cartUserLogin) {
+        return ShoppingCartTestHelper.makeCart(delegator, dispatcher, cartUserLogin, 2.0)
+    }
+
+    private static void assertSameCart(ShoppingCart restored, ShoppingCart cart) {
+        assert restored.size() == cart.size()
+        assert restored.getProductStoreId() == cart.getProductStoreId()
+        assert restored.getPlacingCustomerPartyId() == cart.getPlacingCustomerPartyId()
+        assert restored.getDisplayGrandTotal() == cart.getDisplayGrandTotal()
+        for (int i = 0; i < cart.size(); i++) {
+            assert restored.findCartItem(i).getProductId() == cart.findCartItem(i).getProductId()
+            assert restored.findCartItem(i).getQuantity() == cart.findCartItem(i).getQuantity()
+            assert restored.findCartItem(i).getProduct() == cart.findCartItem(i).getProduct()
+        }
+    }
+
+    /** Serializes a cart as the replication of a session change does. */
+    private static byte[] replicate(ShoppingCart cart) {
+        DeltaReplicationManager.REPLICATING.set(Boolean.TRUE)
+        try {
+            return serialize(cart)
+        } finally {
+            DeltaReplicationManager.REPLICATING.set(Boolean.FALSE)
+        }
+    }
+
+    private static byte[] serialize(ShoppingCart cart) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+        new ObjectOutputStream(bytes).withCloseable { it.writeObject(cart) }
+        return bytes.toByteArray()
+    }
+
+    private static ShoppingCart deserialize(byte[] bytes) {
+        return new SafeObjectInputStream(new ByteArrayInputStream(bytes)).withCloseable { (ShoppingCart) it.readObject() }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.order.order.test
+
+import org.apache.ofbiz.base.util.UtilProperties
+import org.apache.ofbiz.entity.Delegator
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.order.shoppingcart.ShoppingCart
+import org.apache.ofbiz.service.LocalDispatcher
+
+/**
+ * The demo cart and the property settings shared by the shopping cart tests.
+ */
+final class ShoppingCartTestHelper {
+
+    private ShoppingCartTestHelper() { }
+
+    /**
+     * Makes a sales order cart of the demo store for DemoCustomer, with one line of SV-1001.
+     * @param cartUserLogin the user login of the cart, may be {@code null}
+     * @param quantity the quantity of the line
+     */
+    static ShoppingCart makeCart(Delegator delegator, LocalDispatcher dispatcher, GenericValue cartUserLogin = null,
+            BigDecimal quantity = BigDecimal.ONE) {
+        ShoppingCart cart = new ShoppingCart(delegator, '9000', Locale.getDefault(), 'USD')
+        cart.setOrderType('SALES_ORDER')
+        cart.setBillToCustomerPartyId('DemoCustomer')
+        cart.setPlacingCustomerPartyId('DemoCustomer')
+        cart.setShipToCustomerPartyId('DemoCustomer')
+        if (cartUserLogin) {
+            cart.setUserLogin(cartUserLogin, dispatcher)
+        }
+        cart.addOrIncreaseItem('SV-1001', null, quantity, null, null, null, null, null, null, null, 'DemoCatalog', null, null, null,
+                null, dispatcher)
+        return cart
+    }
+
+    /**
+     * Runs a test with properties set in memory, and sets them back to their previous values afterwards.
+     * @param resource the properties resource
+     * @param values the values of the properties by name
+     * @param test the test
+     */
+    static void withProperties(String resource, Map<String, String> values, Closure test) {
+        Map<String, String> saved = values.collectEntries { name, value -> [name, UtilProperties.getPropertyValue(resource, name)] }
+        try {
+            values.each { name, value ->
+                UtilProperties.setPropertyValueInMemory(resource, name, value)
+            }
+            test()
+        } finally {
+            saved.each { name, value ->
+                UtilProperties.setPropertyValueInMemory(resource, name, value)
+            }
+        }
+    }
+}
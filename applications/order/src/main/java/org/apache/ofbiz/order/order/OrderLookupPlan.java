@@ -0,0 +1,224 @@
+/*
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package org.apache.ofbiz.order.order;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.collections.PagedList;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.model.ModelEntity;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtil;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
+
+/**
+ * Two-phase plan of the order lookup, used by {@link OrderLookupServices#findOrders} instead of one distinct query on a
+ * view joining OrderHeader to all the searched members.
+ * <p>
+ * The conditions on the members joined one-to-many to OrderHeader are resolved into orderIds with single-table queries:
+ * the first member in {@link #MEMBERS} order with at most <code>order.lookup.two.phase.max.candidates</code> orders is
+ * the seed, and the other members are queried on the seed orderIds only. The OrderHeader conditions then filter and
+ * sort the orderIds, and only the requested page of OrderHeader is read. Searches with conditions spanning several
+ * members, or with too many candidates, keep the single query.
+ */
+final class OrderLookupPlan {
+
+    private static final String MODULE = OrderLookupPlan.class.getName();
+    /** The members tried as the seed, the most selective first. */
+    private static final List<String> MEMBERS = UtilMisc.toList("ItemIssuance", "OrderPaymentPreference", "OrderRole", "OrderItem",
+            "OrderItemShipGroup");
+
+    private final Map<String, List<EntityCondition>> memberConditions = new HashMap<>();
+    private final Set<EntityCondition> viewConditions = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<String, Long> phaseTimes = new LinkedHashMap<>();
+    private final List<String> steps = new LinkedList<>();
+    private boolean splittable = true;
+
+    static boolean isEnabled(Delegator delegator) {
+        return "Y".equals(EntityUtilProperties.getPropertyValue("order", "order.lookup.two.phase.enable", "N", delegator));
+    }
+
+    /**
+     * Records a condition on a member of the lookup view.
+     * @param entityName the member entity
+     * @param viewCondition the condition on the view aliases
+     * @param memberCondition the same condition on the member fields
+     * @return the view condition
+     */
+    EntityCondition member(String entityName, EntityCondition viewCondition, EntityCondition memberCondition) {
+        memberConditions.computeIfAbsent(entityName, k -> new LinkedList<>()).add(memberCondition);
+        viewConditions.add(viewCondition);
+        return viewCondition;
+    }
+
+    /** Records a condition on a member of the lookup view, whose aliases are the member field names. */
+    EntityCondition member(String entityName, EntityCondition condition) {
+        return member(entityName, condition, condition);
+    }
+
+    /** Records a condition joining several members, which only the single query can apply. */
+    EntityCondition joined(EntityCondition condition) {
+        splittable = false;
+        viewConditions.add(condition);
+        return condition;
+    }
+
+    /** Whether the lookup has member conditions, all of a single member each. */
+    boolean isApplicable() {
+        return splittable && !memberConditions.isEmpty();
+    }
+
+    /** Gets the time of each phase in milliseconds, by phase name. */
+    Map<String, Long> getPhaseTimes() {
+        return phaseTimes;
+    }
+
+    /** Gets the entities in the order they were queried. */
+    String getDescription() {
+        return String.join(" > ", steps);
+    }
+
+    void addPhaseTime(String phase, long startTime) {
+        phaseTimes.put(phase, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Runs the lookup.
+     * @param delegator the delegator
+     * @param conditions all the lookup conditions, those not recorded as member conditions being on OrderHeader
+     * @param fieldsToSelect the fields to read, those not on OrderHeader being ignored
+     * @param orderBy the OrderHeader fields to sort on
+     * @param viewIndex the index of the page, from 0
+     * @param viewSize the size of the page
+     * @return the page of OrderHeader, {@code null} when no member has few enough orders for this plan
+     * @throws GenericEntityException when a query fails
+     */
+    PagedList<GenericValue> run(Delegator delegator, List<EntityCondition> conditions, Set<String> fieldsToSelect, List<String> orderBy,
+            int viewIndex, int viewSize) throws GenericEntityException {
+        int maxCandidates = EntityUtilProperties.getPropertyAsInteger("order", "order.lookup.two.phase.max.candidates", 1000);
+
+        // phase 1: resolve the member conditions into orderIds, starting with the most selective member within the bound
+        long startTime = System.currentTimeMillis();
+        Set<String> orderIds = null;
+        String seed = null;
+        for (String entityName : MEMBERS) {
+            if (memberConditions.containsKey(entityName)) {
+                List<String> found = findOrderIds(delegator, entityName, memberConditions.get(entityName), null, maxCandidates + 1);
+                steps.add(entityName);
+                if (found.size() <= maxCandidates) {
+                    orderIds = new LinkedHashSet<>(found);
+                    seed = entityName;
+                    break;
+                }
+            }
+        }
+        if (seed == null) {
+            addPhaseTime("resolve", startTime);
+            if (Debug.verboseOn()) {
+                Debug.logVerbose("No order lookup member within " + maxCandidates + " orders, running the single query", MODULE);
+            }
+            return null;
+        }
+        for (String entityName : MEMBERS) {
+            if (orderIds.isEmpty()) {
+                break;
+            }
+            if (!entityName.equals(seed) && memberConditions.containsKey(entityName)) {
+                orderIds.retainAll(findOrderIds(delegator, entityName, memberConditions.get(entityName), orderIds, 0));
+                steps.add(entityName);
+            }
+        }
+        addPhaseTime("resolve", startTime);
+
+        // phase 2: filter and sort the candidates on the OrderHeader conditions
+        startTime = System.currentTimeMillis();
+        List<String> sortedIds = new ArrayList<>();
+        if (!orderIds.isEmpty()) {
+            List<EntityCondition> headerConditions = new LinkedList<>();
+            for (EntityCondition condition : conditions) {
+                if (!viewConditions.contains(condition)) {
+                    headerConditions.add(condition);
+                }
+            }
+            headerConditions.add(EntityCondition.makeCondition("orderId", EntityOperator.IN, orderIds));
+            sortedIds = EntityUtil.getFieldListFromEntityList(EntityQuery.use(delegator).select("orderId").from("OrderHeader")
+                    .where(headerConditions).orderBy(orderBy).queryList(), "orderId", false);
+        }
+        steps.add("OrderHeader");
+        addPhaseTime("filter", startTime);
+
+        // phase 3: read the page
+        startTime = System.currentTimeMillis();
+        int startIndex = EntityUtil.getStartIndexFromViewIndex(viewIndex, viewSize);
+        int endIndex = Math.min(startIndex + viewSize - 1, sortedIds.size());
+        List<GenericValue> page = new LinkedList<>();
+        if (startIndex <= endIndex) {
+            List<String> pageIds = sortedIds.subList(startIndex - 1, endIndex);
+            ModelEntity orderHeaderModel = delegator.getModelEntity("OrderHeader");
+            Set<String> headerFields = new LinkedHashSet<>();
+            for (String fieldName : fieldsToSelect) {
+                if (orderHeaderModel.isField(fieldName)) {
+                    headerFields.add(fieldName);
+                }
+            }
+            Map<String, GenericValue> byId = new HashMap<>();
+            for (GenericValue orderHeader : EntityQuery.use(delegator).select(headerFields).from("OrderHeader")
+                    .where(EntityCondition.makeCondition("orderId", EntityOperator.IN, pageIds)).queryList()) {
+                byId.put(orderHeader.getString("orderId"), orderHeader);
+            }
+            for (String orderId : pageIds) {
+                GenericValue orderHeader = byId.get(orderId);
+                if (orderHeader != null) {
+                    page.add(orderHeader);
+                }
+            }
+        }
+        addPhaseTime("hydrate", startTime);
+        return new PagedList<>(startIndex, endIndex, sortedIds.size(), viewIndex, viewSize, page);
+    }
+
+    private static List<String> findOrderIds(Delegator delegator, String entityName, List<EntityCondition> conditions,
+            Set<String> orderIds, int maxRows) throws GenericEntityException {
+        List<EntityCondition> where = new LinkedList<>(conditions);
+        if (orderIds != null) {
+            where.add(EntityCondition.makeCondition("orderId", EntityOperator.IN, orderIds));
+        }
+        EntityQuery query = EntityQuery.use(delegator).select("orderId").from(entityName).where(where).distinct();
+        if (maxRows > 0) {
+            query.maxRows(maxRows);
+        }
+        return EntityUtil.getFieldListFromEntityList(query.queryList(), "orderId", false);
+    }
+}
@@ -94,8 +94,9 @@ public class OrderLookupServices {
         // list to hold the parameters
         List<String> paramList = new LinkedList<>();
 
-        // list of conditions
+        // list of conditions, those not on OrderHeader being recorded in the plan
         List<EntityCondition> conditions = new LinkedList<>();
+        OrderLookupPlan plan = new OrderLookupPlan();
 
         // check security flag for purchase orders
         boolean canViewPo = security.hasEntityPermission("ORDERMGR", "_PURCHASE_VIEW", userLogin);
@@ -287,12 +288,12 @@ public class OrderLookupServices {
 
             if (UtilValidate.isNotEmpty(carrierPartyId)) {
                 paramList.add("carrierPartyId=" + carrierPartyId);
-                conditions.add(makeExpr("carrierPartyId", carrierPartyId));
+                conditions.add(plan.member("OrderItemShipGroup", makeExpr("carrierPartyId", carrierPartyId)));
             }
 
             if (UtilValidate.isNotEmpty(shippingMethodTypeId)) {
                 paramList.add("shippingMethodTypeId=" + shippingMethodTypeId);
-                conditions.add(makeExpr("shipmentMethodTypeId", shippingMethodTypeId));
+                conditions.add(plan.member("OrderItemShipGroup", makeExpr("shipmentMethodTypeId", shippingMethodTypeId)));
             }
         }
         // PaymentGatewayResponse
@@ -310,12 +311,12 @@ public class OrderLookupServices {
 
         if (UtilValidate.isNotEmpty(gatewayAvsResult)) {
             paramList.add("gatewayAvsResult=" + gatewayAvsResult);
-            conditions.add(EntityCondition.makeCondition("gatewayAvsResult", gatewayAvsResult));
+            conditions.add(plan.joined(EntityCondition.makeCondition("gatewayAvsResult", gatewayAvsResult)));
         }
 
         if (UtilValidate.isNotEmpty(gatewayScoreResult)) {
             paramList.add("gatewayScoreResult=" + gatewayScoreResult);
-            conditions.add(EntityCondition.makeCondition("gatewayScoreResult", gatewayScoreResult));
+            conditions.add(plan.joined(EntityCondition.makeCondition("gatewayScoreResult", gatewayScoreResult)));
         }
 
         // add the role data to the view
@@ -329,7 +330,7 @@ public class OrderLookupServices {
         if (UtilValidate.isNotEmpty(partyId)) {
             paramList.add("partyId=" + partyId);
             fieldsToSelect.add("partyId");
-            conditions.add(makeExpr("partyId", partyId));
+            conditions.add(plan.member("OrderRole", makeExpr("partyId", partyId)));
         }
 
         if (roleTypeList != null) {
@@ -339,7 +340,7 @@ public class OrderLookupServices {
                 paramList.add("roleTypeId=" + roleTypeId);
                 orExprs.add(makeExpr("roleTypeId", roleTypeId));
             }
-            conditions.add(EntityCondition.makeCondition(orExprs, EntityOperator.OR));
+            conditions.add(plan.member("OrderRole", EntityCondition.makeCondition(orExprs, EntityOperator.OR)));
         }
 
         // order item fields
@@ -369,26 +370,26 @@ public class OrderLookupServices {
                 dve.addAlias("GOODID", "idValue");
                 dve.addViewLink("OI", "GOODID", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("productId", "productId")));
                 paramList.add("goodIdentificationTypeId=" + goodIdentificationTypeId);
-                conditions.add(makeExpr("goodIdentificationTypeId", goodIdentificationTypeId));
+                conditions.add(plan.joined(makeExpr("goodIdentificationTypeId", goodIdentificationTypeId)));
                 paramList.add("goodIdentificationIdValue=" + goodIdentificationIdValue);
-                conditions.add(makeExpr("idValue", goodIdentificationIdValue));
+                conditions.add(plan.joined(makeExpr("idValue", goodIdentificationIdValue)));
             }
         }
 
         if (UtilValidate.isNotEmpty(correspondingPoId)) {
             paramList.add("correspondingPoId=" + correspondingPoId);
-            conditions.add(makeExpr("correspondingPoId", correspondingPoId));
+            conditions.add(plan.member("OrderItem", makeExpr("correspondingPoId", correspondingPoId)));
         }
 
         if (UtilValidate.isNotEmpty(subscriptionId)) {
             paramList.add("subscriptionId=" + subscriptionId);
-            conditions.add(makeExpr("subscriptionId", subscriptionId));
+            conditions.add(plan.member("OrderItem", makeExpr("subscriptionId", subscriptionId)));
         }
 
         if (UtilValidate.isNotEmpty(productId)) {
             paramList.add("productId=" + productId);
             if (productId.startsWith("%") || productId.startsWith("*") || productId.endsWith("%") || productId.endsWith("*")) {
-                conditions.add(makeExpr("productId", productId));
+                conditions.add(plan.member("OrderItem", makeExpr("productId", productId)));
             } else {
                 GenericValue product = null;
                 try {
@@ -419,9 +420,9 @@ public class OrderLookupServices {
                                 orExprs.add(EntityCondition.makeCondition("productId", EntityOperator.EQUALS, v.getString("productIdTo")));
                             }
                         }
-                        conditions.add(EntityCondition.makeCondition(orExprs, EntityOperator.OR));
+                        conditions.add(plan.member("OrderItem", EntityCondition.makeCondition(orExprs, EntityOperator.OR)));
                     } else {
-                        conditions.add(EntityCondition.makeCondition("productId", EntityOperator.EQUALS, productId));
+                        conditions.add(plan.member("OrderItem", EntityCondition.makeCondition("productId", EntityOperator.EQUALS, productId)));
                     }
                 } else {
                     String failMsg = UtilProperties.getMessage("OrderErrorUiLabels", "OrderFindOrderProductInvalid",
@@ -433,12 +434,12 @@ public class OrderLookupServices {
 
         if (UtilValidate.isNotEmpty(budgetId)) {
             paramList.add("budgetId=" + budgetId);
-            conditions.add(makeExpr("budgetId", budgetId));
+            conditions.add(plan.member("OrderItem", makeExpr("budgetId", budgetId)));
         }
 
         if (UtilValidate.isNotEmpty(quoteId)) {
             paramList.add("quoteId=" + quoteId);
-            conditions.add(makeExpr("quoteId", quoteId));
+            conditions.add(plan.member("OrderItem", makeExpr("quoteId", quoteId)));
         }
 
         // payment preference fields
@@ -450,7 +451,8 @@ public class OrderLookupServices {
 
         if (UtilValidate.isNotEmpty(paymentStatusId)) {
             paramList.add("paymentStatusId=" + paymentStatusId);
-            conditions.add(makeExpr("paymentStatusId", paymentStatusId));
+            conditions.add(plan.member("OrderPaymentPreference", makeExpr("paymentStatusId", paymentStatusId),
+                    makeExpr("statusId", paymentStatusId)));
         }
         if (finAccountId != null || cardNumber != null || accountNumber != null || paymentStatusId != null) {
             dve.addMemberEntity("OP", "OrderPaymentPreference");
@@ -469,7 +471,7 @@ public class OrderLookupServices {
         // search by fin account ID
         if (UtilValidate.isNotEmpty(finAccountId)) {
             paramList.add("finAccountId=" + finAccountId);
-            conditions.add(makeExpr("finAccountId", finAccountId));
+            conditions.add(plan.member("OrderPaymentPreference", makeExpr("finAccountId", finAccountId)));
         }
 
         // search by card number
@@ -479,7 +481,7 @@ public class OrderLookupServices {
             dve.addViewLink("OP", "CC", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("paymentMethodId", "paymentMethodId")));
 
             paramList.add("cardNumber=" + cardNumber);
-            conditions.add(makeExpr("cardNumber", cardNumber));
+            conditions.add(plan.joined(makeExpr("cardNumber", cardNumber)));
         }
 
         // search by eft account number
@@ -489,7 +491,7 @@ public class OrderLookupServices {
             dve.addViewLink("OP", "EF", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("paymentMethodId", "paymentMethodId")));
 
             paramList.add("accountNumber=" + accountNumber);
-            conditions.add(makeExpr("accountNumber", accountNumber));
+            conditions.add(plan.joined(makeExpr("accountNumber", accountNumber)));
         }
 
         // shipment/inventory item
@@ -514,22 +516,22 @@ public class OrderLookupServices {
 
         if (UtilValidate.isNotEmpty(inventoryItemId)) {
             paramList.add("inventoryItemId=" + inventoryItemId);
-            conditions.add(makeExpr("inventoryItemId", inventoryItemId));
+            conditions.add(plan.member("ItemIssuance", makeExpr("inventoryItemId", inventoryItemId)));
         }
 
         if (UtilValidate.isNotEmpty(softIdentifier)) {
             paramList.add("softIdentifier=" + softIdentifier);
-            conditions.add(makeExpr("softIdentifier", softIdentifier, true));
+            conditions.add(plan.joined(makeExpr("softIdentifier", softIdentifier, true)));
         }
 
         if (UtilValidate.isNotEmpty(serialNumber)) {
             paramList.add("serialNumber=" + serialNumber);
-            conditions.add(makeExpr("serialNumber", serialNumber, true));
+            conditions.add(plan.joined(makeExpr("serialNumber", serialNumber, true)));
         }
 
         if (UtilValidate.isNotEmpty(shipmentId)) {
             paramList.add("shipmentId=" + shipmentId);
-            conditions.add(makeExpr("shipmentId", shipmentId));
+            conditions.add(plan.member("ItemIssuance", makeExpr("shipmentId", shipmentId)));
         }
 
         // back order checking
@@ -541,13 +543,13 @@ public class OrderLookupServices {
 
             paramList.add("hasBackOrders=" + hasBackOrders);
             if ("Y".equals(hasBackOrders)) {
-                conditions.add(EntityCondition.makeCondition("quantityNotAvailable", EntityOperator.NOT_EQUAL, null));
-                conditions.add(EntityCondition.makeCondition("quantityNotAvailable", EntityOperator.GREATER_THAN, BigDecimal.ZERO));
+                conditions.add(plan.joined(EntityCondition.makeCondition("quantityNotAvailable", EntityOperator.NOT_EQUAL, null)));
+                conditions.add(plan.joined(EntityCondition.makeCondition("quantityNotAvailable", EntityOperator.GREATER_THAN, BigDecimal.ZERO)));
             } else if ("N".equals(hasBackOrders)) {
                 List<EntityExpr> orExpr = new LinkedList<>();
                 orExpr.add(EntityCondition.makeCondition("quantityNotAvailable", EntityOperator.EQUALS, null));
                 orExpr.add(EntityCondition.makeCondition("quantityNotAvailable", EntityOperator.EQUALS, BigDecimal.ZERO));
-                conditions.add(EntityCondition.makeCondition(orExpr, EntityOperator.OR));
+                conditions.add(plan.joined(EntityCondition.makeCondition(orExpr, EntityOperator.OR)));
             }
         }
 
@@ -576,7 +578,7 @@ public class OrderLookupServices {
                             EntityCondition.makeCondition("contactMechPurposeTypeId", "SHIPPING_LOCATION"),
                             EntityCondition.makeCondition("countryGeoId", EntityOperator.NOT_EQUAL, countryGeoId)), EntityOperator.AND);
             }
-            conditions.add(exprs);
+            conditions.add(plan.joined(exprs));
         }
 
         // create the main condition
@@ -599,15 +601,23 @@ public class OrderLookupServices {
         if (cond != null) {
             PagedList<GenericValue> pagedOrderList = null;
             try {
-                // do the lookup
-                pagedOrderList = EntityQuery.use(delegator)
-                        .select(fieldsToSelect)
-                        .from(dve)
-                        .where(cond)
-                        .orderBy(orderBy)
-                        .distinct() // set distinct on so we only get one row per order
-                        .cursorScrollInsensitive()
-                        .queryPagedList(viewIndex - 1, viewSize);
+                // resolve the member conditions into orderIds first, reading only the page of OrderHeader
+                if (plan.isApplicable() && OrderLookupPlan.isEnabled(delegator)) {
+                    pagedOrderList = plan.run(delegator, conditions, fieldsToSelect, orderBy, viewIndex - 1, viewSize);
+                }
+                if (pagedOrderList == null) {
+                    // do the lookup
+                    long startTime = System.currentTimeMillis();
+                    pagedOrderList = EntityQuery.use(delegator)
+                            .select(fieldsToSelect)
+                            .from(dve)
+                            .where(cond)
+                            .orderBy(orderBy)
+                            .distinct() // set distinct on so we only get one row per order
+                            .cursorScrollInsensitive()
+                            .queryPagedList(viewIndex - 1, viewSize);
+                    plan.addPhaseTime("query", startTime);
+                }
 
                 orderCount = pagedOrderList.getSize();
                 lowIndex = pagedOrderList.getStartIndex();
@@ -637,6 +647,8 @@ public class OrderLookupServices {
         result.put("paramList", (paramString != null ? paramString : ""));
         result.put("orderList", orderList);
         result.put("orderListSize", orderCount);
+        result.put("lookupPhaseTimes", plan.getPhaseTimes());
+        result.put("lookupPlan", plan.getDescription());
 
         return result;
     }
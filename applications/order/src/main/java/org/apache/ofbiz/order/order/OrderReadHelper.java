@@ -24,6 +24,7 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -33,6 +34,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.UtilDateTime;
@@ -51,6 +53,7 @@ import org.apache.ofbiz.entity.condition.EntityExpr;
 import org.apache.ofbiz.entity.condition.EntityOperator;
 import org.apache.ofbiz.entity.util.EntityQuery;
 import org.apache.ofbiz.entity.util.EntityUtil;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
 import org.apache.ofbiz.product.product.ProductWorker;
 import org.apache.ofbiz.security.Security;
 
@@ -87,6 +90,14 @@ public class OrderReadHelper {
     private Map<String, GenericValue> orderAttributeMap = null;
     private List<GenericValue> orderItemAttributes = null;
     private BigDecimal totalPrice = null;
+    // snapshot mode: the child rows are loaded at once, indexed and the totals kept until invalidate is called
+    private boolean snapshot = false;
+    private List<GenericValue> orderItemShipGroupAssocs = null;
+    private Map<String, List<GenericValue>> adjustmentsByItem = null;
+    private Map<String, List<GenericValue>> shipGroupAssocsByItem = null;
+    private Map<String, List<GenericValue>> headerAdjustmentsByShipGroup = null;
+    private List<GenericValue> validOrderItems = null;
+    private Map<String, BigDecimal> totals = null;
     protected OrderReadHelper() { }
 
     /**
@@ -160,6 +171,128 @@ public class OrderReadHelper {
         }
     }
 
+    /**
+     * Gets a helper for the order, in snapshot mode when <code>order.read.snapshot.enable</code> is set in
+     * <code>order.properties</code>.
+     * @param orderHeader the order header
+     * @return the helper
+     */
+    public static OrderReadHelper getSnapshotHelper(GenericValue orderHeader) {
+        OrderReadHelper orh = new OrderReadHelper(orderHeader);
+        if ("Y".equals(EntityUtilProperties.getPropertyValue("order", "order.read.snapshot.enable", "N", orderHeader.getDelegator()))) {
+            orh.snapshot();
+        }
+        return orh;
+    }
+
+    /**
+     * Switches this helper to snapshot mode: the items, adjustments, payment preferences, statuses, price infos, ship
+     * group associations, reservations and issuances of the order are loaded now with one query each, the adjustments
+     * and ship group associations are indexed by item, and the totals are computed once. The results are the same as
+     * in the default lazy mode as long as the order does not change; call {@link #invalidate()} after changing it.
+     * @return this helper
+     */
+    public OrderReadHelper snapshot() {
+        Delegator delegator = orderHeader.getDelegator();
+        String orderId = getOrderId();
+        try {
+            if (orderItems == null) {
+                orderItems = EntityQuery.use(delegator).from("OrderItem").where("orderId", orderId).orderBy("orderItemSeqId").queryList();
+            }
+            if (adjustments == null) {
+                adjustments = EntityQuery.use(delegator).from("OrderAdjustment").where("orderId", orderId).queryList();
+            }
+            if (paymentPrefs == null) {
+                paymentPrefs = EntityQuery.use(delegator).from("OrderPaymentPreference").where("orderId", orderId)
+                        .orderBy("orderPaymentPreferenceId").queryList();
+            }
+            if (orderStatuses == null) {
+                orderStatuses = EntityQuery.use(delegator).from("OrderStatus").where("orderId", orderId).queryList();
+            }
+            if (orderItemPriceInfos == null) {
+                orderItemPriceInfos = EntityQuery.use(delegator).from("OrderItemPriceInfo").where("orderId", orderId).queryList();
+            }
+            if (orderItemShipGrpInvResList == null) {
+                orderItemShipGrpInvResList = EntityQuery.use(delegator).from("OrderItemShipGrpInvRes").where("orderId", orderId).queryList();
+            }
+            if (orderItemIssuances == null) {
+                orderItemIssuances = EntityQuery.use(delegator).from("ItemIssuance").where("orderId", orderId).queryList();
+            }
+            if (orderItemAndShipGrp == null) {
+                orderItemAndShipGrp = EntityQuery.use(delegator).from("OrderItemAndShipGroupAssoc").where("orderId", orderId).queryList();
+            }
+            orderItemShipGroupAssocs = EntityQuery.use(delegator).from("OrderItemShipGroupAssoc").where("orderId", orderId)
+                    .orderBy("shipGroupSeqId").queryList();
+        } catch (GenericEntityException e) {
+            // stay in lazy mode, the getters will query again
+            Debug.logError(e, "Unable to load the snapshot of order [" + orderId + "]", MODULE);
+            return this;
+        }
+        snapshot = true;
+        invalidate();
+        return this;
+    }
+
+    /**
+     * Forgets the indexes and totals of the snapshot mode, to compute them again from the loaded rows; also forgets the
+     * order grand total in both modes.
+     */
+    public void invalidate() {
+        totalPrice = null;
+        if (!snapshot) {
+            return;
+        }
+        adjustmentsByItem = new HashMap<>();
+        for (GenericValue adjustment : getAdjustments()) {
+            adjustmentsByItem.computeIfAbsent(adjustment.getString("orderItemSeqId"), k -> new ArrayList<>()).add(adjustment);
+        }
+        shipGroupAssocsByItem = new HashMap<>();
+        for (GenericValue shipGroupAssoc : orderItemShipGroupAssocs) {
+            shipGroupAssocsByItem.computeIfAbsent(shipGroupAssoc.getString("orderItemSeqId"), k -> new ArrayList<>()).add(shipGroupAssoc);
+        }
+        headerAdjustmentsByShipGroup = new HashMap<>();
+        validOrderItems = null;
+        totals = new HashMap<>();
+    }
+
+    /** Whether the item is of this order, so its indexed rows and totals apply. */
+    private boolean isSnapshotItem(GenericValue orderItem) {
+        return snapshot && orderItem != null && "OrderItem".equals(orderItem.getEntityName()) && getOrderId().equals(orderItem.get("orderId"));
+    }
+
+    /**
+     * Gets the adjustments to give to the static helpers computing item totals: all the adjustments, or in snapshot mode
+     * the adjustments of the item only, which the helpers filter the same way.
+     */
+    private List<GenericValue> getAdjustmentsForItem(GenericValue orderItem) {
+        if (isSnapshotItem(orderItem)) {
+            return adjustmentsByItem.getOrDefault(orderItem.getString("orderItemSeqId"), Collections.emptyList());
+        }
+        return getAdjustments();
+    }
+
+    /** Gets a total, computed once in snapshot mode. */
+    private BigDecimal getTotal(String key, Supplier<BigDecimal> calculation) {
+        if (!snapshot) {
+            return calculation.get();
+        }
+        BigDecimal total = totals.get(key);
+        if (total == null) {
+            // not computeIfAbsent, the calculation can get other totals
+            total = calculation.get();
+            totals.put(key, total);
+        }
+        return total;
+    }
+
+    /** Gets an item total, computed once in snapshot mode for the items of this order. */
+    private BigDecimal getItemTotal(String key, GenericValue orderItem, Supplier<BigDecimal> calculation) {
+        if (!isSnapshotItem(orderItem)) {
+            return calculation.get();
+        }
+        return getTotal(key + ":" + orderItem.getString("orderItemSeqId"), calculation);
+    }
+
     // ==========================================
     // ========== Order Header Methods ==========
     // ==========================================
@@ -939,7 +1072,8 @@ public class OrderReadHelper {
      * @return the shipping total
      */
     public BigDecimal getShippingTotal() {
-        return OrderReadHelper.calcOrderAdjustments(getOrderHeaderAdjustments(), getOrderItemsSubTotal(), false, false, true);
+        return getTotal("shipping", () -> OrderReadHelper.calcOrderAdjustments(getOrderHeaderAdjustments(), getOrderItemsSubTotal(), false,
+                false, true));
     }
 
     /**
@@ -947,7 +1081,8 @@ public class OrderReadHelper {
      * @return the header tax total
      */
     public BigDecimal getHeaderTaxTotal() {
-        return OrderReadHelper.calcOrderAdjustments(getOrderHeaderAdjustments(), getOrderItemsSubTotal(), false, true, false);
+        return getTotal("headerTax", () -> OrderReadHelper.calcOrderAdjustments(getOrderHeaderAdjustments(), getOrderItemsSubTotal(), false,
+                true, false));
     }
 
     /**
@@ -955,7 +1090,7 @@ public class OrderReadHelper {
      * @return the tax total
      */
     public BigDecimal getTaxTotal() {
-        return OrderReadHelper.calcOrderAdjustments(getAdjustments(), getOrderItemsSubTotal(), false, true, false);
+        return getTotal("tax", () -> OrderReadHelper.calcOrderAdjustments(getAdjustments(), getOrderItemsSubTotal(), false, true, false));
     }
 
     /**
@@ -1585,7 +1720,7 @@ public class OrderReadHelper {
      * @return the order header adjustments
      */
     public List<GenericValue> getOrderHeaderAdjustments() {
-        return getOrderHeaderAdjustments(getAdjustments(), null);
+        return getOrderHeaderAdjustments((String) null);
     }
 
     /**
@@ -1594,7 +1729,16 @@ public class OrderReadHelper {
      * @return the order header adjustments
      */
     public List<GenericValue> getOrderHeaderAdjustments(String shipGroupSeqId) {
-        return getOrderHeaderAdjustments(getAdjustments(), shipGroupSeqId);
+        if (!snapshot) {
+            return getOrderHeaderAdjustments(getAdjustments(), shipGroupSeqId);
+        }
+        List<GenericValue> headerAdjustments = headerAdjustmentsByShipGroup.get(shipGroupSeqId);
+        if (headerAdjustments == null) {
+            headerAdjustments = getOrderHeaderAdjustments(getAdjustments(), shipGroupSeqId);
+            headerAdjustmentsByShipGroup.put(shipGroupSeqId, headerAdjustments);
+        }
+        // a copy, as the callers may change the list
+        return new LinkedList<>(headerAdjustments);
     }
 
     /**
@@ -1603,7 +1747,7 @@ public class OrderReadHelper {
      * @return the order header adjustments tax
      */
     public List<GenericValue> getOrderHeaderAdjustmentsTax(String shipGroupSeqId) {
-        return filterOrderAdjustments(getOrderHeaderAdjustments(getAdjustments(), shipGroupSeqId), false, true, false, false, false);
+        return filterOrderAdjustments(getOrderHeaderAdjustments(shipGroupSeqId), false, true, false, false, false);
     }
 
     /**
@@ -1627,7 +1771,10 @@ public class OrderReadHelper {
      * @return the order adjustments total
      */
     public BigDecimal getOrderAdjustmentsTotal() {
-        return getOrderAdjustmentsTotal(getValidOrderItems(), getAdjustments());
+        if (!snapshot) {
+            return getOrderAdjustmentsTotal(getValidOrderItems(), getAdjustments());
+        }
+        return getTotal("orderAdjustments", () -> calcOrderAdjustments(getOrderHeaderAdjustments(), getOrderItemsSubTotal(), true, true, true));
     }
 
     /**
@@ -1710,10 +1857,17 @@ public class OrderReadHelper {
      * @return the valid order items
      */
     public List<GenericValue> getValidOrderItems() {
+        if (snapshot && validOrderItems != null) {
+            return new ArrayList<>(validOrderItems);
+        }
         List<EntityExpr> exprs = UtilMisc.toList(
                 EntityCondition.makeCondition("statusId", EntityOperator.NOT_EQUAL, "ITEM_CANCELLED"),
                 EntityCondition.makeCondition("statusId", EntityOperator.NOT_EQUAL, "ITEM_REJECTED"));
-        return EntityUtil.filterByAnd(getOrderItems(), exprs);
+        List<GenericValue> items = EntityUtil.filterByAnd(getOrderItems(), exprs);
+        if (snapshot) {
+            validOrderItems = new ArrayList<>(items);
+        }
+        return items;
     }
 
     /**
@@ -1900,7 +2054,7 @@ public class OrderReadHelper {
      * @return the order item adjustments
      */
     public List<GenericValue> getOrderItemAdjustments(GenericValue orderItem) {
-        return getOrderItemAdjustmentList(orderItem, getAdjustments());
+        return getOrderItemAdjustmentList(orderItem, getAdjustmentsForItem(orderItem));
     }
 
     /**
@@ -1981,6 +2135,9 @@ public class OrderReadHelper {
         if (orderItem == null) {
             return null;
         }
+        if (isSnapshotItem(orderItem)) {
+            return new ArrayList<>(shipGroupAssocsByItem.getOrDefault(orderItem.getString("orderItemSeqId"), Collections.emptyList()));
+        }
         try {
             return orderHeader.getDelegator().findByAnd("OrderItemShipGroupAssoc",
                     UtilMisc.toMap("orderId", orderItem.getString("orderId"), "orderItemSeqId", orderItem.getString("orderItemSeqId")),
@@ -2600,7 +2757,17 @@ public class OrderReadHelper {
      * @return the order items sub total
      */
     public BigDecimal getOrderItemsSubTotal() {
-        return getOrderItemsSubTotal(getValidOrderItems(), getAdjustments());
+        if (!snapshot) {
+            return getOrderItemsSubTotal(getValidOrderItems(), getAdjustments());
+        }
+        // the sum of getOrderItemsSubTotal(List, List) over the item sub totals computed once
+        return getTotal("itemsSubTotal", () -> {
+            BigDecimal result = ZERO;
+            for (GenericValue orderItem : getValidOrderItems()) {
+                result = result.add(getOrderItemSubTotal(orderItem)).setScale(DECIMALS, ROUNDING);
+            }
+            return result.setScale(DECIMALS, ROUNDING);
+        });
     }
 
     /**
@@ -2609,7 +2776,7 @@ public class OrderReadHelper {
      * @return the order item sub total
      */
     public BigDecimal getOrderItemSubTotal(GenericValue orderItem) {
-        return getOrderItemSubTotal(orderItem, getAdjustments());
+        return getItemTotal("itemSubTotal", orderItem, () -> getOrderItemSubTotal(orderItem, getAdjustmentsForItem(orderItem)));
     }
 
     /**
@@ -2617,7 +2784,17 @@ public class OrderReadHelper {
      * @return the order items total
      */
     public BigDecimal getOrderItemsTotal() {
-        return getOrderItemsTotal(getValidOrderItems(), getAdjustments());
+        if (!snapshot) {
+            return getOrderItemsTotal(getValidOrderItems(), getAdjustments());
+        }
+        // the sum of getOrderItemsTotal(List, List) over the item totals computed once
+        return getTotal("itemsTotal", () -> {
+            BigDecimal result = ZERO;
+            for (GenericValue orderItem : getValidOrderItems()) {
+                result = result.add(getOrderItemTotal(orderItem));
+            }
+            return result.setScale(DECIMALS, ROUNDING);
+        });
     }
 
     /**
@@ -2626,7 +2803,7 @@ public class OrderReadHelper {
      * @return the order item total
      */
     public BigDecimal getOrderItemTotal(GenericValue orderItem) {
-        return getOrderItemTotal(orderItem, getAdjustments());
+        return getItemTotal("itemTotal", orderItem, () -> getOrderItemTotal(orderItem, getAdjustmentsForItem(orderItem)));
     }
 
     /**
@@ -2656,7 +2833,8 @@ public class OrderReadHelper {
      * @return the order item adjustments total
      */
     public BigDecimal getOrderItemAdjustmentsTotal(GenericValue orderItem, boolean includeOther, boolean includeTax, boolean includeShipping) {
-        return getOrderItemAdjustmentsTotal(orderItem, getAdjustments(), includeOther, includeTax, includeShipping);
+        return getItemTotal("itemAdjustments:" + includeOther + includeTax + includeShipping, orderItem,
+                () -> getOrderItemAdjustmentsTotal(orderItem, getAdjustmentsForItem(orderItem), includeOther, includeTax, includeShipping));
     }
 
     /**
@@ -3603,6 +3781,10 @@ public class OrderReadHelper {
                 filteredAdjustments.add(orderAdjustment);
             }
         }
+        if (snapshot) {
+            // the amounts may have changed
+            invalidate();
+        }
         return filteredAdjustments;
     }
 
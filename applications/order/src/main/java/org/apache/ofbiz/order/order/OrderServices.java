@@ -74,6 +74,7 @@ import org.apache.ofbiz.order.shoppingcart.shipping.ShippingEvents;
 import org.apache.ofbiz.party.contact.ContactHelper;
 import org.apache.ofbiz.party.contact.ContactMechWorker;
 import org.apache.ofbiz.party.party.PartyWorker;
+import org.apache.ofbiz.product.product.ProductCalculatedInfoCounters;
 import org.apache.ofbiz.product.product.ProductWorker;
 import org.apache.ofbiz.product.store.ProductStoreWorker;
 import org.apache.ofbiz.security.Security;
@@ -1168,28 +1169,33 @@ public class OrderServices {
         GenericValue productCalculatedInfo = null;
         String productId = (String) context.get("productId");
         BigDecimal quantity = (BigDecimal) context.get("quantity");
-        try {
-            productCalculatedInfoList = EntityQuery.use(delegator).from("ProductCalculatedInfo").where("productId", productId).queryList();
-            if (UtilValidate.isEmpty(productCalculatedInfoList)) {
-                productCalculatedInfo = delegator.makeValue("ProductCalculatedInfo");
-                productCalculatedInfo.set("productId", productId);
-                productCalculatedInfo.set("totalQuantityOrdered", quantity);
-                productCalculatedInfo.create();
-            } else {
-                productCalculatedInfo = productCalculatedInfoList.get(0);
-                BigDecimal totalQuantityOrdered = productCalculatedInfo.getBigDecimal("totalQuantityOrdered");
-                if (totalQuantityOrdered == null) {
+        if (ProductCalculatedInfoCounters.isEnabled()) {
+            // buffered, does not lock the ProductCalculatedInfo record in the order transaction
+            ProductCalculatedInfoCounters.addQuantityOrdered(delegator, productId, quantity);
+        } else {
+            try {
+                productCalculatedInfoList = EntityQuery.use(delegator).from("ProductCalculatedInfo").where("productId", productId).queryList();
+                if (UtilValidate.isEmpty(productCalculatedInfoList)) {
+                    productCalculatedInfo = delegator.makeValue("ProductCalculatedInfo");
+                    productCalculatedInfo.set("productId", productId);
                     productCalculatedInfo.set("totalQuantityOrdered", quantity);
+                    productCalculatedInfo.create();
                 } else {
-                    productCalculatedInfo.set("totalQuantityOrdered", totalQuantityOrdered.add(quantity));
+                    productCalculatedInfo = productCalculatedInfoList.get(0);
+                    BigDecimal totalQuantityOrdered = productCalculatedInfo.getBigDecimal("totalQuantityOrdered");
+                    if (totalQuantityOrdered == null) {
+                        productCalculatedInfo.set("totalQuantityOrdered", quantity);
+                    } else {
+                        productCalculatedInfo.set("totalQuantityOrdered", totalQuantityOrdered.add(quantity));
+                    }
                 }
-            }
-            productCalculatedInfo.store();
-        } catch (GenericEntityException e) {
-            Debug.logError(e, "Error calling countProductQuantityOrdered service", MODULE);
-            return ServiceUtil.returnError(UtilProperties.getMessage(RES_ERROR,
-                    "OrderErrorCallingCountProductQuantityOrderedService", locale) + e.toString());
+                productCalculatedInfo.store();
+            } catch (GenericEntityException e) {
+                Debug.logError(e, "Error calling countProductQuantityOrdered service", MODULE);
+                return ServiceUtil.returnError(UtilProperties.getMessage(RES_ERROR,
+                        "OrderErrorCallingCountProductQuantityOrderedService", locale) + e.toString());
 
+            }
         }
 
         String virtualProductId = null;
@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.order.shoppingcart;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
+
+/**
+ * Tracks what a cart recalculation depends on, so the unchanged parts are not recomputed, and times each phase.
+ * <p>
+ * The promotions and the tax of a ship group are recorded as a digest of their inputs and of the results they left in
+ * the cart. When <code>shoppingcart.incremental.recalc.enable</code> is set, a run finding the same digest, within
+ * <code>shoppingcart.incremental.recalc.max.age</code> seconds, is skipped: the same inputs give the same results, and a
+ * change made to the results since, such as a cleared promotion, changes the digest. The age bound covers what the
+ * digest cannot see, the promotion dates and usage limits or the tax rates. Within a batch of changes, such as an
+ * update of the cart lines, the promotions are run once at its end instead of after each line.
+ */
+public class CartRecalculation implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    public static final String PRICING = "pricing";
+    public static final String PROMOTIONS = "promotions";
+    public static final String SHIPPING = "shipping";
+    public static final String TAX = "tax";
+
+    /** By phase: the number of runs, the number of skipped runs, the total and the last time in milliseconds. */
+    private final Map<String, long[]> phaseTimes = new LinkedHashMap<>();
+    private final Map<Integer, Digest> taxDigests = new HashMap<>();
+    private Digest promotionsDigest = null;
+    private int batchDepth = 0;
+    private boolean promotionsPending = false;
+
+    private static final class Digest implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final byte[] value;
+        private final long time = System.currentTimeMillis();
+
+        private Digest(byte[] value) {
+            this.value = value;
+        }
+    }
+
+    /** Whether the unchanged parts of the carts are skipped on recalculation. */
+    public static boolean isEnabled(Delegator delegator) {
+        return "Y".equals(EntityUtilProperties.getPropertyValue("order", "shoppingcart.incremental.recalc.enable", "N", delegator));
+    }
+
+    /** Starts a batch of changes, the promotions being run once by the caller at its end. */
+    public void beginBatch() {
+        batchDepth++;
+    }
+
+    /**
+     * Ends a batch of changes.
+     * @return whether the batch deferred the promotions, which the caller then runs; {@code false} at the end of a
+     *         nested batch, the outer batch running them
+     */
+    public boolean endBatch() {
+        if (batchDepth > 0) {
+            batchDepth--;
+        }
+        if (batchDepth > 0) {
+            return false;
+        }
+        boolean pending = promotionsPending;
+        promotionsPending = false;
+        return pending;
+    }
+
+    /** Defers the promotions to the end of the current batch, returns {@code false} when there is no batch. */
+    public boolean deferPromotions(ShoppingCart cart) {
+        if (batchDepth == 0 || !isEnabled(cart.getDelegator())) {
+            return false;
+        }
+        promotionsPending = true;
+        addSkip(PROMOTIONS);
+        return true;
+    }
+
+    /** Whether the promotions of the cart are those computed for its current content. */
+    public boolean isPromotionsCurrent(ShoppingCart cart) {
+        if (promotionsDigest == null || !isEnabled(cart.getDelegator()) || isExpired(promotionsDigest)) {
+            return false;
+        }
+        return Arrays.equals(promotionsDigest.value, digestPromotions(cart));
+    }
+
+    /**
+     * Records the promotions just computed.
+     * @param cart the cart
+     * @param manual whether the promotions were given by the caller rather than those of the store
+     */
+    public void promotionsDone(ShoppingCart cart, boolean manual) {
+        promotionsDigest = manual || !isEnabled(cart.getDelegator()) ? null : new Digest(digestPromotions(cart));
+    }
+
+    /**
+     * Whether the tax of a ship group was computed from the same context.
+     * @param cart the cart
+     * @param shipGroup the index of the ship group
+     * @param taxContext the context of the tax service
+     * @param items the items of the context, by index
+     * @return whether the tax of the ship group is current
+     */
+    public boolean isTaxCurrent(ShoppingCart cart, int shipGroup, Map<String, Object> taxContext, Map<Integer, ShoppingCartItem> items) {
+        Digest digest = taxDigests.get(shipGroup);
+        if (digest == null || !isEnabled(cart.getDelegator()) || isExpired(digest)) {
+            return false;
+        }
+        return Arrays.equals(digest.value, digestTax(cart, shipGroup, taxContext, items));
+    }
+
+    /** Records the tax of a ship group just computed. */
+    public void taxDone(ShoppingCart cart, int shipGroup, Map<String, Object> taxContext, Map<Integer, ShoppingCartItem> items) {
+        if (isEnabled(cart.getDelegator())) {
+            taxDigests.put(shipGroup, new Digest(digestTax(cart, shipGroup, taxContext, items)));
+        } else {
+            taxDigests.remove(shipGroup);
+        }
+    }
+
+    /** Adds the time of a phase run started at the given time. */
+    public synchronized void addTime(String phase, long startTime) {
+        long time = System.currentTimeMillis() - startTime;
+        long[] times = phaseTimes.computeIfAbsent(phase, k -> new long[4]);
+        times[0]++;
+        times[2] += time;
+        times[3] = time;
+    }
+
+    /** Counts a skipped phase run. */
+    public synchronized void addSkip(String phase) {
+        phaseTimes.computeIfAbsent(phase, k -> new long[4])[1]++;
+    }
+
+    /** Gets by phase the number of runs and of skipped runs, the total and the last time in milliseconds. */
+    public synchronized Map<String, Map<String, Long>> getPhaseTimes() {
+        Map<String, Map<String, Long>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> entry : phaseTimes.entrySet()) {
+            long[] times = entry.getValue();
+            result.put(entry.getKey(), UtilMisc.toMap("count", times[0], "skipped", times[1], "totalTime", times[2], "lastTime", times[3]));
+        }
+        return result;
+    }
+
+    private static boolean isExpired(Digest digest) {
+        long maxAge = EntityUtilProperties.getPropertyAsLong("order", "shoppingcart.incremental.recalc.max.age", 60L);
+        return System.currentTimeMillis() - digest.time > maxAge * 1000;
+    }
+
+    /** Digests what the promotions depend on and what they left in the cart. */
+    private static byte[] digestPromotions(ShoppingCart cart) {
+        DigestBuilder builder = new DigestBuilder();
+        builder.add(cart.getProductStoreId()).add(cart.getOrderType()).add(cart.getCurrency()).add(cart.getPartyId())
+                .add(cart.getAgreementId()).add(new TreeSet<>(cart.getProductPromoCodesEntered())).add(cart.getAdjustments());
+        for (ShoppingCartItem item : cart) {
+            builder.add(item.getProductId()).add(item.getItemType()).add(item.getProdCatalogId()).add(item.getQuantity())
+                    .add(item.getSelectedAmount()).add(item.getBasePrice()).add(item.getIsPromo()).add(item.getAdjustments());
+        }
+        for (int i = 0; i < cart.getShipGroupSize(); i++) {
+            builder.add(cart.getShippingContactMechId(i)).add(cart.getShipmentMethodTypeId(i)).add(cart.getCarrierPartyId(i))
+                    .add(cart.getItemShipGroupEstimate(i));
+        }
+        Iterator<ShoppingCart.ProductPromoUseInfo> useInfos = cart.getProductPromoUseInfoIter();
+        while (useInfos.hasNext()) {
+            ShoppingCart.ProductPromoUseInfo useInfo = useInfos.next();
+            builder.add(useInfo.getProductPromoId()).add(useInfo.getProductPromoCodeId()).add(useInfo.getTotalDiscountAmount())
+                    .add(useInfo.getQuantityLeftInActions());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Digests the tax context of a ship group and, for each item in the order of the context lists, its product, ship
+     * group quantity and the tax left on it.
+     */
+    private static byte[] digestTax(ShoppingCart cart, int shipGroup, Map<String, Object> taxContext, Map<Integer, ShoppingCartItem> items) {
+        DigestBuilder builder = new DigestBuilder().add(new TreeMap<>(taxContext));
+        ShoppingCart.CartShipInfo csi = cart.getShipInfo(shipGroup);
+        for (Map.Entry<Integer, ShoppingCartItem> entry : new TreeMap<>(items).entrySet()) {
+            ShoppingCart.CartShipInfo.CartShipItemInfo itemInfo = csi.getShipItemInfo(entry.getValue());
+            builder.add(entry.getKey()).add(entry.getValue().getProductId()).add(itemInfo.getItemQuantity()).add(itemInfo.getItemTaxAdj());
+        }
+        return builder.add(csi.getTotalTax(cart)).build();
+    }
+
+    /**
+     * Builds a SHA-256 digest of values. The values read from the entity cache are digested as their primary key, the other
+     * entity values as all their fields.
+     */
+    private static final class DigestBuilder {
+        private final MessageDigest digest;
+
+        private DigestBuilder() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private DigestBuilder add(Object value) {
+            if (value instanceof GenericValue) {
+                GenericValue entity = (GenericValue) value;
+                add(entity.getEntityName());
+                add(new TreeMap<>(entity.isMutable() ? entity.getAllFields() : entity.getPrimaryKey().getAllFields()));
+            } else if (value instanceof Map<?, ?>) {
+                digest.update((byte) '{');
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    add(entry.getKey());
+                    add(entry.getValue());
+                }
+                digest.update((byte) '}');
+            } else if (value instanceof Collection<?>) {
+                digest.update((byte) '[');
+                for (Object element : (Collection<?>) value) {
+                    add(element);
+                }
+                digest.update((byte) ']');
+            } else if (value instanceof BigDecimal) {
+                add(((BigDecimal) value).stripTrailingZeros().toPlainString());
+            } else if (value == null) {
+                digest.update((byte) 0);
+            } else {
+                digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 1);
+            }
+            return this;
+        }
+
+        private byte[] build() {
+            return digest.digest();
+        }
+    }
+}
@@ -902,6 +902,7 @@ public class CheckOutHelper {
             return;
         }
 
+        CartRecalculation recalculation = cart.getRecalculation();
         int shipGroups = this.cart.getShipGroupSize();
         for (int i = 0; i < shipGroups; i++) {
             ShoppingCart.CartShipInfo csi = cart.getShipInfo(i);
@@ -912,6 +913,12 @@ public class CheckOutHelper {
                 csi.clearAllTaxInfo();
                 continue;
             }
+            // the tax left by the last run on the same context is still valid
+            if (recalculation.isTaxCurrent(cart, i, serviceContext, shoppingCartItemIndexMap)) {
+                recalculation.addSkip(CartRecalculation.TAX);
+                continue;
+            }
+            long startTime = System.currentTimeMillis();
             List<List<? extends Object>> taxReturn = getTaxAdjustments(dispatcher, "calcTax", serviceContext);
 
             if (Debug.verboseOn()) {
@@ -938,6 +945,8 @@ public class CheckOutHelper {
             // need to manually clear the order adjustments
             csi.clearShipTaxAdj();
             csi.addShipTaxAdj(orderAdj);
+            recalculation.taxDone(cart, i, serviceContext, shoppingCartItemIndexMap);
+            recalculation.addTime(CartRecalculation.TAX, startTime);
         }
     }
 
@@ -167,6 +167,9 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
 
     private transient Delegator delegator = null;
     private String delegatorName = null;
+    private CartRecalculation recalculation = new CartRecalculation();
+    /** The state last replicated, see {@link ShoppingCartState}. */
+    private transient ShoppingCartState.Replica replica = null;
 
     private String productStoreId = null;
     private boolean doPromotions = true;
@@ -318,6 +321,27 @@ public class ShoppingCart implements Iterable<ShoppingCartItem>, Serializable {
         return delegator;
     }
 
+    /** Gets the dependency tracking and the phase times of the recalculations of this cart. */
+    public CartRecalculation getRecalculation() {
+        if (recalculation == null) {
+            recalculation = new CartRecalculation();
+        }
+        return recalculation;
+    }
+
+    ShoppingCartState.Replica getReplica() {
+        return replica;
+    }
+
+    void setReplica(ShoppingCartState.Replica replica) {
+        this.replica = replica;
+    }
+
+    /** Serializes the cart in its compact state when enabled, see {@link ShoppingCartState}. */
+    protected Object writeReplace() {
+        return ShoppingCartState.replace(this);
+    }
+
     /** get product store */
     public String getProductStoreId() {
         return this.productStoreId;
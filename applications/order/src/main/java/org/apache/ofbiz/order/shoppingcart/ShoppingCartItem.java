@@ -1273,6 +1273,15 @@ public class ShoppingCartItem implements java.io.Serializable {
      * @throws CartItemModifyException the cart item modify exception
      */
     public void updatePrice(LocalDispatcher dispatcher, ShoppingCart cart) throws CartItemModifyException {
+        long startTime = System.currentTimeMillis();
+        try {
+            calculatePrice(dispatcher, cart);
+        } finally {
+            cart.getRecalculation().addTime(CartRecalculation.PRICING, startTime);
+        }
+    }
+
+    private void calculatePrice(LocalDispatcher dispatcher, ShoppingCart cart) throws CartItemModifyException {
         // set basePrice using the calculateProductPrice service
         if (product != null && !isModifiedPrice) {
             try {
@@ -0,0 +1,510 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.order.shoppingcart;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.SafeObjectInputStream;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.catalina.container.DeltaReplicationManager;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.DelegatorFactory;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * Compact serialized state of a {@link ShoppingCart}, used in place of the cart when the session is persisted or
+ * replicated and <code>shoppingcart.compact.state.enable</code> is set.
+ * <p>
+ * The cart keeps many GenericValue copies of catalog and party rows, each carrying its fields and, when read from the
+ * database, a second map of their original values. In the compact state a value read from the entity cache, or read from
+ * the database and not changed since, is written as its entity name and primary key only and read back from the entity
+ * cache when the state is restored; the other values are written as they are. The state is deflated. A state
+ * referencing a row removed since it was written cannot be restored and fails to deserialize.
+ * <p>
+ * When <code>shoppingcart.compact.state.delta.enable</code> is also set and the sessions are replicated by the
+ * {@link DeltaReplicationManager}, a cart replicated again is written as the changes from its state last replicated,
+ * which the other members of the cluster keep. The changes are found by {@link #diff}, on content-defined chunks so an
+ * insertion does not shift the following chunks, and applied by {@link #patch}. A member missing that base state, for
+ * instance after having missed a replication, fails to restore the changes; the whole state is replicated every
+ * <code>shoppingcart.compact.state.delta.full.interval</code> times to repair it.
+ */
+public final class ShoppingCartState implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+    private static final String MODULE = ShoppingCartState.class.getName();
+    private static final ThreadLocal<Boolean> ENCODING = ThreadLocal.withInitial(() -> Boolean.FALSE);
+    private static final AtomicLong WRITE_COUNT = new AtomicLong();
+    private static final AtomicLong WRITE_BYTES = new AtomicLong();
+    private static final AtomicLong MAX_BYTES = new AtomicLong();
+    private static final AtomicLong READ_COUNT = new AtomicLong();
+    private static final AtomicLong READ_FAILURES = new AtomicLong();
+    private static final AtomicLong DELTA_COUNT = new AtomicLong();
+    /** The raw state last restored for each replicated cart, the base of its next delta. */
+    private static final UtilCache<String, byte[]> RESTORED_STATES = UtilCache.createUtilCache("order.ShoppingCartState.restored",
+            10000, 3600000L);
+
+    private static final int DELTA_VERSION = 1;
+    private static final int MIN_CHUNK = 64;
+    private static final int MAX_CHUNK = 4096;
+    /** Cuts a chunk on average every 256 bytes past the minimum. */
+    private static final long CHUNK_MASK = 0xFFL;
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x5C4A7E5L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /** Identifies the states of a cart, keying the base of its deltas. */
+    private final String stateId;
+    /** Whether {@link #compressed} holds the changes from the state last replicated rather than the state itself. */
+    private final boolean delta;
+    /** The deflated state, or the delta. */
+    private final byte[] compressed;
+
+    private ShoppingCartState(String stateId, boolean delta, byte[] compressed) {
+        this.stateId = stateId;
+        this.delta = delta;
+        this.compressed = compressed;
+    }
+
+    /** Whether the carts are serialized in their compact state. */
+    public static boolean isEnabled(Delegator delegator) {
+        return "Y".equals(EntityUtilProperties.getPropertyValue("order", "shoppingcart.compact.state.enable", "N", delegator));
+    }
+
+    /** Whether the replicated carts are written as their changes, see {@link DeltaReplicationManager}. */
+    public static boolean isDeltaEnabled(Delegator delegator) {
+        return "Y".equals(EntityUtilProperties.getPropertyValue("order", "shoppingcart.compact.state.delta.enable", "N", delegator));
+    }
+
+    /**
+     * Gets the object to serialize in place of a cart, called from {@link ShoppingCart#writeReplace}.
+     * @param cart the cart being serialized
+     * @return the compact state, or the cart itself when disabled or while the state is encoded
+     */
+    static Object replace(ShoppingCart cart) {
+        Delegator delegator = cart.getDelegator();
+        if (ENCODING.get() || !isEnabled(delegator)) {
+            return cart;
+        }
+        try {
+            byte[] state = encode(cart);
+            Replica replica = cart.getReplica();
+            if (replica == null) {
+                replica = new Replica(UUID.randomUUID().toString(), null, 0);
+                cart.setReplica(replica);
+            }
+            ShoppingCartState replacement;
+            if (DeltaReplicationManager.isReplicating() && isDeltaEnabled(delegator)) {
+                int fullInterval = UtilProperties.getPropertyAsInteger("order", "shoppingcart.compact.state.delta.full.interval", 20);
+                if (replica.state != null && replica.deltaCount + 1 < fullInterval) {
+                    replacement = new ShoppingCartState(replica.stateId, true, diff(replica.state, state));
+                    cart.setReplica(new Replica(replica.stateId, state, replica.deltaCount + 1));
+                    DELTA_COUNT.incrementAndGet();
+                } else {
+                    replacement = new ShoppingCartState(replica.stateId, false, deflate(state));
+                    cart.setReplica(new Replica(replica.stateId, state, 0));
+                }
+            } else {
+                replacement = new ShoppingCartState(replica.stateId, false, deflate(state));
+            }
+            WRITE_COUNT.incrementAndGet();
+            WRITE_BYTES.addAndGet(replacement.compressed.length);
+            MAX_BYTES.accumulateAndGet(replacement.compressed.length, Math::max);
+            if (Debug.verboseOn()) {
+                Debug.logVerbose("Serialized cart with " + cart.size() + " items in " + replacement.compressed.length + " bytes"
+                        + (replacement.delta ? " of changes" : ""), MODULE);
+            }
+            return replacement;
+        } catch (IOException e) {
+            Debug.logWarning(e, "Unable to write the compact cart state, serializing the whole cart", MODULE);
+            return cart;
+        }
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+        try {
+            byte[] state;
+            if (delta) {
+                byte[] base = RESTORED_STATES.get(stateId);
+                if (base == null) {
+                    throw new StreamCorruptedException("The base state of the cart state delta " + stateId + " is unknown");
+                }
+                state = patch(base, compressed);
+            } else {
+                state = inflate(compressed);
+            }
+            ShoppingCart cart = decode(state);
+            if (isDeltaEnabled(cart.getDelegator())) {
+                RESTORED_STATES.put(stateId, state);
+                cart.setReplica(new Replica(stateId, state, 0));
+            } else {
+                cart.setReplica(new Replica(stateId, null, 0));
+            }
+            READ_COUNT.incrementAndGet();
+            return cart;
+        } catch (IOException e) {
+            READ_FAILURES.incrementAndGet();
+            Debug.logWarning(e, "Unable to restore a cart from its compact state", MODULE);
+            InvalidObjectException invalid = new InvalidObjectException("Unable to read the compact cart state");
+            invalid.initCause(e);
+            throw invalid;
+        }
+    }
+
+    /**
+     * Encodes a cart in its raw state, before deflation.
+     * @param cart the cart
+     * @return the raw state
+     * @throws IOException when a part of the cart cannot be serialized
+     */
+    public static byte[] encode(ShoppingCart cart) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        boolean nested = ENCODING.get();
+        ENCODING.set(Boolean.TRUE);
+        try (CompactOutputStream out = new CompactOutputStream(bytes)) {
+            out.writeObject(cart);
+        } finally {
+            ENCODING.set(nested);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a cart from its raw state.
+     * @param state the raw state
+     * @return the cart
+     * @throws IOException when the state is invalid or a referenced value cannot be read
+     */
+    public static ShoppingCart decode(byte[] state) throws IOException {
+        try (SafeObjectInputStream in = new SafeObjectInputStream(new ByteArrayInputStream(state))) {
+            return (ShoppingCart) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Invalid cart state", e);
+        }
+    }
+
+    /**
+     * Gets the size in bytes of the compact state of a cart, as it would be persisted or replicated.
+     * @param cart the cart
+     * @return the size in bytes
+     * @throws IOException when a part of the cart cannot be serialized
+     */
+    public static int getSize(ShoppingCart cart) throws IOException {
+        return deflate(encode(cart)).length;
+    }
+
+    /**
+     * Gets the number of compact states written, their total and maximum size in bytes, the number of them written as
+     * deltas, and the number of states restored and failing to restore, since the server started.
+     */
+    public static Map<String, Long> getStatistics() {
+        return UtilMisc.toMap("writeCount", WRITE_COUNT.get(), "totalBytes", WRITE_BYTES.get(), "maxBytes", MAX_BYTES.get(),
+                "deltaCount", DELTA_COUNT.get(), "readCount", READ_COUNT.get(), "readFailures", READ_FAILURES.get());
+    }
+
+    /**
+     * Returns the statistics of the compact cart states, see {@link #getStatistics()}.
+     * @param dctx the dispatch context
+     * @param context the service context
+     * @return the service result
+     */
+    public static Map<String, Object> getShoppingCartStateStatistics(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("enabled", isEnabled(dctx.getDelegator()));
+        result.putAll(getStatistics());
+        return result;
+    }
+
+    /**
+     * Gets the changes from a raw state to another, deflated.
+     * @param base the raw state known to the receiver
+     * @param state the new raw state
+     * @return the delta, to give to {@link #patch} with the same base
+     * @throws IOException never in practice, the delta being written in memory
+     */
+    public static byte[] diff(byte[] base, byte[] state) throws IOException {
+        Map<Long, List<int[]>> baseChunks = new HashMap<>();
+        int[] baseCuts = chunk(base);
+        for (int i = 0, start = 0; i < baseCuts.length; start = baseCuts[i++]) {
+            baseChunks.computeIfAbsent(fingerprint(base, start, baseCuts[i]), k -> new ArrayList<>(1))
+                    .add(new int[] {start, baseCuts[i] - start});
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED), true))) {
+            out.writeInt(DELTA_VERSION);
+            out.writeInt(base.length);
+            out.writeLong(checksum(base));
+            out.writeInt(state.length);
+            int[] cuts = chunk(state);
+            // a pending copy, extended while the matching chunks follow each other in the base
+            int copyFrom = -1;
+            int copyLength = 0;
+            for (int i = 0, start = 0; i < cuts.length; start = cuts[i++]) {
+                int length = cuts[i] - start;
+                int[] match = findChunk(baseChunks.get(fingerprint(state, start, cuts[i])), base, state, start, length);
+                if (match != null && copyFrom >= 0 && copyFrom + copyLength == match[0]) {
+                    copyLength += length;
+                    continue;
+                }
+                if (copyFrom >= 0) {
+                    writeCopy(out, copyFrom, copyLength);
+                    copyFrom = -1;
+                }
+                if (match != null) {
+                    copyFrom = match[0];
+                    copyLength = length;
+                } else {
+                    out.writeByte('I');
+                    out.writeInt(length);
+                    out.write(state, start, length);
+                }
+            }
+            if (copyFrom >= 0) {
+                writeCopy(out, copyFrom, copyLength);
+            }
+            out.writeByte('E');
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Applies a delta from {@link #diff} to its base.
+     * @param base the raw state the delta was computed from
+     * @param delta the delta
+     * @return the new raw state
+     * @throws IOException when the delta is invalid or was not computed from this base
+     */
+    public static byte[] patch(byte[] base, byte[] delta) throws IOException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(delta)))) {
+            if (in.readInt() != DELTA_VERSION) {
+                throw new StreamCorruptedException("Unknown cart state delta version");
+            }
+            if (in.readInt() != base.length || in.readLong() != checksum(base)) {
+                throw new StreamCorruptedException("The cart state delta was computed from another state");
+            }
+            byte[] state = new byte[in.readInt()];
+            int position = 0;
+            for (int op = in.readByte(); op != 'E'; op = in.readByte()) {
+                int offset = op == 'C' ? in.readInt() : 0;
+                int length = in.readInt();
+                if (length < 0 || length > state.length - position || (op == 'C' && (offset < 0 || offset > base.length - length))) {
+                    throw new StreamCorruptedException("Invalid cart state delta");
+                }
+                if (op == 'C') {
+                    System.arraycopy(base, offset, state, position, length);
+                } else if (op == 'I') {
+                    in.readFully(state, position, length);
+                } else {
+                    throw new StreamCorruptedException("Invalid cart state delta");
+                }
+                position += length;
+            }
+            if (position != state.length) {
+                throw new StreamCorruptedException("Truncated cart state delta");
+            }
+            return state;
+        }
+    }
+
+    private static void writeCopy(DataOutputStream out, int offset, int length) throws IOException {
+        out.writeByte('C');
+        out.writeInt(offset);
+        out.writeInt(length);
+    }
+
+    private static int[] findChunk(List<int[]> candidates, byte[] base, byte[] state, int start, int length) {
+        if (candidates != null) {
+            for (int[] candidate : candidates) {
+                if (candidate[1] == length && Arrays.equals(base, candidate[0], candidate[0] + length, state, start, start + length)) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Cuts the data in chunks where a gear rolling hash of the last bytes matches the mask; returns the chunk ends. */
+    private static int[] chunk(byte[] data) {
+        int[] cuts = new int[data.length / MIN_CHUNK + 1];
+        int count = 0;
+        int start = 0;
+        long hash = 0;
+        for (int i = 0; i < data.length; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            int length = i + 1 - start;
+            if ((length >= MIN_CHUNK && (hash & CHUNK_MASK) == 0) || length >= MAX_CHUNK) {
+                cuts[count++] = i + 1;
+                start = i + 1;
+                hash = 0;
+            }
+        }
+        if (start < data.length) {
+            cuts[count++] = data.length;
+        }
+        return Arrays.copyOf(cuts, count);
+    }
+
+    private static long fingerprint(byte[] data, int start, int end) {
+        CRC32 crc = new CRC32();
+        crc.update(data, start, end - start);
+        return crc.getValue() << 32 | (end - start);
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (OutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED), true)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(data))) {
+            return in.readAllBytes();
+        }
+    }
+
+    /** The state of a cart last replicated, kept with the cart to write the changes of the next replication. */
+    static final class Replica {
+        private final String stateId;
+        /** The raw state, {@code null} when not replicated yet. */
+        private final byte[] state;
+        /** The number of deltas written since the whole state was. */
+        private final int deltaCount;
+
+        Replica(String stateId, byte[] state, int deltaCount) {
+            this.stateId = stateId;
+            this.state = state;
+            this.deltaCount = deltaCount;
+        }
+    }
+
+    /** Writes the unchanged persisted values as references. */
+    private static final class CompactOutputStream extends ObjectOutputStream {
+        CompactOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj != null && obj.getClass() == GenericValue.class) {
+                ValueReference reference = ValueReference.of((GenericValue) obj);
+                if (reference != null) {
+                    return reference;
+                }
+            }
+            return obj;
+        }
+    }
+
+    /** A GenericValue written as its primary key, read back from the entity cache. */
+    private static final class ValueReference implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        private final String delegatorName;
+        private final String entityName;
+        private final HashMap<String, Object> primaryKey;
+        /** Whether the value was a mutable copy read from the database rather than a value of the cache. */
+        private final boolean stored;
+
+        private ValueReference(GenericValue value, boolean stored) {
+            this.delegatorName = value.getDelegator().getDelegatorName();
+            this.entityName = value.getEntityName();
+            this.primaryKey = new HashMap<>(value.getPrimaryKey().getAllFields());
+            this.stored = stored;
+        }
+
+        /** Gets the reference of a value, or {@code null} when the value must be written whole. */
+        static ValueReference of(GenericValue value) {
+            if (value.getIsFromEntitySync() || !value.containsPrimaryKey(true)) {
+                return null;
+            }
+            if (!value.isMutable()) {
+                return new ValueReference(value, false);
+            }
+            if (value.originalDbValuesAvailable() && !value.hasChanged()) {
+                return new ValueReference(value, true);
+            }
+            return null;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            Delegator delegator = DelegatorFactory.getDelegator(delegatorName);
+            GenericValue value;
+            try {
+                value = EntityQuery.use(delegator).from(entityName).where(primaryKey).cache().queryOne();
+            } catch (GenericEntityException e) {
+                InvalidObjectException invalid = new InvalidObjectException("Unable to read " + entityName + " " + primaryKey);
+                invalid.initCause(e);
+                throw invalid;
+            }
+            if (value == null) {
+                // a value with only its primary key would pass for the removed row in the cart
+                throw new InvalidObjectException(entityName + " " + primaryKey + " of the cart state no longer exists");
+            }
+            if (stored) {
+                value = delegator.makeValue(entityName, value);
+                value.synchronizedWithDatasource();
+            }
+            return value;
+        }
+    }
+}
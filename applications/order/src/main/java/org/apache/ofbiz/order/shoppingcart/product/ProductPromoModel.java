@@ -0,0 +1,417 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.order.shoppingcart.product;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtil;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * Compiled model of a product promotion.
+ * <p>
+ * The model holds the ProductPromoRule records of a promotion with their ProductPromoCond and ProductPromoAction
+ * records, in evaluation order, and the product IDs each condition and action applies to, computed once from the
+ * ProductPromoProduct and ProductPromoCategory records. The rules of a promotion are then run without querying the
+ * entity engine, and a promotion whose conditions all need products which are not in the cart is skipped.
+ * <p>
+ * The product sets depend on the effective dates of the ProductCategoryMember and ProductCategoryRollup records of
+ * the promotion categories. They are only returned for a time between the closest of those dates before and after
+ * the compilation; for another time the callers compute the sets for that time themselves.
+ * <p>
+ * The model is used by {@link ProductPromoWorker} when <code>promo.compiled.enable</code> is set in
+ * <code>order.properties</code>. A model is dropped by the {@link #refreshProductPromoModel} service when the
+ * promotion is changed, and expires with the <code>order.ProductPromoModelCache</code> so that changes of the
+ * category members are seen.
+ */
+public final class ProductPromoModel {
+
+    private static final String MODULE = ProductPromoModel.class.getName();
+    private static final UtilCache<String, ProductPromoModel> PROMO_MODEL_CACHE = UtilCache.createUtilCache("order.ProductPromoModelCache");
+    // Incremented on each promotion change so that a model compiled concurrently with a change is not cached.
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    private final String productPromoId;
+    private final List<CompiledRule> rules;
+    private final List<GenericValue> productPromoRules;
+    private final Map<String, CompiledRule> rulesById;
+    private final boolean hasOrderTotalCondition;
+    // the product sets are the same for any time in [validFrom, validUntil)
+    private final long validFrom;
+    private final long validUntil;
+
+    private ProductPromoModel(String productPromoId, List<CompiledRule> rules, long validFrom, long validUntil) {
+        this.productPromoId = productPromoId;
+        this.rules = Collections.unmodifiableList(rules);
+        this.validFrom = validFrom;
+        this.validUntil = validUntil;
+        List<GenericValue> productPromoRules = new ArrayList<>(rules.size());
+        Map<String, CompiledRule> rulesById = new HashMap<>();
+        boolean hasOrderTotalCondition = false;
+        for (CompiledRule rule : rules) {
+            productPromoRules.add(rule.productPromoRule);
+            rulesById.put(rule.productPromoRuleId, rule);
+            for (GenericValue productPromoCond : rule.conds) {
+                if ("PPIP_ORDER_TOTAL".equals(productPromoCond.getString("inputParamEnumId"))
+                        || "PPC_ORDER_TOTAL".equals(productPromoCond.getString("customMethodId"))) {
+                    hasOrderTotalCondition = true;
+                }
+            }
+        }
+        this.productPromoRules = Collections.unmodifiableList(productPromoRules);
+        this.rulesById = rulesById;
+        this.hasOrderTotalCondition = hasOrderTotalCondition;
+    }
+
+    /**
+     * Tells if the promotions are run with the compiled models.
+     * @return {@code true} when <code>promo.compiled.enable</code> is set in <code>order.properties</code>
+     */
+    public static boolean isEnabled() {
+        return UtilProperties.propertyValueEqualsIgnoreCase("order", "promo.compiled.enable", "Y");
+    }
+
+    /**
+     * Returns the compiled model of a promotion.
+     * @param delegator the delegator
+     * @param productPromoId the promotion ID
+     * @return the model
+     * @throws GenericEntityException when the promotion cannot be read
+     */
+    public static ProductPromoModel getInstance(Delegator delegator, String productPromoId) throws GenericEntityException {
+        String cacheKey = delegator.getDelegatorName().concat("::").concat(productPromoId);
+        ProductPromoModel model = PROMO_MODEL_CACHE.get(cacheKey);
+        if (model == null || model.validUntil <= System.currentTimeMillis()) {
+            long generation = GENERATION.get();
+            model = compile(delegator, productPromoId);
+            if (generation == GENERATION.get()) {
+                PROMO_MODEL_CACHE.put(cacheKey, model);
+            }
+        }
+        return model;
+    }
+
+    private static ProductPromoModel compile(Delegator delegator, String productPromoId) throws GenericEntityException {
+        Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
+        List<CompiledRule> rules = new ArrayList<>();
+        GenericValue productPromo = EntityQuery.use(delegator).from("ProductPromo").where("productPromoId", productPromoId).cache().queryOne();
+        if (productPromo == null) {
+            return new ProductPromoModel(productPromoId, rules, Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+        List<GenericValue> productPromoConds = EntityQuery.use(delegator).from("ProductPromoCond").where("productPromoId", productPromoId)
+                .orderBy("productPromoCondSeqId").cache(true).queryList();
+        for (GenericValue productPromoRule : productPromo.getRelated("ProductPromoRule", null, null, true)) {
+            List<GenericValue> conds = EntityUtil.filterByAnd(productPromoConds, UtilMisc.toMap("productPromoRuleId",
+                    productPromoRule.get("productPromoRuleId")));
+            List<GenericValue> actions = productPromoRule.getRelated("ProductPromoAction", null, UtilMisc.toList("productPromoActionSeqId"), true);
+            Map<String, Set<String>> condProductIds = new HashMap<>();
+            for (GenericValue productPromoCond : conds) {
+                condProductIds.put(productPromoCond.getString("productPromoCondSeqId"),
+                        Collections.unmodifiableSet(ProductPromoWorker.makePromoRuleCondProductIds(productPromoCond, delegator, nowTimestamp)));
+            }
+            Map<String, Set<String>> actionProductIds = new HashMap<>();
+            for (GenericValue productPromoAction : actions) {
+                actionProductIds.put(productPromoAction.getString("productPromoActionSeqId"),
+                        Collections.unmodifiableSet(ProductPromoWorker.makePromoRuleActionProductIds(productPromoAction, delegator, nowTimestamp)));
+            }
+            rules.add(new CompiledRule(productPromoRule, conds, actions, condProductIds, actionProductIds));
+        }
+        long[] validity = {Long.MIN_VALUE, Long.MAX_VALUE};
+        Set<String> visitedCategoryIds = new HashSet<>();
+        for (GenericValue productPromoCategory : EntityQuery.use(delegator).from("ProductPromoCategory").where("productPromoId", productPromoId)
+                .cache(true).queryList()) {
+            restrictValidity(delegator, productPromoCategory.getString("productCategoryId"),
+                    "Y".equals(productPromoCategory.getString("includeSubCategories")), nowTimestamp.getTime(), validity, visitedCategoryIds);
+        }
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("Compiled promotion [" + productPromoId + "] with " + rules.size() + " rules", MODULE);
+        }
+        return new ProductPromoModel(productPromoId, rules, validity[0], validity[1]);
+    }
+
+    /**
+     * Narrows <code>validity</code> to the dates between which the members of a category, and of its sub-categories
+     * when asked, stay the same. All the rollups are followed, whatever their dates, since each of them may be
+     * effective at some time.
+     */
+    private static void restrictValidity(Delegator delegator, String productCategoryId, boolean includeSubCategories, long now,
+            long[] validity, Set<String> visitedCategoryIds) throws GenericEntityException {
+        if (!visitedCategoryIds.add(productCategoryId + includeSubCategories)) {
+            return;
+        }
+        for (GenericValue productCategoryMember : EntityQuery.use(delegator).from("ProductCategoryMember")
+                .where("productCategoryId", productCategoryId).cache(true).queryList()) {
+            restrictValidity(productCategoryMember, now, validity);
+        }
+        if (includeSubCategories) {
+            for (GenericValue productCategoryRollup : EntityQuery.use(delegator).from("ProductCategoryRollup")
+                    .where("parentProductCategoryId", productCategoryId).cache(true).queryList()) {
+                restrictValidity(productCategoryRollup, now, validity);
+                restrictValidity(delegator, productCategoryRollup.getString("productCategoryId"), true, now, validity, visitedCategoryIds);
+            }
+        }
+    }
+
+    private static void restrictValidity(GenericValue value, long now, long[] validity) {
+        for (String fieldName : new String[] {"fromDate", "thruDate"}) {
+            Timestamp date = value.getTimestamp(fieldName);
+            if (date == null) {
+                continue;
+            }
+            if (date.getTime() <= now) {
+                validity[0] = Math.max(validity[0], date.getTime());
+            } else {
+                validity[1] = Math.min(validity[1], date.getTime());
+            }
+        }
+    }
+
+    /**
+     * Tells if the compiled product sets are the ones effective at a time.
+     * @param nowTimestamp the time of the evaluation, {@code null} for the current time
+     * @return {@code true} when the product sets can be used for that time
+     */
+    public boolean isValidAt(Timestamp nowTimestamp) {
+        long time = nowTimestamp != null ? nowTimestamp.getTime() : System.currentTimeMillis();
+        return validFrom <= time && time < validUntil;
+    }
+
+    /**
+     * Gets the promotion ID.
+     * @return the promotion ID
+     */
+    public String getProductPromoId() {
+        return productPromoId;
+    }
+
+    /**
+     * Gets the rules of the promotion.
+     * @return an unmodifiable list of ProductPromoRule values
+     */
+    public List<GenericValue> getProductPromoRules() {
+        return productPromoRules;
+    }
+
+    /**
+     * Gets the conditions of a rule, ordered by <code>productPromoCondSeqId</code>.
+     * @param productPromoRuleId the rule ID
+     * @return an unmodifiable list of ProductPromoCond values, {@code null} when the rule is unknown
+     */
+    public List<GenericValue> getConds(String productPromoRuleId) {
+        CompiledRule rule = rulesById.get(productPromoRuleId);
+        return rule != null ? rule.conds : null;
+    }
+
+    /**
+     * Gets the actions of a rule, ordered by <code>productPromoActionSeqId</code>.
+     * @param productPromoRuleId the rule ID
+     * @return an unmodifiable list of ProductPromoAction values, {@code null} when the rule is unknown
+     */
+    public List<GenericValue> getActions(String productPromoRuleId) {
+        CompiledRule rule = rulesById.get(productPromoRuleId);
+        return rule != null ? rule.actions : null;
+    }
+
+    /**
+     * Gets the product IDs a condition applies to.
+     * @param productPromoCond the condition
+     * @param nowTimestamp the time of the evaluation
+     * @return an unmodifiable set of product IDs, {@code null} when the condition is unknown or the compiled set is
+     *         not the one effective at <code>nowTimestamp</code>
+     */
+    public Set<String> getCondProductIds(GenericValue productPromoCond, Timestamp nowTimestamp) {
+        if (!isValidAt(nowTimestamp)) {
+            return null;
+        }
+        CompiledRule rule = rulesById.get(productPromoCond.getString("productPromoRuleId"));
+        return rule != null ? rule.condProductIds.get(productPromoCond.getString("productPromoCondSeqId")) : null;
+    }
+
+    /**
+     * Gets the product IDs an action applies to.
+     * @param productPromoAction the action
+     * @param nowTimestamp the time of the evaluation
+     * @return an unmodifiable set of product IDs, {@code null} when the action is unknown or the compiled set is
+     *         not the one effective at <code>nowTimestamp</code>
+     */
+    public Set<String> getActionProductIds(GenericValue productPromoAction, Timestamp nowTimestamp) {
+        if (!isValidAt(nowTimestamp)) {
+            return null;
+        }
+        CompiledRule rule = rulesById.get(productPromoAction.getString("productPromoRuleId"));
+        return rule != null ? rule.actionProductIds.get(productPromoAction.getString("productPromoActionSeqId")) : null;
+    }
+
+    /**
+     * Tells if one of the conditions of the promotion is on the order total.
+     * @return {@code true} when a condition is on the order total
+     */
+    public boolean hasOrderTotalCondition() {
+        return hasOrderTotalCondition;
+    }
+
+    /**
+     * Tells if a rule of the promotion can apply to a cart. A rule cannot apply when one of its product conditions
+     * needs a positive quantity or amount of products and none of those products is in the cart.
+     * @param cartProductIds the product IDs and parent product IDs of the cart lines
+     * @param nowTimestamp the time of the evaluation, the promotion is never skipped when the compiled product sets
+     *        are not the ones effective at that time
+     * @return {@code false} when no rule can apply to the cart
+     */
+    public boolean canApply(Set<String> cartProductIds, Timestamp nowTimestamp) {
+        if (!isValidAt(nowTimestamp)) {
+            return true;
+        }
+        for (CompiledRule rule : rules) {
+            if (rule.canApply(cartProductIds)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the compiled model of a promotion, meant to be run as an entity ECA on the ProductPromo, ProductPromoRule,
+     * ProductPromoCond, ProductPromoAction, ProductPromoProduct and ProductPromoCategory entities. The model is dropped
+     * once the current transaction is committed.
+     * @param dctx the dispatch context
+     * @param context the service context, containing the productPromoId
+     * @return the service result
+     */
+    public static Map<String, Object> refreshProductPromoModel(DispatchContext dctx, Map<String, ? extends Object> context) {
+        String cacheKey = dctx.getDelegator().getDelegatorName().concat("::").concat((String) context.get("productPromoId"));
+        Runnable dropModel = () -> {
+            GENERATION.incrementAndGet();
+            PROMO_MODEL_CACHE.remove(cacheKey);
+        };
+        try {
+            if (TransactionUtil.isTransactionInPlace()) {
+                TransactionUtil.registerSynchronization(new Synchronization() {
+                    @Override
+                    public void beforeCompletion() {
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        if (status == Status.STATUS_COMMITTED) {
+                            dropModel.run();
+                        }
+                    }
+                });
+                return ServiceUtil.returnSuccess();
+            }
+        } catch (GenericTransactionException e) {
+            Debug.logWarning(e, "Unable to wait for the transaction end, refreshing promotion model [" + cacheKey + "] now", MODULE);
+        }
+        dropModel.run();
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * Tells if a condition fails whenever none of its products is in the cart: the product quantity, amount and
+     * total conditions fail in that case when they require a positive value.
+     */
+    private static boolean requiresCartProduct(GenericValue productPromoCond) {
+        String condType = productPromoCond.getString("customMethodId");
+        if (UtilValidate.isEmpty(condType)) {
+            condType = productPromoCond.getString("inputParamEnumId");
+        }
+        String operatorEnumId = productPromoCond.getString("operatorEnumId");
+        BigDecimal condValue;
+        try {
+            String value = productPromoCond.getString("condValue");
+            condValue = UtilValidate.isNotEmpty(value) ? new BigDecimal(value) : null;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        boolean requiresMore = "PPC_EQ".equals(operatorEnumId) || "PPC_GT".equals(operatorEnumId) || "PPC_GTE".equals(operatorEnumId);
+        if ("PPC_PRODUCT_AMOUNT".equals(condType) || "PPIP_PRODUCT_AMOUNT".equals(condType)) {
+            // the operator is always PPC_EQ for this condition
+            return condValue != null && condValue.signum() > 0;
+        } else if ("PPC_PRODUCT_QUANT".equals(condType) || "PPIP_PRODUCT_QUANT".equals(condType)
+                || "PPC_PRODUCT_TOTAL".equals(condType) || "PPIP_PRODUCT_TOTAL".equals(condType)) {
+            // without value the quantity condition needs one product and the total condition always fails
+            return requiresMore && (condValue == null || condValue.signum() > 0);
+        }
+        return false;
+    }
+
+    private static final class CompiledRule {
+        private final String productPromoRuleId;
+        private final GenericValue productPromoRule;
+        private final List<GenericValue> conds;
+        private final List<GenericValue> actions;
+        private final Map<String, Set<String>> condProductIds;
+        private final Map<String, Set<String>> actionProductIds;
+        // the product sets of the conditions failing when none of their products is in the cart
+        private final List<Set<String>> requiredProductIds;
+
+        private CompiledRule(GenericValue productPromoRule, List<GenericValue> conds, List<GenericValue> actions,
+                Map<String, Set<String>> condProductIds, Map<String, Set<String>> actionProductIds) {
+            productPromoRule.setImmutable();
+            this.productPromoRuleId = productPromoRule.getString("productPromoRuleId");
+            this.productPromoRule = productPromoRule;
+            this.conds = Collections.unmodifiableList(conds);
+            this.actions = actions != null ? Collections.unmodifiableList(actions) : Collections.emptyList();
+            this.condProductIds = condProductIds;
+            this.actionProductIds = actionProductIds;
+            List<Set<String>> requiredProductIds = new ArrayList<>();
+            for (GenericValue productPromoCond : this.conds) {
+                if (requiresCartProduct(productPromoCond)) {
+                    requiredProductIds.add(condProductIds.get(productPromoCond.getString("productPromoCondSeqId")));
+                }
+            }
+            this.requiredProductIds = requiredProductIds;
+        }
+
+        private boolean canApply(Set<String> cartProductIds) {
+            for (Set<String> productIds : requiredProductIds) {
+                if (Collections.disjoint(productIds, cartProductIds)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
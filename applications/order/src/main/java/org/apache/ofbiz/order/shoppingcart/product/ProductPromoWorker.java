@@ -51,6 +51,7 @@ import org.apache.ofbiz.entity.condition.EntityOperator;
 import org.apache.ofbiz.entity.util.EntityQuery;
 import org.apache.ofbiz.entity.util.EntityUtil;
 import org.apache.ofbiz.order.shoppingcart.CartItemModifyException;
+import org.apache.ofbiz.order.shoppingcart.CartRecalculation;
 import org.apache.ofbiz.order.shoppingcart.ShoppingCart;
 import org.apache.ofbiz.order.shoppingcart.ShoppingCart.ProductPromoUseInfo;
 import org.apache.ofbiz.order.shoppingcart.ShoppingCartEvents;
@@ -328,6 +329,17 @@ public final class ProductPromoWorker {
         if (!cart.getDoPromotions()) {
             return;
         }
+        // the store promotions are run once at the end of a batch of changes, and not again on an unchanged cart
+        CartRecalculation recalculation = cart.getRecalculation();
+        boolean manual = productPromoList != null;
+        if (!manual && recalculation.deferPromotions(cart)) {
+            return;
+        }
+        if (!manual && recalculation.isPromotionsCurrent(cart)) {
+            recalculation.addSkip(CartRecalculation.PROMOTIONS);
+            return;
+        }
+        long startTime = System.currentTimeMillis();
         Delegator delegator = cart.getDelegator();
         Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
 
@@ -402,6 +414,7 @@ public final class ProductPromoWorker {
             // okay, all ready, do the real run, clearing the temporary result first...
             cart.clearAllPromotionInformation();
             runProductPromos(sortedExplodedProductPromoList, cart, delegator, dispatcher, nowTimestamp, false);
+            recalculation.promotionsDone(cart, manual);
         } catch (NumberFormatException e) {
             Debug.logError(e, "Number not formatted correctly in promotion rules, not completed...", MODULE);
         } catch (GenericEntityException e) {
@@ -409,9 +422,13 @@ public final class ProductPromoWorker {
         } catch (GeneralException e) {
             Debug.logError(e, "Error running promotions, will ignore: " + e.toString(), MODULE);
         }
+        recalculation.addTime(CartRecalculation.PROMOTIONS, startTime);
     }
 
     private static boolean hasOrderTotalCondition(GenericValue productPromo, Delegator delegator) throws GenericEntityException {
+        if (ProductPromoModel.isEnabled()) {
+            return ProductPromoModel.getInstance(delegator, productPromo.getString("productPromoId")).hasOrderTotalCondition();
+        }
         boolean hasOtCond = false;
         List<GenericValue> productPromoConds = EntityQuery.use(delegator).from("ProductPromoCond")
                 .where("productPromoId", productPromo.get("productPromoId"))
@@ -443,6 +460,7 @@ public final class ProductPromoWorker {
         long maxUseLimit = cart.getTotalQuantity().multiply(BigDecimal.valueOf(2)).setScale(0, RoundingMode.CEILING).longValue();
         maxUseLimit = Math.max(1, maxUseLimit);
 
+        boolean useModels = ProductPromoModel.isEnabled();
         try {
             // repeat until no more rules to run: either all rules are run, or no changes to the cart in a loop
             boolean cartChanged = true;
@@ -455,10 +473,23 @@ public final class ProductPromoWorker {
                     break;
                 }
 
+                // the products in the cart, to skip the promotions which cannot apply; updated when an action changes the cart
+                Set<String> cartProductIds = useModels ? getCartProductIds(cart) : null;
                 for (GenericValue productPromo : productPromoList) {
                     String productPromoId = productPromo.getString("productPromoId");
 
-                    List<GenericValue> productPromoRules = productPromo.getRelated("ProductPromoRule", null, null, true);
+                    ProductPromoModel promoModel = null;
+                    List<GenericValue> productPromoRules;
+                    if (useModels) {
+                        promoModel = ProductPromoModel.getInstance(delegator, productPromoId);
+                        if (!promoModel.canApply(cartProductIds, nowTimestamp)) {
+                            continue;
+                        }
+                        productPromoRules = promoModel.getProductPromoRules();
+                    } else {
+                        productPromoRules = productPromo.getRelated("ProductPromoRule", null, null, true);
+                    }
+                    boolean promoChangedCart = false;
                     if (UtilValidate.isNotEmpty(productPromoRules)) {
                         // always have a useLimit to avoid unlimited looping, default to 1 if no other is specified
                         Long candidateUseLimit = getProductPromoUseLimit(productPromo, partyId, delegator);
@@ -502,8 +533,9 @@ public final class ProductPromoWorker {
                                     String productPromoCodeId = productPromoCode.getString("productPromoCodeId");
                                     Long codeUseLimit = getProductPromoCodeUseLimit(productPromoCode, partyId, delegator);
                                     if (runProductPromoRules(cart, useLimit, true, productPromoCodeId, codeUseLimit, maxUseLimit, productPromo,
-                                            productPromoRules, dispatcher, delegator, nowTimestamp)) {
+                                            productPromoRules, promoModel, dispatcher, delegator, nowTimestamp)) {
                                         cartChanged = true;
+                                        promoChangedCart = true;
                                     }
 
                                     if (cart.getProductPromoUseCount(productPromoId) > maxUseLimit) {
@@ -518,8 +550,9 @@ public final class ProductPromoWorker {
                         } else {
                             try {
                                 if (runProductPromoRules(cart, useLimit, false, null, null, maxUseLimit, productPromo, productPromoRules,
-                                        dispatcher, delegator, nowTimestamp)) {
+                                        promoModel, dispatcher, delegator, nowTimestamp)) {
                                     cartChanged = true;
+                                    promoChangedCart = true;
                                 }
                             } catch (RuntimeException e) {
                                 throw new GeneralException("Error running promotion with ID [" + productPromoId + "]", e);
@@ -532,6 +565,9 @@ public final class ProductPromoWorker {
                         cart.clearAllPromotionAdjustments();
                         cart.clearCartItemUseInPromoInfo();
                     }
+                    if (useModels && promoChangedCart) {
+                        cartProductIds = getCartProductIds(cart);
+                    }
                 }
 
                 // if this is an isolatedTestRun, then only go through it once, never retry
@@ -544,6 +580,19 @@ public final class ProductPromoWorker {
         }
     }
 
+    private static Set<String> getCartProductIds(ShoppingCart cart) {
+        Set<String> cartProductIds = new HashSet<>();
+        for (ShoppingCartItem cartItem : cart.items()) {
+            if (cartItem.getProductId() != null) {
+                cartProductIds.add(cartItem.getProductId());
+            }
+            if (cartItem.getParentProductId() != null) {
+                cartProductIds.add(cartItem.getParentProductId());
+            }
+        }
+        return cartProductIds;
+    }
+
     /**
      * calculate low use limit for this promo for the current "order", check per order, customer, promo
      */
@@ -880,8 +929,8 @@ public final class ProductPromoWorker {
     }
 
     private static boolean runProductPromoRules(ShoppingCart cart, Long useLimit, boolean requireCode, String productPromoCodeId, Long codeUseLimit,
-            long maxUseLimit, GenericValue productPromo, List<GenericValue> productPromoRules, LocalDispatcher dispatcher, Delegator delegator,
-            Timestamp nowTimestamp) throws GenericEntityException, UseLimitException {
+            long maxUseLimit, GenericValue productPromo, List<GenericValue> productPromoRules, ProductPromoModel promoModel,
+            LocalDispatcher dispatcher, Delegator delegator, Timestamp nowTimestamp) throws GenericEntityException, UseLimitException {
         boolean cartChanged = false;
         Map<ShoppingCartItem, BigDecimal> usageInfoMap = prepareProductUsageInfoMap(cart);
         String productPromoId = productPromo.getString("productPromoId");
@@ -900,10 +949,15 @@ public final class ProductPromoWorker {
                 boolean performActions = true;
 
                 // loop through conditions for rule, if any false, set allConditionsTrue to false
-                List<GenericValue> productPromoConds = EntityQuery.use(delegator).from("ProductPromoCond").where("productPromoId",
-                        productPromo.get("productPromoId")).orderBy("productPromoCondSeqId").cache(true).queryList();
-                productPromoConds = EntityUtil.filterByAnd(productPromoConds, UtilMisc.toMap("productPromoRuleId", productPromoRule.get(
-                        "productPromoRuleId")));
+                List<GenericValue> productPromoConds;
+                if (promoModel != null) {
+                    productPromoConds = promoModel.getConds(productPromoRule.getString("productPromoRuleId"));
+                } else {
+                    productPromoConds = EntityQuery.use(delegator).from("ProductPromoCond").where("productPromoId",
+                            productPromo.get("productPromoId")).orderBy("productPromoCondSeqId").cache(true).queryList();
+                    productPromoConds = EntityUtil.filterByAnd(productPromoConds, UtilMisc.toMap("productPromoRuleId", productPromoRule.get(
+                            "productPromoRuleId")));
+                }
                 // using the other method to consolidate cache entries because the same cache is used elsewhere: List productPromoConds =
                 // productPromoRule.getRelated("ProductPromoCond", null, UtilMisc.toList("productPromoCondSeqId"), true);
                 if (Debug.verboseOn()) {
@@ -926,8 +980,13 @@ public final class ProductPromoWorker {
                 if (performActions) {
                     // perform all actions, either apply or unapply
 
-                    List<GenericValue> productPromoActions = productPromoRule.getRelated("ProductPromoAction", null, UtilMisc.toList(
-                            "productPromoActionSeqId"), true);
+                    List<GenericValue> productPromoActions;
+                    if (promoModel != null) {
+                        productPromoActions = promoModel.getActions(productPromoRule.getString("productPromoRuleId"));
+                    } else {
+                        productPromoActions = productPromoRule.getRelated("ProductPromoAction", null, UtilMisc.toList(
+                                "productPromoActionSeqId"), true);
+                    }
                     Iterator<GenericValue> productPromoActionIter = UtilMisc.toIterator(productPromoActions);
                     while (productPromoActionIter != null && productPromoActionIter.hasNext()) {
                         GenericValue productPromoAction = productPromoActionIter.next();
@@ -1092,12 +1151,18 @@ public final class ProductPromoWorker {
     public static boolean checkConditionsForItem(GenericValue productPromoActionOrCond, ShoppingCart cart, ShoppingCartItem cartItem,
                                                  Delegator delegator, LocalDispatcher dispatcher, Timestamp nowTimestamp)
             throws GenericEntityException {
-        GenericValue productPromoRule = productPromoActionOrCond.getRelatedOne("ProductPromoRule", true);
-
-        List<GenericValue> productPromoConds = EntityQuery.use(delegator).from("ProductPromoCond").where("productPromoId", productPromoRule.get(
-                "productPromoId")).orderBy("productPromoCondSeqId").cache(true).queryList();
-        productPromoConds = EntityUtil.filterByAnd(productPromoConds, UtilMisc.toMap("productPromoRuleId",
-                productPromoRule.get("productPromoRuleId")));
+        List<GenericValue> productPromoConds = null;
+        if (ProductPromoModel.isEnabled()) {
+            productPromoConds = ProductPromoModel.getInstance(delegator, productPromoActionOrCond.getString("productPromoId"))
+                    .getConds(productPromoActionOrCond.getString("productPromoRuleId"));
+        }
+        if (productPromoConds == null) {
+            GenericValue productPromoRule = productPromoActionOrCond.getRelatedOne("ProductPromoRule", true);
+            productPromoConds = EntityQuery.use(delegator).from("ProductPromoCond").where("productPromoId", productPromoRule.get(
+                    "productPromoId")).orderBy("productPromoCondSeqId").cache(true).queryList();
+            productPromoConds = EntityUtil.filterByAnd(productPromoConds, UtilMisc.toMap("productPromoRuleId",
+                    productPromoRule.get("productPromoRuleId")));
+        }
         for (GenericValue productPromoCond : productPromoConds) {
             boolean passed = checkConditionForItem(productPromoCond, cart, cartItem, delegator, dispatcher, nowTimestamp);
             if (!passed) {
@@ -1114,6 +1179,12 @@ public final class ProductPromoWorker {
         String customMethodId = productPromoCond.getString("customMethodId");
         String operatorEnumId = productPromoCond.getString("operatorEnumId");
 
+        if (!("PPIP_LPMUP_AMT".equals(inputParamEnumId) || "PPC_LPMUP_AMT".equals(customMethodId)) && !("PPIP_LPMUP_PER".equals(inputParamEnumId)
+                || "PPC_LPMUP_PER".equals(customMethodId))) {
+            // condition doesn't apply to individual item, always passes
+            return true;
+        }
+
         // don't get list price from cart because it may have tax included whereas the base price does not: BigDecimal listPrice = cartItem
         // .getListPrice();
         List<GenericValue> listProductPriceList = EntityQuery.use(delegator).from("ProductPrice")
@@ -1132,12 +1203,6 @@ public final class ProductPromoWorker {
         BigDecimal amountOff = listPrice.subtract(basePrice);
         BigDecimal percentOff = amountOff.divide(listPrice, 2, RoundingMode.HALF_UP).multiply(BigDecimal.valueOf(100L));
 
-        if (!("PPIP_LPMUP_AMT".equals(inputParamEnumId) || "PPC_LPMUP_AMT".equals(customMethodId)) && !("PPIP_LPMUP_PER".equals(inputParamEnumId)
-                || "PPC_LPMUP_PER".equals(customMethodId))) {
-            // condition doesn't apply to individual item, always passes
-            return true;
-        }
-
         // NOTE: only check this after we know it's this type of cond, otherwise condValue may not be a number
         int compare = percentOff.compareTo(new BigDecimal(condValue));
 
@@ -1390,6 +1455,18 @@ public final class ProductPromoWorker {
 
     public static Set<String> getPromoRuleCondProductIds(GenericValue productPromoCond, Delegator delegator, Timestamp nowTimestamp)
             throws GenericEntityException {
+        if (ProductPromoModel.isEnabled()) {
+            Set<String> productIds = ProductPromoModel.getInstance(delegator, productPromoCond.getString("productPromoId"))
+                    .getCondProductIds(productPromoCond, nowTimestamp);
+            if (productIds != null) {
+                return productIds;
+            }
+        }
+        return makePromoRuleCondProductIds(productPromoCond, delegator, nowTimestamp);
+    }
+
+    static Set<String> makePromoRuleCondProductIds(GenericValue productPromoCond, Delegator delegator, Timestamp nowTimestamp)
+            throws GenericEntityException {
         // get a cached list for the whole promo and filter it as needed, this for better efficiency in caching
         List<GenericValue> productPromoCategoriesAll = EntityQuery.use(delegator).from("ProductPromoCategory").where("productPromoId",
                 productPromoCond.get("productPromoId")).cache(true).queryList();
@@ -1411,6 +1488,18 @@ public final class ProductPromoWorker {
 
     public static Set<String> getPromoRuleActionProductIds(GenericValue productPromoAction, Delegator delegator, Timestamp nowTimestamp)
             throws GenericEntityException {
+        if (ProductPromoModel.isEnabled()) {
+            Set<String> productIds = ProductPromoModel.getInstance(delegator, productPromoAction.getString("productPromoId"))
+                    .getActionProductIds(productPromoAction, nowTimestamp);
+            if (productIds != null) {
+                return productIds;
+            }
+        }
+        return makePromoRuleActionProductIds(productPromoAction, delegator, nowTimestamp);
+    }
+
+    static Set<String> makePromoRuleActionProductIds(GenericValue productPromoAction, Delegator delegator, Timestamp nowTimestamp)
+            throws GenericEntityException {
         // get a cached list for the whole promo and filter it as needed, this for better efficiency in caching
         List<GenericValue> productPromoCategoriesAll = EntityQuery.use(delegator).from("ProductPromoCategory").where("productPromoId",
                 productPromoAction.get("productPromoId")).cache(true).queryList();
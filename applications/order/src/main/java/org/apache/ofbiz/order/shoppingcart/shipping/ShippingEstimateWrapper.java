@@ -19,17 +19,30 @@
 package org.apache.ofbiz.order.shoppingcart.shipping;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.base.util.cache.UtilCache;
 import org.apache.ofbiz.entity.Delegator;
 import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
 import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
 import org.apache.ofbiz.order.shoppingcart.ShoppingCart;
 import org.apache.ofbiz.order.shoppingcart.ShoppingCartItem;
 import org.apache.ofbiz.product.store.ProductStoreWorker;
@@ -39,6 +52,8 @@ import org.apache.ofbiz.service.ServiceUtil;
 public class ShippingEstimateWrapper {
 
     private static final String MODULE = ShippingEstimateWrapper.class.getName();
+    private static final UtilCache<String, BigDecimal> SHIPPING_ESTIMATE_CACHE = UtilCache.createUtilCache("order.ShippingEstimateCache");
+    private static final ExecutorService ESTIMATE_EXECUTOR = createEstimateExecutor();
 
     private Delegator delegator = null;
     private LocalDispatcher dispatcher = null;
@@ -110,31 +125,131 @@ public class ShippingEstimateWrapper {
         }
     }
 
+    private static ExecutorService createEstimateExecutor() {
+        int poolSize = UtilProperties.getPropertyAsInteger("order", "shipping.estimate.parallel.pool.size", 8);
+        AtomicInteger count = new AtomicInteger(1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(poolSize * 16),
+                r -> {
+                    Thread t = new Thread(r, "OFBiz-shipping-estimate-" + count.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                },
+                // when the pool is saturated the estimate is computed by the requesting thread, as in the sequential mode
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Load estimates.
+     * <p>
+     * When <code>shipping.estimate.parallel.enable</code> is set in <code>order.properties</code>, the carrier
+     * services are called concurrently and the estimates not received within
+     * <code>shipping.estimate.parallel.timeout</code> milliseconds are left out.
      * @param totalAllowance the total allowance
      */
     protected void loadEstimates(BigDecimal totalAllowance) {
         this.shippingEstimates = new HashMap<>();
         if (shippingMethods != null) {
+            if (shippingMethods.size() > 1
+                    && EntityUtilProperties.propertyValueEqualsIgnoreCase("order", "shipping.estimate.parallel.enable", "Y", delegator)) {
+                loadEstimatesConcurrently(totalAllowance);
+                return;
+            }
             for (GenericValue shipMethod : shippingMethods) {
-                String shippingMethodTypeId = shipMethod.getString("shipmentMethodTypeId");
-                String carrierRoleTypeId = shipMethod.getString("roleTypeId");
-                String carrierPartyId = shipMethod.getString("partyId");
-                String productStoreShipMethId = shipMethod.getString("productStoreShipMethId");
-                String shippingCmId = shippingAddress != null ? shippingAddress.getString("contactMechId") : null;
+                addEstimate(shipMethod, getShipMethodEstimate(shipMethod, totalAllowance));
+            }
+        }
+    }
 
-                Map<String, Object> estimateMap = ShippingEvents.getShipGroupEstimate(dispatcher, delegator, "SALES_ORDER",
-                        shippingMethodTypeId, carrierPartyId, carrierRoleTypeId, shippingCmId, productStoreId,
-                        supplierPartyId, shippableItemInfo, shippableWeight, shippableQuantity, shippableTotal, partyId, productStoreShipMethId,
-                        totalAllowance);
+    private void loadEstimatesConcurrently(BigDecimal totalAllowance) {
+        long timeout = Long.parseLong(EntityUtilProperties.getPropertyValue("order", "shipping.estimate.parallel.timeout", "5000", delegator));
+        Map<GenericValue, Future<Map<String, Object>>> futures = new LinkedHashMap<>();
+        for (GenericValue shipMethod : shippingMethods) {
+            futures.put(shipMethod, ESTIMATE_EXECUTOR.submit(() -> getShipMethodEstimate(shipMethod, totalAllowance)));
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Map.Entry<GenericValue, Future<Map<String, Object>>> entry : futures.entrySet()) {
+            GenericValue shipMethod = entry.getKey();
+            try {
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                addEstimate(shipMethod, entry.getValue().get(remaining, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                // the call goes on in the background and its result will be cached for the next request
+                Debug.logWarning("Shipping estimate for [" + shipMethod.getString("productStoreShipMethId") + "] not received within "
+                        + timeout + "ms, leaving it out", MODULE);
+            } catch (ExecutionException e) {
+                Debug.logError(e.getCause(), "Error getting shipping estimate for [" + shipMethod.getString("productStoreShipMethId") + "]",
+                        MODULE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
 
-                if (ServiceUtil.isSuccess(estimateMap)) {
-                    BigDecimal shippingTotal = (BigDecimal) estimateMap.get("shippingTotal");
-                    shippingEstimates.put(shipMethod, shippingTotal);
-                }
+    private void addEstimate(GenericValue shipMethod, Map<String, Object> estimateMap) {
+        if (ServiceUtil.isSuccess(estimateMap)) {
+            BigDecimal shippingTotal = (BigDecimal) estimateMap.get("shippingTotal");
+            shippingEstimates.put(shipMethod, shippingTotal);
+        }
+    }
+
+    private Map<String, Object> getShipMethodEstimate(GenericValue shipMethod, BigDecimal totalAllowance) {
+        BigDecimal weightBucket = getWeightBucket();
+        String cacheKey = getEstimateCacheKey(shipMethod, weightBucket);
+        if (cacheKey != null) {
+            BigDecimal cachedTotal = SHIPPING_ESTIMATE_CACHE.get(cacheKey);
+            if (cachedTotal != null) {
+                Map<String, Object> result = ServiceUtil.returnSuccess();
+                result.put("shippingTotal", cachedTotal);
+                return result;
             }
         }
+        String shippingMethodTypeId = shipMethod.getString("shipmentMethodTypeId");
+        String carrierRoleTypeId = shipMethod.getString("roleTypeId");
+        String carrierPartyId = shipMethod.getString("partyId");
+        String productStoreShipMethId = shipMethod.getString("productStoreShipMethId");
+        String shippingCmId = shippingAddress != null ? shippingAddress.getString("contactMechId") : null;
+
+        // a cached estimate is computed for the top weight of its bucket, so that it does not depend on the cart caching it
+        Map<String, Object> estimateMap = ShippingEvents.getShipGroupEstimate(dispatcher, delegator, "SALES_ORDER",
+                shippingMethodTypeId, carrierPartyId, carrierRoleTypeId, shippingCmId, productStoreId,
+                supplierPartyId, shippableItemInfo, cacheKey != null ? weightBucket : shippableWeight, shippableQuantity, shippableTotal,
+                partyId, productStoreShipMethId, totalAllowance);
+        if (cacheKey != null && ServiceUtil.isSuccess(estimateMap) && estimateMap.get("shippingTotal") != null) {
+            SHIPPING_ESTIMATE_CACHE.put(cacheKey, (BigDecimal) estimateMap.get("shippingTotal"));
+        }
+        return estimateMap;
+    }
+
+    /**
+     * Gets the shippable weight rounded up to <code>shipping.estimate.cache.weight.bucket</code>.
+     * @return the top weight of the weight bucket of the cart
+     */
+    private BigDecimal getWeightBucket() {
+        BigDecimal bucket = new BigDecimal(EntityUtilProperties.getPropertyValue("order", "shipping.estimate.cache.weight.bucket", "1",
+                delegator));
+        if (bucket.signum() <= 0) {
+            return shippableWeight;
+        }
+        return shippableWeight.divide(bucket, 0, RoundingMode.CEILING).multiply(bucket);
+    }
+
+    /**
+     * Builds the key of an estimate in the shipping estimate cache, from the store, the shipment method, the destination
+     * country and postal code and the weight bucket. The carts of a bucket share its estimate whatever their items,
+     * quantity or total.
+     * @return the cache key or {@code null} when estimates must not be cached
+     */
+    private String getEstimateCacheKey(GenericValue shipMethod, BigDecimal weightBucket) {
+        if (shippingAddress == null || supplierPartyId != null
+                || !EntityUtilProperties.propertyValueEqualsIgnoreCase("order", "shipping.estimate.cache.enable", "Y", delegator)) {
+            return null;
+        }
+        return productStoreId + "::" + shipMethod.getString("productStoreShipMethId")
+                + "::" + shippingAddress.getString("countryGeoId") + "::" + shippingAddress.getString("postalCode")
+                + "::" + weightBucket.stripTrailingZeros().toPlainString();
     }
 
     /**
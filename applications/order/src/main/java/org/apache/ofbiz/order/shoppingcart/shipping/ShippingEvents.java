@@ -46,6 +46,7 @@ import org.apache.ofbiz.entity.util.EntityQuery;
 import org.apache.ofbiz.entity.util.EntityUtil;
 import org.apache.ofbiz.entity.util.EntityUtilProperties;
 import org.apache.ofbiz.order.order.OrderReadHelper;
+import org.apache.ofbiz.order.shoppingcart.CartRecalculation;
 import org.apache.ofbiz.order.shoppingcart.ShoppingCart;
 import org.apache.ofbiz.order.shoppingcart.product.ProductPromoWorker;
 import org.apache.ofbiz.party.contact.ContactMechWorker;
@@ -105,11 +106,16 @@ public class ShippingEvents {
         String carrierPartyId = cart.getCarrierPartyId(groupNo);
         String productStoreShipMethId = cart.getProductStoreShipMethId(groupNo);
 
-        return getShipGroupEstimate(dispatcher, delegator, cart.getOrderType(), shipmentMethodTypeId, carrierPartyId, null,
-                cart.getShippingContactMechId(groupNo), cart.getProductStoreId(), cart.getSupplierPartyId(groupNo),
-                cart.getShippableItemInfo(groupNo),
-                cart.getShippableWeight(groupNo), cart.getShippableQuantity(groupNo), cart.getShippableTotal(groupNo), cart.getPartyId(),
-                productStoreShipMethId);
+        long startTime = System.currentTimeMillis();
+        try {
+            return getShipGroupEstimate(dispatcher, delegator, cart.getOrderType(), shipmentMethodTypeId, carrierPartyId, null,
+                    cart.getShippingContactMechId(groupNo), cart.getProductStoreId(), cart.getSupplierPartyId(groupNo),
+                    cart.getShippableItemInfo(groupNo),
+                    cart.getShippableWeight(groupNo), cart.getShippableQuantity(groupNo), cart.getShippableTotal(groupNo), cart.getPartyId(),
+                    productStoreShipMethId);
+        } finally {
+            cart.getRecalculation().addTime(CartRecalculation.SHIPPING, startTime);
+        }
     }
 
     public static Map<String, Object> getShipEstimate(LocalDispatcher dispatcher, Delegator delegator, OrderReadHelper orh, String shipGroupSeqId) {
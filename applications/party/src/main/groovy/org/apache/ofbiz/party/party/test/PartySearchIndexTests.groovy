@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.party.party.test
+
+import org.apache.ofbiz.base.util.UtilDateTime
+import org.apache.ofbiz.base.util.UtilProperties
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.party.party.PartySearchIndex
+import org.apache.ofbiz.service.ServiceUtil
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class PartySearchIndexTests extends OFBizTestCase {
+
+    PartySearchIndexTests(String name) {
+        super(name)
+    }
+
+    /**
+     * The index finds the parties containing a term, follows the changes of the party when indexed again and gives
+     * the same lookup results as the plain scan.
+     */
+    void testIndexMatchesLookups() {
+        String indexEnable = UtilProperties.getPropertyValue('party', 'party.search.index.enable', 'N')
+        try {
+            UtilProperties.setPropertyValueInMemory('party', 'party.search.index.enable', 'N')
+            assert !isConditionReply()
+            assert PartySearchIndex.findPartyIds(delegator, PartySearchIndex.LAST_NAME, 'Zorglub') == null
+            createPerson('PSIT-1', 'Annabel', 'Zorglubski', 'PSIT-EXT-1')
+            createPerson('PSIT-2', 'Bernard', 'Zorglubowa', null)
+            List<String> scannedPartyIds = findPartiesFromName('zorglub')
+
+            UtilProperties.setPropertyValueInMemory('party', 'party.search.index.enable', 'Y')
+            assert isConditionReply()
+            ['PSIT-1', 'PSIT-2'].each { partyId ->
+                assert ServiceUtil.isSuccess(dispatcher.runSync('updatePartySearchIndex', [partyId: partyId]))
+            }
+            assert PartySearchIndex.findPartyIds(delegator, PartySearchIndex.LAST_NAME, 'zorglub') == ['PSIT-1', 'PSIT-2'] as Set
+            assert PartySearchIndex.findPartyIds(delegator, PartySearchIndex.LAST_NAME, 'GLUBSK') == ['PSIT-1'] as Set
+            assert PartySearchIndex.findPartyIds(delegator, PartySearchIndex.FIRST_NAME, 'nabe') == ['PSIT-1'] as Set
+            assert PartySearchIndex.findPartyIds(delegator, PartySearchIndex.PARTY_ID, 'PSIT-1') == ['PSIT-1'] as Set
+            // the external ids are indexed apart from the party ids
+            assert PartySearchIndex.findPartyIds(delegator, PartySearchIndex.EXTERNAL_ID, 'EXT-1') == ['PSIT-1'] as Set
+            assert !PartySearchIndex.findPartyIds(delegator, PartySearchIndex.PARTY_ID, 'EXT-1')
+            // too short to be served by the index
+            assert PartySearchIndex.findPartyIds(delegator, PartySearchIndex.LAST_NAME, 'zo') == null
+            assert findPartiesFromName('zorglub') == scannedPartyIds
+
+            // indexing again keeps the current suffixes and removes the stale ones
+            long rowCount = from('PartySearchIndex').where('partyId', 'PSIT-2').queryCount()
+            PartySearchIndex.indexParty(delegator, 'PSIT-2')
+            assert from('PartySearchIndex').where('partyId', 'PSIT-2').queryCount() == rowCount
+            GenericValue person = from('Person').where('partyId', 'PSIT-2').queryOne()
+            person.lastName = 'Quixotic'
+            person.store()
+            PartySearchIndex.indexParty(delegator, 'PSIT-2')
+            assert PartySearchIndex.findPartyIds(delegator, PartySearchIndex.LAST_NAME, 'zorglub') == ['PSIT-1'] as Set
+            assert PartySearchIndex.findPartyIds(delegator, PartySearchIndex.LAST_NAME, 'xoti') == ['PSIT-2'] as Set
+            assert findPartiesFromName('zorglub') == ['PSIT-1']
+        } finally {
+            UtilProperties.setPropertyValueInMemory('party', 'party.search.index.enable', indexEnable)
+        }
+    }
+
+    /**
+     * The lookups by identification, external id, email and user login give the same parties with the index as with the
+     * plain scan, and are served by the index.
+     */
+    void testIndexServesIdentificationLookups() {
+        String indexEnable = UtilProperties.getPropertyValue('party', 'party.search.index.enable', 'N')
+        try {
+            UtilProperties.setPropertyValueInMemory('party', 'party.search.index.enable', 'N')
+            createPerson('PSIT-3', 'Cecilia', 'Plumbago', 'PSIT-EXT-3')
+            createPerson('PSIT-4', 'Dorian', 'Plumbago', 'PSIT-EXT-4')
+            ['PSIT-3', 'PSIT-4'].each { partyId ->
+                delegator.create('PartyIdentification', [partyId: partyId, partyIdentificationTypeId: 'CARD_ID',
+                        idValue: "psit-card-${partyId}".toString()])
+                delegator.create('ContactMech', [contactMechId: "${partyId}-EMAIL".toString(), contactMechTypeId: 'EMAIL_ADDRESS',
+                        infoString: "${partyId}@psit-mail.example.com".toString()])
+                delegator.create('PartyContactMech', [partyId: partyId, contactMechId: "${partyId}-EMAIL".toString(),
+                        fromDate: UtilDateTime.nowTimestamp()])
+                delegator.create('UserLogin', [userLoginId: "psit-login-${partyId}".toString(), partyId: partyId])
+            }
+            List<String> scannedByIdValue = findPartiesFromIdValue('CARD-PSIT')
+            List<String> scannedByExternalId = findPartiesFromExternalId('psit-ext-3')
+            List<String> scannedByEmail = findPartiesFromEmail('psit-mail')
+            List<String> scannedByUserLogin = findPartiesFromUserLogin('LOGIN-PSIT')
+            assert scannedByIdValue == ['PSIT-3', 'PSIT-4']
+            assert scannedByExternalId == ['PSIT-3']
+            assert scannedByEmail == ['PSIT-3', 'PSIT-4']
+            assert scannedByUserLogin == ['PSIT-3', 'PSIT-4']
+
+            UtilProperties.setPropertyValueInMemory('party', 'party.search.index.enable', 'Y')
+            ['PSIT-3', 'PSIT-4'].each { partyId ->
+                PartySearchIndex.indexParty(delegator, partyId)
+            }
+            assert PartySearchIndex.findPartyIds(delegator, PartySearchIndex.ID_VALUE, 'card-psit-4') == ['PSIT-4'] as Set
+            assert findPartiesFromIdValue('CARD-PSIT') == scannedByIdValue
+            assert findPartiesFromExternalId('psit-ext-3') == scannedByExternalId
+            assert findPartiesFromEmail('psit-mail') == scannedByEmail
+            assert findPartiesFromUserLogin('LOGIN-PSIT') == scannedByUserLogin
+
+            // a new identification is indexed with the party
+            delegator.create('PartyIdentification', [partyId: 'PSIT-3', partyIdentificationTypeId: 'SIRET', idValue: 'psit-siret-3'])
+            PartySearchIndex.indexParty(delegator, 'PSIT-3')
+            assert PartySearchIndex.findPartyIds(delegator, PartySearchIndex.ID_VALUE, 'SIRET-3') == ['PSIT-3'] as Set
+
+            // the lookups only look at the candidates of the index, which leaves out the parties missing from it
+            delegator.removeByAnd('PartySearchIndex', [partyId: 'PSIT-4'])
+            assert findPartiesFromIdValue('CARD-PSIT') == ['PSIT-3']
+            assert findPartiesFromEmail('psit-mail') == ['PSIT-3']
+            assert findPartiesFromUserLogin('LOGIN-PSIT') == ['PSIT-3']
+        } finally {
+            UtilProperties.setPropertyValueInMemory('party', 'party.search.index.enable', indexEnable)
+        }
+    }
+
+    private void createPerson(String partyId, String firstName, String lastName, String externalId) {
+        delegator.create('Party', [partyId: partyId, partyTypeId: 'PERSON', externalId: externalId])
+        delegator.create('Person', [partyId: partyId, firstName: firstName, lastName: lastName])
+    }
+
+    private boolean isConditionReply() {
+        return dispatcher.runSync('isPartySearchIndexEnabled', [:]).conditionReply
+    }
+
+    private List<String> findPartiesFromIdValue(String idValue) {
+        Map serviceResult = dispatcher.runSync('performFindParty', [idValue: idValue, noConditionFind: 'Y', userLogin: userLogin])
+        assert ServiceUtil.isSuccess(serviceResult)
+        return serviceResult.listIt.withCloseable { it.getCompleteList()*.partyId.unique().sort() }
+    }
+
+    private List<String> findPartiesFromExternalId(String externalId) {
+        Map serviceResult = dispatcher.runSync('getPartiesFromExternalId', [externalId: externalId, userLogin: userLogin])
+        assert ServiceUtil.isSuccess(serviceResult)
+        return serviceResult.parties*.partyId.sort()
+    }
+
+    private List<String> findPartiesFromEmail(String email) {
+        Map serviceResult = dispatcher.runSync('getPartiesFromPartOfEmail', [email: email, userLogin: userLogin])
+        assert ServiceUtil.isSuccess(serviceResult)
+        return serviceResult.parties.collect { it.party.partyId }.unique().sort()
+    }
+
+    private List<String> findPartiesFromUserLogin(String userLoginId) {
+        Map serviceResult = dispatcher.runSync('getPartiesFromPartOfUserloginId', [userLoginId: userLoginId, userLogin: userLogin])
+        assert ServiceUtil.isSuccess(serviceResult)
+        return serviceResult.parties.collect { it.party.partyId }.unique().sort()
+    }
+
+    private List<String> findPartiesFromName(String lastName) {
+        Map serviceResult = dispatcher.runSync('getPartiesFromName', [lastName: lastName, userLogin: userLogin])
+        assert ServiceUtil.isSuccess(serviceResult)
+        return serviceResult.parties.collect { it.person.partyId }.sort()
+    }
+}
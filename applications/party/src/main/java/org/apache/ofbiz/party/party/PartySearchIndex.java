@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.party.party;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtil;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * Suffix index of the party names, external ids, identifications, user logins, contact mech info strings and phone
+ * numbers.
+ * <p>
+ * Each upper cased value is stored in PartySearchIndex as all its suffixes of at least {@link #MIN_LENGTH} characters,
+ * so a contains-search becomes an indexed prefix search on the suffixes. The index resolves the candidate parties of
+ * the party lookups, which still apply their own condition to the candidates: stale suffixes only add candidates and
+ * are removed when the party is indexed again. Enabled by <code>party.search.index.enable</code> in
+ * <code>party.properties</code>, after a run of <code>rebuildPartySearchIndex</code>.
+ */
+public final class PartySearchIndex {
+
+    private static final String MODULE = PartySearchIndex.class.getName();
+    /** The shortest suffix, and search term, served by the index. */
+    public static final int MIN_LENGTH = 3;
+    /** The suffixes are cut to the short-varchar length of PartySearchIndex.suffix. */
+    private static final int MAX_LENGTH = 60;
+
+    public static final String PARTY_ID = "PARTY_ID";
+    public static final String FIRST_NAME = "FIRST_NAME";
+    public static final String LAST_NAME = "LAST_NAME";
+    public static final String GROUP_NAME = "GROUP_NAME";
+    public static final String USER_LOGIN = "USER_LOGIN";
+    public static final String INFO_STRING = "INFO_STRING";
+    public static final String PHONE = "PHONE";
+    public static final String EXTERNAL_ID = "EXTERNAL_ID";
+    public static final String ID_VALUE = "ID_VALUE";
+
+    private PartySearchIndex() { }
+
+    public static boolean isEnabled(Delegator delegator) {
+        return "Y".equals(EntityUtilProperties.getPropertyValue("party", "party.search.index.enable", "N", delegator));
+    }
+
+    /**
+     * Finds the parties having a value containing a term.
+     * @param delegator the delegator
+     * @param fieldName the indexed field, one of the constants of this class
+     * @param term the searched term, case insensitive
+     * @return the candidate party IDs, a superset of the matching parties; {@code null} when the index cannot narrow the
+     *         search: it is disabled, the term is too short or has too many candidates
+     */
+    public static Set<String> findPartyIds(Delegator delegator, String fieldName, String term) {
+        if (UtilValidate.isEmpty(term) || !isEnabled(delegator)) {
+            return null;
+        }
+        String prefix = normalize(term);
+        if (prefix.length() < MIN_LENGTH) {
+            return null;
+        }
+        if (prefix.length() > MAX_LENGTH) {
+            prefix = prefix.substring(0, MAX_LENGTH);
+        }
+        int maxCandidates = UtilProperties.getPropertyAsInteger("party", "party.search.index.max.candidates", 1000);
+        try {
+            List<GenericValue> rows = EntityQuery.use(delegator).select("partyId").from("PartySearchIndex")
+                    .where(EntityCondition.makeCondition("fieldName", fieldName),
+                            EntityCondition.makeCondition("suffix", EntityOperator.LIKE, prefix + "%"))
+                    .distinct().maxRows(maxCandidates + 1).queryList();
+            if (rows.size() > maxCandidates) {
+                if (Debug.verboseOn()) {
+                    Debug.logVerbose("Too many " + fieldName + " candidates for [" + term + "], not using the party search index", MODULE);
+                }
+                return null;
+            }
+            return new HashSet<>(EntityUtil.getFieldListFromEntityList(rows, "partyId", true));
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Unable to search the party search index, searching without it", MODULE);
+            return null;
+        }
+    }
+
+    /**
+     * Intersects candidate sets, a {@code null} set being unrestricted.
+     * @return the intersection, {@code null} when all the sets are
+     */
+    public static Set<String> intersect(Set<String> candidates, Set<String> otherCandidates) {
+        if (candidates == null) {
+            return otherCandidates;
+        }
+        if (otherCandidates != null) {
+            candidates.retainAll(otherCandidates);
+        }
+        return candidates;
+    }
+
+    /**
+     * Indexes the current values of a party, adding the new suffixes and removing the stale ones. A suffix added in the
+     * meantime by a concurrent indexing of the party is kept.
+     * @param delegator the delegator
+     * @param partyId the party to index
+     * @throws GenericEntityException when reading or writing fails
+     */
+    public static void indexParty(Delegator delegator, String partyId) throws GenericEntityException {
+        Map<String, Set<String>> suffixes = new HashMap<>();
+        GenericValue party = EntityQuery.use(delegator).from("Party").where("partyId", partyId).queryOne();
+        if (party != null) {
+            addSuffixes(suffixes, PARTY_ID, partyId);
+            addSuffixes(suffixes, EXTERNAL_ID, party.getString("externalId"));
+            for (GenericValue partyIdentification : EntityQuery.use(delegator).select("idValue").from("PartyIdentification")
+                    .where("partyId", partyId).queryList()) {
+                addSuffixes(suffixes, ID_VALUE, partyIdentification.getString("idValue"));
+            }
+            GenericValue person = EntityQuery.use(delegator).from("Person").where("partyId", partyId).queryOne();
+            if (person != null) {
+                addSuffixes(suffixes, FIRST_NAME, person.getString("firstName"));
+                addSuffixes(suffixes, LAST_NAME, person.getString("lastName"));
+            }
+            GenericValue partyGroup = EntityQuery.use(delegator).from("PartyGroup").where("partyId", partyId).queryOne();
+            if (partyGroup != null) {
+                addSuffixes(suffixes, GROUP_NAME, partyGroup.getString("groupName"));
+            }
+            for (GenericValue userLogin : EntityQuery.use(delegator).select("userLoginId").from("UserLogin").where("partyId", partyId)
+                    .queryList()) {
+                addSuffixes(suffixes, USER_LOGIN, userLogin.getString("userLoginId"));
+            }
+            // expired contact mechs are kept, the lookups filter them by date
+            for (GenericValue contactMech : EntityQuery.use(delegator).select("infoString", "contactNumber").from("PartyAndContactMech")
+                    .where("partyId", partyId).queryList()) {
+                addSuffixes(suffixes, INFO_STRING, contactMech.getString("infoString"));
+                addSuffixes(suffixes, PHONE, contactMech.getString("contactNumber"));
+            }
+        }
+
+        List<GenericValue> staleRows = new LinkedList<>();
+        for (GenericValue row : EntityQuery.use(delegator).from("PartySearchIndex").where("partyId", partyId).queryList()) {
+            Set<String> fieldSuffixes = suffixes.get(row.getString("fieldName"));
+            if (fieldSuffixes == null || !fieldSuffixes.remove(row.getString("suffix"))) {
+                staleRows.add(row);
+            }
+        }
+        delegator.removeAll(staleRows);
+        for (Map.Entry<String, Set<String>> entry : suffixes.entrySet()) {
+            for (String suffix : entry.getValue()) {
+                delegator.createOrStore(delegator.makeValue("PartySearchIndex", "partyId", partyId, "fieldName", entry.getKey(),
+                        "suffix", suffix));
+            }
+        }
+    }
+
+    private static void addSuffixes(Map<String, Set<String>> suffixes, String fieldName, String value) {
+        if (UtilValidate.isEmpty(value)) {
+            return;
+        }
+        String normalized = normalize(value);
+        for (int start = 0; start <= normalized.length() - MIN_LENGTH; start++) {
+            suffixes.computeIfAbsent(fieldName, k -> new HashSet<>())
+                    .add(normalized.substring(start, Math.min(normalized.length(), start + MAX_LENGTH)));
+        }
+    }
+
+    private static String normalize(String value) {
+        return value.trim().toUpperCase(Locale.getDefault());
+    }
+
+    /**
+     * ECA condition, true when the party search index is enabled.
+     * @param dctx The DispatchContext that this service is operating in.
+     * @param context Map containing the input parameters.
+     * @return Map with the result of the service, the output parameters.
+     */
+    public static Map<String, Object> isPartySearchIndexEnabled(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("conditionReply", isEnabled(dctx.getDelegator()));
+        return result;
+    }
+
+    /**
+     * Indexes again the parties of a changed record, the party itself or the parties using a contact mech, each in its
+     * own transaction.
+     * @param dctx The DispatchContext that this service is operating in.
+     * @param context Map containing the input parameters.
+     * @return Map with the result of the service, the output parameters.
+     */
+    public static Map<String, Object> updatePartySearchIndex(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        if (!isEnabled(delegator)) {
+            return ServiceUtil.returnSuccess();
+        }
+        String partyId = (String) context.get("partyId");
+        String contactMechId = (String) context.get("contactMechId");
+        try {
+            Set<String> partyIds = new HashSet<>();
+            if (UtilValidate.isNotEmpty(partyId)) {
+                partyIds.add(partyId);
+            } else if (UtilValidate.isNotEmpty(contactMechId)) {
+                partyIds.addAll(EntityUtil.getFieldListFromEntityList(EntityQuery.use(delegator).select("partyId").from("PartyContactMech")
+                        .where("contactMechId", contactMechId).queryList(), "partyId", true));
+            }
+            for (String id : partyIds) {
+                TransactionUtil.doNewTransaction(() -> {
+                    indexParty(delegator, id);
+                    return null;
+                }, "Error indexing party " + id, 0, true);
+            }
+        } catch (GenericEntityException e) {
+            Debug.logError(e, MODULE);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * Indexes all the parties, by batches each in its own transaction.
+     * @param dctx The DispatchContext that this service is operating in.
+     * @param context Map containing the input parameters.
+     * @return Map with the result of the service, the output parameters.
+     */
+    public static Map<String, Object> rebuildPartySearchIndex(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        int batchSize = Math.max(1, UtilProperties.getPropertyAsInteger("party", "party.search.index.batch.size", 500));
+        long indexedCount = 0;
+        String lastPartyId = null;
+        try {
+            while (true) {
+                EntityCondition condition = lastPartyId == null ? null
+                        : EntityCondition.makeCondition("partyId", EntityOperator.GREATER_THAN, lastPartyId);
+                List<String> partyIds = EntityUtil.getFieldListFromEntityList(EntityQuery.use(delegator).select("partyId").from("Party")
+                        .where(condition).orderBy("partyId").maxRows(batchSize).queryList(), "partyId", false);
+                if (partyIds.isEmpty()) {
+                    break;
+                }
+                TransactionUtil.doNewTransaction(() -> {
+                    for (String partyId : partyIds) {
+                        indexParty(delegator, partyId);
+                    }
+                    return null;
+                }, "Error indexing parties", 0, true);
+                indexedCount += partyIds.size();
+                lastPartyId = partyIds.get(partyIds.size() - 1);
+                Debug.logInfo("Indexed " + indexedCount + " parties for the party search", MODULE);
+            }
+        } catch (GenericEntityException e) {
+            Debug.logError(e, MODULE);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("indexedCount", indexedCount);
+        return result;
+    }
+
+    /**
+     * Restricts a lookup condition to the candidate parties.
+     * @param condition the condition of the lookup, still applied to the candidates
+     * @param partyIds the candidates, from {@link #findPartyIds}, or {@code null} to keep the condition as is
+     * @return the restricted condition
+     */
+    public static EntityCondition restrict(EntityCondition condition, Set<String> partyIds) {
+        if (partyIds == null) {
+            return condition;
+        }
+        return EntityCondition.makeCondition(EntityCondition.makeCondition("partyId", EntityOperator.IN, new ArrayList<>(partyIds)),
+                EntityOperator.AND, condition);
+    }
+}
@@ -32,6 +32,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVFormat.Builder;
@@ -772,8 +773,9 @@ public class PartyServices {
 
         try {
             List<GenericValue> c = EntityQuery.use(delegator).from("PartyAndContactMech")
-                    .where(EntityCondition.makeCondition(EntityFunction.upperField("infoString"), EntityOperator.LIKE,
-                            EntityFunction.upper(("%" + email.toUpperCase(Locale.getDefault())) + "%")))
+                    .where(PartySearchIndex.restrict(EntityCondition.makeCondition(EntityFunction.upperField("infoString"), EntityOperator.LIKE,
+                            EntityFunction.upper(("%" + email.toUpperCase(Locale.getDefault())) + "%")),
+                            PartySearchIndex.findPartyIds(delegator, PartySearchIndex.INFO_STRING, email)))
                     .orderBy("infoString").filterByDate().queryList();
 
             if (Debug.verboseOn()) {
@@ -822,8 +824,10 @@ public class PartyServices {
 
         try {
             Collection<GenericValue> ulc = EntityQuery.use(delegator).from("PartyAndUserLogin")
-                    .where(EntityCondition.makeCondition(EntityFunction.upperField("userLoginId"), EntityOperator.LIKE,
-                            EntityFunction.upper("%" + userLoginId.toUpperCase(Locale.getDefault()) + "%"))).orderBy("userLoginId").queryList();
+                    .where(PartySearchIndex.restrict(EntityCondition.makeCondition(EntityFunction.upperField("userLoginId"), EntityOperator.LIKE,
+                            EntityFunction.upper("%" + userLoginId.toUpperCase(Locale.getDefault()) + "%")),
+                            PartySearchIndex.findPartyIds(delegator, PartySearchIndex.USER_LOGIN, userLoginId)))
+                    .orderBy("userLoginId").queryList();
 
             if (Debug.verboseOn()) {
                 Debug.logVerbose("Collection: " + ulc, MODULE);
@@ -880,8 +884,10 @@ public class PartyServices {
                             EntityFunction.upper("%" + firstName.toUpperCase(Locale.getDefault()) + "%")),
                     EntityCondition.makeCondition(EntityFunction.upperField("lastName"), EntityOperator.LIKE,
                             EntityFunction.upper("%" + lastName.toUpperCase(Locale.getDefault()) + "%")));
-            Collection<GenericValue> pc = EntityQuery.use(delegator).from("Person").where(ecl).orderBy("lastName", "firstName", "partyId")
-                    .queryList();
+            Set<String> candidates = PartySearchIndex.intersect(PartySearchIndex.findPartyIds(delegator, PartySearchIndex.FIRST_NAME, firstName),
+                    PartySearchIndex.findPartyIds(delegator, PartySearchIndex.LAST_NAME, lastName));
+            Collection<GenericValue> pc = EntityQuery.use(delegator).from("Person").where(PartySearchIndex.restrict(ecl, candidates))
+                    .orderBy("lastName", "firstName", "partyId").queryList();
 
             if (Debug.infoOn()) {
                 Debug.logInfo("PartyFromPerson number found: " + pc.size(), MODULE);
@@ -925,8 +931,9 @@ public class PartyServices {
 
         try {
             Collection<GenericValue> pc = EntityQuery.use(delegator).from("PartyGroup")
-                    .where(EntityCondition.makeCondition(EntityFunction.upperField("groupName"), EntityOperator.LIKE,
-                            EntityFunction.upper("%" + groupName.toUpperCase(Locale.getDefault()) + "%")))
+                    .where(PartySearchIndex.restrict(EntityCondition.makeCondition(EntityFunction.upperField("groupName"), EntityOperator.LIKE,
+                            EntityFunction.upper("%" + groupName.toUpperCase(Locale.getDefault()) + "%")),
+                            PartySearchIndex.findPartyIds(delegator, PartySearchIndex.GROUP_NAME, groupName)))
                     .orderBy("groupName", "partyId")
                     .queryList();
 
@@ -967,8 +974,9 @@ public class PartyServices {
 
         try {
             parties = EntityQuery.use(delegator).from("Party")
-                    .where(EntityCondition.makeCondition(EntityFunction.upperField("externalId"),
-                            EntityOperator.EQUALS, EntityFunction.upper(externalId)))
+                    .where(PartySearchIndex.restrict(EntityCondition.makeCondition(EntityFunction.upperField("externalId"),
+                            EntityOperator.EQUALS, EntityFunction.upper(externalId)),
+                            PartySearchIndex.findPartyIds(delegator, PartySearchIndex.EXTERNAL_ID, externalId)))
                     .orderBy("externalId", "partyId")
                     .queryList();
         } catch (GenericEntityException e) {
@@ -1903,6 +1911,22 @@ public class PartyServices {
         }
         // ---- End of Dynamic View Creation
 
+        // narrow the contains-searches to the candidate parties of the search index, the conditions above still apply
+        Set<String> candidates = PartySearchIndex.findPartyIds(delegator, PartySearchIndex.PARTY_ID, partyId);
+        candidates = PartySearchIndex.intersect(candidates, PartySearchIndex.findPartyIds(delegator, PartySearchIndex.USER_LOGIN, userLoginId));
+        candidates = PartySearchIndex.intersect(candidates, PartySearchIndex.findPartyIds(delegator, PartySearchIndex.GROUP_NAME, groupName));
+        candidates = PartySearchIndex.intersect(candidates, PartySearchIndex.findPartyIds(delegator, PartySearchIndex.FIRST_NAME, firstName));
+        candidates = PartySearchIndex.intersect(candidates, PartySearchIndex.findPartyIds(delegator, PartySearchIndex.LAST_NAME, lastName));
+        candidates = PartySearchIndex.intersect(candidates, PartySearchIndex.findPartyIds(delegator, PartySearchIndex.INFO_STRING,
+                (String) context.get("infoString")));
+        candidates = PartySearchIndex.intersect(candidates, PartySearchIndex.findPartyIds(delegator, PartySearchIndex.PHONE,
+                (String) context.get("contactNumber")));
+        candidates = PartySearchIndex.intersect(candidates, PartySearchIndex.findPartyIds(delegator, PartySearchIndex.ID_VALUE, idValue));
+        candidates = PartySearchIndex.intersect(candidates, PartySearchIndex.findPartyIds(delegator, PartySearchIndex.EXTERNAL_ID, externalId));
+        if (candidates != null) {
+            andExprs.add(EntityCondition.makeCondition("partyId", EntityOperator.IN, candidates));
+        }
+
         // build the main condition, add the extend condition is it present
         if (UtilValidate.isNotEmpty(extCond)) {
             andExprs.add(extCond);
@@ -27,6 +27,9 @@ import org.apache.ofbiz.entity.GenericValue
 import org.apache.ofbiz.entity.condition.EntityConditionBuilder
 import org.apache.ofbiz.entity.serialize.XmlSerializer
 import org.apache.ofbiz.product.product.KeywordIndex
+import org.apache.ofbiz.product.product.KeywordIndexQueue
+import org.apache.ofbiz.product.product.ProductCalculatedInfoCounters
+import org.apache.ofbiz.product.product.ProductSearchCache
 import org.apache.ofbiz.product.product.ProductWorker
 import org.apache.ofbiz.service.ServiceUtil
 
@@ -321,6 +324,7 @@ Map forceIndexProductKeywords() {
  */
 Map deleteProductKeywords() {
     GenericValue product = from('Product').where(parameters).cache().queryOne()
+    ProductSearchCache.clearKeywordResults(delegator, product.productId)
     product.removeRelated('ProductKeyword')
     return success()
 }
@@ -332,6 +336,11 @@ Map indexProductKeywords() {
     //this service is meant to be called from an entity ECA for entities that include a productId
     //if it is the Product entity itself triggering this action, then a [productInstance] parameter
     //will be passed and we can save a few cycles looking that up
+    if (KeywordIndexQueue.isEnabled(delegator)) {
+        //the keywords are indexed in the background, see index.queue.enable in prodsearch.properties
+        KeywordIndexQueue.enqueue(delegator, parameters.productInstance?.productId ?: parameters.productId)
+        return success()
+    }
     GenericValue productInstance = parameters.productInstance ?: from('Product').where(parameters).queryOne()
     //induce keywords if autoCreateKeywords is empty or Y
     if (!productInstance.autoCreateKeywords || productInstance.autoCreateKeywords == 'Y') {
@@ -368,16 +377,20 @@ Map discontinueProductSales() {
 Map countProductView() {
     long weight = parameters.weight ?: 1L
 
-    GenericValue productCalculatedInfo = from('ProductCalculatedInfo').where(parameters).queryOne()
-    if (productCalculatedInfo?.totalTimesViewed) {
-        productCalculatedInfo.totalTimesViewed += weight
-        productCalculatedInfo.store()
+    if (ProductCalculatedInfoCounters.isEnabled()) {
+        ProductCalculatedInfoCounters.addTimesViewed(delegator, parameters.productId, weight)
     } else {
-        // go ahead and create it
-        productCalculatedInfo = makeValue('ProductCalculatedInfo')
-        productCalculatedInfo.productId = parameters.productId
-        productCalculatedInfo.totalTimesViewed = weight
-        productCalculatedInfo.create()
+        GenericValue productCalculatedInfo = from('ProductCalculatedInfo').where(parameters).queryOne()
+        if (productCalculatedInfo?.totalTimesViewed) {
+            productCalculatedInfo.totalTimesViewed += weight
+            productCalculatedInfo.store()
+        } else {
+            // go ahead and create it
+            productCalculatedInfo = makeValue('ProductCalculatedInfo')
+            productCalculatedInfo.productId = parameters.productId
+            productCalculatedInfo.totalTimesViewed = weight
+            productCalculatedInfo.create()
+        }
     }
 
     // do the same for the virtual product...
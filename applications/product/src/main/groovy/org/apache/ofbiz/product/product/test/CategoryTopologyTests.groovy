@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.product.product.test
+
+import java.sql.Timestamp
+
+import org.apache.ofbiz.base.util.UtilDateTime
+import org.apache.ofbiz.base.util.UtilProperties
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.product.category.CategoryTopology
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class CategoryTopologyTests extends OFBizTestCase {
+
+    CategoryTopologyTests(String name) {
+        super(name)
+    }
+
+    /**
+     * The in-memory topology must give the same sub-categories and memberships as the ProductCategoryRollup and
+     * ProductCategoryMember records, and follow their changes.
+     */
+    void testTopologyMatchesRollupsAndMembers() {
+        String topologyEnable = UtilProperties.getPropertyValue('catalog', 'category.topology.enable', 'N')
+        UtilProperties.setPropertyValueInMemory('catalog', 'category.topology.enable', 'Y')
+        try {
+            checkTopology()
+        } finally {
+            UtilProperties.setPropertyValueInMemory('catalog', 'category.topology.enable', topologyEnable)
+        }
+    }
+
+    private void checkTopology() {
+        Timestamp now = UtilDateTime.nowTimestamp()
+        Timestamp past = new Timestamp(now.time - 86400000L)
+        ['CTT_ROOT', 'CTT_A', 'CTT_B', 'CTT_OLD', 'CTT_C'].each { productCategoryId ->
+            delegator.create('ProductCategory', [productCategoryId: productCategoryId, productCategoryTypeId: 'CATALOG_CATEGORY'])
+        }
+        addRollup('CTT_ROOT', 'CTT_A', past, null)
+        addRollup('CTT_A', 'CTT_B', past, null)
+        addRollup('CTT_ROOT', 'CTT_OLD', past, new Timestamp(now.time - 1000L))
+        delegator.create('Product', [productId: 'CTT-P1', productTypeId: 'FINISHED_GOOD', internalName: 'CTT-P1'])
+        GenericValue member = delegator.create('ProductCategoryMember', [productCategoryId: 'CTT_B', productId: 'CTT-P1',
+                fromDate: past])
+
+        CategoryTopology topology = waitForTopology()
+        assert topology.getChildCategoryIds('CTT_ROOT', true) == ['CTT_A']
+        assert topology.getChildCategoryIds('CTT_ROOT', false).sort() == queryChildCategoryIds('CTT_ROOT', false)
+        assert topology.getChildCategoryIds('CTT_ROOT', true) == queryChildCategoryIds('CTT_ROOT', true)
+        assert topology.getRollupCount('CTT_ROOT') == 2
+        assert topology.getMemberCount('CTT_B') == 1
+        assert subCategoryIds(topology, 'CTT_ROOT') == ['CTT_A', 'CTT_B', 'CTT_ROOT'] as Set
+        assert topology.isMember('CTT-P1', 'CTT_B')
+        assert !topology.isMember('CTT-P1', 'CTT_A')
+        assert topology.isMemberOfSubtree('CTT-P1', 'CTT_ROOT')
+        assert !topology.isMemberOfSubtree('CTT-P1', 'CTT_OLD')
+
+        // the changes are read again on the next use once committed
+        addRollup('CTT_B', 'CTT_C', past, null)
+        member.set('thruDate', new Timestamp(UtilDateTime.nowTimestamp().time - 1000L))
+        member.store()
+        topology = CategoryTopology.getInstance(delegator)
+        assert subCategoryIds(topology, 'CTT_ROOT') == ['CTT_A', 'CTT_B', 'CTT_C', 'CTT_ROOT'] as Set
+        assert !topology.isMember('CTT-P1', 'CTT_B')
+        assert !topology.isMemberOfSubtree('CTT-P1', 'CTT_ROOT')
+        assert topology.getMemberCount('CTT_B') == 1
+    }
+
+    private void addRollup(String parentProductCategoryId, String productCategoryId, Timestamp fromDate, Timestamp thruDate) {
+        delegator.create('ProductCategoryRollup', [parentProductCategoryId: parentProductCategoryId, productCategoryId: productCategoryId,
+                fromDate: fromDate, thruDate: thruDate])
+    }
+
+    private List<String> queryChildCategoryIds(String parentProductCategoryId, boolean activeOnly) {
+        def query = from('ProductCategoryRollup').where('parentProductCategoryId', parentProductCategoryId)
+        if (activeOnly) {
+            query = query.filterByDate()
+        }
+        return query.queryList()*.productCategoryId.sort()
+    }
+
+    private static Set<String> subCategoryIds(CategoryTopology topology, String productCategoryId) {
+        Set<String> productCategoryIds = new HashSet<>()
+        topology.addSubCategoryIds(productCategoryId, productCategoryIds, UtilDateTime.nowTimestamp())
+        return productCategoryIds
+    }
+
+    private CategoryTopology waitForTopology() {
+        // the topology is built in the background on first use
+        long until = System.currentTimeMillis() + 60000L
+        CategoryTopology topology = CategoryTopology.getInstance(delegator)
+        while (topology == null && System.currentTimeMillis() < until) {
+            Thread.sleep(100)
+            topology = CategoryTopology.getInstance(delegator)
+        }
+        assert topology != null
+        return topology
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.product.product.test
+
+import java.awt.AlphaComposite
+import java.awt.Color
+import java.awt.Graphics2D
+import java.awt.RenderingHints
+import java.awt.image.BufferedImage
+import javax.imageio.ImageIO
+
+import org.apache.ofbiz.base.util.UtilProperties
+import org.apache.ofbiz.base.util.string.FlexibleStringExpander
+import org.apache.ofbiz.common.image.ImageTransform
+import org.apache.ofbiz.entity.util.EntityUtilProperties
+import org.apache.ofbiz.product.image.ScaleImage
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class ImagePipelineTests extends OFBizTestCase {
+
+    private static final String PRODUCT_ID = 'IPT-1'
+
+    ImagePipelineTests(String name) {
+        super(name)
+    }
+
+    /**
+     * The progressive resize gives the asked dimensions when downscaling by several halvings, by less than a half and
+     * when upscaling, and paints the transparent pixels white when the new image has no alpha channel.
+     */
+    void testResizeImage() {
+        BufferedImage original = makeImage(400, 300, BufferedImage.TYPE_INT_ARGB)
+        [[100, 75], [37, 28], [300, 225], [1, 1], [800, 600]].each { size ->
+            BufferedImage resized = ImageTransform.resizeImage(original, size[0], size[1],
+                    RenderingHints.VALUE_INTERPOLATION_BICUBIC, BufferedImage.TYPE_INT_RGB)
+            assert resized.width == size[0]
+            assert resized.height == size[1]
+            assert resized.type == BufferedImage.TYPE_INT_RGB
+        }
+        BufferedImage opaque = ImageTransform.resizeImage(original, 100, 75, RenderingHints.VALUE_INTERPOLATION_BILINEAR,
+                BufferedImage.TYPE_INT_RGB)
+        // the transparent bottom right corner of the original
+        assert new Color(opaque.getRGB(95, 70)) == Color.WHITE
+        BufferedImage translucent = ImageTransform.resizeImage(original, 100, 75, RenderingHints.VALUE_INTERPOLATION_BILINEAR,
+                BufferedImage.TYPE_INT_ARGB)
+        assert new Color(translucent.getRGB(95, 70), true).alpha == 0
+    }
+
+    /**
+     * The scale factor is the one scaleImage scales with, for both a landscape and a portrait image.
+     */
+    void testScaleFactorMatchesScaleImage() {
+        Map<String, Map<String, String>> dimensionMap = [
+            small: [height: '100', width: '100'],
+            wide: [width: '120'],
+            high: [height: '90']
+        ]
+        [makeImage(400, 300, BufferedImage.TYPE_INT_RGB), makeImage(300, 400, BufferedImage.TYPE_INT_RGB)].each { image ->
+            dimensionMap.keySet().each { sizeType ->
+                Map<String, Object> scaleFactor = ImageTransform.getScaleFactor(image.height, image.width, dimensionMap, sizeType,
+                        Locale.getDefault())
+                Map<String, Object> scaled = ImageTransform.scaleImage(image, image.height, image.width, dimensionMap, sizeType,
+                        Locale.getDefault())
+                assert scaleFactor.responseMessage == 'success'
+                assert scaleFactor.scaleFactor == scaled.scaleFactor
+            }
+        }
+        assert ImageTransform.getScaleFactor(300, 400, [zero: [height: '0']], 'zero', Locale.getDefault()).errorMessage
+    }
+
+    /**
+     * scaleImageInAllSize writes every size of ImageProperties.xml with the same dimensions and returns the same urls
+     * through the image pipeline as through the previous rendering.
+     */
+    void testPipelineMatchesPreviousRendering() {
+        String pipelineEnable = UtilProperties.getPropertyValue('catalog', 'image.pipeline.enable', 'N')
+        String pipelineAsync = UtilProperties.getPropertyValue('catalog', 'image.pipeline.async', 'N')
+        File productDir = new File(getImageServerPath(), "products/${PRODUCT_ID}")
+        try {
+            assert productDir.isDirectory() || productDir.mkdirs()
+            assert ImageIO.write(makeImage(400, 300, BufferedImage.TYPE_INT_RGB), 'png', new File(productDir, 'original.png'))
+            UtilProperties.setPropertyValueInMemory('catalog', 'image.pipeline.async', 'N')
+
+            UtilProperties.setPropertyValueInMemory('catalog', 'image.pipeline.enable', 'N')
+            Map<String, Object> previous = scaleImageInAllSize()
+            Map<String, List<Integer>> previousSizes = readSizes(productDir)
+
+            productDir.listFiles().findAll { it.name != 'original.png' }*.delete()
+            UtilProperties.setPropertyValueInMemory('catalog', 'image.pipeline.enable', 'Y')
+            Map<String, Object> pipeline = scaleImageInAllSize()
+            Map<String, List<Integer>> pipelineSizes = readSizes(productDir)
+
+            assert previousSizes.size() > 4
+            assert pipelineSizes == previousSizes
+            assert pipelineSizes.thumbnail == [100, 75]
+            assert pipeline.imageUrlMap == previous.imageUrlMap
+        } finally {
+            UtilProperties.setPropertyValueInMemory('catalog', 'image.pipeline.enable', pipelineEnable)
+            UtilProperties.setPropertyValueInMemory('catalog', 'image.pipeline.async', pipelineAsync)
+            productDir.deleteDir()
+        }
+    }
+
+    private Map<String, Object> scaleImageInAllSize() {
+        Map<String, Object> result = ScaleImage.scaleImageInAllSize([delegator: delegator, locale: Locale.getDefault(),
+                productId: PRODUCT_ID], 'original.png', 'main', '0')
+        assert result.responseMessage == 'success'
+        return result
+    }
+
+    private String getImageServerPath() {
+        return FlexibleStringExpander.expandString(EntityUtilProperties.getPropertyValue('catalog', 'image.server.path', delegator),
+                [tenantId: delegator.getDelegatorTenantId()])
+    }
+
+    private static Map<String, List<Integer>> readSizes(File productDir) {
+        Map<String, List<Integer>> sizes = [:]
+        productDir.listFiles().findAll { it.name != 'original.png' }.each { file ->
+            BufferedImage image = ImageIO.read(file)
+            sizes[file.name - '.png'] = [image.width, image.height]
+        }
+        return sizes
+    }
+
+    /** An image with a red top left quarter and, with an alpha channel, a transparent bottom right quarter. */
+    private static BufferedImage makeImage(int width, int height, int imageType) {
+        BufferedImage image = new BufferedImage(width, height, imageType)
+        Graphics2D g = image.createGraphics()
+        try {
+            g.setColor(Color.BLUE)
+            g.fillRect(0, 0, width, height)
+            g.setColor(Color.RED)
+            g.fillRect(0, 0, (int) (width / 2), (int) (height / 2))
+            if (image.colorModel.hasAlpha()) {
+                g.setComposite(AlphaComposite.Clear)
+                g.fillRect((int) (width / 2), (int) (height / 2), width, height)
+            }
+        } finally {
+            g.dispose()
+        }
+        return image
+    }
+}
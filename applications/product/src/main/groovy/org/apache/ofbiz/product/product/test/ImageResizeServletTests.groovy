@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.product.product.test
+
+import java.awt.Color
+import java.awt.Graphics2D
+import java.awt.image.BufferedImage
+import javax.imageio.ImageIO
+import javax.servlet.ServletConfig
+import javax.servlet.ServletContext
+import javax.servlet.http.HttpServletResponse
+
+import org.apache.ofbiz.base.util.UtilProperties
+import org.apache.ofbiz.base.util.string.FlexibleStringExpander
+import org.apache.ofbiz.entity.util.EntityUtilProperties
+import org.apache.ofbiz.product.image.ImageResizeServlet
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+import org.apache.ofbiz.service.testtools.ServletResponseRecorder
+
+class ImageResizeServletTests extends OFBizTestCase {
+
+    private static final String IMAGE_PATH = 'products/IRT-1/original.png'
+
+    ImageResizeServletTests(String name) {
+        super(name)
+    }
+
+    @Override
+    protected void tearDown() {
+        new File(getImageServerPath(), IMAGE_PATH).parentFile.deleteDir()
+        new File(System.getProperty('ofbiz.home'), EntityUtilProperties.getPropertyValue('catalog', 'image.resize.cache.path',
+                'runtime/imagecache', delegator)).deleteDir()
+        super.tearDown()
+    }
+
+    /**
+     * A listed size is rendered to fit in its box in the asked format, a matching If-None-Match gets a 304, and the
+     * unlisted sizes, the paths out of the image root and the disabled servlet get a 404.
+     */
+    void testResizeRequests() {
+        String resizeEnable = UtilProperties.getPropertyValue('catalog', 'image.resize.enable', 'N')
+        File source = new File(getImageServerPath(), IMAGE_PATH)
+        try {
+            assert source.parentFile.isDirectory() || source.parentFile.mkdirs()
+            assert ImageIO.write(makeImage(400, 300), 'png', source)
+            ImageResizeServlet servlet = new ImageResizeServlet()
+            ServletContext servletContext = [getAttribute: { String name -> name == 'delegator' ? delegator : null }] as ServletContext
+            servlet.init([getServletContext: { -> servletContext }] as ServletConfig)
+
+            UtilProperties.setPropertyValueInMemory('catalog', 'image.resize.enable', 'N')
+            assert get(servlet, "/100x100/${IMAGE_PATH}", [:]).status == HttpServletResponse.SC_NOT_FOUND
+
+            UtilProperties.setPropertyValueInMemory('catalog', 'image.resize.enable', 'Y')
+            ServletResponseRecorder png = get(servlet, "/100x100/${IMAGE_PATH}", [:])
+            assert png.status == HttpServletResponse.SC_OK
+            assert png.contentType == 'image/png'
+            assert png.headers.ETag
+            BufferedImage pngImage = ImageIO.read(new ByteArrayInputStream(png.bodyBytes))
+            assert [pngImage.width, pngImage.height] == [100, 75]
+
+            ServletResponseRecorder notModified = get(servlet, "/100x100/${IMAGE_PATH}", ['If-None-Match': png.headers.ETag])
+            assert notModified.status == HttpServletResponse.SC_NOT_MODIFIED
+            assert notModified.bodyBytes.length == 0
+
+            ServletResponseRecorder jpg = get(servlet, "/320x240.jpg/${IMAGE_PATH}", [:])
+            assert jpg.status == HttpServletResponse.SC_OK
+            assert jpg.contentType == 'image/jpeg'
+            assert jpg.headers.ETag != png.headers.ETag
+            BufferedImage jpgImage = ImageIO.read(new ByteArrayInputStream(jpg.bodyBytes))
+            assert [jpgImage.width, jpgImage.height] == [320, 240]
+
+            // served again from the cache
+            ServletResponseRecorder cached = get(servlet, "/100x100/${IMAGE_PATH}", [:])
+            assert cached.status == HttpServletResponse.SC_OK
+            assert cached.bodyBytes == png.bodyBytes
+
+            assert get(servlet, "/123x45/${IMAGE_PATH}", [:]).status == HttpServletResponse.SC_NOT_FOUND
+            assert get(servlet, '/100x100/../../../../framework/base/config/cache.properties', [:]).status == HttpServletResponse.SC_NOT_FOUND
+            assert get(servlet, '/100x100/products/IRT-1/missing.png', [:]).status == HttpServletResponse.SC_NOT_FOUND
+        } finally {
+            UtilProperties.setPropertyValueInMemory('catalog', 'image.resize.enable', resizeEnable)
+        }
+    }
+
+    private String getImageServerPath() {
+        return FlexibleStringExpander.expandString(EntityUtilProperties.getPropertyValue('catalog', 'image.server.path', delegator),
+                [tenantId: delegator.getDelegatorTenantId()])
+    }
+
+    private static ServletResponseRecorder get(ImageResizeServlet servlet, String pathInfo, Map<String, String> requestHeaders) {
+        ServletResponseRecorder recorder = new ServletResponseRecorder()
+        servlet.doGet(ServletResponseRecorder.makeRequest(pathInfo, requestHeaders), recorder.makeResponse())
+        return recorder
+    }
+
+    private static BufferedImage makeImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+        Graphics2D g = image.createGraphics()
+        try {
+            g.setColor(Color.BLUE)
+            g.fillRect(0, 0, width, height)
+        } finally {
+            g.dispose()
+        }
+        return image
+    }
+}
@@ -18,6 +18,10 @@
  *******************************************************************************/
 package org.apache.ofbiz.product.product.test
 
+import org.apache.ofbiz.base.util.UtilDateTime
+import org.apache.ofbiz.base.util.UtilProperties
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.product.inventory.InventoryAvailabilityServices
 import org.apache.ofbiz.service.ServiceUtil
 import org.apache.ofbiz.service.testtools.OFBizTestCase
 
@@ -39,6 +43,137 @@ class InventoryTests extends OFBizTestCase {
         assert serviceResult.availableToPromiseTotal == 509
     }
 
+    void testStaleAvailabilitySummaryIsIgnored() {
+        GenericValue summary = delegator.makeValue('ProductFacilityAvailability', [productId: 'GZ-2644', facilityId: 'WebStoreWarehouse',
+                quantityOnHandTotal: 1, availableToPromiseTotal: 1, accountingQuantityTotal: 1,
+                lastReconciledDate: UtilDateTime.addDaysToTimestamp(UtilDateTime.nowTimestamp(), -30)])
+        assert !InventoryAvailabilityServices.isSummaryCurrent(summary)
+        summary.lastReconciledDate = null
+        assert !InventoryAvailabilityServices.isSummaryCurrent(summary)
+        assert !InventoryAvailabilityServices.isSummaryCurrent(null)
+        summary.lastReconciledDate = UtilDateTime.nowTimestamp()
+        assert InventoryAvailabilityServices.isSummaryCurrent(summary)
+
+        String summaryEnable = UtilProperties.getPropertyValue('catalog', 'inventory.availability.summary.enable', 'N')
+        try {
+            UtilProperties.setPropertyValueInMemory('catalog', 'inventory.availability.summary.enable', 'Y')
+            // a current summary is returned, whatever its totals
+            delegator.createOrStore(summary)
+            Map serviceResult = dispatcher.runSync('getInventoryAvailableByFacility', [productId: 'GZ-2644', facilityId: 'WebStoreWarehouse',
+                    userLogin: userLogin])
+            assert ServiceUtil.isSuccess(serviceResult)
+            assert serviceResult.quantityOnHandTotal == 1
+            assert serviceResult.availableToPromiseTotal == 1
+
+            // a stale summary with wrong totals must not be returned
+            summary.lastReconciledDate = UtilDateTime.addDaysToTimestamp(UtilDateTime.nowTimestamp(), -30)
+            summary.store()
+            serviceResult = dispatcher.runSync('getInventoryAvailableByFacility', [productId: 'GZ-2644', facilityId: 'WebStoreWarehouse',
+                    userLogin: userLogin])
+            assert ServiceUtil.isSuccess(serviceResult)
+            assert serviceResult.quantityOnHandTotal == 509
+            assert serviceResult.availableToPromiseTotal == 509
+        } finally {
+            summary.remove()
+            UtilProperties.setPropertyValueInMemory('catalog', 'inventory.availability.summary.enable', summaryEnable)
+        }
+    }
+
+    /**
+     * The availability summary updated from the inventory item changes, and rebuilt by the reconciliation, holds the
+     * totals summed from the inventory items.
+     */
+    void testAvailabilitySummaryMatchesLiveTotals() {
+        String summaryEnable = UtilProperties.getPropertyValue('catalog', 'inventory.availability.summary.enable', 'N')
+        try {
+            UtilProperties.setPropertyValueInMemory('catalog', 'inventory.availability.summary.enable', 'Y')
+            delegator.create('Product', [productId: 'IAT-1', productTypeId: 'FINISHED_GOOD', internalName: 'IAT-1'])
+
+            // received before the summary is created by the reconciliation
+            String firstItemId = receiveInventory('IAT-1', 10.0)
+            Map serviceResult = dispatcher.runSync('reconcileProductFacilityAvailability', [productId: 'IAT-1', facilityId: 'WebStoreWarehouse',
+                    userLogin: userLogin])
+            assert ServiceUtil.isSuccess(serviceResult)
+            assert serviceResult.correctedCount == 1
+            assertSummaryMatchesLive('IAT-1', 'WebStoreWarehouse', 10.0, 10.0)
+
+            String secondItemId = receiveInventory('IAT-1', 5.0)
+            assertSummaryMatchesLive('IAT-1', 'WebStoreWarehouse', 15.0, 15.0)
+
+            // a reservation
+            serviceResult = dispatcher.runSync('createInventoryItemDetail', [inventoryItemId: firstItemId, availableToPromiseDiff: -3.0,
+                    userLogin: userLogin])
+            assert ServiceUtil.isSuccess(serviceResult)
+            assertSummaryMatchesLive('IAT-1', 'WebStoreWarehouse', 15.0, 12.0)
+
+            // an item put on hold is not counted any more
+            GenericValue secondItem = from('InventoryItem').where('inventoryItemId', secondItemId).queryOne()
+            secondItem.statusId = 'INV_ON_HOLD'
+            secondItem.store()
+            assertSummaryMatchesLive('IAT-1', 'WebStoreWarehouse', 10.0, 7.0)
+
+            // a serialized item is counted from its status
+            serviceResult = dispatcher.runSync('createInventoryItem', [productId: 'IAT-1', facilityId: 'WebStoreWarehouse',
+                    inventoryItemTypeId: 'SERIALIZED_INV_ITEM', statusId: 'INV_AVAILABLE', serialNumber: 'IAT-1-SN', userLogin: userLogin])
+            assert ServiceUtil.isSuccess(serviceResult)
+            assertSummaryMatchesLive('IAT-1', 'WebStoreWarehouse', 11.0, 8.0)
+
+            // an item moved to another facility leaves the summary of its previous facility
+            GenericValue firstItem = from('InventoryItem').where('inventoryItemId', firstItemId).queryOne()
+            firstItem.facilityId = 'RegionalWarehouse1'
+            firstItem.store()
+            assertSummaryMatchesLive('IAT-1', 'WebStoreWarehouse', 1.0, 1.0)
+
+            // the reconciliation of all the facilities of the product creates the missing summary and corrects drift
+            GenericValue summary = from('ProductFacilityAvailability').where('productId', 'IAT-1', 'facilityId', 'WebStoreWarehouse').queryOne()
+            summary.quantityOnHandTotal = 100
+            summary.store()
+            serviceResult = dispatcher.runSync('reconcileProductFacilityAvailability', [productId: 'IAT-1', userLogin: userLogin])
+            assert ServiceUtil.isSuccess(serviceResult)
+            assert serviceResult.reconciledCount == 2
+            assert serviceResult.correctedCount == 2
+            assertSummaryMatchesLive('IAT-1', 'WebStoreWarehouse', 1.0, 1.0)
+            assertSummaryMatchesLive('IAT-1', 'RegionalWarehouse1', 10.0, 7.0)
+
+            serviceResult = dispatcher.runSync('reconcileProductFacilityAvailability', [productId: 'IAT-1', userLogin: userLogin])
+            assert serviceResult.correctedCount == 0
+        } finally {
+            UtilProperties.setPropertyValueInMemory('catalog', 'inventory.availability.summary.enable', summaryEnable)
+        }
+    }
+
+    private String receiveInventory(String productId, BigDecimal quantity) {
+        Map serviceResult = dispatcher.runSync('createInventoryItem', [productId: productId, facilityId: 'WebStoreWarehouse',
+                inventoryItemTypeId: 'NON_SERIAL_INV_ITEM', statusId: 'INV_AVAILABLE', userLogin: userLogin])
+        assert ServiceUtil.isSuccess(serviceResult)
+        String inventoryItemId = serviceResult.inventoryItemId
+        serviceResult = dispatcher.runSync('createInventoryItemDetail', [inventoryItemId: inventoryItemId, availableToPromiseDiff: quantity,
+                quantityOnHandDiff: quantity, accountingQuantityDiff: quantity, userLogin: userLogin])
+        assert ServiceUtil.isSuccess(serviceResult)
+        return inventoryItemId
+    }
+
+    /** Checks the summary and its use by getInventoryAvailableByFacility against the totals summed from the items. */
+    private void assertSummaryMatchesLive(String productId, String facilityId, BigDecimal quantityOnHand, BigDecimal availableToPromise) {
+        Map serviceCtx = [productId: productId, facilityId: facilityId, userLogin: userLogin]
+        Map summaryResult = dispatcher.runSync('getInventoryAvailableByFacility', serviceCtx)
+        UtilProperties.setPropertyValueInMemory('catalog', 'inventory.availability.summary.enable', 'N')
+        Map liveResult
+        try {
+            liveResult = dispatcher.runSync('getInventoryAvailableByFacility', serviceCtx)
+        } finally {
+            UtilProperties.setPropertyValueInMemory('catalog', 'inventory.availability.summary.enable', 'Y')
+        }
+        assert liveResult.quantityOnHandTotal == quantityOnHand
+        assert liveResult.availableToPromiseTotal == availableToPromise
+
+        GenericValue summary = from('ProductFacilityAvailability').where('productId', productId, 'facilityId', facilityId).queryOne()
+        ['quantityOnHandTotal', 'availableToPromiseTotal', 'accountingQuantityTotal'].each { fieldName ->
+            assert summary[fieldName] == liveResult[fieldName]
+            assert summaryResult[fieldName] == liveResult[fieldName]
+        }
+    }
+
     // Test Physical Inventory Adjustment
     void testCreatePhysicalInventoryAndVariance() {
         Map serviceCtx = [
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.product.product.test
+
+import org.apache.ofbiz.base.util.UtilProperties
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.product.product.KeywordIndex
+import org.apache.ofbiz.product.product.KeywordIndexQueue
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class KeywordIndexQueueTests extends OFBizTestCase {
+
+    private static final List<String> PROPERTIES = ['index.queue.enable', 'index.queue.delay', 'index.queue.batch.size',
+            'index.queue.workers', 'index.queue.max.failures']
+
+    KeywordIndexQueueTests(String name) {
+        super(name)
+    }
+
+    /**
+     * A changed product is queued once, is only indexed once it is due, and its keywords are then the ones the direct
+     * indexing gives, also when it changes again after being indexed.
+     */
+    void testQueuedProductsAreIndexedWhenDue() {
+        withQueue([delay: '3600000', batchSize: '200', workers: '1']) {
+            createProduct('KIQ-1', 'Queued kiqalpha widget')
+            GenericValue queueEntry = from('ProductKeywordIndexQueue').where('productId', 'KIQ-1').queryOne()
+            assert queueEntry.firstQueuedDate
+
+            // queued again: one entry, still first queued at the same date
+            GenericValue product = from('Product').where('productId', 'KIQ-1').queryOne()
+            product.productName = 'Queued kiqbeta widget'
+            product.store()
+            GenericValue requeuedEntry = from('ProductKeywordIndexQueue').where('productId', 'KIQ-1').queryOne()
+            assert requeuedEntry.firstQueuedDate == queueEntry.firstQueuedDate
+            assert !requeuedEntry.queuedDate.before(queueEntry.queuedDate)
+
+            // not due yet
+            KeywordIndexQueue.processQueue(delegator)
+            assert from('ProductKeywordIndexQueue').where('productId', 'KIQ-1').queryOne()
+            assert !getKeywords('KIQ-1')
+
+            UtilProperties.setPropertyValueInMemory('prodsearch', 'index.queue.delay', '0')
+            KeywordIndexQueue.processQueue(delegator)
+            assert !from('ProductKeywordIndexQueue').where('productId', 'KIQ-1').queryOne()
+            assert getKeywords('KIQ-1').contains('kiqbeta')
+            assert getKeywords('KIQ-1') == makeKeywords('KIQ-1')
+
+            // the keywords of the old name are removed
+            product.refresh()
+            product.productName = 'Queued kiqgamma widget'
+            product.store()
+            KeywordIndexQueue.processQueue(delegator)
+            assert !getKeywords('KIQ-1').contains('kiqbeta')
+            assert getKeywords('KIQ-1') == makeKeywords('KIQ-1')
+        }
+    }
+
+    /** The queued products are all indexed when there are more of them than the workers take in one round. */
+    void testQueueIsIndexedInBatches() {
+        withQueue([delay: '0', batchSize: '2', workers: '2']) {
+            List<String> productIds = (1..7).collect { "KIQ-B${it}".toString() }
+            productIds.each { productId ->
+                createProduct(productId, "Batched kiqdelta ${productId}")
+            }
+            KeywordIndexQueue.processQueue(delegator)
+            productIds.each { productId ->
+                assert !from('ProductKeywordIndexQueue').where('productId', productId).queryOne()
+                assert getKeywords(productId).contains('kiqdelta')
+                assert getKeywords(productId) == makeKeywords(productId)
+            }
+        }
+    }
+
+    /**
+     * A product which failed to be indexed index.queue.max.failures times stays queued and is not indexed, until it is
+     * queued again.
+     */
+    void testFailedProductsAreCapped() {
+        withQueue([delay: '0', batchSize: '200', workers: '1', maxFailures: '3']) {
+            createProduct('KIQ-F1', 'Capped kiqepsilon widget')
+            createProduct('KIQ-F2', 'Retried kiqepsilon widget')
+            GenericValue capped = from('ProductKeywordIndexQueue').where('productId', 'KIQ-F1').queryOne()
+            capped.failureCount = 3L
+            capped.store()
+            GenericValue retried = from('ProductKeywordIndexQueue').where('productId', 'KIQ-F2').queryOne()
+            retried.failureCount = 2L
+            retried.store()
+
+            KeywordIndexQueue.processQueue(delegator)
+            assert from('ProductKeywordIndexQueue').where('productId', 'KIQ-F1').queryOne().failureCount == 3
+            assert !getKeywords('KIQ-F1')
+            assert !from('ProductKeywordIndexQueue').where('productId', 'KIQ-F2').queryOne()
+            assert getKeywords('KIQ-F2') == makeKeywords('KIQ-F2')
+
+            // queued again, the failures are forgotten
+            KeywordIndexQueue.enqueue(delegator, 'KIQ-F1')
+            assert !from('ProductKeywordIndexQueue').where('productId', 'KIQ-F1').queryOne().failureCount
+            KeywordIndexQueue.processQueue(delegator)
+            assert !from('ProductKeywordIndexQueue').where('productId', 'KIQ-F1').queryOne()
+            assert getKeywords('KIQ-F1') == makeKeywords('KIQ-F1')
+        }
+    }
+
+    private void withQueue(Map<String, String> settings, Closure test) {
+        Map<String, String> saved = PROPERTIES.collectEntries { [it, UtilProperties.getPropertyValue('prodsearch', it)] }
+        try {
+            UtilProperties.setPropertyValueInMemory('prodsearch', 'index.queue.enable', 'true')
+            UtilProperties.setPropertyValueInMemory('prodsearch', 'index.queue.delay', settings.delay)
+            UtilProperties.setPropertyValueInMemory('prodsearch', 'index.queue.batch.size', settings.batchSize)
+            UtilProperties.setPropertyValueInMemory('prodsearch', 'index.queue.workers', settings.workers)
+            UtilProperties.setPropertyValueInMemory('prodsearch', 'index.queue.max.failures', settings.maxFailures ?: '5')
+            test()
+        } finally {
+            saved.each { name, value ->
+                UtilProperties.setPropertyValueInMemory('prodsearch', name, value)
+            }
+        }
+    }
+
+    private void createProduct(String productId, String productName) {
+        delegator.create('Product', [productId: productId, productTypeId: 'FINISHED_GOOD', isVariant: 'N', internalName: productId,
+                productName: productName])
+    }
+
+    private Set<String> getKeywords(String productId) {
+        return from('ProductKeyword').where('productId', productId, 'keywordTypeId', 'KWT_KEYWORD').queryList()*.keyword as Set
+    }
+
+    private Set<String> makeKeywords(String productId) {
+        return KeywordIndex.makeKeywords(from('Product').where('productId', productId).queryOne(), false).keySet()
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.product.product.test
+
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.entity.transaction.TransactionUtil
+import org.apache.ofbiz.product.product.ProductCalculatedInfoCounters
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class ProductCalculatedInfoCountersTests extends OFBizTestCase {
+
+    ProductCalculatedInfoCountersTests(String name) {
+        super(name)
+    }
+
+    /**
+     * The increments of a committed transaction are added to the stored counters by the flush, those of a rolled back
+     * transaction are dropped.
+     */
+    void testFlushAddsCommittedIncrements() {
+        delegator.create('Product', [productId: 'PCIC-1', productTypeId: 'FINISHED_GOOD', internalName: 'PCIC-1'])
+        delegator.create('ProductCalculatedInfo', [productId: 'PCIC-1', totalQuantityOrdered: 10.0, totalTimesViewed: 5L])
+
+        boolean beganTransaction = TransactionUtil.begin()
+        ProductCalculatedInfoCounters.addQuantityOrdered(delegator, 'PCIC-1', 1.5)
+        ProductCalculatedInfoCounters.addQuantityOrdered(delegator, 'PCIC-1', 2.25)
+        ProductCalculatedInfoCounters.addTimesViewed(delegator, 'PCIC-1', 3L)
+        TransactionUtil.commit(beganTransaction)
+
+        beganTransaction = TransactionUtil.begin()
+        ProductCalculatedInfoCounters.addQuantityOrdered(delegator, 'PCIC-1', 100.0)
+        ProductCalculatedInfoCounters.addTimesViewed(delegator, 'PCIC-1', 100L)
+        TransactionUtil.rollback(beganTransaction, 'Dropping the increments', null)
+
+        // outside of a transaction the increments are counted at once
+        ProductCalculatedInfoCounters.addQuantityOrdered(delegator, 'PCIC-1', -1.0)
+        ProductCalculatedInfoCounters.addTimesViewed(delegator, 'PCIC-1', 4L)
+
+        ProductCalculatedInfoCounters.flush()
+        GenericValue productCalculatedInfo = from('ProductCalculatedInfo').where('productId', 'PCIC-1').queryOne()
+        assert productCalculatedInfo.totalQuantityOrdered == 12.75
+        assert productCalculatedInfo.totalTimesViewed == 12
+
+        // nothing is added twice
+        ProductCalculatedInfoCounters.flush()
+        productCalculatedInfo.refresh()
+        assert productCalculatedInfo.totalQuantityOrdered == 12.75
+        assert productCalculatedInfo.totalTimesViewed == 12
+    }
+
+    /** The increments which cannot be stored are kept and stored by a later flush, with the increments made meanwhile. */
+    void testFailedFlushKeepsIncrements() {
+        // the ProductCalculatedInfo of a product which does not exist yet cannot be created
+        ProductCalculatedInfoCounters.addQuantityOrdered(delegator, 'PCIC-2', 2.0)
+        ProductCalculatedInfoCounters.addTimesViewed(delegator, 'PCIC-2', 1L)
+        ProductCalculatedInfoCounters.flush()
+        assert !from('ProductCalculatedInfo').where('productId', 'PCIC-2').queryOne()
+
+        ProductCalculatedInfoCounters.addQuantityOrdered(delegator, 'PCIC-2', 0.5)
+        delegator.create('Product', [productId: 'PCIC-2', productTypeId: 'FINISHED_GOOD', internalName: 'PCIC-2'])
+        ProductCalculatedInfoCounters.flush()
+        GenericValue productCalculatedInfo = from('ProductCalculatedInfo').where('productId', 'PCIC-2').queryOne()
+        assert productCalculatedInfo.totalQuantityOrdered == 2.5
+        assert productCalculatedInfo.totalTimesViewed == 1
+    }
+}
@@ -18,6 +18,10 @@
  *******************************************************************************/
 package org.apache.ofbiz.product.product.test
 
+import java.sql.Timestamp
+
+import org.apache.ofbiz.base.util.UtilDateTime
+import org.apache.ofbiz.base.util.UtilProperties
 import org.apache.ofbiz.entity.GenericValue
 import org.apache.ofbiz.service.ServiceUtil
 import org.apache.ofbiz.service.testtools.OFBizTestCase
@@ -63,4 +67,104 @@ class ProductPriceTests extends OFBizTestCase {
         assert resultMap.defaultPrice == 10
     }
 
+    /**
+     * The price rules found and evaluated with the compiled index give the same prices as the rules read from the
+     * database, for rules on the product, the category, the party and the quantity, and for expired and future rules.
+     */
+    void testPriceRuleIndexMatchesRuleQueries() {
+        Timestamp now = UtilDateTime.nowTimestamp()
+        delegator.create('ProductCategory', [productCategoryId: 'PPRI-CAT', productCategoryTypeId: 'CATALOG_CATEGORY'])
+        ['PPRI-P1', 'PPRI-P2', 'PPRI-P3'].each { productId ->
+            delegator.create('Product', [productId: productId, productTypeId: 'FINISHED_GOOD', internalName: productId])
+            [DEFAULT_PRICE: 100.0, LIST_PRICE: 120.0].each { productPriceTypeId, price ->
+                delegator.create('ProductPrice', [productId: productId, productPriceTypeId: productPriceTypeId, productPricePurposeId: 'PURCHASE',
+                        currencyUomId: 'USD', productStoreGroupId: '_NA_', fromDate: now, price: price])
+            }
+        }
+        ['PPRI-P1', 'PPRI-P2'].each { productId ->
+            delegator.create('ProductCategoryMember', [productCategoryId: 'PPRI-CAT', productId: productId, fromDate: now])
+        }
+        createRule('PPRI-PRODUCT', null, null, [['PRIP_PRODUCT_ID', 'PRC_EQ', 'PPRI-P1']], 'PRICE_POL', -10.0)
+        createRule('PPRI-CATEGORY', null, null, [['PRIP_PROD_CAT_ID', 'PRC_EQ', 'PPRI-CAT']], 'PRICE_FOL', -5.0)
+        createRule('PPRI-PARTY', null, null, [['PRIP_PROD_CAT_ID', 'PRC_EQ', 'PPRI-CAT'], ['PRIP_PARTY_ID', 'PRC_EQ', 'DemoCustomer']],
+                'PRICE_FOL', -3.0)
+        createRule('PPRI-QUANTITY', null, null, [['PRIP_PRODUCT_ID', 'PRC_EQ', 'PPRI-P2'], ['PRIP_QUANTITY', 'PRC_GTE', '10']],
+                'PRICE_FOL', -7.0)
+        createRule('PPRI-NOT-P3', null, null, [['PRIP_PROD_CAT_ID', 'PRC_EQ', 'PPRI-CAT'], ['PRIP_PRODUCT_ID', 'PRC_NEQ', 'PPRI-P1']],
+                'PRICE_FOL', -2.0)
+        createRule('PPRI-EXPIRED', UtilDateTime.addDaysToTimestamp(now, -10), UtilDateTime.addDaysToTimestamp(now, -1),
+                [['PRIP_PRODUCT_ID', 'PRC_EQ', 'PPRI-P1']], 'PRICE_FOL', -50.0)
+        createRule('PPRI-FUTURE', UtilDateTime.addDaysToTimestamp(now, 1), null, [['PRIP_PRODUCT_ID', 'PRC_EQ', 'PPRI-P2']],
+                'PRICE_FOL', -50.0)
+
+        String indexEnable = UtilProperties.getPropertyValue('catalog', 'price.rule.index.enable', 'N')
+        try {
+            [['PPRI-P1', 'PPRI-P2', 'PPRI-P3'], [null, 'DemoCustomer'], [1.0, 10.0]].combinations().each { productId, partyId, quantity ->
+                GenericValue product = from('Product').where('productId', productId).queryOne()
+                Map serviceCtx = [product: product, partyId: partyId, quantity: quantity]
+
+                UtilProperties.setPropertyValueInMemory('catalog', 'price.rule.index.enable', 'N')
+                Map<String, Object> rulePrices = getRulePrices(serviceCtx)
+                assert getRulePrices(serviceCtx + [optimizeForLargeRuleSet: 'Y']) == rulePrices
+
+                UtilProperties.setPropertyValueInMemory('catalog', 'price.rule.index.enable', 'Y')
+                assert getRulePrices(serviceCtx) == rulePrices
+            }
+        } finally {
+            UtilProperties.setPropertyValueInMemory('catalog', 'price.rule.index.enable', indexEnable)
+        }
+
+        // the rules do apply, from the list price of 120
+        Map serviceCtx = [product: from('Product').where('productId', 'PPRI-P1').queryOne(), partyId: 'DemoCustomer']
+        assert getRulePrices(serviceCtx).rules == ['PPRI-CATEGORY', 'PPRI-PARTY', 'PPRI-PRODUCT']
+        assert getRulePrices(serviceCtx).price == 100
+        serviceCtx = [product: from('Product').where('productId', 'PPRI-P2').queryOne(), quantity: 10.0]
+        assert getRulePrices(serviceCtx).rules == ['PPRI-CATEGORY', 'PPRI-NOT-P3', 'PPRI-QUANTITY']
+        assert getRulePrices(serviceCtx).price == 106
+    }
+
+    /**
+     * The prices calculated for a list of products are the ones calculated for each product, for simple, variant and
+     * virtual products, with and without a party, and products which are not found are skipped.
+     */
+    void testCalculateProductPricesMatchesCalculateProductPrice() {
+        List<String> productIds = ['GZ-2002', 'GZ-1006-3', 'GZ-1006', 'DemoProduct', 'WG-1111', 'NOT-A-PRODUCT']
+        [[:], [partyId: 'DemoCustomer', productStoreId: '9000'], [quantity: 10.0, currencyUomId: 'USD']].each { priceCtx ->
+            Map resultMap = dispatcher.runSync('calculateProductPrices', priceCtx + [productIds: productIds])
+            assert ServiceUtil.isSuccess(resultMap)
+            Map<String, Map<String, Object>> productPrices = resultMap.productPrices
+            assert productPrices.keySet() as List == productIds - 'NOT-A-PRODUCT'
+
+            productPrices.each { productId, productPrice ->
+                GenericValue product = from('Product').where('productId', productId).queryOne()
+                Map expected = dispatcher.runSync('calculateProductPrice', priceCtx + [product: product])
+                assert ServiceUtil.isSuccess(expected)
+                ['price', 'basePrice', 'defaultPrice', 'listPrice', 'competitivePrice', 'averageCost', 'promoPrice', 'specialPromoPrice',
+                 'isSale', 'validPriceFound', 'currencyUsed'].each { key ->
+                    assert productPrice[key] == expected[key], "${key} of ${productId}"
+                }
+                assert productPrice.orderItemPriceInfos*.productPriceRuleId == expected.orderItemPriceInfos*.productPriceRuleId
+            }
+        }
+    }
+
+    private void createRule(String productPriceRuleId, Timestamp fromDate, Timestamp thruDate, List<List<String>> conds,
+            String productPriceActionTypeId, BigDecimal amount) {
+        delegator.create('ProductPriceRule', [productPriceRuleId: productPriceRuleId, ruleName: productPriceRuleId, isSale: 'N',
+                fromDate: fromDate ?: UtilDateTime.nowTimestamp(), thruDate: thruDate])
+        conds.eachWithIndex { cond, index ->
+            delegator.create('ProductPriceCond', [productPriceRuleId: productPriceRuleId, productPriceCondSeqId: String.format('%02d', index + 1),
+                    inputParamEnumId: cond[0], operatorEnumId: cond[1], condValue: cond[2]])
+        }
+        delegator.create('ProductPriceAction', [productPriceRuleId: productPriceRuleId, productPriceActionSeqId: '01',
+                productPriceActionTypeId: productPriceActionTypeId, amount: amount])
+    }
+
+    /** Gets the price calculated by the rules and the rules applied. */
+    private Map<String, Object> getRulePrices(Map serviceCtx) {
+        Map resultMap = dispatcher.runSync('calculateProductPrice', serviceCtx)
+        assert ServiceUtil.isSuccess(resultMap)
+        return [price: resultMap.price, basePrice: resultMap.basePrice, isSale: resultMap.isSale, validPriceFound: resultMap.validPriceFound,
+                rules: resultMap.orderItemPriceInfos*.productPriceRuleId.sort()]
+    }
 }
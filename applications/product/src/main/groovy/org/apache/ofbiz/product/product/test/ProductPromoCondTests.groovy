@@ -22,6 +22,8 @@ import java.sql.Timestamp
 import org.apache.ofbiz.base.util.UtilDateTime
 import org.apache.ofbiz.entity.GenericValue
 import org.apache.ofbiz.order.shoppingcart.ShoppingCart
+import org.apache.ofbiz.order.shoppingcart.product.ProductPromoModel
+import org.apache.ofbiz.order.shoppingcart.product.ProductPromoWorker
 import org.apache.ofbiz.service.testtools.OFBizTestCase
 import org.apache.ofbiz.service.ServiceUtil
 
@@ -348,6 +350,43 @@ class ProductPromoCondTests extends OFBizTestCase {
         assert serviceResult.compareBase < 0
     }
 
+    /**
+     * This test check that the product set of a condition is the one effective at the evaluation time
+     *  1. the compiled model only returns its product set for the time it was compiled at
+     *  2. for a later time the set includes the category members effective at that time
+     */
+    void testPromoCondProductIdsAtEvaluationTime() {
+        Timestamp nowTimestamp = UtilDateTime.nowTimestamp()
+        Timestamp tomorrow = UtilDateTime.addDaysToTimestamp(nowTimestamp, 1)
+        Timestamp nextWeek = UtilDateTime.addDaysToTimestamp(nowTimestamp, 7)
+        delegator.createOrStore(delegator.makeValue('ProductCategory', [productCategoryId: 'TEST_PROMO_DATES',
+                productCategoryTypeId: 'CATALOG_CATEGORY']))
+        delegator.createOrStore(delegator.makeValue('ProductCategoryMember', [productCategoryId: 'TEST_PROMO_DATES', productId: 'GZ-2644',
+                fromDate: Timestamp.valueOf('2010-01-01 00:00:00')]))
+        delegator.createOrStore(delegator.makeValue('ProductCategoryMember', [productCategoryId: 'TEST_PROMO_DATES', productId: 'WG-1111',
+                fromDate: tomorrow]))
+        delegator.createOrStore(delegator.makeValue('ProductPromo', [productPromoId: 'TEST_PROMO_DATES']))
+        delegator.createOrStore(delegator.makeValue('ProductPromoRule', [productPromoId: 'TEST_PROMO_DATES', productPromoRuleId: '01']))
+        GenericValue productPromoCond = delegator.makeValue('ProductPromoCond', [productPromoId: 'TEST_PROMO_DATES', productPromoRuleId: '01',
+                productPromoCondSeqId: '01', inputParamEnumId: 'PPIP_PRODUCT_QUANT', operatorEnumId: 'PPC_GTE', condValue: '1'])
+        delegator.createOrStore(productPromoCond)
+        delegator.createOrStore(delegator.makeValue('ProductPromoCategory', [productPromoId: 'TEST_PROMO_DATES', productPromoRuleId: '_NA_',
+                productPromoActionSeqId: '_NA_', productPromoCondSeqId: '_NA_', productCategoryId: 'TEST_PROMO_DATES', andGroupId: '_NA_',
+                productPromoApplEnumId: 'PPPA_INCLUDE', includeSubCategories: 'N']))
+
+        ProductPromoModel promoModel = ProductPromoModel.getInstance(delegator, 'TEST_PROMO_DATES')
+        assert promoModel.isValidAt(nowTimestamp)
+        assert promoModel.getCondProductIds(productPromoCond, nowTimestamp) == ['GZ-2644'] as Set
+        assert !promoModel.isValidAt(nextWeek)
+        assert promoModel.getCondProductIds(productPromoCond, nextWeek) == null
+        // the compiled set cannot tell that the promotion does not apply next week
+        assert promoModel.canApply(['WG-1111'] as Set, nextWeek)
+        assert !promoModel.canApply(['WG-1111'] as Set, nowTimestamp)
+
+        assert ProductPromoWorker.getPromoRuleCondProductIds(productPromoCond, delegator, nowTimestamp) == ['GZ-2644'] as Set
+        assert ProductPromoWorker.getPromoRuleCondProductIds(productPromoCond, delegator, nextWeek) == ['GZ-2644', 'WG-1111'] as Set
+    }
+
     private Map prepareConditionMap(ShoppingCart cart, String condValue) {
         return prepareConditionMap(cart, condValue, false)
     }
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.product.product.test
+
+import org.apache.ofbiz.base.util.UtilDateTime
+import org.apache.ofbiz.base.util.UtilProperties
+import org.apache.ofbiz.entity.GenericValue
+import org.apache.ofbiz.entity.condition.EntityCondition
+import org.apache.ofbiz.product.product.KeywordIndex
+import org.apache.ofbiz.product.product.ProductSearch
+import org.apache.ofbiz.product.product.ProductSearch.CategoryConstraint
+import org.apache.ofbiz.product.product.ProductSearch.KeywordConstraint
+import org.apache.ofbiz.product.product.ProductSearch.ResultSortOrder
+import org.apache.ofbiz.product.product.ProductSearch.SortProductPrice
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class ProductSearchCacheTests extends OFBizTestCase {
+
+    ProductSearchCacheTests(String name) {
+        super(name)
+    }
+
+    /**
+     * A change of a price, a keyword or a category member only removes the cached searches depending on it, also when
+     * the keywords are removed by condition when a product is indexed again.
+     * <p>
+     * The records removed by condition without clearing the cache are not seen by the searches still cached, which
+     * tells the cached searches from the searches run again.
+     */
+    void testChangesEvictOnlyAffectedSearches() {
+        delegator.create('ProductCategory', [productCategoryId: 'SCT-CAT', productCategoryTypeId: 'CATALOG_CATEGORY'])
+        createProduct('SCT-1', 10.0, ['sctalpha'], true)
+        createProduct('SCT-2', 20.0, ['sctbeta'], true)
+        createProduct('SCT-3', 30.0, ['sctalpha', 'sctbeta'], false)
+        createProduct('SCT-P', 40.0, ['sctalpha', 'sctbeta'], true)
+
+        String cacheEnable = UtilProperties.getPropertyValue('prodsearch', 'search.result.cache.enable', 'false')
+        String deleteOnIndex = UtilProperties.getPropertyValue('prodsearch', 'index.delete.on_index', 'false')
+        try {
+            UtilProperties.setPropertyValueInMemory('prodsearch', 'search.result.cache.enable', 'true')
+            UtilProperties.setPropertyValueInMemory('prodsearch', 'index.delete.on_index', 'true')
+            assert searchAlpha() == ['SCT-1', 'SCT-3', 'SCT-P'] as Set
+            assert searchCategory() == ['SCT-1', 'SCT-2', 'SCT-P'] as Set
+            assert searchBetaByPrice() == ['SCT-2', 'SCT-3', 'SCT-P']
+
+            // SCT-P is still found by the cached searches
+            removeSilently('ProductKeyword', 'SCT-P')
+            removeSilently('ProductCategoryMember', 'SCT-P')
+            assert searchAlpha() == ['SCT-1', 'SCT-3', 'SCT-P'] as Set
+            assert searchCategory() == ['SCT-1', 'SCT-2', 'SCT-P'] as Set
+            assert searchBetaByPrice() == ['SCT-2', 'SCT-3', 'SCT-P']
+
+            // a price only removes the searches sorted or constrained by price
+            GenericValue listPrice = from('ProductPrice').where('productId', 'SCT-1', 'productPriceTypeId', 'LIST_PRICE').queryFirst()
+            listPrice.price = 50.0
+            listPrice.store()
+            assert searchBetaByPrice() == ['SCT-2', 'SCT-3']
+            assert searchAlpha() == ['SCT-1', 'SCT-3', 'SCT-P'] as Set
+            assert searchCategory() == ['SCT-1', 'SCT-2', 'SCT-P'] as Set
+
+            // a keyword only removes the searches on that keyword
+            delegator.create('ProductKeyword', [productId: 'SCT-2', keyword: 'sctalpha', keywordTypeId: 'KWT_KEYWORD', relevancyWeight: 1L])
+            assert searchAlpha() == ['SCT-1', 'SCT-2', 'SCT-3'] as Set
+            assert searchCategory() == ['SCT-1', 'SCT-2', 'SCT-P'] as Set
+
+            // a category member only removes the searches on that category
+            delegator.removeByCondition('ProductKeyword', EntityCondition.makeCondition([productId: 'SCT-2', keyword: 'sctalpha']))
+            from('ProductCategoryMember').where('productCategoryId', 'SCT-CAT', 'productId', 'SCT-1').queryFirst().remove()
+            assert searchCategory() == ['SCT-2'] as Set
+            assert searchAlpha() == ['SCT-1', 'SCT-2', 'SCT-3'] as Set
+
+            // indexing SCT-3 again removes its keywords by condition and the searches on them
+            KeywordIndex.forceIndexKeywords(from('Product').where('productId', 'SCT-3').queryOne())
+            assert !from('ProductKeyword').where('productId', 'SCT-3', 'keyword', 'sctalpha').queryOne()
+            assert searchAlpha() == ['SCT-1'] as Set
+            assert searchBetaByPrice() == ['SCT-2']
+            assert searchCategory() == ['SCT-2'] as Set
+        } finally {
+            UtilProperties.setPropertyValueInMemory('prodsearch', 'search.result.cache.enable', cacheEnable)
+            UtilProperties.setPropertyValueInMemory('prodsearch', 'index.delete.on_index', deleteOnIndex)
+        }
+    }
+
+    private void createProduct(String productId, BigDecimal price, List<String> keywords, boolean categoryMember) {
+        delegator.create('Product', [productId: productId, productTypeId: 'FINISHED_GOOD', isVariant: 'N', internalName: productId,
+                productName: 'Sctgamma', autoCreateKeywords: 'N'])
+        delegator.create('ProductPrice', [productId: productId, productPriceTypeId: 'LIST_PRICE', productPricePurposeId: 'PURCHASE',
+                currencyUomId: 'USD', productStoreGroupId: '_NA_', fromDate: UtilDateTime.nowTimestamp(), price: price])
+        keywords.each { keyword ->
+            delegator.create('ProductKeyword', [productId: productId, keyword: keyword, keywordTypeId: 'KWT_KEYWORD', relevancyWeight: 1L])
+        }
+        if (categoryMember) {
+            delegator.create('ProductCategoryMember', [productCategoryId: 'SCT-CAT', productId: productId,
+                    fromDate: UtilDateTime.nowTimestamp()])
+        }
+    }
+
+    /** Removes records of a product by condition, which does not clear the cached search results. */
+    private void removeSilently(String entityName, String productId) {
+        delegator.removeByCondition(entityName, EntityCondition.makeCondition('productId', productId))
+    }
+
+    private Set<String> searchAlpha() {
+        return search([new KeywordConstraint('sctalpha', false, false, false, true)], null) as Set
+    }
+
+    private Set<String> searchCategory() {
+        return search([new CategoryConstraint('SCT-CAT', false, false)], null) as Set
+    }
+
+    private List<String> searchBetaByPrice() {
+        return search([new KeywordConstraint('sctbeta', false, false, false, true)], new SortProductPrice('LIST_PRICE', true))
+    }
+
+    private List<String> search(List constraints, ResultSortOrder resultSortOrder) {
+        return ProductSearch.searchProducts(constraints, resultSortOrder, delegator, null)
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.product.product.test
+
+import org.apache.ofbiz.entity.util.EntityListIterator
+import org.apache.ofbiz.product.product.ProductSearch.KeywordConstraint
+import org.apache.ofbiz.product.product.ProductSearch.ProductSearchConstraint
+import org.apache.ofbiz.product.product.ProductSearch.ProductSearchContext
+import org.apache.ofbiz.product.product.ProductSearchIndex
+import org.apache.ofbiz.service.testtools.OFBizTestCase
+
+class ProductSearchIndexTests extends OFBizTestCase {
+
+    ProductSearchIndexTests(String name) {
+        super(name)
+    }
+
+    /**
+     * The in-memory index must find the same products as the SQL search, the keyword types of the search only
+     * restricting the single keywords.
+     */
+    void testIndexMatchesSqlSearchWithKeywordTypes() {
+        createProduct('SIDX-1', [sidxalpha: 'KWT_KEYWORD', sidxbeta: 'KWT_TAG'])
+        createProduct('SIDX-2', [sidxalpha: 'KWT_TAG', sidxbeta: 'KWT_KEYWORD'])
+        createProduct('SIDX-3', [sidxgamma: 'KWT_KEYWORD'])
+        ProductSearchIndex.rebuild(delegator)
+
+        List<List<ProductSearchConstraint>> searches = [
+            [andKeywords('sidxalpha')],
+            [andKeywords('sidxalpha sidxbeta')],
+            [orKeywords('sidxalpha sidxgamma')],
+            [orKeywords('sidxbeta')],
+            [andKeywords('sidxalpha'), orKeywords('sidxbeta sidxgamma')]
+        ]
+        for (List<ProductSearchConstraint> constraints : searches) {
+            for (List<String> keywordTypeIds : [[], ['KWT_KEYWORD'], ['KWT_TAG']]) {
+                List<String> indexProductIds = searchIndex(constraints, keywordTypeIds)
+                assert indexProductIds != null
+                assert indexProductIds.sort() == searchSql(constraints, keywordTypeIds).sort()
+            }
+        }
+        assert searchIndex([andKeywords('sidxalpha')], ['KWT_KEYWORD']) == ['SIDX-1']
+        assert searchIndex([orKeywords('sidxalpha sidxgamma')], ['KWT_KEYWORD']).sort() == ['SIDX-1', 'SIDX-2', 'SIDX-3']
+    }
+
+    private void createProduct(String productId, Map<String, String> keywordTypes) {
+        delegator.create('Product', [productId: productId, productTypeId: 'FINISHED_GOOD', isVariant: 'N',
+                internalName: productId])
+        keywordTypes.each { keyword, keywordTypeId ->
+            delegator.create('ProductKeyword', [productId: productId, keyword: keyword, keywordTypeId: keywordTypeId,
+                    relevancyWeight: 1L])
+        }
+    }
+
+    private static KeywordConstraint andKeywords(String keywords) {
+        return new KeywordConstraint(keywords, false, false, false, true)
+    }
+
+    private static KeywordConstraint orKeywords(String keywords) {
+        return new KeywordConstraint(keywords, false, false, false, false)
+    }
+
+    private ProductSearchContext makeContext(List<ProductSearchConstraint> constraints, List<String> keywordTypeIds) {
+        ProductSearchContext productSearchContext = new ProductSearchContext(delegator, null)
+        productSearchContext.setKeywordTypeIds(keywordTypeIds)
+        productSearchContext.addProductSearchConstraints(constraints)
+        return productSearchContext
+    }
+
+    private List<String> searchIndex(List<ProductSearchConstraint> constraints, List<String> keywordTypeIds) {
+        return new ProductSearchIndex().search(makeContext(constraints, keywordTypeIds))
+    }
+
+    private List<String> searchSql(List<ProductSearchConstraint> constraints, List<String> keywordTypeIds) {
+        ProductSearchContext productSearchContext = makeContext(constraints, keywordTypeIds)
+        EntityListIterator eli = productSearchContext.doQuery(delegator)
+        try {
+            return productSearchContext.makeProductIdList(eli)
+        } finally {
+            eli.close()
+        }
+    }
+}
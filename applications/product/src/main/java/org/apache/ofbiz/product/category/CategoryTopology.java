@@ -0,0 +1,558 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.product.category;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityListIterator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * In-memory category tree of a delegator.
+ * <p>
+ * The topology holds the ProductCategoryRollup graph with the effective dates of each link, the sub-categories of
+ * each category as a bitmap valid until the next link starts or ends, the number of members and sub-categories of
+ * each category, and the current category memberships of each product. Walking the category tree or checking a
+ * membership is then done without querying the entity engine.
+ * <p>
+ * The topology is used when <code>category.topology.enable</code> is set in <code>catalog.properties</code>. It is
+ * built in the background on first use, the callers query the database until it is ready. The
+ * {@link #updateCategoryTopology} service, run by the entity ECAs, marks the graph as changed on category and
+ * rollup changes, and the product as changed on member changes; they are read again on next use after the commit.
+ */
+public final class CategoryTopology {
+
+    private static final String MODULE = CategoryTopology.class.getName();
+    private static final Map<String, CategoryTopology> TOPOLOGIES = new ConcurrentHashMap<>();
+    private static final ExecutorService BUILDER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "OFBiz-category-topology");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicBoolean building = new AtomicBoolean();
+    private final Set<String> changedProductIds = ConcurrentHashMap.newKeySet();
+    private volatile boolean graphChanged = false;
+    private volatile Graph graph;
+    private final Map<String, Membership> memberships = new ConcurrentHashMap<>();
+    private final Map<String, Integer> memberCounts = new ConcurrentHashMap<>();
+    // the products having a membership starting or ending, by time, guarded by this
+    private final TreeMap<Long, Set<String>> memberBoundaries = new TreeMap<>();
+    private volatile long nextMemberBoundary = Long.MAX_VALUE;
+
+    private CategoryTopology() { }
+
+    /**
+     * Tells if the category tree is kept in memory.
+     * @return {@code true} when <code>category.topology.enable</code> is set in <code>catalog.properties</code>
+     */
+    public static boolean isEnabled() {
+        return UtilProperties.propertyValueEqualsIgnoreCase("catalog", "category.topology.enable", "Y");
+    }
+
+    /**
+     * Returns the category topology of a delegator, reading again the changes made since it was last used.
+     * @param delegator the delegator
+     * @return the topology, {@code null} when it is not enabled or not built yet
+     */
+    public static CategoryTopology getInstance(Delegator delegator) {
+        if (!isEnabled()) {
+            return null;
+        }
+        CategoryTopology topology = TOPOLOGIES.computeIfAbsent(delegator.getDelegatorName(), k -> new CategoryTopology());
+        if (topology.graph == null) {
+            if (topology.building.compareAndSet(false, true)) {
+                BUILDER.execute(() -> topology.build(delegator));
+            }
+            return null;
+        }
+        topology.update(delegator);
+        return topology;
+    }
+
+    /**
+     * Marks a product, or the category graph when there is no product, as changed once the current transaction is
+     * committed.
+     * @param delegator the delegator
+     * @param productId the product of a changed category member, {@code null} for a category or rollup change
+     */
+    public static void noteChanged(Delegator delegator, String productId) {
+        CategoryTopology topology = TOPOLOGIES.get(delegator.getDelegatorName());
+        if (topology == null) {
+            return;
+        }
+        Runnable markChanged = () -> {
+            if (UtilValidate.isEmpty(productId)) {
+                topology.graphChanged = true;
+            } else {
+                topology.changedProductIds.add(productId);
+            }
+        };
+        try {
+            if (TransactionUtil.isTransactionInPlace()) {
+                TransactionUtil.registerSynchronization(new Synchronization() {
+                    @Override
+                    public void beforeCompletion() {
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        if (status == Status.STATUS_COMMITTED) {
+                            markChanged.run();
+                        }
+                    }
+                });
+                return;
+            }
+        } catch (GenericTransactionException e) {
+            Debug.logWarning(e, "Unable to wait for the transaction end, marking the category topology as changed now", MODULE);
+        }
+        markChanged.run();
+    }
+
+    /**
+     * Marks the category topology as changed, meant to be run as an entity ECA on ProductCategory,
+     * ProductCategoryRollup and ProductCategoryMember.
+     * @param dctx the dispatch context
+     * @param context the service context, with the productId of a changed category member
+     * @return the service result
+     */
+    public static Map<String, Object> updateCategoryTopology(DispatchContext dctx, Map<String, ? extends Object> context) {
+        noteChanged(dctx.getDelegator(), (String) context.get("productId"));
+        return ServiceUtil.returnSuccess();
+    }
+
+    private void build(Delegator delegator) {
+        try {
+            long startMillis = System.currentTimeMillis();
+            // changes made from now on are read again once the topology is built
+            changedProductIds.clear();
+            graphChanged = false;
+            Graph builtGraph = Graph.load(delegator, startMillis);
+
+            Map<String, Membership> builtMemberships = new HashMap<>();
+            Map<String, Integer> builtCounts = new HashMap<>();
+            try (EntityListIterator eli = EntityQuery.use(delegator).select("productId", "productCategoryId", "fromDate", "thruDate")
+                    .from("ProductCategoryMember").orderBy("productId").queryIterator()) {
+                List<GenericValue> productMembers = new LinkedList<>();
+                GenericValue member;
+                while ((member = eli.next()) != null) {
+                    if (!productMembers.isEmpty() && !productMembers.get(0).getString("productId").equals(member.getString("productId"))) {
+                        addMembership(builtMemberships, builtCounts, productMembers, startMillis);
+                        productMembers.clear();
+                    }
+                    productMembers.add(member);
+                }
+                if (!productMembers.isEmpty()) {
+                    addMembership(builtMemberships, builtCounts, productMembers, startMillis);
+                }
+            }
+
+            synchronized (this) {
+                memberships.clear();
+                memberships.putAll(builtMemberships);
+                memberCounts.clear();
+                memberCounts.putAll(builtCounts);
+                memberBoundaries.clear();
+                for (Map.Entry<String, Membership> entry : builtMemberships.entrySet()) {
+                    addBoundary(entry.getKey(), entry.getValue());
+                }
+                nextMemberBoundary = memberBoundaries.isEmpty() ? Long.MAX_VALUE : memberBoundaries.firstKey();
+                graph = builtGraph;
+            }
+            Debug.logInfo("Built the category topology of [" + delegator.getDelegatorName() + "] with " + builtGraph.categoryIds.length
+                    + " categories and " + builtMemberships.size() + " products in " + (System.currentTimeMillis() - startMillis) + "ms",
+                    MODULE);
+        } catch (GenericEntityException | RuntimeException e) {
+            Debug.logError(e, "Unable to build the category topology, querying the categories instead", MODULE);
+        } finally {
+            building.set(false);
+        }
+    }
+
+    private static void addMembership(Map<String, Membership> memberships, Map<String, Integer> counts, List<GenericValue> members,
+            long now) {
+        Membership membership = new Membership(members, now);
+        memberships.put(members.get(0).getString("productId"), membership);
+        for (String productCategoryId : membership.productCategoryIds) {
+            counts.merge(productCategoryId, 1, Integer::sum);
+        }
+    }
+
+    private void addBoundary(String productId, Membership membership) {
+        if (membership.nextBoundary != Long.MAX_VALUE) {
+            memberBoundaries.computeIfAbsent(membership.nextBoundary, k -> new HashSet<>()).add(productId);
+        }
+    }
+
+    private void update(Delegator delegator) {
+        long now = System.currentTimeMillis();
+        if (!graphChanged && changedProductIds.isEmpty() && nextMemberBoundary > now && graph.validUntil > now) {
+            return;
+        }
+        synchronized (this) {
+            if (graphChanged) {
+                graphChanged = false;
+                try {
+                    graph = Graph.load(delegator, now);
+                } catch (GenericEntityException e) {
+                    Debug.logWarning(e, "Unable to read the category rollups, will retry", MODULE);
+                    graphChanged = true;
+                }
+            } else if (graph.validUntil <= now) {
+                graph = graph.at(now);
+            }
+
+            Set<String> productIds = new HashSet<>();
+            Iterator<String> changedIter = changedProductIds.iterator();
+            while (changedIter.hasNext()) {
+                productIds.add(changedIter.next());
+                changedIter.remove();
+            }
+            SortedMap<Long, Set<String>> due = memberBoundaries.headMap(now, true);
+            due.values().forEach(productIds::addAll);
+            due.clear();
+            for (String productId : productIds) {
+                try {
+                    List<GenericValue> members = EntityQuery.use(delegator).select("productId", "productCategoryId", "fromDate", "thruDate")
+                            .from("ProductCategoryMember").where("productId", productId).queryList();
+                    Membership membership = members.isEmpty() ? null : new Membership(members, now);
+                    Membership old = membership == null ? memberships.remove(productId) : memberships.put(productId, membership);
+                    if (old != null) {
+                        for (String productCategoryId : old.productCategoryIds) {
+                            memberCounts.merge(productCategoryId, -1, Integer::sum);
+                        }
+                    }
+                    if (membership != null) {
+                        for (String productCategoryId : membership.productCategoryIds) {
+                            memberCounts.merge(productCategoryId, 1, Integer::sum);
+                        }
+                        addBoundary(productId, membership);
+                    }
+                } catch (GenericEntityException e) {
+                    Debug.logWarning(e, "Unable to read the categories of product [" + productId + "], will retry", MODULE);
+                    changedProductIds.add(productId);
+                }
+            }
+            nextMemberBoundary = memberBoundaries.isEmpty() ? Long.MAX_VALUE : memberBoundaries.firstKey();
+        }
+    }
+
+    /**
+     * Gets the sub-categories of a category, in sequence order.
+     * @param parentProductCategoryId the parent category ID
+     * @param activeOnly if {@code true} only the currently effective rollups are considered
+     * @return the sub-category IDs
+     */
+    public List<String> getChildCategoryIds(String parentProductCategoryId, boolean activeOnly) {
+        Graph current = graph;
+        Integer parent = current.ordinals.get(parentProductCategoryId);
+        if (parent == null) {
+            return Collections.emptyList();
+        }
+        long now = System.currentTimeMillis();
+        List<String> childCategoryIds = new ArrayList<>(current.children[parent].length);
+        for (Rollup rollup : current.children[parent]) {
+            if (!activeOnly || rollup.isActive(now)) {
+                childCategoryIds.add(current.categoryIds[rollup.child]);
+            }
+        }
+        return childCategoryIds;
+    }
+
+    /**
+     * Gets the number of ProductCategoryRollup records having a category as parent, whatever their dates.
+     * @param productCategoryId the category ID
+     * @return the number of sub-category links
+     */
+    public long getRollupCount(String productCategoryId) {
+        Graph current = graph;
+        Integer ordinal = current.ordinals.get(productCategoryId);
+        return ordinal == null ? 0 : current.children[ordinal].length;
+    }
+
+    /**
+     * Gets the number of ProductCategoryMember records of a category, whatever their dates.
+     * @param productCategoryId the category ID
+     * @return the number of members
+     */
+    public long getMemberCount(String productCategoryId) {
+        return memberCounts.getOrDefault(productCategoryId, 0);
+    }
+
+    /**
+     * Adds a category and its sub-categories effective at a moment, recursively, to a set.
+     * @param productCategoryId the category ID
+     * @param productCategoryIds the set to add the category IDs to
+     * @param moment the moment at which the rollups must be effective
+     */
+    public void addSubCategoryIds(String productCategoryId, Set<String> productCategoryIds, Timestamp moment) {
+        productCategoryIds.add(productCategoryId);
+        Graph current = graph;
+        Integer ordinal = current.ordinals.get(productCategoryId);
+        if (ordinal == null) {
+            return;
+        }
+        long time = moment.getTime();
+        BitSet descendants = current.isValidAt(time) ? current.descendants[ordinal] : current.descendantsAt(ordinal, time);
+        for (int i = descendants.nextSetBit(0); i >= 0; i = descendants.nextSetBit(i + 1)) {
+            productCategoryIds.add(current.categoryIds[i]);
+        }
+    }
+
+    /**
+     * Tells if a product is currently a member of a category.
+     * @param productId the product ID
+     * @param productCategoryId the category ID
+     * @return {@code true} if the product has an effective ProductCategoryMember in the category
+     */
+    public boolean isMember(String productId, String productCategoryId) {
+        Membership membership = memberships.get(productId);
+        return membership != null && Arrays.binarySearch(membership.activeCategoryIds, productCategoryId) >= 0;
+    }
+
+    /**
+     * Tells if a product is currently a member of a category or of one of its effective sub-categories.
+     * @param productId the product ID
+     * @param productCategoryId the category ID
+     * @return {@code true} if the product is in the category subtree
+     */
+    public boolean isMemberOfSubtree(String productId, String productCategoryId) {
+        Membership membership = memberships.get(productId);
+        if (membership == null) {
+            return false;
+        }
+        Graph current = graph;
+        Integer ordinal = current.ordinals.get(productCategoryId);
+        if (ordinal == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        BitSet descendants = current.isValidAt(now) ? current.descendants[ordinal] : current.descendantsAt(ordinal, now);
+        for (String memberCategoryId : membership.activeCategoryIds) {
+            Integer memberOrdinal = current.ordinals.get(memberCategoryId);
+            if (memberOrdinal != null && descendants.get(memberOrdinal)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The categories of a product.
+     */
+    private static final class Membership {
+        // one per ProductCategoryMember record
+        private final String[] productCategoryIds;
+        // sorted
+        private final String[] activeCategoryIds;
+        private final long nextBoundary;
+
+        private Membership(List<GenericValue> members, long now) {
+            Set<String> activeCategoryIdSet = new HashSet<>();
+            long boundary = Long.MAX_VALUE;
+            productCategoryIds = new String[members.size()];
+            int i = 0;
+            for (GenericValue member : members) {
+                productCategoryIds[i++] = member.getString("productCategoryId");
+                long fromDate = member.getTimestamp("fromDate") != null ? member.getTimestamp("fromDate").getTime() : Long.MIN_VALUE;
+                long thruDate = member.getTimestamp("thruDate") != null ? member.getTimestamp("thruDate").getTime() : Long.MAX_VALUE;
+                if (isActive(fromDate, thruDate, now)) {
+                    activeCategoryIdSet.add(member.getString("productCategoryId"));
+                }
+                if (fromDate > now) {
+                    boundary = Math.min(boundary, fromDate);
+                }
+                if (thruDate > now && thruDate != Long.MAX_VALUE) {
+                    boundary = Math.min(boundary, thruDate);
+                }
+            }
+            activeCategoryIds = activeCategoryIdSet.toArray(new String[0]);
+            Arrays.sort(activeCategoryIds);
+            nextBoundary = boundary;
+        }
+    }
+
+    /**
+     * A ProductCategoryRollup link.
+     */
+    private static final class Rollup {
+        private final int child;
+        private final long fromDate;
+        private final long thruDate;
+
+        private Rollup(int child, long fromDate, long thruDate) {
+            this.child = child;
+            this.fromDate = fromDate;
+            this.thruDate = thruDate;
+        }
+
+        private boolean isActive(long time) {
+            return CategoryTopology.isActive(fromDate, thruDate, time);
+        }
+    }
+
+    // same as EntityUtil.isValueActive
+    private static boolean isActive(long fromDate, long thruDate, long time) {
+        return thruDate > time && fromDate <= time;
+    }
+
+    /**
+     * The immutable category graph, with the sub-categories of each category effective from the time it was
+     * computed until the next rollup starts or ends.
+     */
+    private static final class Graph {
+        private final String[] categoryIds;
+        private final Map<String, Integer> ordinals;
+        private final Rollup[][] children;
+        private final BitSet[] descendants;
+        private final long validFrom;
+        private final long validUntil;
+
+        private Graph(String[] categoryIds, Map<String, Integer> ordinals, Rollup[][] children, long time) {
+            this.categoryIds = categoryIds;
+            this.ordinals = ordinals;
+            this.children = children;
+            this.validFrom = time;
+            long until = Long.MAX_VALUE;
+            for (Rollup[] rollups : children) {
+                for (Rollup rollup : rollups) {
+                    if (rollup.fromDate > time) {
+                        until = Math.min(until, rollup.fromDate);
+                    }
+                    if (rollup.thruDate > time) {
+                        until = Math.min(until, rollup.thruDate);
+                    }
+                }
+            }
+            this.validUntil = until;
+            this.descendants = new BitSet[categoryIds.length];
+            for (int i = 0; i < categoryIds.length; i++) {
+                descendants[i] = computeDescendants(i, time, descendants);
+            }
+        }
+
+        private static Graph load(Delegator delegator, long time) throws GenericEntityException {
+            Map<String, Integer> ordinals = new HashMap<>();
+            List<String> categoryIds = new ArrayList<>();
+            try (EntityListIterator eli = EntityQuery.use(delegator).select("productCategoryId").from("ProductCategory").queryIterator()) {
+                GenericValue category;
+                while ((category = eli.next()) != null) {
+                    ordinals.put(category.getString("productCategoryId"), categoryIds.size());
+                    categoryIds.add(category.getString("productCategoryId"));
+                }
+            }
+            List<List<GenericValue>> rollupsByParent = new ArrayList<>(categoryIds.size());
+            for (int i = 0; i < categoryIds.size(); i++) {
+                rollupsByParent.add(new ArrayList<>());
+            }
+            for (GenericValue rollup : EntityQuery.use(delegator).from("ProductCategoryRollup").queryList()) {
+                Integer parent = ordinals.get(rollup.getString("parentProductCategoryId"));
+                if (parent != null && ordinals.containsKey(rollup.getString("productCategoryId"))) {
+                    rollupsByParent.get(parent).add(rollup);
+                }
+            }
+            Rollup[][] children = new Rollup[categoryIds.size()][];
+            Comparator<GenericValue> bySequence = Comparator.comparing(rollup -> rollup.getLong("sequenceNum"),
+                    Comparator.nullsFirst(Comparator.naturalOrder()));
+            for (int i = 0; i < children.length; i++) {
+                List<GenericValue> rollups = rollupsByParent.get(i);
+                rollups.sort(bySequence);
+                children[i] = new Rollup[rollups.size()];
+                for (int j = 0; j < rollups.size(); j++) {
+                    GenericValue rollup = rollups.get(j);
+                    children[i][j] = new Rollup(ordinals.get(rollup.getString("productCategoryId")),
+                            rollup.getTimestamp("fromDate") != null ? rollup.getTimestamp("fromDate").getTime() : Long.MIN_VALUE,
+                            rollup.getTimestamp("thruDate") != null ? rollup.getTimestamp("thruDate").getTime() : Long.MAX_VALUE);
+                }
+            }
+            return new Graph(categoryIds.toArray(new String[0]), ordinals, children, time);
+        }
+
+        /**
+         * Returns the same graph with the sub-categories effective at another time.
+         */
+        private Graph at(long time) {
+            return new Graph(categoryIds, ordinals, children, time);
+        }
+
+        private boolean isValidAt(long time) {
+            return time >= validFrom && time < validUntil;
+        }
+
+        private BitSet descendantsAt(int ordinal, long time) {
+            return computeDescendants(ordinal, time, new BitSet[categoryIds.length]);
+        }
+
+        /**
+         * Computes the category and its sub-categories effective at a time, reusing the complete sets already computed.
+         */
+        private BitSet computeDescendants(int ordinal, long time, BitSet[] computed) {
+            BitSet result = new BitSet(categoryIds.length);
+            LinkedList<Integer> stack = new LinkedList<>();
+            stack.push(ordinal);
+            result.set(ordinal);
+            while (!stack.isEmpty()) {
+                int current = stack.pop();
+                if (current != ordinal && computed[current] != null) {
+                    result.or(computed[current]);
+                    continue;
+                }
+                for (Rollup rollup : children[current]) {
+                    if (rollup.isActive(time) && !result.get(rollup.child)) {
+                        result.set(rollup.child);
+                        stack.push(rollup.child);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
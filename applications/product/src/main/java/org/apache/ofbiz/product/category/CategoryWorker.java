@@ -20,10 +20,12 @@ package org.apache.ofbiz.product.category;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
@@ -43,6 +45,7 @@ import org.apache.ofbiz.entity.condition.EntityCondition;
 import org.apache.ofbiz.entity.util.EntityQuery;
 import org.apache.ofbiz.entity.util.EntityUtil;
 import org.apache.ofbiz.entity.util.EntityUtilProperties;
+import org.apache.ofbiz.product.product.ProductSearch;
 import org.apache.ofbiz.product.product.ProductWorker;
 import org.apache.ofbiz.service.DispatchContext;
 import org.apache.ofbiz.service.ServiceUtil;
@@ -156,42 +159,47 @@ public final class CategoryWorker {
             Debug.logVerbose("[CategoryWorker.getRelatedCategories] ParentID: " + parentId, MODULE);
         }
 
-        List<GenericValue> rollups = null;
-
-        try {
-            rollups = EntityQuery.use(delegator).from("ProductCategoryRollup").where("parentProductCategoryId", parentId)
-                    .orderBy("sequenceNum").cache(true).queryList();
-            if (limitView) {
-                rollups = EntityUtil.filterByDate(rollups, true);
+        List<String> childCategoryIds = new LinkedList<>();
+        CategoryTopology topology = CategoryTopology.getInstance(delegator);
+        if (topology != null) {
+            childCategoryIds.addAll(topology.getChildCategoryIds(parentId, limitView));
+        } else {
+            try {
+                List<GenericValue> rollups = EntityQuery.use(delegator).from("ProductCategoryRollup").where("parentProductCategoryId", parentId)
+                        .orderBy("sequenceNum").cache(true).queryList();
+                if (limitView) {
+                    rollups = EntityUtil.filterByDate(rollups, true);
+                }
+                for (GenericValue rollup: rollups) {
+                    childCategoryIds.add(rollup.getString("productCategoryId"));
+                }
+            } catch (GenericEntityException e) {
+                Debug.logWarning(e.getMessage(), MODULE);
             }
-        } catch (GenericEntityException e) {
-            Debug.logWarning(e.getMessage(), MODULE);
         }
-        if (rollups != null) {
-            for (GenericValue parent: rollups) {
-                GenericValue cv = null;
+        for (String childCategoryId: childCategoryIds) {
+            GenericValue cv = null;
 
-                try {
-                    cv = parent.getRelatedOne("CurrentProductCategory", true);
-                } catch (GenericEntityException e) {
-                    Debug.logWarning(e.getMessage(), MODULE);
-                }
-                if (cv != null) {
-                    if (excludeEmpty) {
-                        if (!isCategoryEmpty(cv)) {
-                            categories.add(cv);
-                            if (recursive) {
-                                categories.addAll(getRelatedCategoriesRet(delegator, attributeName, cv.getString("productCategoryId"),
-                                        limitView, excludeEmpty, recursive));
-                            }
-                        }
-                    } else {
+            try {
+                cv = EntityQuery.use(delegator).from("ProductCategory").where("productCategoryId", childCategoryId).cache().queryOne();
+            } catch (GenericEntityException e) {
+                Debug.logWarning(e.getMessage(), MODULE);
+            }
+            if (cv != null) {
+                if (excludeEmpty) {
+                    if (!isCategoryEmpty(cv)) {
                         categories.add(cv);
                         if (recursive) {
                             categories.addAll(getRelatedCategoriesRet(delegator, attributeName, cv.getString("productCategoryId"),
                                     limitView, excludeEmpty, recursive));
                         }
                     }
+                } else {
+                    categories.add(cv);
+                    if (recursive) {
+                        categories.addAll(getRelatedCategoriesRet(delegator, attributeName, cv.getString("productCategoryId"),
+                                limitView, excludeEmpty, recursive));
+                    }
                 }
             }
         }
@@ -220,6 +228,10 @@ public final class CategoryWorker {
             return 0;
         }
         Delegator delegator = category.getDelegator();
+        CategoryTopology topology = CategoryTopology.getInstance(delegator);
+        if (topology != null) {
+            return topology.getMemberCount(category.getString("productCategoryId"));
+        }
         long count = 0;
         try {
             count = EntityQuery.use(delegator).from("ProductCategoryMember").where("productCategoryId",
@@ -235,6 +247,10 @@ public final class CategoryWorker {
             return 0;
         }
         Delegator delegator = category.getDelegator();
+        CategoryTopology topology = CategoryTopology.getInstance(delegator);
+        if (topology != null) {
+            return topology.getRollupCount(category.getString("productCategoryId"));
+        }
         long count = 0;
         try {
             count = EntityQuery.use(delegator).from("ProductCategoryRollup").where("parentProductCategoryId",
@@ -354,12 +370,18 @@ public final class CategoryWorker {
             return false;
         }
 
-        List<GenericValue> productCategoryMembers = EntityQuery.use(delegator).from("ProductCategoryMember")
-                .where("productCategoryId", productCategoryId, "productId", productId)
-                .cache(true)
-                .filterByDate()
-                .queryList();
-        if (UtilValidate.isEmpty(productCategoryMembers)) {
+        boolean isMember;
+        CategoryTopology topology = CategoryTopology.getInstance(delegator);
+        if (topology != null) {
+            isMember = topology.isMember(productId, productCategoryId);
+        } else {
+            isMember = UtilValidate.isNotEmpty(EntityQuery.use(delegator).from("ProductCategoryMember")
+                    .where("productCategoryId", productCategoryId, "productId", productId)
+                    .cache(true)
+                    .filterByDate()
+                    .queryList());
+        }
+        if (!isMember) {
             //before giving up see if this is a variant product, and if so look up the virtual product and check it...
             GenericValue product = EntityQuery.use(delegator).from("Product").where("productId", productId).cache().queryOne();
             List<GenericValue> productAssocs = ProductWorker.getVariantVirtualAssocs(product);
@@ -378,6 +400,44 @@ public final class CategoryWorker {
         }
     }
 
+    /**
+     * Tells if a product, or its virtual product, is a member of a category or of one of its effective sub-categories.
+     * @param delegator the delegator
+     * @param productId the product ID
+     * @param productCategoryId the category ID
+     * @return {@code true} if the product is in the category subtree
+     * @throws GenericEntityException
+     */
+    public static boolean isProductInCategorySubtree(Delegator delegator, String productId, String productCategoryId) throws GenericEntityException {
+        if (productCategoryId == null || UtilValidate.isEmpty(productId)) {
+            return false;
+        }
+        CategoryTopology topology = CategoryTopology.getInstance(delegator);
+        if (topology != null && topology.isMemberOfSubtree(productId, productCategoryId)) {
+            return true;
+        }
+        if (topology == null) {
+            Set<String> productCategoryIds = new HashSet<>();
+            ProductSearch.getAllSubCategoryIds(productCategoryId, productCategoryIds, delegator, null);
+            for (String subCategoryId : productCategoryIds) {
+                if (isProductInCategory(delegator, productId, subCategoryId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        GenericValue product = EntityQuery.use(delegator).from("Product").where("productId", productId).cache().queryOne();
+        List<GenericValue> productAssocs = ProductWorker.getVariantVirtualAssocs(product);
+        if (productAssocs != null) {
+            for (GenericValue productAssoc: productAssocs) {
+                if (topology.isMemberOfSubtree(productAssoc.getString("productId"), productCategoryId)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public static List<GenericValue> filterProductsInCategory(Delegator delegator, List<GenericValue> valueObjects, String productCategoryId)
             throws GenericEntityException {
         return filterProductsInCategory(delegator, valueObjects, productCategoryId, "productId");
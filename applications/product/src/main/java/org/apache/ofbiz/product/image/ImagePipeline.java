@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.product.image;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.GeneralException;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.common.image.ImageTransform;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
+import org.apache.ofbiz.security.SecuredUpload;
+import org.apache.ofbiz.service.ModelService;
+
+/**
+ * Renders the size types of an uploaded image for {@link ScaleImage#scaleImageInAllSize}.
+ * <p>
+ * The original is decoded once, each size is downscaled progressively with Graphics2D from the nearest size at least
+ * twice as large, or from the original, and the sizes are rendered and encoded in parallel on a bounded pool. Each pool
+ * thread keeps its ImageWriter by format. In async mode the derivatives are queued and the upload returns at once.
+ * Enabled by <code>image.pipeline.enable</code> in <code>catalog.properties</code>.
+ */
+public final class ImagePipeline {
+
+    private static final String MODULE = ImagePipeline.class.getName();
+    private static final String RESOURCE = "CommonErrorUiLabels";
+    private static final ThreadLocal<Map<String, ImageWriter>> WRITERS = ThreadLocal.withInitial(HashMap::new);
+    private static volatile ThreadPoolExecutor executor;
+
+    private ImagePipeline() { }
+
+    public static boolean isEnabled(Delegator delegator) {
+        return "Y".equals(EntityUtilProperties.getPropertyValue("catalog", "image.pipeline.enable", "N", delegator));
+    }
+
+    /** The derivatives of an original image, each with its scale factor and the file to write. */
+    public static final class Job {
+        private final Delegator delegator;
+        private final String originalFile;
+        private final String format;
+        private final List<Derivative> derivatives = new ArrayList<>();
+
+        public Job(Delegator delegator, String originalFile, String format) {
+            this.delegator = delegator;
+            this.originalFile = originalFile;
+            this.format = format;
+        }
+
+        public void addDerivative(String sizeType, double scaleFactor, String file) {
+            derivatives.add(new Derivative(sizeType, scaleFactor, file));
+        }
+    }
+
+    private static final class Derivative {
+        private final String sizeType;
+        private final double scaleFactor;
+        private final String file;
+
+        private Derivative(String sizeType, double scaleFactor, String file) {
+            this.sizeType = sizeType;
+            this.scaleFactor = scaleFactor;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Reads the dimensions of an image from its header, without decoding it.
+     * @param fileLocation the image file
+     * @param locale the locale of the error messages
+     * @return the result map, with the <code>width</code> and <code>height</code> on success
+     */
+    public static Map<String, Object> getImageDimension(String fileLocation, Locale locale) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        try (ImageInputStream in = ImageIO.createImageInputStream(new File(fileLocation))) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers == null || !readers.hasNext()) {
+                String errMsg = UtilProperties.getMessage(RESOURCE, "ImageTransform.input_is_null", locale) + " : " + fileLocation;
+                Debug.logError(errMsg, MODULE);
+                result.put(ModelService.ERROR_MESSAGE, errMsg);
+                return result;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                result.put("responseMessage", "success");
+                result.put("width", reader.getWidth(0));
+                result.put("height", reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            String errMsg = UtilProperties.getMessage(RESOURCE, "ImageTransform.error_occurs_during_reading", locale) + " : "
+                    + fileLocation + "; " + e.toString();
+            Debug.logError(errMsg, MODULE);
+            result.put(ModelService.ERROR_MESSAGE, errMsg);
+        }
+        return result;
+    }
+
+    /**
+     * Renders the derivatives of a job; in async mode, set by <code>image.pipeline.async</code>, they are only queued.
+     * @param job the job
+     * @return the error message, null on success or when queued
+     */
+    public static String render(Job job) {
+        ThreadPoolExecutor pool = getExecutor();
+        CompletableFuture<Void> done = CompletableFuture.supplyAsync(() -> decode(job), pool)
+                .thenCompose(original -> renderAll(job, original, pool));
+        if ("Y".equals(EntityUtilProperties.getPropertyValue("catalog", "image.pipeline.async", "N", job.delegator))) {
+            done.whenComplete((result, t) -> {
+                if (t != null) {
+                    Debug.logError(getCause(t), "Unable to render the sizes of image " + job.originalFile, MODULE);
+                } else if (Debug.verboseOn()) {
+                    Debug.logVerbose("Rendered " + job.derivatives.size() + " sizes of image " + job.originalFile, MODULE);
+                }
+            });
+            return null;
+        }
+        try {
+            done.join();
+            return null;
+        } catch (CompletionException e) {
+            Throwable cause = getCause(e);
+            Debug.logError(cause, "Unable to render the sizes of image " + job.originalFile, MODULE);
+            return cause.getMessage();
+        }
+    }
+
+    private static BufferedImage decode(Job job) {
+        try {
+            BufferedImage original = ImageIO.read(new File(job.originalFile));
+            if (original == null) {
+                throw new GeneralException("No image reader found for " + job.originalFile);
+            }
+            return original;
+        } catch (IOException | GeneralException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static CompletableFuture<Void> renderAll(Job job, BufferedImage original, ThreadPoolExecutor pool) {
+        Object interpolation = "bilinear".equals(EntityUtilProperties.getPropertyValue("catalog", "image.pipeline.interpolation", "bicubic",
+                job.delegator)) ? RenderingHints.VALUE_INTERPOLATION_BILINEAR : RenderingHints.VALUE_INTERPOLATION_BICUBIC;
+        float quality = Float.parseFloat(EntityUtilProperties.getPropertyValue("catalog", "image.pipeline.quality", "0.9", job.delegator));
+        int imageType = original.getColorModel().hasAlpha() && !isOpaqueFormat(job.format) ? BufferedImage.TYPE_INT_ARGB
+                : BufferedImage.TYPE_INT_RGB;
+
+        List<Derivative> derivatives = new ArrayList<>(job.derivatives);
+        derivatives.sort(Comparator.comparingDouble((Derivative derivative) -> derivative.scaleFactor).reversed());
+        List<CompletableFuture<BufferedImage>> rendered = new ArrayList<>(derivatives.size());
+        List<CompletableFuture<Void>> written = new ArrayList<>(derivatives.size());
+        for (int i = 0; i < derivatives.size(); i++) {
+            Derivative derivative = derivatives.get(i);
+            // render from the nearest size at least twice as large, a closer one would only blur this one
+            CompletableFuture<BufferedImage> source = CompletableFuture.completedFuture(original);
+            for (int j = i - 1; j >= 0; j--) {
+                if (derivatives.get(j).scaleFactor >= 2 * derivative.scaleFactor) {
+                    source = rendered.get(j);
+                    break;
+                }
+            }
+            int width = Math.max(1, (int) (original.getWidth() * derivative.scaleFactor));
+            int height = Math.max(1, (int) (original.getHeight() * derivative.scaleFactor));
+            CompletableFuture<BufferedImage> image = source.thenApplyAsync(src -> ImageTransform.resizeImage(src, width, height,
+                    interpolation, imageType), pool);
+            rendered.add(image);
+            written.add(image.thenAcceptAsync(img -> write(job, derivative, img, quality), pool));
+        }
+        return CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private static void write(Job job, Derivative derivative, BufferedImage image, float quality) {
+        try {
+            try (OutputStream out = Files.newOutputStream(new File(derivative.file).toPath())) {
+                writeImage(image, job.format, quality, out);
+            }
+            // Check if a webshell is not uploaded
+            if (!SecuredUpload.isValidFile(derivative.file, "Image", job.delegator)) {
+                throw new GeneralException(UtilProperties.getMessage("SecurityUiLabels", "SupportedImageFormats", Locale.getDefault()));
+            }
+            if (Debug.verboseOn()) {
+                Debug.logVerbose("Wrote " + derivative.sizeType + " size of image " + job.originalFile, MODULE);
+            }
+        } catch (IOException | ImageReadException | GeneralException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Encodes an image with the ImageWriter of its format kept by the current thread.
+     * @param image the image
+     * @param format the format name, as an image file extension
+     * @param quality the compression quality of the lossy formats, from 0 to 1
+     * @param out the stream to write to, left open
+     * @throws IOException when there is no writer for the format or writing fails
+     */
+    static void writeImage(BufferedImage image, String format, float quality, OutputStream out) throws IOException {
+        ImageWriter writer = WRITERS.get().computeIfAbsent(format.toLowerCase(Locale.ROOT), name -> {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(name);
+            return writers.hasNext() ? writers.next() : null;
+        });
+        if (writer == null) {
+            throw new IOException("No image writer found for format " + format);
+        }
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (isOpaqueFormat(format) && param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (param.getCompressionType() == null && param.getCompressionTypes().length > 0) {
+                param.setCompressionType(param.getCompressionTypes()[0]);
+            }
+            param.setCompressionQuality(quality);
+        }
+        try (MemoryCacheImageOutputStream imageOut = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(imageOut);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.reset();
+        }
+    }
+
+    /** The formats without alpha channel, also the ones with a lossy compression quality. */
+    static boolean isOpaqueFormat(String format) {
+        return "jpg".equalsIgnoreCase(format) || "jpeg".equalsIgnoreCase(format);
+    }
+
+    private static Throwable getCause(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
+    private static ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            synchronized (ImagePipeline.class) {
+                if (executor == null) {
+                    int threads = Math.max(1, UtilProperties.getPropertyAsInteger("catalog", "image.pipeline.threads",
+                            Runtime.getRuntime().availableProcessors()));
+                    int queueSize = Math.max(1, UtilProperties.getPropertyAsInteger("catalog", "image.pipeline.queue.size", 200));
+                    AtomicInteger count = new AtomicInteger();
+                    // a full queue makes the submitting thread render, holding back the uploads instead of the heap
+                    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+                        Thread t = new Thread(r, "OFBiz-image-pipeline-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+                }
+            }
+        }
+        return executor;
+    }
+}
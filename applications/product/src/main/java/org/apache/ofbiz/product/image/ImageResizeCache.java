@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.product.image;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.common.image.ImageTransform;
+
+/**
+ * Disk cache of the images resized by {@link ImageResizeServlet}.
+ * <p>
+ * A derivative is stored under the hash of its source path, source modification time and size spec, so a changed source
+ * gets new derivatives and the old ones age out. Concurrent requests for the same derivative wait for a single render.
+ * The total size of the files is kept under a budget by removing the least recently served ones; the access times
+ * are kept in memory and start from the file modification times.
+ */
+final class ImageResizeCache {
+
+    private static final String MODULE = ImageResizeCache.class.getName();
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Path>> rendering = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private static final class Entry {
+        private final Path path;
+        private final long size;
+        private volatile long lastAccess;
+
+        private Entry(Path path, long size, long lastAccess) {
+            this.path = path;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    ImageResizeCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.walk(directory, 2)) {
+            files.filter(Files::isRegularFile).forEach(file -> {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    deleteQuietly(file);
+                    return;
+                }
+                try {
+                    long size = Files.size(file);
+                    entries.put(name, new Entry(file, size, Files.getLastModifiedTime(file).toMillis()));
+                    totalBytes.addAndGet(size);
+                } catch (IOException e) {
+                    Debug.logWarning(e, "Unable to read resized image " + file, MODULE);
+                }
+            });
+        }
+        Debug.logInfo("Resized image cache " + directory + " holds " + entries.size() + " images, " + totalBytes.get() + " bytes", MODULE);
+    }
+
+    /**
+     * Gets the key of a derivative, also usable as its ETag.
+     * @param source the source image
+     * @param sourceKey the path identifying the source, relative to the image root
+     * @param spec the size and format of the derivative
+     * @param quality the compression quality of the lossy formats
+     * @return the key
+     * @throws IOException when the source cannot be read
+     */
+    static String getKey(Path source, String sourceKey, String spec, float quality) throws IOException {
+        return hash(sourceKey + '\n' + Files.getLastModifiedTime(source).toMillis() + '\n' + spec + '\n' + quality);
+    }
+
+    /**
+     * Gets a derivative, rendering it if needed.
+     * @param key the key of the derivative, from {@link #getKey}
+     * @param source the source image
+     * @param width the maximum width
+     * @param height the maximum height
+     * @param format the format of the derivative, as an image file extension
+     * @param quality the compression quality of the lossy formats
+     * @return the derivative file
+     * @throws IOException when the source cannot be read or the derivative written
+     */
+    Path get(String key, Path source, int width, int height, String format, float quality) throws IOException {
+        String name = key + "." + format;
+        Entry entry = entries.get(name);
+        if (entry != null && Files.exists(entry.path)) {
+            entry.lastAccess = System.currentTimeMillis();
+            return entry.path;
+        }
+
+        CompletableFuture<Path> mine = new CompletableFuture<>();
+        CompletableFuture<Path> running = rendering.putIfAbsent(name, mine);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        try {
+            Path target = directory.resolve(key.substring(0, 2)).resolve(name);
+            render(source, target, width, height, format, quality);
+            long size = Files.size(target);
+            Entry previous = entries.put(name, new Entry(target, size, System.currentTimeMillis()));
+            totalBytes.addAndGet(previous != null ? size - previous.size : size);
+            mine.complete(target);
+            if (totalBytes.get() > maxBytes) {
+                evict();
+            }
+            return target;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            rendering.remove(name, mine);
+        }
+    }
+
+    private static void render(Path source, Path target, int width, int height, String format, float quality) throws IOException {
+        BufferedImage original = ImageIO.read(source.toFile());
+        if (original == null) {
+            throw new IOException("No image reader found for " + source.getFileName());
+        }
+        // fit in the box, never enlarge
+        double scale = Math.min(1.0, Math.min((double) width / original.getWidth(), (double) height / original.getHeight()));
+        int imageType = original.getColorModel().hasAlpha() && !ImagePipeline.isOpaqueFormat(format) ? BufferedImage.TYPE_INT_ARGB
+                : BufferedImage.TYPE_INT_RGB;
+        BufferedImage image = ImageTransform.resizeImage(original, Math.max(1, (int) Math.round(original.getWidth() * scale)),
+                Math.max(1, (int) Math.round(original.getHeight() * scale)), RenderingHints.VALUE_INTERPOLATION_BICUBIC, imageType);
+
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), "resize", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                ImagePipeline.writeImage(image, format, quality, out);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("Resized " + source + " to " + width + "x" + height + " " + format, MODULE);
+        }
+    }
+
+    /** Removes the least recently served images down to 90% of the budget, one thread at a time. */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<Map.Entry<String, Entry>> candidates = new ArrayList<>(entries.entrySet());
+            candidates.sort(Comparator.comparingLong(candidate -> candidate.getValue().lastAccess));
+            long target = maxBytes / 10 * 9;
+            int removed = 0;
+            for (Map.Entry<String, Entry> candidate : candidates) {
+                if (totalBytes.get() <= target) {
+                    break;
+                }
+                if (entries.remove(candidate.getKey(), candidate.getValue())) {
+                    deleteQuietly(candidate.getValue().path);
+                    totalBytes.addAndGet(-candidate.getValue().size);
+                    removed++;
+                }
+            }
+            Debug.logInfo("Removed " + removed + " resized images, the cache now holds " + totalBytes.get() + " bytes", MODULE);
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            Debug.logWarning(e, "Unable to delete resized image " + file, MODULE);
+        }
+    }
+
+    private static String hash(String value) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
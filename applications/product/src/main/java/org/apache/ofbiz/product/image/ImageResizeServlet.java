@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.product.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.StringUtil;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.string.FlexibleStringExpander;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
+
+/**
+ * Serves resized product images, rendered on first request and kept in a disk cache.
+ * <p>
+ * The path is <code>/{width}x{height}[.{format}]/{image path}</code>, the image path being relative to
+ * <code>image.server.path</code>. The sizes and formats must be listed in <code>image.resize.sizes</code> and
+ * <code>image.resize.formats</code> of <code>catalog.properties</code>; the servlet answers 404 unless
+ * <code>image.resize.enable</code> is set.
+ */
+@SuppressWarnings("serial")
+public class ImageResizeServlet extends HttpServlet {
+
+    private static final String MODULE = ImageResizeServlet.class.getName();
+    private static final Map<String, String> CONTENT_TYPES = UtilMisc.toMap("jpg", "image/jpeg", "jpeg", "image/jpeg", "png", "image/png",
+            "gif", "image/gif", "bmp", "image/bmp");
+    private static volatile ImageResizeCache cache;
+
+    public ImageResizeServlet() {
+        super();
+    }
+
+    /**
+     * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        Delegator delegator = (Delegator) getServletContext().getAttribute("delegator");
+        if (!"Y".equals(EntityUtilProperties.getPropertyValue("catalog", "image.resize.enable", "N", delegator))) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        // split /{spec}/{image path}
+        String pathInfo = request.getPathInfo();
+        int slash = pathInfo != null ? pathInfo.indexOf('/', 1) : -1;
+        if (slash < 0) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String spec = pathInfo.substring(1, slash).toLowerCase(Locale.ROOT);
+        String imagePath = pathInfo.substring(slash + 1);
+        String sourceFormat = imagePath.substring(imagePath.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        String format = sourceFormat;
+        int dot = spec.indexOf('.');
+        if (dot >= 0) {
+            format = spec.substring(dot + 1);
+            spec = spec.substring(0, dot);
+        }
+        List<String> sizes = StringUtil.split(EntityUtilProperties.getPropertyValue("catalog", "image.resize.sizes", "", delegator), ",");
+        List<String> formats = StringUtil.split(EntityUtilProperties.getPropertyValue("catalog", "image.resize.formats", "jpg,jpeg,png,gif",
+                delegator), ",");
+        if (sizes == null || formats == null || !sizes.contains(spec) || !formats.contains(format) || !formats.contains(sourceFormat)
+                || !CONTENT_TYPES.containsKey(format)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        int separator = spec.indexOf('x');
+        int width;
+        int height;
+        try {
+            width = Integer.parseInt(spec.substring(0, separator));
+            height = Integer.parseInt(spec.substring(separator + 1));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            Debug.logWarning("Invalid size [" + spec + "] in image.resize.sizes", MODULE);
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        // the source must stay under the image root
+        Path root = Paths.get(getImageServerPath(delegator)).toAbsolutePath().normalize();
+        Path source = root.resolve(imagePath).normalize();
+        if (!source.startsWith(root) || !Files.isRegularFile(source)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        // answer the conditional requests without rendering, the key hashes the source, its modification time and the spec
+        float quality = Float.parseFloat(EntityUtilProperties.getPropertyValue("catalog", "image.pipeline.quality", "0.9", delegator));
+        String key = ImageResizeCache.getKey(source, root.relativize(source).toString(), spec + "." + format, quality);
+        String eTag = "\"" + key + "\"";
+        response.setHeader("ETag", eTag);
+        response.setDateHeader("Last-Modified", Files.getLastModifiedTime(source).toMillis());
+        response.setHeader("Cache-Control", "public, max-age=" + EntityUtilProperties.getPropertyValue("catalog", "image.resize.max.age",
+                "86400", delegator));
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && ifNoneMatch.contains(eTag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        Path derivative;
+        try {
+            derivative = getCache(delegator).get(key, source, width, height, format, quality);
+        } catch (IOException e) {
+            Debug.logError(e, "Unable to resize image " + imagePath + " to " + spec, MODULE);
+            response.reset();
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+        response.setContentType(CONTENT_TYPES.get(format));
+        try {
+            response.setContentLengthLong(Files.size(derivative));
+            try (OutputStream out = response.getOutputStream()) {
+                Files.copy(derivative, out);
+            }
+        } catch (NoSuchFileException e) {
+            // removed by the cache budget in the meantime
+            Debug.logWarning("Resized image " + derivative + " was removed before being served", MODULE);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private static String getImageServerPath(Delegator delegator) {
+        String imageServerPath = FlexibleStringExpander.expandString(EntityUtilProperties.getPropertyValue("catalog", "image.server.path",
+                delegator), UtilMisc.toMap("tenantId", delegator.getDelegatorTenantId()));
+        return imageServerPath.endsWith("/") ? imageServerPath.substring(0, imageServerPath.length() - 1) : imageServerPath;
+    }
+
+    private static ImageResizeCache getCache(Delegator delegator) throws IOException {
+        if (cache == null) {
+            synchronized (ImageResizeServlet.class) {
+                if (cache == null) {
+                    Path directory = Paths.get(System.getProperty("ofbiz.home"), EntityUtilProperties.getPropertyValue("catalog",
+                            "image.resize.cache.path", "runtime/imagecache", delegator));
+                    long maxBytes = EntityUtilProperties.getPropertyAsLong("catalog", "image.resize.cache.max.bytes", 512L * 1024 * 1024);
+                    cache = new ImageResizeCache(directory, maxBytes);
+                }
+            }
+        }
+        return cache;
+    }
+}
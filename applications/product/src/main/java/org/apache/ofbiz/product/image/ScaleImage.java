@@ -145,15 +145,27 @@ public class ScaleImage {
             return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE, "ProductImageViewType", UtilMisc.toMap("viewType", viewType), locale));
         }
 
-        /* get original BUFFERED IMAGE */
-        resultBufImgMap.putAll(ImageTransform.getBufferedImage(imageServerPath + "/" + fileLocation + "." + imgExtension, locale));
+        /* get original BUFFERED IMAGE, only its dimensions when the sizes are rendered by the image pipeline */
+        String originalFile = imageServerPath + "/" + fileLocation + "." + imgExtension;
+        ImagePipeline.Job pipelineJob = null;
+        if (ImagePipeline.isEnabled(delegator)) {
+            pipelineJob = new ImagePipeline.Job(delegator, originalFile, imgExtension);
+            resultBufImgMap.putAll(ImagePipeline.getImageDimension(originalFile, locale));
+        } else {
+            resultBufImgMap.putAll(ImageTransform.getBufferedImage(originalFile, locale));
+        }
 
         if (resultBufImgMap.containsKey("responseMessage") && "success".equals(resultBufImgMap.get("responseMessage"))) {
             bufImg = (BufferedImage) resultBufImgMap.get("bufferedImage");
 
             // get Dimensions
-            imgHeight = bufImg.getHeight();
-            imgWidth = bufImg.getWidth();
+            if (pipelineJob != null) {
+                imgHeight = (Integer) resultBufImgMap.get("height");
+                imgWidth = (Integer) resultBufImgMap.get("width");
+            } else {
+                imgHeight = bufImg.getHeight();
+                imgWidth = bufImg.getWidth();
+            }
             if (imgHeight == 0.0 || imgWidth == 0.0) {
                 String errMsg = UtilProperties.getMessage(RESOURCE, "ScaleImage.one_current_image_dimension_is_null", locale) + " : imgHeight = "
                         + imgHeight + " ; imgWidth = " + imgWidth;
@@ -166,8 +178,13 @@ public class ScaleImage {
             for (Map.Entry<String, Map<String, String>> entry : imgPropertyMap.entrySet()) {
                 String sizeType = entry.getKey();
 
-                // Scale
-                resultScaleImgMap.putAll(ImageTransform.scaleImage(bufImg, imgHeight, imgWidth, imgPropertyMap, sizeType, locale));
+                // Scale, or only get the scale factor for the image pipeline
+                if (pipelineJob != null) {
+                    resultScaleImgMap.clear();
+                    resultScaleImgMap.putAll(ImageTransform.getScaleFactor(imgHeight, imgWidth, imgPropertyMap, sizeType, locale));
+                } else {
+                    resultScaleImgMap.putAll(ImageTransform.scaleImage(bufImg, imgHeight, imgWidth, imgPropertyMap, sizeType, locale));
+                }
 
                 /* Write the new image file */
                 if (resultScaleImgMap.containsKey("responseMessage") && "success".equals(resultScaleImgMap.get("responseMessage"))) {
@@ -221,24 +238,29 @@ public class ScaleImage {
                     }
 
                     // write new image
-                    try {
-                        String fileToCheck = imageServerPath + "/" + newFileLocation + "." + imgExtension;
-                        ImageIO.write(bufNewImg, imgExtension, new File(fileToCheck));
-                        // Check if a webshell is not uploaded
-                        if (!org.apache.ofbiz.security.SecuredUpload.isValidFile(fileToCheck, "Image", delegator)) {
-                            String errorMessage = UtilProperties.getMessage("SecurityUiLabels", "SupportedImageFormats", locale);
-                            return ServiceUtil.returnError(errorMessage);
+                    if (pipelineJob != null) {
+                        pipelineJob.addDerivative(sizeType, (Double) resultScaleImgMap.get("scaleFactor"),
+                                imageServerPath + "/" + newFileLocation + "." + imgExtension);
+                    } else {
+                        try {
+                            String fileToCheck = imageServerPath + "/" + newFileLocation + "." + imgExtension;
+                            ImageIO.write(bufNewImg, imgExtension, new File(fileToCheck));
+                            // Check if a webshell is not uploaded
+                            if (!org.apache.ofbiz.security.SecuredUpload.isValidFile(fileToCheck, "Image", delegator)) {
+                                String errorMessage = UtilProperties.getMessage("SecurityUiLabels", "SupportedImageFormats", locale);
+                                return ServiceUtil.returnError(errorMessage);
+                            }
+                        } catch (IllegalArgumentException e) {
+                            String errMsg = UtilProperties.getMessage(RESOURCE, "ScaleImage.one_parameter_is_null", locale) + e.toString();
+                            Debug.logError(errMsg, MODULE);
+                            result.put(ModelService.ERROR_MESSAGE, errMsg);
+                            return result;
+                        } catch (IOException | ImageReadException e) {
+                            String errMsg = UtilProperties.getMessage(RESOURCE, "ScaleImage.error_occurs_during_writing", locale) + e.toString();
+                            Debug.logError(errMsg, MODULE);
+                            result.put(ModelService.ERROR_MESSAGE, errMsg);
+                            return result;
                         }
-                    } catch (IllegalArgumentException e) {
-                        String errMsg = UtilProperties.getMessage(RESOURCE, "ScaleImage.one_parameter_is_null", locale) + e.toString();
-                        Debug.logError(errMsg, MODULE);
-                        result.put(ModelService.ERROR_MESSAGE, errMsg);
-                        return result;
-                    } catch (IOException | ImageReadException e) {
-                        String errMsg = UtilProperties.getMessage(RESOURCE, "ScaleImage.error_occurs_during_writing", locale) + e.toString();
-                        Debug.logError(errMsg, MODULE);
-                        result.put(ModelService.ERROR_MESSAGE, errMsg);
-                        return result;
                     }
                     // Save each Url
                     if (SIZE_TYPE_LIST.contains(sizeType)) {
@@ -249,6 +271,15 @@ public class ScaleImage {
                 } // scaleImgMap
             } // Loop over sizeType
 
+            if (pipelineJob != null) {
+                String errMsg = ImagePipeline.render(pipelineJob);
+                if (errMsg != null) {
+                    errMsg = UtilProperties.getMessage(RESOURCE, "ScaleImage.error_occurs_during_writing", locale) + errMsg;
+                    result.put(ModelService.ERROR_MESSAGE, errMsg);
+                    return result;
+                }
+            }
+
             result.put("responseMessage", "success");
             result.put("imageUrlMap", imgUrlMap);
             result.put("original", resultBufImgMap);
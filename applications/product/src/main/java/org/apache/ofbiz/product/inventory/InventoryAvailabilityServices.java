@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.product.inventory;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.util.EntityListIterator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.GenericServiceException;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * Maintenance of the ProductFacilityAvailability summary.
+ * <p>
+ * A ProductFacilityAvailability record holds the totals returned by the getInventoryAvailableByFacility service
+ * for a product and a facility when no status is given. It is updated with the difference between the totals of an
+ * InventoryItem and the totals previously counted for it, kept in InventoryItemAvailability, each time the
+ * InventoryItem is written, which includes each InventoryItemDetail creation. A summary is created by
+ * the reconciliation service; until then the availability services keep summing the InventoryItem records.
+ */
+public class InventoryAvailabilityServices {
+
+    private static final String MODULE = InventoryAvailabilityServices.class.getName();
+    private static final String[] TOTAL_FIELDS = {"quantityOnHandTotal", "availableToPromiseTotal", "accountingQuantityTotal"};
+
+    /**
+     * Tells if the ProductFacilityAvailability summary is maintained and used.
+     * @return {@code true} when <code>inventory.availability.summary.enable</code> is set in <code>catalog.properties</code>
+     */
+    public static boolean isSummaryEnabled() {
+        return UtilProperties.propertyValueEqualsIgnoreCase("catalog", "inventory.availability.summary.enable", "Y");
+    }
+
+    /**
+     * Tells if a summary can be returned instead of summing the InventoryItem records, that is when it was reconciled
+     * less than <code>inventory.availability.summary.max.age</code> hours ago. A summary that missed updates is thus
+     * used at most until the next reconciliation is due.
+     * @param summary the ProductFacilityAvailability record, may be {@code null}
+     * @return {@code true} when the summary is recent enough
+     */
+    public static boolean isSummaryCurrent(GenericValue summary) {
+        if (summary == null || summary.getTimestamp("lastReconciledDate") == null) {
+            return false;
+        }
+        long maxAge = UtilProperties.getPropertyAsLong("catalog", "inventory.availability.summary.max.age", 48L);
+        return maxAge <= 0 || summary.getTimestamp("lastReconciledDate").getTime() + maxAge * 3600000L > System.currentTimeMillis();
+    }
+
+    /**
+     * Tells if an InventoryItem is counted by getInventoryAvailableByFacility when no status is given.
+     */
+    private static boolean isCounted(GenericValue inventoryItem) {
+        String statusId = inventoryItem.getString("statusId");
+        return UtilValidate.isEmpty(statusId) || "INV_AVAILABLE".equals(statusId) || "INV_NS_RETURNED".equals(statusId)
+                || "SERIALIZED_INV_ITEM".equals(inventoryItem.getString("inventoryItemTypeId"));
+    }
+
+    private static BigDecimal getTotal(GenericValue value, String fieldName) {
+        BigDecimal total = value.getBigDecimal(fieldName);
+        return total != null ? total : BigDecimal.ZERO;
+    }
+
+    /**
+     * Locks the summary record of a product in a facility for the current transaction, so that it is read and
+     * written without losing a concurrent update.
+     * @return the summary record, {@code null} if there is none
+     */
+    private static GenericValue lockSummary(Delegator delegator, String productId, String facilityId) throws GenericEntityException {
+        EntityCondition pkCondition = EntityCondition.makeCondition(UtilMisc.toMap("productId", productId, "facilityId", facilityId));
+        if (delegator.storeByCondition("ProductFacilityAvailability", UtilMisc.toMap("productId", productId), pkCondition) == 0) {
+            return null;
+        }
+        return EntityQuery.use(delegator).from("ProductFacilityAvailability").where("productId", productId, "facilityId", facilityId)
+                .queryOne();
+    }
+
+    /**
+     * Updates the ProductFacilityAvailability summaries from an InventoryItem, run as an entity ECA each time an
+     * InventoryItem is created, stored or removed.
+     * @param dctx the dispatch context
+     * @param context the service context, containing the inventoryItemId
+     * @return the service result
+     */
+    public static Map<String, Object> updateProductFacilityAvailability(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        if (!isSummaryEnabled()) {
+            return ServiceUtil.returnSuccess();
+        }
+        String inventoryItemId = (String) context.get("inventoryItemId");
+        try {
+            GenericValue inventoryItem = EntityQuery.use(delegator).from("InventoryItem").where("inventoryItemId", inventoryItemId).queryOne();
+            GenericValue counted = EntityQuery.use(delegator).from("InventoryItemAvailability").where("inventoryItemId", inventoryItemId)
+                    .queryOne();
+            String productId = inventoryItem != null ? inventoryItem.getString("productId") : null;
+            String facilityId = inventoryItem != null ? inventoryItem.getString("facilityId") : null;
+            boolean hasKey = productId != null && facilityId != null;
+            Map<String, BigDecimal> totals = new HashMap<>();
+            for (String fieldName : TOTAL_FIELDS) {
+                totals.put(fieldName, hasKey && isCounted(inventoryItem) ? getTotal(inventoryItem, fieldName) : BigDecimal.ZERO);
+            }
+            boolean sameKey = counted != null && hasKey && productId.equals(counted.getString("productId"))
+                    && facilityId.equals(counted.getString("facilityId"));
+            if (sameKey) {
+                boolean unchanged = true;
+                for (String fieldName : TOTAL_FIELDS) {
+                    unchanged &= totals.get(fieldName).compareTo(getTotal(counted, fieldName)) == 0;
+                }
+                if (unchanged) {
+                    return ServiceUtil.returnSuccess();
+                }
+            } else if (counted != null) {
+                // the item has moved or is gone, remove it from its previous summary
+                GenericValue previousSummary = lockSummary(delegator, counted.getString("productId"), counted.getString("facilityId"));
+                if (previousSummary != null) {
+                    for (String fieldName : TOTAL_FIELDS) {
+                        previousSummary.set(fieldName, getTotal(previousSummary, fieldName).subtract(getTotal(counted, fieldName)));
+                    }
+                    previousSummary.store();
+                }
+            }
+            GenericValue summary = hasKey ? lockSummary(delegator, productId, facilityId) : null;
+            if (summary == null) {
+                // nothing counts this item any more, the reconciliation will count it when the summary is created
+                if (counted != null) {
+                    counted.remove();
+                }
+                return ServiceUtil.returnSuccess();
+            }
+            for (String fieldName : TOTAL_FIELDS) {
+                BigDecimal diff = totals.get(fieldName).subtract(sameKey ? getTotal(counted, fieldName) : BigDecimal.ZERO);
+                summary.set(fieldName, getTotal(summary, fieldName).add(diff));
+            }
+            summary.store();
+            if (counted == null) {
+                counted = delegator.makeValue("InventoryItemAvailability", "inventoryItemId", inventoryItemId);
+            }
+            counted.set("productId", productId);
+            counted.set("facilityId", facilityId);
+            counted.setNonPKFields(totals);
+            delegator.createOrStore(counted);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Unable to update the availability summary for InventoryItem [" + inventoryItemId + "]", MODULE);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * Rebuilds the ProductFacilityAvailability summary of a product in a facility from its InventoryItem records,
+     * or of all of them when no product and facility are given, each one in its own transaction.
+     * @param dctx the dispatch context
+     * @param context the service context
+     * @return the service result, with the number of reconciled summaries and the number of summaries which were wrong
+     */
+    public static Map<String, Object> reconcileProductFacilityAvailability(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        LocalDispatcher dispatcher = dctx.getDispatcher();
+        String productId = (String) context.get("productId");
+        String facilityId = (String) context.get("facilityId");
+        if (!isSummaryEnabled()) {
+            return ServiceUtil.returnSuccess();
+        }
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        if (productId != null && facilityId != null) {
+            try {
+                boolean corrected = reconcile(delegator, productId, facilityId);
+                result.put("reconciledCount", 1L);
+                result.put("correctedCount", corrected ? 1L : 0L);
+            } catch (GenericEntityException e) {
+                Debug.logError(e, MODULE);
+                return ServiceUtil.returnError(e.getMessage());
+            }
+            return result;
+        }
+
+        Set<Map<String, String>> keys = new LinkedHashSet<>();
+        try {
+            EntityCondition condition = EntityCondition.makeCondition(
+                    EntityCondition.makeCondition("productId", EntityOperator.NOT_EQUAL, null),
+                    EntityCondition.makeCondition("facilityId", EntityOperator.NOT_EQUAL, null));
+            if (productId != null) {
+                condition = EntityCondition.makeCondition(condition, EntityCondition.makeCondition("productId", productId));
+            }
+            if (facilityId != null) {
+                condition = EntityCondition.makeCondition(condition, EntityCondition.makeCondition("facilityId", facilityId));
+            }
+            for (String entityName : new String[] {"InventoryItem", "ProductFacilityAvailability"}) {
+                try (EntityListIterator eli = EntityQuery.use(delegator).select("productId", "facilityId").from(entityName)
+                        .where(condition).distinct().orderBy("productId", "facilityId").queryIterator()) {
+                    GenericValue value;
+                    while ((value = eli.next()) != null) {
+                        keys.add(UtilMisc.toMap("productId", value.getString("productId"), "facilityId", value.getString("facilityId")));
+                    }
+                }
+            }
+        } catch (GenericEntityException e) {
+            Debug.logError(e, MODULE);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        long correctedCount = 0;
+        for (Map<String, String> key : keys) {
+            Map<String, Object> serviceContext = new HashMap<>(key);
+            serviceContext.put("userLogin", context.get("userLogin"));
+            try {
+                Map<String, Object> keyResult = dispatcher.runSync("reconcileProductFacilityAvailability", serviceContext, -1, true);
+                if (ServiceUtil.isError(keyResult)) {
+                    return ServiceUtil.returnError(ServiceUtil.getErrorMessage(keyResult));
+                }
+                correctedCount += (Long) keyResult.get("correctedCount");
+            } catch (GenericServiceException e) {
+                Debug.logError(e, MODULE);
+                return ServiceUtil.returnError(e.getMessage());
+            }
+        }
+        Debug.logInfo("Reconciled " + keys.size() + " product facility availability summaries, " + correctedCount + " were corrected", MODULE);
+        result.put("reconciledCount", (long) keys.size());
+        result.put("correctedCount", correctedCount);
+        return result;
+    }
+
+    /**
+     * Rebuilds a summary and the InventoryItemAvailability records of its items.
+     * @return {@code true} when the summary was missing or wrong
+     */
+    private static boolean reconcile(Delegator delegator, String productId, String facilityId) throws GenericEntityException {
+        Timestamp now = UtilDateTime.nowTimestamp();
+        GenericValue summary = lockSummary(delegator, productId, facilityId);
+        boolean created = summary == null;
+        if (created) {
+            summary = delegator.makeValue("ProductFacilityAvailability", "productId", productId, "facilityId", facilityId);
+        }
+        Map<String, GenericValue> countedItems = new HashMap<>();
+        for (GenericValue counted : EntityQuery.use(delegator).from("InventoryItemAvailability")
+                .where("productId", productId, "facilityId", facilityId).queryList()) {
+            countedItems.put(counted.getString("inventoryItemId"), counted);
+        }
+        Map<String, BigDecimal> totals = new HashMap<>();
+        for (String fieldName : TOTAL_FIELDS) {
+            totals.put(fieldName, BigDecimal.ZERO);
+        }
+        try (EntityListIterator eli = EntityQuery.use(delegator).from("InventoryItem")
+                .where("productId", productId, "facilityId", facilityId).queryIterator()) {
+            GenericValue inventoryItem;
+            while ((inventoryItem = eli.next()) != null) {
+                if (!isCounted(inventoryItem)) {
+                    continue;
+                }
+                String inventoryItemId = inventoryItem.getString("inventoryItemId");
+                GenericValue counted = countedItems.remove(inventoryItemId);
+                if (counted == null) {
+                    counted = delegator.makeValue("InventoryItemAvailability", "inventoryItemId", inventoryItemId);
+                }
+                counted.set("productId", productId);
+                counted.set("facilityId", facilityId);
+                for (String fieldName : TOTAL_FIELDS) {
+                    BigDecimal total = getTotal(inventoryItem, fieldName);
+                    counted.set(fieldName, total);
+                    totals.put(fieldName, totals.get(fieldName).add(total));
+                }
+                delegator.createOrStore(counted);
+            }
+        }
+        // the remaining records are for items which are not counted any more
+        delegator.removeAll(new ArrayList<>(countedItems.values()));
+
+        boolean corrected = created;
+        for (String fieldName : TOTAL_FIELDS) {
+            if (summary.getBigDecimal(fieldName) == null || totals.get(fieldName).compareTo(summary.getBigDecimal(fieldName)) != 0) {
+                corrected = true;
+            }
+        }
+        if (corrected && !created) {
+            Debug.logWarning("The availability summary of product [" + productId + "] in facility [" + facilityId + "] was " + summary
+                    + ", it is now " + totals, MODULE);
+        }
+        summary.setNonPKFields(totals);
+        summary.set("lastReconciledDate", now);
+        delegator.createOrStore(summary);
+        return corrected;
+    }
+}
@@ -23,10 +23,13 @@ import java.math.RoundingMode;
 import java.sql.Timestamp;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
 
 import org.apache.ofbiz.base.util.Debug;
@@ -82,6 +85,10 @@ public class PriceServices {
      * </ul>
      */
     public static Map<String, Object> calculateProductPrice(DispatchContext dctx, Map<String, ? extends Object> context) {
+        return calculateProductPrice(dctx, context, null);
+    }
+
+    private static Map<String, Object> calculateProductPrice(DispatchContext dctx, Map<String, ? extends Object> context, PriceBatch batch) {
         Delegator delegator = dctx.getDelegator();
         LocalDispatcher dispatcher = dctx.getDispatcher();
         Map<String, Object> result = new HashMap<>();
@@ -115,43 +122,17 @@ public class PriceServices {
                     "ProductPriceCannotRetrieveProductStore", UtilMisc.toMap("errorString", e.toString()), locale));
         }
         if (UtilValidate.isEmpty(productStoreGroupId)) {
-            if (productStore != null) {
-                try {
-                    if (UtilValidate.isNotEmpty(productStore.getString("primaryStoreGroupId"))) {
-                        productStoreGroupId = productStore.getString("primaryStoreGroupId");
-                    } else {
-                        // no ProductStore.primaryStoreGroupId, try ProductStoreGroupMember
-                        List<GenericValue> productStoreGroupMemberList = EntityQuery.use(delegator).from("ProductStoreGroupMember")
-                                .where("productStoreId", productStoreId).orderBy("sequenceNum", "-fromDate").cache(true).queryList();
-                        productStoreGroupMemberList = EntityUtil.filterByDate(productStoreGroupMemberList, true);
-                        if (!productStoreGroupMemberList.isEmpty()) {
-                            GenericValue productStoreGroupMember = EntityUtil.getFirst(productStoreGroupMemberList);
-                            productStoreGroupId = productStoreGroupMember.getString("productStoreGroupId");
-                        }
-                    }
-                } catch (GenericEntityException e) {
-                    Debug.logError(e, "Error getting product store info from the database while calculating price" + e.toString(), MODULE);
-                    return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
-                            "ProductPriceCannotRetrieveProductStore", UtilMisc.toMap("errorString", e.toString()), locale));
-                }
-            }
-
-            // still empty, default to _NA_
-            if (UtilValidate.isEmpty(productStoreGroupId)) {
-                productStoreGroupId = "_NA_";
+            try {
+                productStoreGroupId = getProductStoreGroupId(delegator, productStore);
+            } catch (GenericEntityException e) {
+                Debug.logError(e, "Error getting product store info from the database while calculating price" + e.toString(), MODULE);
+                return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
+                        "ProductPriceCannotRetrieveProductStore", UtilMisc.toMap("errorString", e.toString()), locale));
             }
         }
 
-        // if currencyUomId is null get from properties file, if nothing there assume USD (USD: American Dollar) for now
-        String currencyDefaultUomId = (String) context.get("currencyUomId");
+        String currencyDefaultUomId = getCurrencyUomId(delegator, productStore, (String) context.get("currencyUomId"));
         String currencyUomIdTo = (String) context.get("currencyUomIdTo");
-        if (UtilValidate.isEmpty(currencyDefaultUomId)) {
-            if (productStore != null && UtilValidate.isNotEmpty(productStore.getString("defaultCurrencyUomId"))) {
-                currencyDefaultUomId = productStore.getString("defaultCurrencyUomId");
-            } else {
-                currencyDefaultUomId = EntityUtilProperties.getPropertyValue("general", "currency.uom.id.default", "USD", delegator);
-            }
-        }
 
         // productPricePurposeId is null assume "PURCHASE", which is equivalent to what prices were before the purpose concept
         String productPricePurposeId = (String) context.get("productPricePurposeId");
@@ -165,7 +146,9 @@ public class PriceServices {
 
         // if this product is variant, find the virtual product and apply checks to it as well
         String virtualProductId = null;
-        if ("Y".equals(product.getString("isVariant"))) {
+        if (batch != null) {
+            virtualProductId = batch.virtualProductIds.get(productId);
+        } else if ("Y".equals(product.getString("isVariant"))) {
             try {
                 virtualProductId = ProductWorker.getVariantVirtualId(product);
             } catch (GenericEntityException e) {
@@ -177,7 +160,9 @@ public class PriceServices {
 
         // get prices for virtual product if one is found; get all ProductPrice entities for this productId and currencyUomId
         List<GenericValue> virtualProductPrices = null;
-        if (virtualProductId != null) {
+        if (batch != null) {
+            virtualProductPrices = virtualProductId != null ? batch.getProductPrices(virtualProductId) : null;
+        } else if (virtualProductId != null) {
             try {
                 virtualProductPrices = EntityQuery.use(delegator).from("ProductPrice").where("productId", virtualProductId, "currencyUomId",
                         currencyDefaultUomId, "productStoreGroupId", productStoreGroupId).orderBy("-fromDate").cache(true).queryList();
@@ -226,12 +211,16 @@ public class PriceServices {
 
         // for prices, get all ProductPrice entities for this productId and currencyUomId
         List<GenericValue> productPrices = null;
-        try {
-            productPrices = EntityQuery.use(delegator).from("ProductPrice").where(productPriceEc).orderBy("-fromDate").cache(true).queryList();
-        } catch (GenericEntityException e) {
-            Debug.logError(e, "An error occurred while getting the product prices", MODULE);
+        if (batch != null) {
+            productPrices = EntityUtil.filterByCondition(batch.getProductPrices(productId), productPriceEc);
+        } else {
+            try {
+                productPrices = EntityQuery.use(delegator).from("ProductPrice").where(productPriceEc).orderBy("-fromDate").cache(true).queryList();
+            } catch (GenericEntityException e) {
+                Debug.logError(e, "An error occurred while getting the product prices", MODULE);
+            }
+            productPrices = EntityUtil.filterByDate(productPrices, true);
         }
-        productPrices = EntityUtil.filterByDate(productPrices, true);
 
         // ===== get the prices we need: list, default, average cost, promo, min, max =====
         // if any of these prices is missing and this product is a variant, default to the corresponding price on the virtual product
@@ -447,9 +436,10 @@ public class PriceServices {
                     // split into list with quantity conditions and list without, then iterate through each quantity cond one
                     quantityProductPriceRules = new LinkedList<>();
                     nonQuantityProductPriceRules = new LinkedList<>();
+                    ProductPriceRuleIndex priceRuleIndex = ProductPriceRuleIndex.isEnabled() ? ProductPriceRuleIndex.getInstance(delegator) : null;
                     for (GenericValue productPriceRule: allProductPriceRules) {
-                        List<GenericValue> productPriceCondList = EntityQuery.use(delegator).from("ProductPriceCond").where("productPriceRuleId",
-                                productPriceRule.get("productPriceRuleId")).cache(true).queryList();
+                        List<GenericValue> productPriceCondList = getProductPriceConds(delegator, priceRuleIndex,
+                                productPriceRule.getString("productPriceRuleId"));
 
                         boolean foundQuantityInputParam = false;
                         // only consider a rule if all conditions except the quantity condition are true
@@ -593,6 +583,144 @@ public class PriceServices {
         return result;
     }
 
+    /**
+     * Calculates the prices of several products sharing the same price context, as done by
+     * {@link #calculateProductPrice(DispatchContext, Map)} for each product.
+     * <p>
+     * The product store, store group and currency are resolved once, the virtual products of the variants are found
+     * with one query and the ProductPrice records of all the products and their virtual products with another one.
+     * @param dctx the dispatch context
+     * @param context the service context, with a productIds list and the other calculateProductPrice inputs but product
+     * @return the service result, with a productPrices map giving the calculateProductPrice results by product ID
+     */
+    public static Map<String, Object> calculateProductPrices(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        Locale locale = (Locale) context.get("locale");
+        List<String> productIds = UtilGenerics.cast(context.get("productIds"));
+        Map<String, Object> productPriceContext = new HashMap<>(context);
+        productPriceContext.remove("productIds");
+
+        Map<String, GenericValue> products = new LinkedHashMap<>();
+        PriceBatch batch;
+        try {
+            GenericValue productStore = EntityQuery.use(delegator).from("ProductStore").where("productStoreId", context.get("productStoreId"))
+                    .cache().queryOne();
+            String productStoreGroupId = (String) context.get("productStoreGroupId");
+            if (UtilValidate.isEmpty(productStoreGroupId)) {
+                productStoreGroupId = getProductStoreGroupId(delegator, productStore);
+            }
+            String currencyUomId = getCurrencyUomId(delegator, productStore, (String) context.get("currencyUomId"));
+            productPriceContext.put("productStoreGroupId", productStoreGroupId);
+            productPriceContext.put("currencyUomId", currencyUomId);
+
+            for (GenericValue product : EntityQuery.use(delegator).from("Product")
+                    .where(EntityCondition.makeCondition("productId", EntityOperator.IN, productIds)).cache().queryList()) {
+                products.put(product.getString("productId"), product);
+            }
+            batch = new PriceBatch(delegator, products.values(), currencyUomId, productStoreGroupId);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Error getting product information from the database while calculating prices", MODULE);
+            return ServiceUtil.returnError(UtilProperties.getMessage(RESOURCE,
+                    "ProductPriceCannotRetrieveProductStore", UtilMisc.toMap("errorString", e.toString()), locale));
+        }
+
+        Map<String, Map<String, Object>> productPrices = new LinkedHashMap<>();
+        for (String productId : productIds) {
+            GenericValue product = products.get(productId);
+            if (product == null) {
+                Debug.logWarning("Product [" + productId + "] not found, no price calculated", MODULE);
+                continue;
+            }
+            productPriceContext.put("product", product);
+            Map<String, Object> productPrice = calculateProductPrice(dctx, productPriceContext, batch);
+            if (ServiceUtil.isError(productPrice)) {
+                return productPrice;
+            }
+            productPrices.put(productId, productPrice);
+        }
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("productPrices", productPrices);
+        return result;
+    }
+
+    /**
+     * Finds the store group used for the prices of a store: its primary store group, or else its first store group.
+     * @return the store group ID, <code>_NA_</code> when there is none
+     */
+    private static String getProductStoreGroupId(Delegator delegator, GenericValue productStore) throws GenericEntityException {
+        String productStoreGroupId = null;
+        if (productStore != null) {
+            if (UtilValidate.isNotEmpty(productStore.getString("primaryStoreGroupId"))) {
+                productStoreGroupId = productStore.getString("primaryStoreGroupId");
+            } else {
+                // no ProductStore.primaryStoreGroupId, try ProductStoreGroupMember
+                List<GenericValue> productStoreGroupMemberList = EntityQuery.use(delegator).from("ProductStoreGroupMember")
+                        .where("productStoreId", productStore.get("productStoreId")).orderBy("sequenceNum", "-fromDate").cache(true).queryList();
+                productStoreGroupMemberList = EntityUtil.filterByDate(productStoreGroupMemberList, true);
+                if (!productStoreGroupMemberList.isEmpty()) {
+                    GenericValue productStoreGroupMember = EntityUtil.getFirst(productStoreGroupMemberList);
+                    productStoreGroupId = productStoreGroupMember.getString("productStoreGroupId");
+                }
+            }
+        }
+        // still empty, default to _NA_
+        return UtilValidate.isNotEmpty(productStoreGroupId) ? productStoreGroupId : "_NA_";
+    }
+
+    private static String getCurrencyUomId(Delegator delegator, GenericValue productStore, String currencyUomId) {
+        // if currencyUomId is null get from properties file, if nothing there assume USD (USD: American Dollar) for now
+        if (UtilValidate.isNotEmpty(currencyUomId)) {
+            return currencyUomId;
+        }
+        if (productStore != null && UtilValidate.isNotEmpty(productStore.getString("defaultCurrencyUomId"))) {
+            return productStore.getString("defaultCurrencyUomId");
+        }
+        return EntityUtilProperties.getPropertyValue("general", "currency.uom.id.default", "USD", delegator);
+    }
+
+    /**
+     * The virtual products and ProductPrice records of the products of a calculateProductPrices call.
+     */
+    private static final class PriceBatch {
+        private final Map<String, String> virtualProductIds = new HashMap<>();
+        private final Map<String, List<GenericValue>> productPrices = new HashMap<>();
+
+        private PriceBatch(Delegator delegator, Collection<GenericValue> products, String currencyUomId, String productStoreGroupId)
+                throws GenericEntityException {
+            Set<String> productIds = new HashSet<>();
+            List<String> variantIds = new LinkedList<>();
+            for (GenericValue product : products) {
+                productIds.add(product.getString("productId"));
+                if ("Y".equals(product.getString("isVariant"))) {
+                    variantIds.add(product.getString("productId"));
+                }
+            }
+            if (!variantIds.isEmpty()) {
+                List<GenericValue> productAssocs = EntityQuery.use(delegator).from("ProductAssoc")
+                        .where(EntityCondition.makeCondition("productIdTo", EntityOperator.IN, variantIds),
+                                EntityCondition.makeCondition("productAssocTypeId", "PRODUCT_VARIANT"))
+                        .cache(true).filterByDate().queryList();
+                for (GenericValue productAssoc : productAssocs) {
+                    virtualProductIds.putIfAbsent(productAssoc.getString("productIdTo"), productAssoc.getString("productId"));
+                }
+                productIds.addAll(virtualProductIds.values());
+            }
+            // the purpose and term are checked for each product, they are not used for the virtual product prices
+            List<GenericValue> prices = EntityQuery.use(delegator).from("ProductPrice")
+                    .where(EntityCondition.makeCondition("productId", EntityOperator.IN, productIds),
+                            EntityCondition.makeCondition("currencyUomId", currencyUomId),
+                            EntityCondition.makeCondition("productStoreGroupId", productStoreGroupId))
+                    .orderBy("-fromDate").cache(true).filterByDate().queryList();
+            for (GenericValue price : prices) {
+                productPrices.computeIfAbsent(price.getString("productId"), k -> new LinkedList<>()).add(price);
+            }
+        }
+
+        private List<GenericValue> getProductPrices(String productId) {
+            return productPrices.getOrDefault(productId, new LinkedList<>());
+        }
+    }
+
     private static GenericValue getPriceValueForType(String productPriceTypeId, List<GenericValue> productPriceList,
                                                      List<GenericValue> secondaryPriceList) {
         List<GenericValue> filteredPrices = EntityUtil.filterByAnd(productPriceList, UtilMisc.toMap("productPriceTypeId", productPriceTypeId));
@@ -673,6 +801,11 @@ public class PriceServices {
             throws GenericEntityException {
         List<GenericValue> productPriceRules = null;
 
+        if (ProductPriceRuleIndex.isEnabled()) {
+            return ProductPriceRuleIndex.getInstance(delegator).findCandidateRules(delegator, productId, virtualProductId, prodCatalogId,
+                    productStoreGroupId, webSiteId, partyId, currencyUomId);
+        }
+
         // At this point we have two options: optimize for large ruleset, or optimize for small ruleset
         // NOTE: This only effects the way that the rules to be evaluated are selected.
         // For large rule sets we can do a cached pre-filter to limit the rules that need to be evaled for a specific product.
@@ -862,6 +995,7 @@ public class PriceServices {
 
         // calculate running sum based on listPrice and rules found
         BigDecimal price = listPrice;
+        ProductPriceRuleIndex priceRuleIndex = ProductPriceRuleIndex.isEnabled() ? ProductPriceRuleIndex.getInstance(delegator) : null;
 
         for (GenericValue productPriceRule: productPriceRules) {
             String productPriceRuleId = productPriceRule.getString("productPriceRuleId");
@@ -882,8 +1016,7 @@ public class PriceServices {
             // check all conditions
             boolean allTrue = true;
             StringBuilder condsDescription = new StringBuilder();
-            List<GenericValue> productPriceConds = EntityQuery.use(delegator).from("ProductPriceCond").where("productPriceRuleId",
-                    productPriceRuleId).cache(true).queryList();
+            List<GenericValue> productPriceConds = getProductPriceConds(delegator, priceRuleIndex, productPriceRuleId);
             for (GenericValue productPriceCond: productPriceConds) {
 
                 totalConds++;
@@ -926,8 +1059,11 @@ public class PriceServices {
                     isSale = true;
                 }
 
-                List<GenericValue> productPriceActions = EntityQuery.use(delegator).from("ProductPriceAction").where("productPriceRuleId",
-                        productPriceRuleId).cache(true).queryList();
+                List<GenericValue> productPriceActions = priceRuleIndex != null ? priceRuleIndex.getActions(productPriceRuleId) : null;
+                if (productPriceActions == null) {
+                    productPriceActions = EntityQuery.use(delegator).from("ProductPriceAction").where("productPriceRuleId",
+                            productPriceRuleId).cache(true).queryList();
+                }
                 for (GenericValue productPriceAction: productPriceActions) {
 
                     totalActions++;
@@ -1109,6 +1245,16 @@ public class PriceServices {
         return calcResults;
     }
 
+    private static List<GenericValue> getProductPriceConds(Delegator delegator, ProductPriceRuleIndex priceRuleIndex, String productPriceRuleId)
+            throws GenericEntityException {
+        List<GenericValue> productPriceConds = priceRuleIndex != null ? priceRuleIndex.getConditions(productPriceRuleId) : null;
+        if (productPriceConds == null) {
+            productPriceConds = EntityQuery.use(delegator).from("ProductPriceCond").where("productPriceRuleId", productPriceRuleId)
+                    .cache(true).queryList();
+        }
+        return productPriceConds;
+    }
+
     public static boolean checkPriceCondition(GenericValue productPriceCond, String productId, String virtualProductId, String prodCatalogId,
             String productStoreGroupId, String webSiteId, String partyId, BigDecimal quantity, BigDecimal listPrice,
             String currencyUomId, Delegator delegator, Timestamp nowTimestamp) throws GenericEntityException {
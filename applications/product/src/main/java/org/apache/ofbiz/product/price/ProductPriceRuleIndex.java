@@ -0,0 +1,334 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.product.price;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * Compiled index of the product price rules.
+ * <p>
+ * The index holds every ProductPriceRule which has not expired with its ProductPriceCond and ProductPriceAction
+ * records. A rule having an equality condition on an input which is known before evaluating the rules (product,
+ * category, feature, catalog, store group, web site, party or currency) is indexed by the value of that condition,
+ * since the rule cannot apply to other values; the other rules are always candidates. The candidate rules of a
+ * price calculation are then found with a few hash lookups, and their conditions and actions are read without
+ * querying the entity engine.
+ * <p>
+ * The index is used when <code>price.rule.index.enable</code> is set in <code>catalog.properties</code>. When a
+ * rule, a condition or an action is changed, the {@link #refreshProductPriceRuleIndex} service marks the rule, and
+ * only that rule is compiled again when the index is next used after the change is committed.
+ */
+public final class ProductPriceRuleIndex {
+
+    private static final String MODULE = ProductPriceRuleIndex.class.getName();
+    private static final UtilCache<String, ProductPriceRuleIndex> INDEX_CACHE = UtilCache.createUtilCache("product.PriceRuleIndexCache");
+    // the indexed inputs, in the order of preference used to pick the condition indexing a rule
+    private static final List<String> INDEXED_INPUTS = List.of("PRIP_PRODUCT_ID", "PRIP_PROD_FEAT_ID", "PRIP_PROD_CAT_ID",
+            "PRIP_PARTY_ID", "PRIP_PROD_CLG_ID", "PRIP_WEBSITE_ID", "PRIP_PROD_SGRP_ID", "PRIP_CURRENCY_UOMID");
+    private static final Map<String, Set<String>> CHANGED_RULE_IDS = new ConcurrentHashMap<>();
+    // Incremented on each rule change so that an index compiled concurrently with a change is not cached.
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    private final Map<String, CompiledRule> rules;
+    private final List<CompiledRule> unindexedRules;
+    private final Map<String, Map<String, List<CompiledRule>>> indexedRules;
+
+    private ProductPriceRuleIndex(Map<String, CompiledRule> rules) {
+        this.rules = rules;
+        List<CompiledRule> unindexedRules = new ArrayList<>();
+        Map<String, Map<String, List<CompiledRule>>> indexedRules = new HashMap<>();
+        for (CompiledRule rule : rules.values()) {
+            if (rule.indexInput == null) {
+                unindexedRules.add(rule);
+            } else {
+                indexedRules.computeIfAbsent(rule.indexInput, k -> new HashMap<>()).computeIfAbsent(rule.indexValue, k -> new ArrayList<>())
+                        .add(rule);
+            }
+        }
+        this.unindexedRules = Collections.unmodifiableList(unindexedRules);
+        this.indexedRules = indexedRules;
+    }
+
+    /**
+     * Tells if the price calculation uses the index.
+     * @return {@code true} when <code>price.rule.index.enable</code> is set in <code>catalog.properties</code>
+     */
+    public static boolean isEnabled() {
+        return UtilProperties.propertyValueEqualsIgnoreCase("catalog", "price.rule.index.enable", "Y");
+    }
+
+    /**
+     * Returns the price rule index of a delegator, compiling the rules changed since it was last used.
+     * @param delegator the delegator
+     * @return the index
+     * @throws GenericEntityException when the rules cannot be read
+     */
+    public static ProductPriceRuleIndex getInstance(Delegator delegator) throws GenericEntityException {
+        String delegatorName = delegator.getDelegatorName();
+        ProductPriceRuleIndex index = INDEX_CACHE.get(delegatorName);
+        if (index == null) {
+            long generation = GENERATION.get();
+            index = compile(delegator);
+            if (generation == GENERATION.get()) {
+                INDEX_CACHE.put(delegatorName, index);
+            }
+            return index;
+        }
+        Set<String> changedRuleIds = CHANGED_RULE_IDS.get(delegatorName);
+        if (UtilValidate.isNotEmpty(changedRuleIds)) {
+            synchronized (ProductPriceRuleIndex.class) {
+                index = INDEX_CACHE.get(delegatorName);
+                if (index == null) {
+                    return getInstance(delegator);
+                }
+                List<String> ruleIds = new ArrayList<>(changedRuleIds);
+                changedRuleIds.removeAll(ruleIds);
+                index = index.withRules(delegator, ruleIds);
+                INDEX_CACHE.put(delegatorName, index);
+            }
+        }
+        return index;
+    }
+
+    private static ProductPriceRuleIndex compile(Delegator delegator) throws GenericEntityException {
+        Timestamp now = UtilDateTime.nowTimestamp();
+        Map<String, List<GenericValue>> condsByRule = groupByRule(EntityQuery.use(delegator).from("ProductPriceCond")
+                .orderBy("productPriceRuleId", "productPriceCondSeqId").queryList());
+        Map<String, List<GenericValue>> actionsByRule = groupByRule(EntityQuery.use(delegator).from("ProductPriceAction")
+                .orderBy("productPriceRuleId", "productPriceActionSeqId").queryList());
+        Map<String, CompiledRule> rules = new TreeMap<>();
+        List<GenericValue> productPriceRules = EntityQuery.use(delegator).from("ProductPriceRule")
+                .where(EntityCondition.makeCondition(EntityCondition.makeCondition("thruDate", EntityOperator.EQUALS, null), EntityOperator.OR,
+                        EntityCondition.makeCondition("thruDate", EntityOperator.GREATER_THAN, now)))
+                .queryList();
+        for (GenericValue productPriceRule : productPriceRules) {
+            String productPriceRuleId = productPriceRule.getString("productPriceRuleId");
+            rules.put(productPriceRuleId, new CompiledRule(productPriceRule, condsByRule.get(productPriceRuleId),
+                    actionsByRule.get(productPriceRuleId)));
+        }
+        Debug.logInfo("Compiled the price rule index of delegator [" + delegator.getDelegatorName() + "] with " + rules.size() + " rules",
+                MODULE);
+        return new ProductPriceRuleIndex(Collections.unmodifiableMap(rules));
+    }
+
+    private static Map<String, List<GenericValue>> groupByRule(List<GenericValue> values) {
+        Map<String, List<GenericValue>> valuesByRule = new HashMap<>();
+        for (GenericValue value : values) {
+            value.setImmutable();
+            valuesByRule.computeIfAbsent(value.getString("productPriceRuleId"), k -> new ArrayList<>()).add(value);
+        }
+        return valuesByRule;
+    }
+
+    private ProductPriceRuleIndex withRules(Delegator delegator, Collection<String> productPriceRuleIds) throws GenericEntityException {
+        Map<String, CompiledRule> newRules = new TreeMap<>(rules);
+        for (String productPriceRuleId : productPriceRuleIds) {
+            newRules.remove(productPriceRuleId);
+            GenericValue productPriceRule = EntityQuery.use(delegator).from("ProductPriceRule").where("productPriceRuleId", productPriceRuleId)
+                    .queryOne();
+            if (productPriceRule != null) {
+                List<GenericValue> conds = EntityQuery.use(delegator).from("ProductPriceCond").where("productPriceRuleId", productPriceRuleId)
+                        .orderBy("productPriceCondSeqId").queryList();
+                List<GenericValue> actions = EntityQuery.use(delegator).from("ProductPriceAction").where("productPriceRuleId",
+                        productPriceRuleId).orderBy("productPriceActionSeqId").queryList();
+                conds.forEach(GenericValue::setImmutable);
+                actions.forEach(GenericValue::setImmutable);
+                newRules.put(productPriceRuleId, new CompiledRule(productPriceRule, conds, actions));
+            }
+        }
+        return new ProductPriceRuleIndex(Collections.unmodifiableMap(newRules));
+    }
+
+    /**
+     * Finds the rules which may apply to a price calculation.
+     * @param delegator the delegator, used to read the categories and features of the product
+     * @param productId the product ID
+     * @param virtualProductId the virtual product ID of the product, may be {@code null}
+     * @param prodCatalogId the catalog ID, may be {@code null}
+     * @param productStoreGroupId the product store group ID, may be {@code null}
+     * @param webSiteId the web site ID, may be {@code null}
+     * @param partyId the party ID, may be {@code null}
+     * @param currencyUomId the currency
+     * @return the candidate ProductPriceRule records, ordered by ID
+     * @throws GenericEntityException when the categories or features cannot be read
+     */
+    public List<GenericValue> findCandidateRules(Delegator delegator, String productId, String virtualProductId, String prodCatalogId,
+            String productStoreGroupId, String webSiteId, String partyId, String currencyUomId) throws GenericEntityException {
+        Map<String, GenericValue> candidates = new TreeMap<>();
+        for (CompiledRule rule : unindexedRules) {
+            candidates.put(rule.productPriceRuleId, rule.productPriceRule);
+        }
+        addCandidates(candidates, "PRIP_PRODUCT_ID", productId);
+        addCandidates(candidates, "PRIP_PRODUCT_ID", virtualProductId);
+        addCandidates(candidates, "PRIP_PROD_CLG_ID", prodCatalogId);
+        addCandidates(candidates, "PRIP_PROD_SGRP_ID", productStoreGroupId);
+        addCandidates(candidates, "PRIP_WEBSITE_ID", webSiteId);
+        addCandidates(candidates, "PRIP_PARTY_ID", partyId);
+        addCandidates(candidates, "PRIP_CURRENCY_UOMID", currencyUomId);
+        // the category and feature conditions are checked against the current records when the rules are evaluated
+        if (indexedRules.containsKey("PRIP_PROD_CAT_ID")) {
+            for (String id : new String[] {productId, virtualProductId}) {
+                if (id != null) {
+                    for (GenericValue member : EntityQuery.use(delegator).from("ProductCategoryMember").where("productId", id).cache(true)
+                            .queryList()) {
+                        addCandidates(candidates, "PRIP_PROD_CAT_ID", member.getString("productCategoryId"));
+                    }
+                }
+            }
+        }
+        if (indexedRules.containsKey("PRIP_PROD_FEAT_ID") && productId != null) {
+            for (GenericValue appl : EntityQuery.use(delegator).from("ProductFeatureAppl").where("productId", productId).cache(true)
+                    .queryList()) {
+                addCandidates(candidates, "PRIP_PROD_FEAT_ID", appl.getString("productFeatureId"));
+            }
+        }
+        return new ArrayList<>(candidates.values());
+    }
+
+    private void addCandidates(Map<String, GenericValue> candidates, String inputParamEnumId, String value) {
+        if (value == null) {
+            return;
+        }
+        Map<String, List<CompiledRule>> rulesByValue = indexedRules.get(inputParamEnumId);
+        List<CompiledRule> valueRules = rulesByValue != null ? rulesByValue.get(value) : null;
+        if (valueRules != null) {
+            for (CompiledRule rule : valueRules) {
+                candidates.put(rule.productPriceRuleId, rule.productPriceRule);
+            }
+        }
+    }
+
+    /**
+     * Gets the conditions of a rule.
+     * @param productPriceRuleId the rule ID
+     * @return the ProductPriceCond records of the rule, {@code null} when the rule is not in the index
+     */
+    public List<GenericValue> getConditions(String productPriceRuleId) {
+        CompiledRule rule = rules.get(productPriceRuleId);
+        return rule != null ? rule.conds : null;
+    }
+
+    /**
+     * Gets the actions of a rule.
+     * @param productPriceRuleId the rule ID
+     * @return the ProductPriceAction records of the rule, {@code null} when the rule is not in the index
+     */
+    public List<GenericValue> getActions(String productPriceRuleId) {
+        CompiledRule rule = rules.get(productPriceRuleId);
+        return rule != null ? rule.actions : null;
+    }
+
+    /**
+     * Marks a price rule as changed, meant to be run as an entity ECA on ProductPriceRule, ProductPriceCond and
+     * ProductPriceAction. The rule is compiled again once the current transaction is committed.
+     * @param dctx the dispatch context
+     * @param context the service context, containing the productPriceRuleId
+     * @return the service result
+     */
+    public static Map<String, Object> refreshProductPriceRuleIndex(DispatchContext dctx, Map<String, ? extends Object> context) {
+        String delegatorName = dctx.getDelegator().getDelegatorName();
+        String productPriceRuleId = (String) context.get("productPriceRuleId");
+        Runnable markChanged = () -> {
+            GENERATION.incrementAndGet();
+            CHANGED_RULE_IDS.computeIfAbsent(delegatorName, k -> ConcurrentHashMap.newKeySet()).add(productPriceRuleId);
+        };
+        try {
+            if (TransactionUtil.isTransactionInPlace()) {
+                TransactionUtil.registerSynchronization(new Synchronization() {
+                    @Override
+                    public void beforeCompletion() {
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        if (status == Status.STATUS_COMMITTED) {
+                            markChanged.run();
+                        }
+                    }
+                });
+                return ServiceUtil.returnSuccess();
+            }
+        } catch (GenericTransactionException e) {
+            Debug.logWarning(e, "Unable to wait for the transaction end, refreshing price rule [" + productPriceRuleId + "] now", MODULE);
+        }
+        markChanged.run();
+        return ServiceUtil.returnSuccess();
+    }
+
+    private static final class CompiledRule {
+        private final String productPriceRuleId;
+        private final GenericValue productPriceRule;
+        private final List<GenericValue> conds;
+        private final List<GenericValue> actions;
+        private final String indexInput;
+        private final String indexValue;
+
+        private CompiledRule(GenericValue productPriceRule, List<GenericValue> conds, List<GenericValue> actions) {
+            productPriceRule.setImmutable();
+            this.productPriceRuleId = productPriceRule.getString("productPriceRuleId");
+            this.productPriceRule = productPriceRule;
+            this.conds = conds != null ? Collections.unmodifiableList(conds) : Collections.emptyList();
+            this.actions = actions != null ? Collections.unmodifiableList(actions) : Collections.emptyList();
+            Map<String, String> equalityConds = new HashMap<>();
+            for (GenericValue cond : this.conds) {
+                if ("PRC_EQ".equals(cond.getString("operatorEnumId")) && cond.getString("condValue") != null) {
+                    equalityConds.putIfAbsent(cond.getString("inputParamEnumId"), cond.getString("condValue"));
+                }
+            }
+            String input = null;
+            for (String candidate : INDEXED_INPUTS) {
+                if (equalityConds.containsKey(candidate)) {
+                    input = candidate;
+                    break;
+                }
+            }
+            this.indexInput = input;
+            this.indexValue = input != null ? equalityConds.get(input) : null;
+        }
+    }
+}
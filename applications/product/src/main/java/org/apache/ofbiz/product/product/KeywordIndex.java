@@ -57,28 +57,65 @@ public class KeywordIndex {
     }
 
     public static void indexKeywords(GenericValue product, boolean doAll) throws GenericEntityException {
-        if (product == null) {
+        Map<String, Long> keywords = makeKeywords(product, doAll);
+        if (keywords == null) {
             return;
         }
+        Delegator delegator = product.getDelegator();
+
+        List<GenericValue> toBeStored = new LinkedList<>();
+        for (Map.Entry<String, Long> entry: keywords.entrySet()) {
+            GenericValue productKeyword = delegator.makeValue("ProductKeyword", UtilMisc.toMap("productId", product.getString("productId"),
+                    "keyword", entry.getKey(), "keywordTypeId", "KWT_KEYWORD", "relevancyWeight", entry.getValue()));
+            toBeStored.add(productKeyword);
+        }
+        if (!toBeStored.isEmpty()) {
+            if (Debug.verboseOn()) {
+                Debug.logVerbose("[KeywordIndex.indexKeywords] Storing " + toBeStored.size() + " keywords for productId "
+                        + product.getString("productId"), MODULE);
+            }
+
+            if ("true".equals(EntityUtilProperties.getPropertyValue("prodsearch", "index.delete.on_index", "false", delegator))) {
+                // delete all keywords if the properties file says to
+                ProductSearchCache.clearKeywordResults(delegator, product.getString("productId"));
+                delegator.removeByAnd("ProductKeyword", UtilMisc.toMap("productId", product.getString("productId")));
+            }
+
+            delegator.storeAll(toBeStored);
+        }
+        ProductSearchIndex.noteProductChanged(delegator, product.getString("productId"));
+    }
+
+    /**
+     * Makes the KWT_KEYWORD keywords of a product with their relevancy weights, without storing them.
+     * @param product the product
+     * @param doAll if {@code false} the products which are not indexed (see prodsearch.properties) get no keywords
+     * @return the keywords by keyword, {@code null} if the product is not indexed
+     * @throws GenericEntityException
+     */
+    public static Map<String, Long> makeKeywords(GenericValue product, boolean doAll) throws GenericEntityException {
+        if (product == null) {
+            return null;
+        }
         Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
         Delegator delegator = product.getDelegator();
         if (!doAll) {
             if ("N".equals(product.getString("autoCreateKeywords"))) {
-                return;
+                return null;
             }
             if ("Y".equals(product.getString("isVariant")) && "true".equals(EntityUtilProperties.getPropertyValue("prodsearch",
                     "index.ignore.variants", delegator))) {
-                return;
+                return null;
             }
             Timestamp salesDiscontinuationDate = product.getTimestamp("salesDiscontinuationDate");
             if (salesDiscontinuationDate != null && salesDiscontinuationDate.before(nowTimestamp)
                     && "true".equals(EntityUtilProperties.getPropertyValue("prodsearch", "index.ignore.discontinued.sales", delegator))) {
-                return;
+                return null;
             }
         }
 
         if (delegator == null) {
-            return;
+            return null;
         }
         String productId = product.getString("productId");
 
@@ -198,28 +235,9 @@ public class KeywordIndex {
             }
         }
 
-        List<GenericValue> toBeStored = new LinkedList<>();
         int keywordMaxLength = EntityUtilProperties.getPropertyAsInteger("prodsearch", "product.keyword.max.length", 0);
-        for (Map.Entry<String, Long> entry: keywords.entrySet()) {
-            if (entry.getKey().length() <= keywordMaxLength) {
-                GenericValue productKeyword = delegator.makeValue("ProductKeyword", UtilMisc.toMap("productId", product.getString("productId"),
-                        "keyword", entry.getKey(), "keywordTypeId", "KWT_KEYWORD", "relevancyWeight", entry.getValue()));
-                toBeStored.add(productKeyword);
-            }
-        }
-        if (!toBeStored.isEmpty()) {
-            if (Debug.verboseOn()) {
-                Debug.logVerbose("[KeywordIndex.indexKeywords] Storing " + toBeStored.size() + " keywords for productId "
-                        + product.getString("productId"), MODULE);
-            }
-
-            if ("true".equals(EntityUtilProperties.getPropertyValue("prodsearch", "index.delete.on_index", "false", delegator))) {
-                // delete all keywords if the properties file says to
-                delegator.removeByAnd("ProductKeyword", UtilMisc.toMap("productId", product.getString("productId")));
-            }
-
-            delegator.storeAll(toBeStored);
-        }
+        keywords.keySet().removeIf(keyword -> keyword.length() > keywordMaxLength);
+        return keywords;
     }
 
     public static void addWeightedDataResourceString(GenericValue drView, int weight, List<String> strings, Delegator delegator,
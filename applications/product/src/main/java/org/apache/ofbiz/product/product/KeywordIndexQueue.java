@@ -0,0 +1,379 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.product.product;
+
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.DelegatorFactory;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * Indexes the product keywords in the background.
+ * <p>
+ * When <code>index.queue.enable</code> is set in <code>prodsearch.properties</code>, the indexProductKeywords service
+ * only records the product in ProductKeywordIndexQueue, in the transaction changing the product. Once a product has
+ * not been queued again for <code>index.queue.delay</code> milliseconds it is indexed by a pool of
+ * <code>index.queue.workers</code> threads, each given <code>index.queue.batch.size</code> products and indexing each
+ * one in its own transaction. The new keywords are compared with the stored ones so only the added, changed and
+ * removed keywords are written. A product failing to be indexed is retried after the delay, up to
+ * <code>index.queue.max.failures</code> times; it is then left in the queue until it is queued again.
+ */
+public final class KeywordIndexQueue {
+
+    private static final String MODULE = KeywordIndexQueue.class.getName();
+    private static final Set<String> QUEUED_DELEGATORS = ConcurrentHashMap.newKeySet();
+    private static final Set<String> PROCESSING_DELEGATORS = ConcurrentHashMap.newKeySet();
+    private static final LongAdder INDEXED_PRODUCTS = new LongAdder();
+    private static final LongAdder FAILED_PRODUCTS = new LongAdder();
+    private static final LongAdder CREATED_KEYWORDS = new LongAdder();
+    private static final LongAdder UPDATED_KEYWORDS = new LongAdder();
+    private static final LongAdder REMOVED_KEYWORDS = new LongAdder();
+    private static volatile ScheduledExecutorService poller;
+    private static volatile ExecutorService workers;
+
+    private KeywordIndexQueue() { }
+
+    /**
+     * Tells if the product keywords are indexed in the background.
+     * @param delegator the delegator
+     * @return {@code true} when <code>index.queue.enable</code> is set in <code>prodsearch.properties</code>
+     */
+    public static boolean isEnabled(Delegator delegator) {
+        return EntityUtilProperties.propertyValueEqualsIgnoreCase("prodsearch", "index.queue.enable", "true", delegator);
+    }
+
+    /**
+     * Queues a product for keyword indexing, in the current transaction. A product queued again before it is
+     * indexed is indexed once.
+     * @param delegator the delegator
+     * @param productId the product ID
+     * @throws GenericEntityException
+     */
+    public static void enqueue(Delegator delegator, String productId) throws GenericEntityException {
+        Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
+        // only the set fields are stored, so the firstQueuedDate of a product already queued is kept
+        delegator.createOrStore(delegator.makeValue("ProductKeywordIndexQueue", UtilMisc.toMap("productId", productId,
+                "queuedDate", nowTimestamp, "failureCount", null)));
+        delegator.storeByCondition("ProductKeywordIndexQueue", UtilMisc.toMap("firstQueuedDate", nowTimestamp),
+                EntityCondition.makeCondition(EntityCondition.makeCondition("productId", productId),
+                        EntityCondition.makeCondition("firstQueuedDate", null)));
+        afterCommit(() -> startPoller(delegator));
+    }
+
+    private static void afterCommit(Runnable runnable) {
+        try {
+            if (TransactionUtil.isTransactionInPlace()) {
+                TransactionUtil.registerSynchronization(new Synchronization() {
+                    @Override
+                    public void beforeCompletion() {
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        if (status == Status.STATUS_COMMITTED) {
+                            runnable.run();
+                        }
+                    }
+                });
+                return;
+            }
+        } catch (GenericTransactionException e) {
+            Debug.logWarning(e, "Unable to wait for the transaction end, starting the keyword index queue now", MODULE);
+        }
+        runnable.run();
+    }
+
+    private static void startPoller(Delegator delegator) {
+        QUEUED_DELEGATORS.add(delegator.getDelegatorName());
+        if (poller == null) {
+            synchronized (KeywordIndexQueue.class) {
+                if (poller == null) {
+                    long interval = UtilProperties.getPropertyAsLong("prodsearch", "index.queue.poll.interval", 5000L);
+                    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "OFBiz-keyword-index-queue");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    executor.scheduleWithFixedDelay(KeywordIndexQueue::poll, interval, interval, TimeUnit.MILLISECONDS);
+                    poller = executor;
+                }
+            }
+        }
+    }
+
+    private static ExecutorService getWorkers() {
+        if (workers == null) {
+            synchronized (KeywordIndexQueue.class) {
+                if (workers == null) {
+                    int size = Math.max(1, UtilProperties.getPropertyAsInteger("prodsearch", "index.queue.workers", 4));
+                    workers = Executors.newFixedThreadPool(size, r -> {
+                        Thread t = new Thread(r, "OFBiz-keyword-index-worker");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        return workers;
+    }
+
+    private static void poll() {
+        for (String delegatorName : QUEUED_DELEGATORS) {
+            Delegator delegator = DelegatorFactory.getDelegator(delegatorName);
+            if (delegator != null && isEnabled(delegator)) {
+                processQueue(delegator);
+            }
+        }
+    }
+
+    /**
+     * Indexes the queued products which have not been queued again for <code>index.queue.delay</code> milliseconds.
+     * Products which cannot be indexed stay in the queue and are retried after the delay, without holding the others.
+     * @param delegator the delegator
+     * @return the number of indexed products
+     */
+    public static int processQueue(Delegator delegator) {
+        if (!PROCESSING_DELEGATORS.add(delegator.getDelegatorName())) {
+            // already being processed by another thread
+            return 0;
+        }
+        try {
+            long delay = UtilProperties.getPropertyAsLong("prodsearch", "index.queue.delay", 5000L);
+            int batchSize = Math.max(1, UtilProperties.getPropertyAsInteger("prodsearch", "index.queue.batch.size", 200));
+            int workerCount = Math.max(1, UtilProperties.getPropertyAsInteger("prodsearch", "index.queue.workers", 4));
+            long maxFailures = UtilProperties.getPropertyAsLong("prodsearch", "index.queue.max.failures", 5L);
+            int indexed = 0;
+            while (true) {
+                Timestamp dueTimestamp = new Timestamp(System.currentTimeMillis() - delay);
+                List<GenericValue> queueEntries;
+                try {
+                    queueEntries = EntityQuery.use(delegator).from("ProductKeywordIndexQueue")
+                            .where(EntityCondition.makeCondition("queuedDate", EntityOperator.LESS_THAN_EQUAL_TO, dueTimestamp),
+                                    EntityCondition.makeCondition(EntityCondition.makeCondition("failureCount", null), EntityOperator.OR,
+                                            EntityCondition.makeCondition("failureCount", EntityOperator.LESS_THAN, maxFailures)))
+                            .orderBy("firstQueuedDate").maxRows(batchSize * workerCount).queryList();
+                } catch (GenericEntityException e) {
+                    Debug.logError(e, "Unable to read the product keyword index queue", MODULE);
+                    break;
+                }
+                if (queueEntries.isEmpty()) {
+                    break;
+                }
+                List<Future<Integer>> batches = new LinkedList<>();
+                for (int i = 0; i < queueEntries.size(); i += batchSize) {
+                    List<GenericValue> batch = queueEntries.subList(i, Math.min(queueEntries.size(), i + batchSize));
+                    batches.add(getWorkers().submit(() -> indexBatch(delegator, batch, maxFailures)));
+                }
+                int roundIndexed = 0;
+                for (Future<Integer> batch : batches) {
+                    try {
+                        roundIndexed += batch.get();
+                    } catch (ExecutionException e) {
+                        Debug.logError(e.getCause(), "Unable to index a batch of product keywords, the remaining products stay queued", MODULE);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return indexed + roundIndexed;
+                    }
+                }
+                indexed += roundIndexed;
+                // the failed products are only due again after the delay, stop when nothing could be indexed
+                if (roundIndexed == 0 || queueEntries.size() < batchSize * workerCount) {
+                    break;
+                }
+            }
+            if (indexed > 0 && Debug.infoOn()) {
+                Debug.logInfo("Indexed the keywords of " + indexed + " queued products", MODULE);
+            }
+            return indexed;
+        } finally {
+            PROCESSING_DELEGATORS.remove(delegator.getDelegatorName());
+        }
+    }
+
+    private static int indexBatch(Delegator delegator, List<GenericValue> queueEntries, long maxFailures) {
+        int indexed = 0;
+        for (GenericValue queueEntry : queueEntries) {
+            try {
+                indexProduct(delegator, queueEntry);
+                indexed++;
+            } catch (GenericEntityException | RuntimeException e) {
+                recordFailure(delegator, queueEntry, maxFailures, e);
+            }
+        }
+        INDEXED_PRODUCTS.add(indexed);
+        return indexed;
+    }
+
+    private static void indexProduct(Delegator delegator, GenericValue queueEntry) throws GenericEntityException {
+        String productId = queueEntry.getString("productId");
+        TransactionUtil.doNewTransaction(() -> {
+            GenericValue product = EntityQuery.use(delegator).from("Product").where("productId", productId).queryOne();
+            Map<String, Long> keywords = KeywordIndex.makeKeywords(product, false);
+            if (keywords != null) {
+                updateKeywords(delegator, productId, keywords);
+                ProductSearchIndex.noteProductChanged(delegator, productId);
+            }
+            // a product queued again meanwhile stays in the queue
+            delegator.removeByAnd("ProductKeywordIndexQueue", UtilMisc.toMap("productId", productId,
+                    "queuedDate", queueEntry.getTimestamp("queuedDate")));
+            return null;
+        }, "Error indexing the keywords of queued product [" + productId + "]", 0, true);
+    }
+
+    /**
+     * Counts a failure of a queued product and makes it due again after the delay, unless it was queued again meanwhile.
+     */
+    private static void recordFailure(Delegator delegator, GenericValue queueEntry, long maxFailures, Exception cause) {
+        String productId = queueEntry.getString("productId");
+        Long failureCount = queueEntry.getLong("failureCount");
+        long failures = failureCount == null ? 1 : failureCount + 1;
+        FAILED_PRODUCTS.increment();
+        if (failures < maxFailures) {
+            Debug.logWarning(cause, "Unable to index the keywords of queued product [" + productId + "], failure " + failures
+                    + ", will retry", MODULE);
+        } else {
+            Debug.logError(cause, "Unable to index the keywords of queued product [" + productId + "] after " + failures
+                    + " failures, it stays queued until it is queued again", MODULE);
+        }
+        try {
+            TransactionUtil.doNewTransaction(() -> delegator.storeByCondition("ProductKeywordIndexQueue",
+                    UtilMisc.toMap("failureCount", failures, "queuedDate", UtilDateTime.nowTimestamp()),
+                    EntityCondition.makeCondition(EntityCondition.makeCondition("productId", productId),
+                            EntityCondition.makeCondition("queuedDate", queueEntry.getTimestamp("queuedDate")))),
+                    "Error recording the failure of queued product [" + productId + "]", 0, true);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, MODULE);
+        }
+    }
+
+    private static void updateKeywords(Delegator delegator, String productId, Map<String, Long> keywords) throws GenericEntityException {
+        Map<String, GenericValue> storedKeywords = new HashMap<>();
+        for (GenericValue productKeyword : EntityQuery.use(delegator).from("ProductKeyword")
+                .where("productId", productId, "keywordTypeId", "KWT_KEYWORD").queryList()) {
+            storedKeywords.put(productKeyword.getString("keyword"), productKeyword);
+        }
+        List<String> removedKeywords = new LinkedList<>();
+        for (String keyword : storedKeywords.keySet()) {
+            if (!keywords.containsKey(keyword)) {
+                removedKeywords.add(keyword);
+            }
+        }
+        if (!removedKeywords.isEmpty()) {
+            REMOVED_KEYWORDS.add(delegator.removeByCondition("ProductKeyword", EntityCondition.makeCondition(
+                    EntityCondition.makeCondition("productId", productId),
+                    EntityCondition.makeCondition("keywordTypeId", "KWT_KEYWORD"),
+                    EntityCondition.makeCondition("keyword", EntityOperator.IN, removedKeywords))));
+            // removing by condition does not run the entity ECAs clearing the cached search results
+            for (String keyword : removedKeywords) {
+                ProductSearchCache.clearResults(delegator, keyword, null, null);
+            }
+        }
+        for (Map.Entry<String, Long> entry : keywords.entrySet()) {
+            GenericValue productKeyword = storedKeywords.get(entry.getKey());
+            if (productKeyword == null) {
+                delegator.create("ProductKeyword", "productId", productId, "keyword", entry.getKey(), "keywordTypeId", "KWT_KEYWORD",
+                        "relevancyWeight", entry.getValue());
+                CREATED_KEYWORDS.increment();
+            } else if (!entry.getValue().equals(productKeyword.getLong("relevancyWeight"))) {
+                productKeyword.set("relevancyWeight", entry.getValue());
+                productKeyword.store();
+                UPDATED_KEYWORDS.increment();
+            }
+        }
+    }
+
+    /**
+     * Indexes the queued products, meant to be scheduled so products queued before a restart get indexed.
+     * @param dctx the dispatch context
+     * @param context the service context
+     * @return the service result, with the number of indexed products
+     */
+    public static Map<String, Object> processProductKeywordIndexQueue(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        if (!isEnabled(delegator)) {
+            result.put("indexedCount", 0);
+            return result;
+        }
+        result.put("indexedCount", processQueue(delegator));
+        startPoller(delegator);
+        return result;
+    }
+
+    /**
+     * Returns the state of the keyword index queue: its depth, the age of its oldest product and the counts of
+     * indexed and failed products and written keywords since the server started.
+     * @param dctx the dispatch context
+     * @param context the service context
+     * @return the service result
+     */
+    public static Map<String, Object> getProductKeywordIndexQueueStatus(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        try {
+            result.put("queueDepth", EntityQuery.use(delegator).from("ProductKeywordIndexQueue").queryCount());
+            GenericValue oldest = EntityQuery.use(delegator).from("ProductKeywordIndexQueue").orderBy("firstQueuedDate").queryFirst();
+            if (oldest != null && oldest.getTimestamp("firstQueuedDate") != null) {
+                result.put("oldestQueuedDate", oldest.getTimestamp("firstQueuedDate"));
+                result.put("lagMillis", System.currentTimeMillis() - oldest.getTimestamp("firstQueuedDate").getTime());
+            } else {
+                result.put("lagMillis", 0L);
+            }
+        } catch (GenericEntityException e) {
+            Debug.logError(e, MODULE);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        result.put("indexedProducts", INDEXED_PRODUCTS.sum());
+        result.put("failedProducts", FAILED_PRODUCTS.sum());
+        result.put("createdKeywords", CREATED_KEYWORDS.sum());
+        result.put("updatedKeywords", UPDATED_KEYWORDS.sum());
+        result.put("removedKeywords", REMOVED_KEYWORDS.sum());
+        return result;
+    }
+}
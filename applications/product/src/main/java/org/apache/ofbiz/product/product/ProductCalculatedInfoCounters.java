@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.product.product;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.DelegatorFactory;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
+
+/**
+ * Buffers the ProductCalculatedInfo counters which are incremented on each order and each product view.
+ * <p>
+ * Updating the ProductCalculatedInfo record of a best seller from every order transaction makes these
+ * transactions wait for each other. When <code>product.calculated.info.buffer.enable</code> is set in
+ * <code>catalog.properties</code>, increments are added to in-memory {@link LongAdder}s instead, once the
+ * transaction making them is committed, and a background thread folds them into ProductCalculatedInfo every
+ * <code>product.calculated.info.flush.interval</code> milliseconds, one product per transaction.
+ * Readers of ProductCalculatedInfo, like the product search sort by popularity, see the counts with that delay.
+ * Increments not yet folded are lost if the server stops.
+ */
+public final class ProductCalculatedInfoCounters {
+
+    private static final String MODULE = ProductCalculatedInfoCounters.class.getName();
+    // quantities are kept as longs with the scale of the fixed-point fields
+    private static final int QUANTITY_SCALE = 6;
+    private static final Map<String, Map<String, Counter>> COUNTERS = new ConcurrentHashMap<>();
+    private static volatile ScheduledExecutorService flusher;
+
+    private ProductCalculatedInfoCounters() { }
+
+    /**
+     * Tells if the counters are buffered.
+     * @return {@code true} when <code>product.calculated.info.buffer.enable</code> is set in <code>catalog.properties</code>
+     */
+    public static boolean isEnabled() {
+        return UtilProperties.propertyValueEqualsIgnoreCase("catalog", "product.calculated.info.buffer.enable", "Y");
+    }
+
+    /**
+     * Adds an ordered quantity to the totalQuantityOrdered counter of a product.
+     * @param delegator the delegator
+     * @param productId the product ID
+     * @param quantity the ordered quantity
+     */
+    public static void addQuantityOrdered(Delegator delegator, String productId, BigDecimal quantity) {
+        if (quantity == null || quantity.signum() == 0) {
+            return;
+        }
+        long scaled = quantity.setScale(QUANTITY_SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+        afterCommit(() -> getCounter(delegator, productId).quantityOrdered.add(scaled));
+    }
+
+    /**
+     * Adds views to the totalTimesViewed counter of a product.
+     * @param delegator the delegator
+     * @param productId the product ID
+     * @param weight the number of views
+     */
+    public static void addTimesViewed(Delegator delegator, String productId, long weight) {
+        if (weight == 0) {
+            return;
+        }
+        afterCommit(() -> getCounter(delegator, productId).timesViewed.add(weight));
+    }
+
+    private static void afterCommit(Runnable increment) {
+        try {
+            if (TransactionUtil.isTransactionInPlace()) {
+                TransactionUtil.registerSynchronization(new Synchronization() {
+                    @Override
+                    public void beforeCompletion() {
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        if (status == Status.STATUS_COMMITTED) {
+                            increment.run();
+                        }
+                    }
+                });
+                return;
+            }
+        } catch (GenericTransactionException e) {
+            Debug.logWarning(e, "Unable to wait for the transaction end, counting now", MODULE);
+        }
+        increment.run();
+    }
+
+    private static Counter getCounter(Delegator delegator, String productId) {
+        startFlusher();
+        return COUNTERS.computeIfAbsent(delegator.getDelegatorName(), k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(productId, k -> new Counter());
+    }
+
+    private static void startFlusher() {
+        if (flusher == null) {
+            synchronized (ProductCalculatedInfoCounters.class) {
+                if (flusher == null) {
+                    long interval = UtilProperties.getPropertyAsLong("catalog", "product.calculated.info.flush.interval", 10000L);
+                    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "OFBiz-product-counters");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    executor.scheduleWithFixedDelay(ProductCalculatedInfoCounters::flush, interval, interval, TimeUnit.MILLISECONDS);
+                    flusher = executor;
+                }
+            }
+        }
+    }
+
+    /**
+     * Folds the buffered increments into the ProductCalculatedInfo records. Increments which cannot be
+     * stored are kept for the next flush. Never throws, so that the scheduled flushes go on after a failure.
+     */
+    public static synchronized void flush() {
+        for (Map.Entry<String, Map<String, Counter>> delegatorEntry : COUNTERS.entrySet()) {
+            Delegator delegator;
+            try {
+                delegator = DelegatorFactory.getDelegator(delegatorEntry.getKey());
+            } catch (RuntimeException e) {
+                Debug.logError(e, "Unable to get delegator [" + delegatorEntry.getKey() + "], will retry", MODULE);
+                continue;
+            }
+            if (delegator == null) {
+                continue;
+            }
+            for (Map.Entry<String, Counter> entry : delegatorEntry.getValue().entrySet()) {
+                Counter counter = entry.getValue();
+                // take what has been counted so far, increments made meanwhile stay for the next flush
+                long quantityOrdered = counter.quantityOrdered.sum();
+                long timesViewed = counter.timesViewed.sum();
+                if (quantityOrdered == 0 && timesViewed == 0) {
+                    continue;
+                }
+                counter.quantityOrdered.add(-quantityOrdered);
+                counter.timesViewed.add(-timesViewed);
+                try {
+                    fold(delegator, entry.getKey(), BigDecimal.valueOf(quantityOrdered, QUANTITY_SCALE), timesViewed);
+                } catch (GenericEntityException | RuntimeException e) {
+                    Debug.logError(e, "Unable to update ProductCalculatedInfo for product [" + entry.getKey() + "], will retry", MODULE);
+                    counter.quantityOrdered.add(quantityOrdered);
+                    counter.timesViewed.add(timesViewed);
+                }
+            }
+        }
+    }
+
+    private static void fold(Delegator delegator, String productId, BigDecimal quantityOrdered, long timesViewed)
+            throws GenericEntityException {
+        TransactionUtil.doNewTransaction(() -> {
+            GenericValue productCalculatedInfo = EntityQuery.use(delegator).from("ProductCalculatedInfo").where("productId", productId)
+                    .queryOne();
+            if (productCalculatedInfo == null) {
+                productCalculatedInfo = delegator.makeValue("ProductCalculatedInfo", "productId", productId);
+                productCalculatedInfo.set("totalQuantityOrdered", quantityOrdered.signum() != 0 ? quantityOrdered : null);
+                productCalculatedInfo.set("totalTimesViewed", timesViewed != 0 ? timesViewed : null);
+                productCalculatedInfo.create();
+                return null;
+            }
+            if (quantityOrdered.signum() != 0) {
+                BigDecimal totalQuantityOrdered = productCalculatedInfo.getBigDecimal("totalQuantityOrdered");
+                productCalculatedInfo.set("totalQuantityOrdered", totalQuantityOrdered == null ? quantityOrdered
+                        : totalQuantityOrdered.add(quantityOrdered));
+            }
+            if (timesViewed != 0) {
+                Long totalTimesViewed = productCalculatedInfo.getLong("totalTimesViewed");
+                productCalculatedInfo.set("totalTimesViewed", totalTimesViewed == null ? timesViewed : totalTimesViewed + timesViewed);
+            }
+            productCalculatedInfo.store();
+            return null;
+        }, "Error updating ProductCalculatedInfo", 0, true);
+    }
+
+    private static final class Counter {
+        private final LongAdder quantityOrdered = new LongAdder();
+        private final LongAdder timesViewed = new LongAdder();
+    }
+}
@@ -838,6 +838,7 @@ public class ProductEvents {
 
         try {
             delegator.removeByAnd("ProductFeatureAppl", UtilMisc.toMap("productFeatureId", productFeatureId, "productId", productId));
+            ProductSearchCache.clearResults(delegator, null, null, productFeatureId);
         } catch (GenericEntityException e) {
             String errMsg = "Error removing product feature: " + e.toString();
             request.setAttribute("_ERROR_MESSAGE_", errMsg);
@@ -30,8 +30,10 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.ObjectType;
 import org.apache.ofbiz.base.util.UtilDateTime;
 import org.apache.ofbiz.base.util.UtilMisc;
 import org.apache.ofbiz.base.util.UtilProperties;
@@ -57,8 +59,10 @@ import org.apache.ofbiz.entity.transaction.TransactionUtil;
 import org.apache.ofbiz.entity.util.EntityListIterator;
 import org.apache.ofbiz.entity.util.EntityQuery;
 import org.apache.ofbiz.entity.util.EntityUtil;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
 import org.apache.ofbiz.party.party.PartyHelper;
 import org.apache.ofbiz.product.category.CategoryContentWrapper;
+import org.apache.ofbiz.product.category.CategoryTopology;
 import org.apache.ofbiz.service.LocalDispatcher;
 
 
@@ -70,6 +74,7 @@ public class ProductSearch {
     private static final String MODULE = ProductSearch.class.getName();
     private static final String RESOURCE = "ProductUiLabels";
     private static final String RES_COMMON = "CommonUiLabels";
+    private static final Map<String, ProductSearchBackend> BACKENDS = new ConcurrentHashMap<>();
 
     public static ArrayList<String> parametricKeywordSearch(Map<?, String> featureIdByType, String keywordsString, Delegator delegator,
             String productCategoryId, String visitId, boolean anyPrefix, boolean anySuffix, boolean isAnd) {
@@ -113,11 +118,43 @@ public class ProductSearch {
         return productIds;
     }
 
+    /**
+     * Gets the search backend set by <code>search.backend.class</code> in <code>prodsearch.properties</code>.
+     * @param delegator the delegator
+     * @return the backend, {@code null} when the searches are only done with the SQL query
+     */
+    public static ProductSearchBackend getSearchBackend(Delegator delegator) {
+        String className = EntityUtilProperties.getPropertyValue("prodsearch", "search.backend.class", delegator);
+        if (UtilValidate.isEmpty(className)) {
+            return null;
+        }
+        ProductSearchBackend backend = BACKENDS.get(className);
+        if (backend == null) {
+            try {
+                backend = (ProductSearchBackend) ObjectType.getInstance(className);
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                Debug.logError(e, "Unable to load the product search backend [" + className + "], using the SQL search", MODULE);
+                return null;
+            }
+            ProductSearchBackend existing = BACKENDS.putIfAbsent(className, backend);
+            if (existing != null) {
+                backend = existing;
+            }
+        }
+        return backend;
+    }
+
     public static void getAllSubCategoryIds(String productCategoryId, Set<String> productCategoryIdSet, Delegator delegator, Timestamp nowTimestamp) {
         if (nowTimestamp == null) {
             nowTimestamp = UtilDateTime.nowTimestamp();
         }
 
+        CategoryTopology topology = CategoryTopology.getInstance(delegator);
+        if (topology != null) {
+            topology.addSubCategoryIds(productCategoryId, productCategoryIdSet, nowTimestamp);
+            return;
+        }
+
         // this will use the Delegator cache as much as possible, but not a dedicated cache because it would get stale to easily and is
         // too much of a pain to maintain in development and production
 
@@ -161,6 +198,7 @@ public class ProductSearch {
         private Set<String> orKeywordFixedSet = new HashSet<>();
         private Set<String> andKeywordFixedSet = new HashSet<>();
         private List<GenericValue> productSearchConstraintList = new LinkedList<>();
+        private List<ProductSearchConstraint> searchConstraints = new LinkedList<>();
         private ResultSortOrder resultSortOrder = null;
         private Integer resultOffset = null;
         private Integer maxResults = null;
@@ -230,6 +268,14 @@ public class ProductSearch {
             this.keywordTypeIds = keywordTypeIds;
         }
 
+        /**
+         * Gets keyword type ids.
+         * @return the keyword type ids
+         */
+        public List<String> getKeywordTypeIds() {
+            return keywordTypeIds;
+        }
+
         private List<String> keywordTypeIds = new LinkedList<>();
 
         /**
@@ -240,6 +286,14 @@ public class ProductSearch {
             this.statusId = statusId;
         }
 
+        /**
+         * Gets status id.
+         * @return the status id
+         */
+        public String getStatusId() {
+            return statusId;
+        }
+
         private String statusId = null;
 
         public ProductSearchContext(Delegator delegator, String visitId) {
@@ -266,9 +320,18 @@ public class ProductSearch {
             // Go through the constraints and add them in
             for (ProductSearchConstraint constraint: productSearchConstraintList) {
                 constraint.addConstraint(this);
+                searchConstraints.add(constraint);
             }
         }
 
+        /**
+         * Gets the search constraints added to this context.
+         * @return the search constraints
+         */
+        public List<ProductSearchConstraint> getSearchConstraints() {
+            return searchConstraints;
+        }
+
         /**
          * Sets result sort order.
          * @param resultSortOrder the result sort order
@@ -277,6 +340,14 @@ public class ProductSearch {
             this.resultSortOrder = resultSortOrder;
         }
 
+        /**
+         * Gets result sort order.
+         * @return the result sort order
+         */
+        public ResultSortOrder getResultSortOrder() {
+            return resultSortOrder;
+        }
+
         /**
          * Sets result offset.
          * @param resultOffset the result offset
@@ -285,6 +356,14 @@ public class ProductSearch {
             this.resultOffset = resultOffset;
         }
 
+        /**
+         * Gets result offset.
+         * @return the result offset, starting at 1
+         */
+        public Integer getResultOffset() {
+            return resultOffset;
+        }
+
         /**
          * Sets max results.
          * @param maxResults the max results
@@ -293,6 +372,14 @@ public class ProductSearch {
             this.maxResults = maxResults;
         }
 
+        /**
+         * Gets max results.
+         * @return the max results
+         */
+        public Integer getMaxResults() {
+            return maxResults;
+        }
+
         /**
          * Gets total results.
          * @return the total results
@@ -301,6 +388,14 @@ public class ProductSearch {
             return this.totalResults;
         }
 
+        /**
+         * Sets total results, used by the search backends.
+         * @param totalResults the total results
+         */
+        public void setTotalResults(Integer totalResults) {
+            this.totalResults = totalResults;
+        }
+
         /**
          * Do search array list.
          * @return the array list
@@ -308,12 +403,14 @@ public class ProductSearch {
         public ArrayList<String> doSearch() {
             long startMillis = System.currentTimeMillis();
 
-            // do the query
             ArrayList<String> productIds = null;
-            try (EntityListIterator eli = this.doQuery(delegator)) {
-                productIds = this.makeProductIdList(eli);
-            } catch (GenericEntityException e) {
-                Debug.logError(e, MODULE);
+            if (ProductSearchCache.isEnabled(delegator)) {
+                productIds = ProductSearchCache.search(this);
+            }
+            if (productIds == null) {
+                productIds = this.runSearch();
+            }
+            if (productIds == null) {
                 return null;
             }
 
@@ -326,6 +423,26 @@ public class ProductSearch {
             return productIds;
         }
 
+        /**
+         * Runs the search with the search backend when there is one able to answer, otherwise with the query.
+         * @return the product IDs of the requested page, {@code null} if the query failed
+         */
+        ArrayList<String> runSearch() {
+            ProductSearchBackend searchBackend = getSearchBackend(delegator);
+            if (searchBackend != null) {
+                ArrayList<String> productIds = searchBackend.search(this);
+                if (productIds != null) {
+                    return productIds;
+                }
+            }
+            try (EntityListIterator eli = this.doQuery(delegator)) {
+                return this.makeProductIdList(eli);
+            } catch (GenericEntityException e) {
+                Debug.logError(e, MODULE);
+                return null;
+            }
+        }
+
         /**
          * Finish keyword constraints.
          */
@@ -997,6 +1114,14 @@ public class ProductSearch {
             this.productCategories = productCategories;
         }
 
+        /**
+         * Gets the categories of the catalog.
+         * @return the product categories
+         */
+        public List<GenericValue> getProductCategories() {
+            return productCategories;
+        }
+
         @Override
         public void addConstraint(ProductSearchContext productSearchContext) {
             List<String> productCategoryIds = new LinkedList<>();
@@ -1800,6 +1925,14 @@ public class ProductSearch {
             return isAnd;
         }
 
+        /**
+         * Is remove stems boolean.
+         * @return the boolean
+         */
+        public boolean isRemoveStems() {
+            return removeStems;
+        }
+
         public KeywordConstraint(String keywordsString, boolean anyPrefix, boolean anySuffix, Boolean removeStems, boolean isAnd) {
             this.keywordsString = keywordsString;
             this.anyPrefix = anyPrefix;
@@ -1834,9 +1967,14 @@ public class ProductSearch {
             return fullKeywordSet;
         }
 
-        @Override
-        public void addConstraint(ProductSearchContext productSearchContext) {
-            // just make the fixed keyword lists and put them in the context
+        /**
+         * Makes the fixed keyword sets to search for: a product matches a set when one of its keywords matches one of
+         * the set entries, which may contain % wildcards.
+         * @param delegator the delegator
+         * @return one set per entered keyword when isAnd is true, all to be matched; a single set otherwise
+         */
+        public List<Set<String>> makeFixedKeywordSets(Delegator delegator) {
+            List<Set<String>> fixedKeywordSets = new LinkedList<>();
             if (isAnd) {
                 // when isAnd is true we need to make a list of keyword sets where each set corresponds to one
                 //incoming/entered keyword and contains all of the expanded keywords plus the entered keyword if none of
@@ -1849,20 +1987,32 @@ public class ProductSearch {
                 // expand the keyword list according to the thesaurus and create a new set of keywords
                 for (String keyword: keywordSet) {
                     Set<String> expandedSet = new TreeSet<>();
-                    boolean replaceEntered = KeywordSearchUtil.expandKeywordForSearch(keyword, expandedSet, productSearchContext.getDelegator());
+                    boolean replaceEntered = KeywordSearchUtil.expandKeywordForSearch(keyword, expandedSet, delegator);
                     if (!replaceEntered) {
                         expandedSet.add(keyword);
                     }
                     Set<String> fixedSet = KeywordSearchUtil.fixKeywordsForSearch(expandedSet, anyPrefix, anySuffix, removeStems, isAnd);
                     Set<String> fixedKeywordSet = new HashSet<>();
                     fixedKeywordSet.addAll(fixedSet);
-                    productSearchContext.keywordFixedOrSetAndList.add(fixedKeywordSet);
+                    fixedKeywordSets.add(fixedKeywordSet);
                 }
             } else {
                 // when isAnd is false, just add all of the new entries to the big list
-                Set<String> keywordFirstPass = makeFullKeywordSet(productSearchContext.getDelegator()); // includes keyword expansion, etc
+                Set<String> keywordFirstPass = makeFullKeywordSet(delegator); // includes keyword expansion, etc
                 Set<String> keywordSet = KeywordSearchUtil.fixKeywordsForSearch(keywordFirstPass, anyPrefix, anySuffix, removeStems, isAnd);
-                productSearchContext.orKeywordFixedSet.addAll(keywordSet);
+                fixedKeywordSets.add(new HashSet<>(keywordSet));
+            }
+            return fixedKeywordSets;
+        }
+
+        @Override
+        public void addConstraint(ProductSearchContext productSearchContext) {
+            // just make the fixed keyword lists and put them in the context
+            List<Set<String>> fixedKeywordSets = makeFixedKeywordSets(productSearchContext.getDelegator());
+            if (isAnd) {
+                productSearchContext.keywordFixedOrSetAndList.addAll(fixedKeywordSets);
+            } else {
+                productSearchContext.orKeywordFixedSet.addAll(fixedKeywordSets.get(0));
             }
 
             // add in productSearchConstraint, don't worry about the productSearchResultId or constraintSeqId, those will be fill in later
@@ -2791,6 +2941,22 @@ public class ProductSearch {
             return productPriceTypeId;
         }
 
+        /**
+         * Gets currency uom id.
+         * @return the currency uom id, {@code null} for the default currency
+         */
+        public String getCurrencyUomId() {
+            return currencyUomId;
+        }
+
+        /**
+         * Gets product store group id.
+         * @return the product store group id, {@code null} for _NA_
+         */
+        public String getProductStoreGroupId() {
+            return productStoreGroupId;
+        }
+
         public SortProductPrice(String productPriceTypeId, boolean ascending) {
             this.productPriceTypeId = productPriceTypeId;
             this.ascending = ascending;
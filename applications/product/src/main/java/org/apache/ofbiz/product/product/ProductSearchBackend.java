@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.product.product;
+
+import java.util.ArrayList;
+
+import org.apache.ofbiz.product.product.ProductSearch.ProductSearchContext;
+
+/**
+ * A product search backend, answering the searches of a {@link ProductSearchContext} instead of the SQL query.
+ * <p>
+ * The backend is set by <code>search.backend.class</code> in <code>prodsearch.properties</code>, the class must have
+ * a public no-argument constructor; a single instance is shared by all the searches.
+ */
+public interface ProductSearchBackend {
+
+    /**
+     * Searches the products matching the constraints of a search context, honoring its sort order, result offset and
+     * max results. The total number of results is set in the context with {@link ProductSearchContext#setTotalResults}.
+     * @param productSearchContext the search context, with its constraints added
+     * @return the product IDs of the requested page, {@code null} when the backend cannot answer this search and the
+     *         SQL query must be used
+     */
+    ArrayList<String> search(ProductSearchContext productSearchContext);
+}
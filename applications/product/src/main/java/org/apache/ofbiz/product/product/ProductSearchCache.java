@@ -0,0 +1,518 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.product.product;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.cache.CacheListener;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
+import org.apache.ofbiz.product.product.ProductSearch.CatalogConstraint;
+import org.apache.ofbiz.product.product.ProductSearch.CategoryConstraint;
+import org.apache.ofbiz.product.product.ProductSearch.FeatureCategoryConstraint;
+import org.apache.ofbiz.product.product.ProductSearch.FeatureConstraint;
+import org.apache.ofbiz.product.product.ProductSearch.FeatureGroupConstraint;
+import org.apache.ofbiz.product.product.ProductSearch.FeatureSetConstraint;
+import org.apache.ofbiz.product.product.ProductSearch.KeywordConstraint;
+import org.apache.ofbiz.product.product.ProductSearch.ListPriceRangeConstraint;
+import org.apache.ofbiz.product.product.ProductSearch.ProductSearchConstraint;
+import org.apache.ofbiz.product.product.ProductSearch.ProductSearchContext;
+import org.apache.ofbiz.product.product.ProductSearch.ResultSortOrder;
+import org.apache.ofbiz.product.product.ProductSearch.SortProductPrice;
+import org.apache.ofbiz.product.product.ProductSearch.StoreGroupPriceConstraint;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * Shared cache of the product search results.
+ * <p>
+ * When <code>search.result.cache.enable</code> is set in <code>prodsearch.properties</code>, a search is run once for
+ * all its pages: the product IDs of up to <code>search.result.cache.max.results</code> results are kept, keyed by the
+ * set of constraints, the sort order with its currency and store group, the keyword types and the status. The cached
+ * results are indexed by the keywords, categories, features and prices they depend on, and the
+ * {@link #clearProductSearchResults} service run by the entity ECAs of ProductKeyword, ProductCategoryMember,
+ * ProductCategoryRollup, ProductFeatureAppl and ProductPrice only removes the results depending on the changed record.
+ * Records removed by condition do not run the entity ECAs, the code removing them calls {@link #clearResults} or
+ * {@link #clearKeywordResults} instead. Changes to other data, like the passing of effective dates, are seen when the
+ * results expire.
+ */
+public final class ProductSearchCache {
+
+    private static final String MODULE = ProductSearchCache.class.getName();
+    private static final UtilCache<SearchKey, SearchResult> RESULT_CACHE = UtilCache.createUtilCache("product.ProductSearchResultCache");
+    private static final Dependencies DEPENDENCIES = new Dependencies();
+    // Incremented on each change so that a result computed concurrently with a change is not cached.
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    static {
+        RESULT_CACHE.addListener(DEPENDENCIES);
+    }
+
+    private ProductSearchCache() { }
+
+    /**
+     * Tells if the search results are cached.
+     * @param delegator the delegator
+     * @return {@code true} when <code>search.result.cache.enable</code> is set in <code>prodsearch.properties</code>
+     */
+    public static boolean isEnabled(Delegator delegator) {
+        return EntityUtilProperties.propertyValueEqualsIgnoreCase("prodsearch", "search.result.cache.enable", "true", delegator);
+    }
+
+    /**
+     * Returns the requested page of a search from the cache, running the search for all the pages when it is not cached.
+     * @param productSearchContext the search context, with its constraints and sort order
+     * @return the product IDs of the requested page, {@code null} if the search failed
+     */
+    static ArrayList<String> search(ProductSearchContext productSearchContext) {
+        SearchKey key = new SearchKey(productSearchContext);
+        int offset = 0;
+        if (productSearchContext.getResultOffset() != null && productSearchContext.getResultOffset() > 1) {
+            offset = productSearchContext.getResultOffset() - 1;
+        }
+        Integer maxResults = productSearchContext.getMaxResults();
+
+        SearchResult result = RESULT_CACHE.get(key);
+        List<String> productIds;
+        int totalResults;
+        if (result == null) {
+            // get the first results at once, enough for the requested page
+            int maxCached = UtilProperties.getPropertyAsInteger("prodsearch", "search.result.cache.max.results", 1000);
+            Integer resultOffset = productSearchContext.getResultOffset();
+            long generation = GENERATION.get();
+            productSearchContext.setResultOffset(null);
+            productSearchContext.setMaxResults(maxResults == null ? null : Math.max(maxCached, offset + maxResults));
+            try {
+                productIds = productSearchContext.runSearch();
+            } finally {
+                productSearchContext.setResultOffset(resultOffset);
+                productSearchContext.setMaxResults(maxResults);
+            }
+            if (productIds == null) {
+                return null;
+            }
+            totalResults = productSearchContext.getTotalResults() == null ? productIds.size() : productSearchContext.getTotalResults();
+            if (totalResults <= productIds.size() && productIds.size() <= maxCached && generation == GENERATION.get()) {
+                RESULT_CACHE.put(key, new SearchResult(productSearchContext, productIds, totalResults));
+            }
+        } else {
+            if (Debug.verboseOn()) {
+                Debug.logVerbose("Found " + result.totalResults + " cached product search results", MODULE);
+            }
+            productIds = Arrays.asList(result.productIds);
+            totalResults = result.totalResults;
+        }
+
+        int end = productIds.size();
+        if (maxResults != null) {
+            end = Math.min(end, offset + maxResults);
+        }
+        ArrayList<String> page = new ArrayList<>(offset < end ? productIds.subList(offset, end) : new ArrayList<>());
+        // like the SQL search, the total is the offset when there is nothing past it
+        productSearchContext.setTotalResults(offset >= totalResults ? offset : totalResults);
+        return page;
+    }
+
+    /**
+     * Removes the search results depending on a keyword, a category or a feature, once the current transaction is
+     * committed.
+     * @param delegator the delegator
+     * @param keyword the changed keyword, or {@code null}
+     * @param productCategoryId the category of the changed member, or {@code null}
+     * @param productFeatureId the changed applied feature, or {@code null}
+     */
+    public static void clearResults(Delegator delegator, String keyword, String productCategoryId, String productFeatureId) {
+        clearResults(delegator, keyword, productCategoryId, productFeatureId, false);
+    }
+
+    /**
+     * Removes the search results depending on the prices, once the current transaction is committed.
+     * @param delegator the delegator
+     */
+    public static void clearPriceResults(Delegator delegator) {
+        clearResults(delegator, null, null, null, true);
+    }
+
+    /**
+     * Removes the search results depending on the keywords of a product, once the current transaction is committed.
+     * Meant to be called before the keywords are removed by condition, which does not run the entity ECAs.
+     * @param delegator the delegator
+     * @param productId the product ID
+     * @throws GenericEntityException when the keywords cannot be read
+     */
+    public static void clearKeywordResults(Delegator delegator, String productId) throws GenericEntityException {
+        if (!isEnabled(delegator)) {
+            return;
+        }
+        Set<String> keywords = new HashSet<>();
+        for (GenericValue productKeyword : EntityQuery.use(delegator).select("keyword").from("ProductKeyword").where("productId", productId)
+                .queryList()) {
+            keywords.add(productKeyword.getString("keyword"));
+        }
+        for (String keyword : keywords) {
+            clearResults(delegator, keyword, null, null);
+        }
+    }
+
+    private static void clearResults(Delegator delegator, String keyword, String productCategoryId, String productFeatureId,
+            boolean productPrice) {
+        String delegatorName = delegator.getDelegatorName();
+        Runnable clear = () -> {
+            GENERATION.incrementAndGet();
+            for (SearchKey key : DEPENDENCIES.find(keyword, productCategoryId, productFeatureId, productPrice)) {
+                if (key.delegatorName.equals(delegatorName)) {
+                    RESULT_CACHE.remove(key);
+                }
+            }
+        };
+        try {
+            if (TransactionUtil.isTransactionInPlace()) {
+                TransactionUtil.registerSynchronization(new Synchronization() {
+                    @Override
+                    public void beforeCompletion() {
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        if (status == Status.STATUS_COMMITTED) {
+                            clear.run();
+                        }
+                    }
+                });
+                return;
+            }
+        } catch (GenericTransactionException e) {
+            Debug.logWarning(e, "Unable to wait for the transaction end, clearing the product search results now", MODULE);
+        }
+        clear.run();
+    }
+
+    /**
+     * Removes the cached search results depending on the keyword, category, feature or price of a changed record, meant
+     * to be run as an entity ECA on ProductKeyword, ProductCategoryMember, ProductCategoryRollup, ProductFeatureAppl and
+     * ProductPrice. A changed rollup removes the results depending on its parent category, which includes its
+     * sub-categories.
+     * @param dctx the dispatch context
+     * @param context the service context
+     * @return the service result
+     */
+    public static Map<String, Object> clearProductSearchResults(DispatchContext dctx, Map<String, ? extends Object> context) {
+        String productCategoryId = (String) context.get("parentProductCategoryId");
+        if (productCategoryId == null) {
+            productCategoryId = (String) context.get("productCategoryId");
+        }
+        clearResults(dctx.getDelegator(), (String) context.get("keyword"), productCategoryId, (String) context.get("productFeatureId"),
+                context.get("productPriceTypeId") != null);
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * Tells if the search results are cached, used as the condition of the entity ECAs so they are not run when the
+     * cache is disabled.
+     * @param dctx the dispatch context
+     * @param context the service context
+     * @return the service result, with the conditionReply
+     */
+    public static Map<String, Object> isProductSearchCacheEnabled(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("conditionReply", isEnabled(dctx.getDelegator()));
+        return result;
+    }
+
+    /**
+     * The key of a search, two searches with the same constraints in any order have the same results.
+     */
+    private static final class SearchKey {
+        private final String delegatorName;
+        private final Set<ProductSearchConstraint> constraints;
+        private final String orderName;
+        private final boolean ascending;
+        private final String currencyUomId;
+        private final String productStoreGroupId;
+        private final List<String> keywordTypeIds;
+        private final String statusId;
+
+        private SearchKey(ProductSearchContext productSearchContext) {
+            ResultSortOrder resultSortOrder = productSearchContext.getResultSortOrder();
+            this.delegatorName = productSearchContext.getDelegator().getDelegatorName();
+            this.constraints = new HashSet<>(productSearchContext.getSearchConstraints());
+            this.orderName = resultSortOrder != null ? resultSortOrder.getOrderName() : null;
+            this.ascending = resultSortOrder != null && resultSortOrder.isAscending();
+            if (resultSortOrder instanceof SortProductPrice) {
+                this.currencyUomId = ((SortProductPrice) resultSortOrder).getCurrencyUomId();
+                this.productStoreGroupId = ((SortProductPrice) resultSortOrder).getProductStoreGroupId();
+            } else {
+                this.currencyUomId = null;
+                this.productStoreGroupId = null;
+            }
+            this.keywordTypeIds = new ArrayList<>(productSearchContext.getKeywordTypeIds());
+            this.statusId = productSearchContext.getStatusId();
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(delegatorName, constraints, orderName, ascending, currencyUomId, productStoreGroupId, keywordTypeIds, statusId);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof SearchKey)) {
+                return false;
+            }
+            SearchKey other = (SearchKey) obj;
+            return delegatorName.equals(other.delegatorName) && constraints.equals(other.constraints)
+                    && Objects.equals(orderName, other.orderName) && ascending == other.ascending
+                    && Objects.equals(currencyUomId, other.currencyUomId) && Objects.equals(productStoreGroupId, other.productStoreGroupId)
+                    && keywordTypeIds.equals(other.keywordTypeIds) && Objects.equals(statusId, other.statusId);
+        }
+    }
+
+    /**
+     * The product IDs of a search with the keywords, categories, features and prices they depend on.
+     */
+    private static final class SearchResult {
+        private final String[] productIds;
+        private final int totalResults;
+        private final Set<String> keywordPatterns = new HashSet<>();
+        private final Set<String> productCategoryIds = new HashSet<>();
+        private final Set<String> productFeatureIds = new HashSet<>();
+        private boolean anyProductFeature = false;
+        private boolean anyProductPrice = false;
+
+        private SearchResult(ProductSearchContext productSearchContext, List<String> productIds, int totalResults) {
+            this.productIds = productIds.toArray(new String[0]);
+            this.totalResults = totalResults;
+            Delegator delegator = productSearchContext.getDelegator();
+            for (ProductSearchConstraint constraint : productSearchContext.getSearchConstraints()) {
+                if (constraint instanceof KeywordConstraint) {
+                    for (Set<String> keywordSet : ((KeywordConstraint) constraint).makeFixedKeywordSets(delegator)) {
+                        for (String keyword : keywordSet) {
+                            keywordPatterns.add(keyword);
+                        }
+                    }
+                } else if (constraint instanceof CategoryConstraint) {
+                    CategoryConstraint categoryConstraint = (CategoryConstraint) constraint;
+                    if (categoryConstraint.isIncludeSubCategories()) {
+                        ProductSearch.getAllSubCategoryIds(categoryConstraint.getProductCategoryId(), productCategoryIds, delegator,
+                                productSearchContext.getNowTimestamp());
+                    } else {
+                        productCategoryIds.add(categoryConstraint.getProductCategoryId());
+                    }
+                } else if (constraint instanceof CatalogConstraint) {
+                    for (GenericValue productCategory : ((CatalogConstraint) constraint).getProductCategories()) {
+                        productCategoryIds.add(productCategory.getString("productCategoryId"));
+                    }
+                } else if (constraint instanceof FeatureConstraint) {
+                    productFeatureIds.add(((FeatureConstraint) constraint).getProductFeatureId());
+                } else if (constraint instanceof FeatureCategoryConstraint || constraint instanceof FeatureGroupConstraint
+                        || constraint instanceof FeatureSetConstraint) {
+                    anyProductFeature = true;
+                } else if (constraint instanceof ListPriceRangeConstraint || constraint instanceof StoreGroupPriceConstraint) {
+                    anyProductPrice = true;
+                }
+            }
+            ResultSortOrder resultSortOrder = productSearchContext.getResultSortOrder();
+            if (resultSortOrder != null && resultSortOrder.getOrderName().startsWith("ProductFeature:")) {
+                anyProductFeature = true;
+            }
+            if (resultSortOrder instanceof SortProductPrice) {
+                anyProductPrice = true;
+            }
+        }
+    }
+
+    /**
+     * The cached searches by the keywords, categories, features and prices they depend on, kept up to date as a listener of
+     * the result cache. The keywords are LIKE patterns: the plain keywords and the prefixes are looked up, only the
+     * other patterns are matched against a changed keyword. The results evicted by the cache size limit are not
+     * notified, they are pruned when the index gets twice as large as the cache.
+     */
+    private static final class Dependencies implements CacheListener<SearchKey, SearchResult> {
+        private final Map<SearchKey, SearchResult> results = new HashMap<>();
+        private final Map<String, Set<SearchKey>> byKeyword = new HashMap<>();
+        private final Map<String, Set<SearchKey>> byKeywordPrefix = new HashMap<>();
+        private final Map<String, Set<SearchKey>> byKeywordPattern = new HashMap<>();
+        private final Map<String, Pattern> keywordRegexes = new HashMap<>();
+        private final Map<String, Set<SearchKey>> byCategory = new HashMap<>();
+        private final Map<String, Set<SearchKey>> byFeature = new HashMap<>();
+        private final Set<SearchKey> anyFeature = new HashSet<>();
+        private final Set<SearchKey> anyPrice = new HashSet<>();
+
+        @Override
+        public synchronized void noteKeyAddition(UtilCache<SearchKey, SearchResult> cache, SearchKey key, SearchResult newValue) {
+            add(key, newValue);
+            if (results.size() > 2 * Math.max(cache.size(), 100)) {
+                results.entrySet().removeIf(entry -> {
+                    if (cache.containsKey(entry.getKey())) {
+                        return false;
+                    }
+                    unindex(entry.getKey(), entry.getValue());
+                    return true;
+                });
+            }
+        }
+
+        @Override
+        public synchronized void noteKeyUpdate(UtilCache<SearchKey, SearchResult> cache, SearchKey key, SearchResult newValue,
+                SearchResult oldValue) {
+            remove(key, oldValue);
+            add(key, newValue);
+        }
+
+        @Override
+        public synchronized void noteKeyRemoval(UtilCache<SearchKey, SearchResult> cache, SearchKey key, SearchResult oldValue) {
+            remove(key, oldValue);
+        }
+
+        private void add(SearchKey key, SearchResult result) {
+            SearchResult old = results.put(key, result);
+            if (old != null) {
+                unindex(key, old);
+            }
+            for (String pattern : result.keywordPatterns) {
+                int wildcard = indexOfWildcard(pattern);
+                if (wildcard < 0) {
+                    byKeyword.computeIfAbsent(pattern, k -> new HashSet<>()).add(key);
+                } else if (wildcard == pattern.length() - 1 && pattern.charAt(wildcard) == '%') {
+                    byKeywordPrefix.computeIfAbsent(pattern.substring(0, wildcard), k -> new HashSet<>()).add(key);
+                } else {
+                    byKeywordPattern.computeIfAbsent(pattern, k -> new HashSet<>()).add(key);
+                    keywordRegexes.computeIfAbsent(pattern, ProductSearchIndex::likeToRegex);
+                }
+            }
+            for (String productCategoryId : result.productCategoryIds) {
+                byCategory.computeIfAbsent(productCategoryId, k -> new HashSet<>()).add(key);
+            }
+            for (String productFeatureId : result.productFeatureIds) {
+                byFeature.computeIfAbsent(productFeatureId, k -> new HashSet<>()).add(key);
+            }
+            if (result.anyProductFeature) {
+                anyFeature.add(key);
+            }
+            if (result.anyProductPrice) {
+                anyPrice.add(key);
+            }
+        }
+
+        private void remove(SearchKey key, SearchResult result) {
+            // the result may have been replaced already
+            if (results.remove(key, result)) {
+                unindex(key, result);
+            }
+        }
+
+        private void unindex(SearchKey key, SearchResult result) {
+            for (String pattern : result.keywordPatterns) {
+                int wildcard = indexOfWildcard(pattern);
+                if (wildcard < 0) {
+                    removeKey(byKeyword, pattern, key);
+                } else if (wildcard == pattern.length() - 1 && pattern.charAt(wildcard) == '%') {
+                    removeKey(byKeywordPrefix, pattern.substring(0, wildcard), key);
+                } else if (removeKey(byKeywordPattern, pattern, key)) {
+                    keywordRegexes.remove(pattern);
+                }
+            }
+            for (String productCategoryId : result.productCategoryIds) {
+                removeKey(byCategory, productCategoryId, key);
+            }
+            for (String productFeatureId : result.productFeatureIds) {
+                removeKey(byFeature, productFeatureId, key);
+            }
+            anyFeature.remove(key);
+            anyPrice.remove(key);
+        }
+
+        /**
+         * @return {@code true} when no search depends on the value any more
+         */
+        private static boolean removeKey(Map<String, Set<SearchKey>> keysByValue, String value, SearchKey key) {
+            Set<SearchKey> keys = keysByValue.get(value);
+            if (keys == null) {
+                return true;
+            }
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByValue.remove(value);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Finds the cached searches depending on a keyword, a category, a feature or the prices.
+         */
+        private synchronized Set<SearchKey> find(String keyword, String productCategoryId, String productFeatureId, boolean productPrice) {
+            Set<SearchKey> keys = new HashSet<>();
+            if (productPrice) {
+                keys.addAll(anyPrice);
+            }
+            if (productCategoryId != null) {
+                keys.addAll(byCategory.getOrDefault(productCategoryId, Set.of()));
+            }
+            if (productFeatureId != null) {
+                keys.addAll(byFeature.getOrDefault(productFeatureId, Set.of()));
+                keys.addAll(anyFeature);
+            }
+            if (keyword != null) {
+                keys.addAll(byKeyword.getOrDefault(keyword, Set.of()));
+                for (int i = 0; i <= keyword.length(); i++) {
+                    keys.addAll(byKeywordPrefix.getOrDefault(keyword.substring(0, i), Set.of()));
+                }
+                for (Map.Entry<String, Pattern> entry : keywordRegexes.entrySet()) {
+                    if (entry.getValue().matcher(keyword).matches()) {
+                        keys.addAll(byKeywordPattern.get(entry.getKey()));
+                    }
+                }
+            }
+            return keys;
+        }
+
+        private static int indexOfWildcard(String pattern) {
+            for (int i = 0; i < pattern.length(); i++) {
+                if (pattern.charAt(i) == '%' || pattern.charAt(i) == '_') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
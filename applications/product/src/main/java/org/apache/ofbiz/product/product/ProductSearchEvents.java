@@ -83,6 +83,8 @@ public class ProductSearchEvents {
                     numRemoved += delegator.removeByAnd("ProductCategoryMember", UtilMisc.toMap("productCategoryId", productCategoryId,
                             "productId", productId));
                 }
+                // removing by condition does not run the entity ECAs clearing the cached search results
+                ProductSearchCache.clearResults(delegator, null, productCategoryId, null);
                 Map<String, String> messageMap = UtilMisc.toMap("numRemoved", Integer.toString(numRemoved));
                 errMsg = UtilProperties.getMessage(RESOURCE, "productsearchevents.removed_x_items", messageMap, UtilHttp.getLocale(request));
                 request.setAttribute("_EVENT_MESSAGE_", errMsg);
@@ -372,6 +374,8 @@ public class ProductSearchEvents {
                     numRemoved += delegator.removeByAnd("ProductFeatureAppl", UtilMisc.toMap("productId", productId, "productFeatureId",
                             productFeatureId));
                 }
+                // removing by condition does not run the entity ECAs clearing the cached search results
+                ProductSearchCache.clearResults(delegator, null, null, productFeatureId);
                 Map<String, Object> messageMap = UtilMisc.toMap("numRemoved", numRemoved, "productFeatureId", productFeatureId);
                 String eventMsg = UtilProperties.getMessage(RESOURCE, "productSearchEvents.removed_param_features", messageMap, locale) + ".";
                 request.setAttribute("_EVENT_MESSAGE_", eventMsg);
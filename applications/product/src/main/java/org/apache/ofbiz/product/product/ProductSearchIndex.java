@@ -0,0 +1,924 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.product.product;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityListIterator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.product.product.ProductSearch.CategoryConstraint;
+import org.apache.ofbiz.product.product.ProductSearch.ExcludeVariantsConstraint;
+import org.apache.ofbiz.product.product.ProductSearch.FeatureConstraint;
+import org.apache.ofbiz.product.product.ProductSearch.KeywordConstraint;
+import org.apache.ofbiz.product.product.ProductSearch.ProductSearchConstraint;
+import org.apache.ofbiz.product.product.ProductSearch.ProductSearchContext;
+import org.apache.ofbiz.product.product.ProductSearch.ResultSortOrder;
+import org.apache.ofbiz.product.product.ProductSearch.SortKeywordRelevancy;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * In-memory product search backend.
+ * <p>
+ * The index holds, for each keyword type, the ProductKeyword postings of each keyword (the product ordinals and
+ * relevancy weights, delta and variable length encoded) and, for each category and feature, a bitmap of the products
+ * which are currently members of the category or have the feature applied. Keyword, category, feature and variant
+ * constraints are answered by intersecting those sets and the results are ranked by the sum of the matched weights;
+ * any other constraint or sort order is left to the SQL query.
+ * <p>
+ * It is used when <code>search.backend.class</code> is set to this class in <code>prodsearch.properties</code>. The
+ * index is built in the background on first use, until then the searches use the SQL query. Products changed by
+ * {@link KeywordIndex#indexKeywords} or through the entity ECAs calling {@link #updateProductSearchIndex} are read
+ * again in the background once the change is committed, as are the products having a category member or a feature
+ * application starting or ending, found by the next search; the searches keep using the current postings meanwhile.
+ */
+public final class ProductSearchIndex implements ProductSearchBackend {
+
+    private static final String MODULE = ProductSearchIndex.class.getName();
+    private static final Map<String, DelegatorIndex> INDEXES = new ConcurrentHashMap<>();
+    // over this number of changed products the index is built again instead of reading each product
+    private static final int MAX_CHANGED_PRODUCTS = 10000;
+    private static final ExecutorService BUILDER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "OFBiz-product-search-index");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @Override
+    public ArrayList<String> search(ProductSearchContext productSearchContext) {
+        if (UtilValidate.isNotEmpty(productSearchContext.getStatusId())) {
+            return null;
+        }
+        ResultSortOrder resultSortOrder = productSearchContext.getResultSortOrder();
+        if (resultSortOrder != null && !(resultSortOrder instanceof SortKeywordRelevancy)) {
+            return null;
+        }
+        Query query = new Query();
+        for (ProductSearchConstraint constraint : productSearchContext.getSearchConstraints()) {
+            if (!query.add(constraint, productSearchContext)) {
+                return null;
+            }
+        }
+        query.finish();
+
+        Delegator delegator = productSearchContext.getDelegator();
+        IndexState state = INDEXES.computeIfAbsent(delegator.getDelegatorName(), k -> new DelegatorIndex()).getState(delegator);
+        if (state == null) {
+            return null;
+        }
+        List<String> productIds = state.search(query, productSearchContext.getKeywordTypeIds(), resultSortOrder != null);
+
+        int offset = 0;
+        if (productSearchContext.getResultOffset() != null && productSearchContext.getResultOffset() > 1) {
+            offset = productSearchContext.getResultOffset() - 1;
+        }
+        int end = productIds.size();
+        if (productSearchContext.getMaxResults() != null) {
+            end = Math.min(end, offset + productSearchContext.getMaxResults());
+        }
+        ArrayList<String> results = new ArrayList<>(offset < end ? productIds.subList(offset, end) : new ArrayList<>());
+        // like the SQL search, the total is the offset when there is nothing past it
+        productSearchContext.setTotalResults(offset >= productIds.size() ? offset : productIds.size());
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("Found " + productIds.size() + " products in the search index, returning " + results.size(), MODULE);
+        }
+        return results;
+    }
+
+    /**
+     * Marks a product as changed, it is read again by the next search once the current transaction is committed.
+     * @param delegator the delegator
+     * @param productId the product ID
+     */
+    public static void noteProductChanged(Delegator delegator, String productId) {
+        DelegatorIndex index = INDEXES.get(delegator.getDelegatorName());
+        if (index == null || UtilValidate.isEmpty(productId)) {
+            return;
+        }
+        Runnable markChanged = () -> {
+            index.changedProductIds.add(productId);
+            index.scheduleUpdate(delegator);
+        };
+        try {
+            if (TransactionUtil.isTransactionInPlace()) {
+                TransactionUtil.registerSynchronization(new Synchronization() {
+                    @Override
+                    public void beforeCompletion() {
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        if (status == Status.STATUS_COMMITTED) {
+                            markChanged.run();
+                        }
+                    }
+                });
+                return;
+            }
+        } catch (GenericTransactionException e) {
+            Debug.logWarning(e, "Unable to wait for the transaction end, marking product [" + productId + "] as changed now", MODULE);
+        }
+        markChanged.run();
+    }
+
+    /**
+     * Builds the index of a delegator again, replacing the current one, and waits for it to be built.
+     * @param delegator the delegator
+     */
+    public static void rebuild(Delegator delegator) {
+        DelegatorIndex index = INDEXES.computeIfAbsent(delegator.getDelegatorName(), k -> new DelegatorIndex());
+        try {
+            BUILDER.submit(() -> index.build(delegator)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Debug.logError(e, "Unable to build the product search index", MODULE);
+        }
+    }
+
+    /**
+     * Tells if the searches are answered by this index, used as the condition of the entity ECAs so they are not run
+     * when another backend is set.
+     * @param dctx the dispatch context
+     * @param context the service context
+     * @return the service result, with the conditionReply
+     */
+    public static Map<String, Object> isProductSearchIndexEnabled(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("conditionReply", ProductSearch.getSearchBackend(dctx.getDelegator()) instanceof ProductSearchIndex);
+        return result;
+    }
+
+    /**
+     * Marks a product as changed in the search index, meant to be run as an entity ECA on Product,
+     * ProductCategoryMember and ProductFeatureAppl; the ProductKeyword changes are noted by {@link KeywordIndex}.
+     * @param dctx the dispatch context
+     * @param context the service context, containing the productId
+     * @return the service result
+     */
+    public static Map<String, Object> updateProductSearchIndex(DispatchContext dctx, Map<String, ? extends Object> context) {
+        noteProductChanged(dctx.getDelegator(), (String) context.get("productId"));
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * The constraints of a search, in the form used by the SQL search: like its andKeywordFixedSet, only the single
+     * keywords are restricted to the keyword types of the search, the keyword sets match any type.
+     */
+    private static final class Query {
+        private final Set<String> andKeywords = new LinkedHashSet<>();
+        private final List<Set<String>> keywordSets = new LinkedList<>();
+        private final Set<String> orKeywords = new HashSet<>();
+        private final List<Set<String>> includeCategoryIdSets = new LinkedList<>();
+        private final Set<String> excludeCategoryIds = new HashSet<>();
+        private final List<Set<String>> alwaysIncludeCategoryIdSets = new LinkedList<>();
+        private final Set<String> includeFeatureIds = new HashSet<>();
+        private final Set<String> excludeFeatureIds = new HashSet<>();
+        private final Set<String> alwaysIncludeFeatureIds = new HashSet<>();
+        private boolean excludeVariants = false;
+
+        private boolean add(ProductSearchConstraint constraint, ProductSearchContext productSearchContext) {
+            if (constraint instanceof KeywordConstraint) {
+                KeywordConstraint keywordConstraint = (KeywordConstraint) constraint;
+                List<Set<String>> fixedKeywordSets = keywordConstraint.makeFixedKeywordSets(productSearchContext.getDelegator());
+                if (keywordConstraint.isAnd()) {
+                    keywordSets.addAll(fixedKeywordSets);
+                } else {
+                    orKeywords.addAll(fixedKeywordSets.get(0));
+                }
+            } else if (constraint instanceof CategoryConstraint) {
+                CategoryConstraint categoryConstraint = (CategoryConstraint) constraint;
+                Set<String> productCategoryIds = new HashSet<>();
+                if (categoryConstraint.isIncludeSubCategories()) {
+                    ProductSearch.getAllSubCategoryIds(categoryConstraint.getProductCategoryId(), productCategoryIds,
+                            productSearchContext.getDelegator(), productSearchContext.getNowTimestamp());
+                } else {
+                    productCategoryIds.add(categoryConstraint.getProductCategoryId());
+                }
+                if (categoryConstraint.getExclude() == null) {
+                    includeCategoryIdSets.add(productCategoryIds);
+                } else if (categoryConstraint.getExclude()) {
+                    excludeCategoryIds.addAll(productCategoryIds);
+                } else {
+                    alwaysIncludeCategoryIdSets.add(productCategoryIds);
+                }
+            } else if (constraint instanceof FeatureConstraint) {
+                FeatureConstraint featureConstraint = (FeatureConstraint) constraint;
+                if (featureConstraint.getExclude() == null) {
+                    includeFeatureIds.add(featureConstraint.getProductFeatureId());
+                } else if (featureConstraint.getExclude()) {
+                    excludeFeatureIds.add(featureConstraint.getProductFeatureId());
+                } else {
+                    alwaysIncludeFeatureIds.add(featureConstraint.getProductFeatureId());
+                }
+            } else if (constraint instanceof ExcludeVariantsConstraint) {
+                excludeVariants = true;
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        private void finish() {
+            if (!orKeywords.isEmpty()) {
+                keywordSets.add(orKeywords);
+            }
+            Iterator<Set<String>> keywordSetIter = keywordSets.iterator();
+            while (keywordSetIter.hasNext()) {
+                Set<String> keywordSet = keywordSetIter.next();
+                if (keywordSet.size() == 1) {
+                    andKeywords.add(keywordSet.iterator().next());
+                }
+                if (keywordSet.size() <= 1) {
+                    keywordSetIter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * The index of a delegator, with the products changed since the index was last updated.
+     */
+    private static final class DelegatorIndex {
+        private final Set<String> changedProductIds = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean building = new AtomicBoolean();
+        private final AtomicBoolean updating = new AtomicBoolean();
+        private volatile IndexState state;
+
+        private IndexState getState(Delegator delegator) {
+            if (changedProductIds.size() > MAX_CHANGED_PRODUCTS) {
+                state = null;
+            }
+            IndexState current = state;
+            if (current == null) {
+                if (building.compareAndSet(false, true)) {
+                    BUILDER.execute(() -> build(delegator));
+                }
+                return null;
+            }
+            scheduleUpdate(delegator);
+            return current;
+        }
+
+        /**
+         * Updates the index in the builder thread when products changed or a category member or feature application
+         * started or ended, unless an update is already waiting.
+         */
+        private void scheduleUpdate(Delegator delegator) {
+            IndexState current = state;
+            if (current != null && (!changedProductIds.isEmpty() || current.nextBoundary <= System.currentTimeMillis())
+                    && updating.compareAndSet(false, true)) {
+                BUILDER.execute(() -> update(delegator, current));
+            }
+        }
+
+        private void update(Delegator delegator, IndexState current) {
+            boolean allRead = false;
+            try {
+                allRead = current.update(delegator, changedProductIds);
+            } catch (RuntimeException e) {
+                Debug.logError(e, "Unable to update the product search index", MODULE);
+            } finally {
+                updating.set(false);
+            }
+            // products changed while reading the others, the ones which could not be read wait for the next search
+            if (allRead) {
+                scheduleUpdate(delegator);
+            }
+        }
+
+        private void build(Delegator delegator) {
+            try {
+                long startMillis = System.currentTimeMillis();
+                // products changed from now on are read again once the index is built
+                changedProductIds.clear();
+                IndexState built = IndexState.build(delegator);
+                state = built;
+                Debug.logInfo("Built the product search index of [" + delegator.getDelegatorName() + "] with " + built.docIds.size()
+                        + " products in " + (System.currentTimeMillis() - startMillis) + "ms", MODULE);
+            } catch (GenericEntityException | RuntimeException e) {
+                Debug.logError(e, "Unable to build the product search index, using the SQL search", MODULE);
+            } finally {
+                building.set(false);
+            }
+            scheduleUpdate(delegator);
+        }
+    }
+
+    /**
+     * The indexed data of a product.
+     */
+    private static final class ProductData {
+        private final boolean nonVariant;
+        private final List<String> keywordTypeIds = new ArrayList<>();
+        private final List<String> keywords = new ArrayList<>();
+        private final List<Integer> weights = new ArrayList<>();
+        private final Set<String> productCategoryIds = new HashSet<>();
+        private final Set<String> productFeatureIds = new HashSet<>();
+        // the next time a category member or feature application of the product starts or ends
+        private long nextBoundary = Long.MAX_VALUE;
+
+        private ProductData(String isVariant) {
+            // like the SQL condition isVariant != 'Y', which is not true for a null value
+            this.nonVariant = isVariant != null && !"Y".equals(isVariant);
+        }
+
+        private static ProductData load(Delegator delegator, String productId, Timestamp nowTimestamp) throws GenericEntityException {
+            GenericValue product = EntityQuery.use(delegator).from("Product").where("productId", productId).queryOne();
+            if (product == null) {
+                return null;
+            }
+            ProductData data = new ProductData(product.getString("isVariant"));
+            for (GenericValue productKeyword : EntityQuery.use(delegator).from("ProductKeyword").where("productId", productId).queryList()) {
+                data.addKeyword(productKeyword);
+            }
+            for (GenericValue member : EntityQuery.use(delegator).from("ProductCategoryMember").where("productId", productId).queryList()) {
+                data.addDated(member, "productCategoryId", data.productCategoryIds, nowTimestamp);
+            }
+            for (GenericValue appl : EntityQuery.use(delegator).from("ProductFeatureAppl").where("productId", productId).queryList()) {
+                data.addDated(appl, "productFeatureId", data.productFeatureIds, nowTimestamp);
+            }
+            return data;
+        }
+
+        private void addKeyword(GenericValue productKeyword) {
+            Long relevancyWeight = productKeyword.getLong("relevancyWeight");
+            keywordTypeIds.add(productKeyword.getString("keywordTypeId"));
+            keywords.add(productKeyword.getString("keyword"));
+            weights.add(relevancyWeight == null ? 0 : (int) Math.max(0, Math.min(Integer.MAX_VALUE, relevancyWeight)));
+        }
+
+        private void addDated(GenericValue value, String idField, Set<String> ids, Timestamp nowTimestamp) {
+            // same effective dates as the SQL search: fromDate < now and (thruDate is null or thruDate > now)
+            Timestamp fromDate = value.getTimestamp("fromDate");
+            Timestamp thruDate = value.getTimestamp("thruDate");
+            if ((fromDate == null || fromDate.before(nowTimestamp)) && (thruDate == null || thruDate.after(nowTimestamp))) {
+                ids.add(value.getString(idField));
+            }
+            if (fromDate != null && !fromDate.before(nowTimestamp)) {
+                nextBoundary = Math.min(nextBoundary, fromDate.getTime() + 1);
+            }
+            if (thruDate != null && thruDate.after(nowTimestamp)) {
+                nextBoundary = Math.min(nextBoundary, thruDate.getTime());
+            }
+        }
+    }
+
+    /**
+     * The indexed products of a delegator.
+     */
+    private static final class IndexState {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final List<String> docIds = new ArrayList<>();
+        private final Map<String, Integer> ordinals = new HashMap<>();
+        private final List<ProductData> docData = new ArrayList<>();
+        private final BitSet liveDocs = new BitSet();
+        private final BitSet nonVariantDocs = new BitSet();
+        private final Map<String, TreeMap<String, Postings>> keywordsByType = new HashMap<>();
+        private final Map<String, BitSet> categoryDocs = new HashMap<>();
+        private final Map<String, BitSet> featureDocs = new HashMap<>();
+        private final TreeMap<Long, Set<String>> boundaries = new TreeMap<>();
+        private volatile long nextBoundary = Long.MAX_VALUE;
+
+        private static IndexState build(Delegator delegator) throws GenericEntityException {
+            Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
+            Map<String, ProductData> products = new LinkedHashMap<>();
+            try (EntityListIterator eli = EntityQuery.use(delegator).select("productId", "isVariant").from("Product")
+                    .orderBy("productId").queryIterator()) {
+                GenericValue product;
+                while ((product = eli.next()) != null) {
+                    products.put(product.getString("productId"), new ProductData(product.getString("isVariant")));
+                }
+            }
+            try (EntityListIterator eli = EntityQuery.use(delegator).from("ProductKeyword").queryIterator()) {
+                GenericValue productKeyword;
+                while ((productKeyword = eli.next()) != null) {
+                    ProductData data = products.get(productKeyword.getString("productId"));
+                    if (data != null) {
+                        data.addKeyword(productKeyword);
+                    }
+                }
+            }
+            try (EntityListIterator eli = EntityQuery.use(delegator).from("ProductCategoryMember").queryIterator()) {
+                GenericValue member;
+                while ((member = eli.next()) != null) {
+                    ProductData data = products.get(member.getString("productId"));
+                    if (data != null) {
+                        data.addDated(member, "productCategoryId", data.productCategoryIds, nowTimestamp);
+                    }
+                }
+            }
+            try (EntityListIterator eli = EntityQuery.use(delegator).from("ProductFeatureAppl").queryIterator()) {
+                GenericValue appl;
+                while ((appl = eli.next()) != null) {
+                    ProductData data = products.get(appl.getString("productId"));
+                    if (data != null) {
+                        data.addDated(appl, "productFeatureId", data.productFeatureIds, nowTimestamp);
+                    }
+                }
+            }
+
+            // the ordinals are given in order, so the postings are written in one pass
+            IndexState state = new IndexState();
+            Map<String, Map<String, PostingsWriter>> writers = new HashMap<>();
+            for (Map.Entry<String, ProductData> entry : products.entrySet()) {
+                int doc = state.docIds.size();
+                ProductData data = entry.getValue();
+                state.docIds.add(entry.getKey());
+                state.ordinals.put(entry.getKey(), doc);
+                state.docData.add(data);
+                state.addSets(doc, entry.getKey(), data);
+                for (int i = 0; i < data.keywords.size(); i++) {
+                    writers.computeIfAbsent(data.keywordTypeIds.get(i), k -> new HashMap<>())
+                            .computeIfAbsent(data.keywords.get(i), k -> new PostingsWriter()).add(doc, data.weights.get(i));
+                }
+            }
+            for (Map.Entry<String, Map<String, PostingsWriter>> typeEntry : writers.entrySet()) {
+                TreeMap<String, Postings> keywords = new TreeMap<>();
+                for (Map.Entry<String, PostingsWriter> keywordEntry : typeEntry.getValue().entrySet()) {
+                    keywords.put(keywordEntry.getKey(), keywordEntry.getValue().toPostings());
+                }
+                state.keywordsByType.put(typeEntry.getKey(), keywords);
+            }
+            return state;
+        }
+
+        /**
+         * Reads again the changed products and the products having a category member or feature application starting or
+         * ending, then applies them to the index. Only run in the builder thread, which is the only one changing the
+         * index, so the changed postings are written before taking the write lock, which is only held to swap them in.
+         * @return {@code false} when some products could not be read, they are marked as changed again
+         */
+        private boolean update(Delegator delegator, Set<String> changedProductIds) {
+            long now = System.currentTimeMillis();
+            Set<String> productIds = new HashSet<>();
+            Iterator<String> changedIter = changedProductIds.iterator();
+            while (changedIter.hasNext()) {
+                productIds.add(changedIter.next());
+                changedIter.remove();
+            }
+            SortedMap<Long, Set<String>> due = boundaries.headMap(now, true);
+            due.values().forEach(productIds::addAll);
+            due.clear();
+            if (productIds.isEmpty()) {
+                return true;
+            }
+
+            Timestamp nowTimestamp = new Timestamp(now);
+            Map<String, ProductData> loaded = new LinkedHashMap<>();
+            for (String productId : productIds) {
+                try {
+                    loaded.put(productId, ProductData.load(delegator, productId, nowTimestamp));
+                } catch (GenericEntityException e) {
+                    Debug.logWarning(e, "Unable to read product [" + productId + "] for the search index, will retry", MODULE);
+                    changedProductIds.add(productId);
+                }
+            }
+            boolean allRead = loaded.size() == productIds.size();
+
+            // the entries of each keyword removed (null weight) and added by the products, new products get the next ordinals
+            Map<String, Map<String, Map<Integer, Integer>>> keywordChanges = new HashMap<>();
+            int nextDoc = docIds.size();
+            for (Map.Entry<String, ProductData> entry : loaded.entrySet()) {
+                Integer doc = ordinals.get(entry.getKey());
+                ProductData old = doc != null ? docData.get(doc) : null;
+                if (old != null) {
+                    for (int i = 0; i < old.keywords.size(); i++) {
+                        keywordChanges.computeIfAbsent(old.keywordTypeIds.get(i), k -> new HashMap<>())
+                                .computeIfAbsent(old.keywords.get(i), k -> new HashMap<>()).put(doc, null);
+                    }
+                }
+                ProductData data = entry.getValue();
+                if (data == null) {
+                    continue;
+                }
+                int dataDoc = doc != null ? doc : nextDoc++;
+                for (int i = 0; i < data.keywords.size(); i++) {
+                    keywordChanges.computeIfAbsent(data.keywordTypeIds.get(i), k -> new HashMap<>())
+                            .computeIfAbsent(data.keywords.get(i), k -> new HashMap<>()).put(dataDoc, data.weights.get(i));
+                }
+            }
+            Map<String, Map<String, Postings>> changedPostings = new HashMap<>();
+            for (Map.Entry<String, Map<String, Map<Integer, Integer>>> typeEntry : keywordChanges.entrySet()) {
+                TreeMap<String, Postings> keywords = keywordsByType.get(typeEntry.getKey());
+                Map<String, Postings> typePostings = new HashMap<>();
+                for (Map.Entry<String, Map<Integer, Integer>> keywordEntry : typeEntry.getValue().entrySet()) {
+                    Postings postings = keywords != null ? keywords.get(keywordEntry.getKey()) : null;
+                    typePostings.put(keywordEntry.getKey(), Postings.apply(postings, keywordEntry.getValue()));
+                }
+                changedPostings.put(typeEntry.getKey(), typePostings);
+            }
+
+            lock.writeLock().lock();
+            try {
+                for (Map.Entry<String, ProductData> entry : loaded.entrySet()) {
+                    replace(entry.getKey(), entry.getValue());
+                }
+                for (Map.Entry<String, Map<String, Postings>> typeEntry : changedPostings.entrySet()) {
+                    TreeMap<String, Postings> keywords = keywordsByType.computeIfAbsent(typeEntry.getKey(), k -> new TreeMap<>());
+                    for (Map.Entry<String, Postings> keywordEntry : typeEntry.getValue().entrySet()) {
+                        if (keywordEntry.getValue() == null) {
+                            keywords.remove(keywordEntry.getKey());
+                        } else {
+                            keywords.put(keywordEntry.getKey(), keywordEntry.getValue());
+                        }
+                    }
+                }
+                nextBoundary = boundaries.isEmpty() ? Long.MAX_VALUE : boundaries.firstKey();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return allRead;
+        }
+
+        /**
+         * Replaces the sets of a product, its postings being swapped in by the caller; a new product gets the next ordinal.
+         */
+        private void replace(String productId, ProductData data) {
+            Integer doc = ordinals.get(productId);
+            if (doc != null) {
+                ProductData old = docData.get(doc);
+                if (old != null) {
+                    clearDoc(categoryDocs, old.productCategoryIds, doc);
+                    clearDoc(featureDocs, old.productFeatureIds, doc);
+                }
+                liveDocs.clear(doc);
+                nonVariantDocs.clear(doc);
+                docData.set(doc, null);
+            }
+            if (data == null) {
+                return;
+            }
+            if (doc == null) {
+                doc = docIds.size();
+                docIds.add(productId);
+                ordinals.put(productId, doc);
+                docData.add(null);
+            }
+            docData.set(doc, data);
+            addSets(doc, productId, data);
+        }
+
+        private void addSets(int doc, String productId, ProductData data) {
+            liveDocs.set(doc);
+            if (data.nonVariant) {
+                nonVariantDocs.set(doc);
+            }
+            for (String productCategoryId : data.productCategoryIds) {
+                categoryDocs.computeIfAbsent(productCategoryId, k -> new BitSet()).set(doc);
+            }
+            for (String productFeatureId : data.productFeatureIds) {
+                featureDocs.computeIfAbsent(productFeatureId, k -> new BitSet()).set(doc);
+            }
+            if (data.nextBoundary != Long.MAX_VALUE) {
+                boundaries.computeIfAbsent(data.nextBoundary, k -> new HashSet<>()).add(productId);
+                nextBoundary = Math.min(nextBoundary, data.nextBoundary);
+            }
+        }
+
+        private static void clearDoc(Map<String, BitSet> docsById, Set<String> ids, int doc) {
+            for (String id : ids) {
+                BitSet docs = docsById.get(id);
+                if (docs != null) {
+                    docs.clear(doc);
+                }
+            }
+        }
+
+        private List<String> search(Query query, List<String> keywordTypeIds, boolean sortByRelevancy) {
+            lock.readLock().lock();
+            try {
+                BitSet docs = (BitSet) liveDocs.clone();
+                if (query.excludeVariants) {
+                    docs.and(nonVariantDocs);
+                }
+                BitSet categoryAndFeatureDocs = matchCategoriesAndFeatures(query);
+                if (categoryAndFeatureDocs != null) {
+                    docs.and(categoryAndFeatureDocs);
+                }
+
+                // each keyword and keyword set must be matched by one of its keywords, the relevancy is the sum of the matched weights
+                Map<Integer, Long> relevancies = null;
+                if (!query.andKeywords.isEmpty() || !query.keywordSets.isEmpty()) {
+                    Collection<String> typeIds = UtilValidate.isNotEmpty(keywordTypeIds) ? keywordTypeIds : keywordsByType.keySet();
+                    List<Collection<Postings>> matchedPostings = new ArrayList<>();
+                    List<Collection<Postings>> keywordPostings = new ArrayList<>();
+                    for (String keyword : query.andKeywords) {
+                        keywordPostings.add(findPostings(Set.of(keyword), typeIds));
+                    }
+                    for (Set<String> keywordSet : query.keywordSets) {
+                        keywordPostings.add(findPostings(keywordSet, keywordsByType.keySet()));
+                    }
+                    for (Collection<Postings> postingsList : keywordPostings) {
+                        BitSet keywordDocs = new BitSet();
+                        for (Postings postings : postingsList) {
+                            postings.forEach((doc, weight) -> keywordDocs.set(doc));
+                        }
+                        docs.and(keywordDocs);
+                        matchedPostings.add(postingsList);
+                    }
+                    Map<Integer, Long> weights = new HashMap<>();
+                    for (Collection<Postings> postingsList : matchedPostings) {
+                        for (Postings postings : postingsList) {
+                            postings.forEach((doc, weight) -> {
+                                if (docs.get(doc)) {
+                                    weights.merge(doc, (long) weight, Long::sum);
+                                }
+                            });
+                        }
+                    }
+                    relevancies = weights;
+                }
+
+                List<Integer> matches = new ArrayList<>(docs.cardinality());
+                docs.stream().forEach(matches::add);
+                Comparator<Integer> byProductId = Comparator.comparing(docIds::get);
+                if (sortByRelevancy && relevancies != null) {
+                    Map<Integer, Long> sortRelevancies = relevancies;
+                    matches.sort(Comparator.<Integer, Long>comparing(doc -> sortRelevancies.getOrDefault(doc, 0L)).reversed()
+                            .thenComparing(byProductId));
+                } else {
+                    matches.sort(byProductId);
+                }
+                List<String> productIds = new ArrayList<>(matches.size());
+                for (Integer doc : matches) {
+                    productIds.add(docIds.get(doc));
+                }
+                return productIds;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Applies the category and feature constraints like the SQL search does:
+         * (includes and not excludes) or (always includes).
+         * @return the matching products, {@code null} when there is no such constraint
+         */
+        private BitSet matchCategoriesAndFeatures(Query query) {
+            BitSet incExcDocs = null;
+            for (Set<String> productCategoryIds : query.includeCategoryIdSets) {
+                incExcDocs = and(incExcDocs, any(categoryDocs, productCategoryIds));
+            }
+            for (String productFeatureId : query.includeFeatureIds) {
+                incExcDocs = and(incExcDocs, any(featureDocs, Set.of(productFeatureId)));
+            }
+            if (!query.excludeCategoryIds.isEmpty() || !query.excludeFeatureIds.isEmpty()) {
+                if (incExcDocs == null) {
+                    incExcDocs = (BitSet) liveDocs.clone();
+                }
+                incExcDocs.andNot(any(categoryDocs, query.excludeCategoryIds));
+                incExcDocs.andNot(any(featureDocs, query.excludeFeatureIds));
+            }
+            BitSet alwaysDocs = null;
+            if (!query.alwaysIncludeFeatureIds.isEmpty()) {
+                alwaysDocs = any(featureDocs, query.alwaysIncludeFeatureIds);
+            }
+            for (Set<String> productCategoryIds : query.alwaysIncludeCategoryIdSets) {
+                alwaysDocs = and(alwaysDocs, any(categoryDocs, productCategoryIds));
+            }
+            if (incExcDocs == null) {
+                return alwaysDocs;
+            }
+            if (alwaysDocs != null) {
+                incExcDocs.or(alwaysDocs);
+            }
+            return incExcDocs;
+        }
+
+        private static BitSet and(BitSet docs, BitSet other) {
+            if (docs == null) {
+                return other;
+            }
+            docs.and(other);
+            return docs;
+        }
+
+        private static BitSet any(Map<String, BitSet> docsById, Set<String> ids) {
+            BitSet docs = new BitSet();
+            for (String id : ids) {
+                BitSet idDocs = docsById.get(id);
+                if (idDocs != null) {
+                    docs.or(idDocs);
+                }
+            }
+            return docs;
+        }
+
+        /**
+         * Finds the postings of the keywords matching a set of search keywords, which are LIKE patterns.
+         */
+        private Collection<Postings> findPostings(Set<String> keywordSet, Collection<String> typeIds) {
+            Map<String, Postings> found = new LinkedHashMap<>();
+            for (String typeId : typeIds) {
+                TreeMap<String, Postings> keywords = keywordsByType.get(typeId);
+                if (keywords == null) {
+                    continue;
+                }
+                for (String pattern : keywordSet) {
+                    int wildcard = indexOfWildcard(pattern);
+                    if (wildcard < 0) {
+                        Postings postings = keywords.get(pattern);
+                        if (postings != null) {
+                            found.put(typeId + "::" + pattern, postings);
+                        }
+                    } else if (wildcard == pattern.length() - 1 && pattern.charAt(wildcard) == '%') {
+                        String prefix = pattern.substring(0, wildcard);
+                        for (Map.Entry<String, Postings> entry : keywords.subMap(prefix, prefix + Character.MAX_VALUE).entrySet()) {
+                            found.put(typeId + "::" + entry.getKey(), entry.getValue());
+                        }
+                    } else {
+                        Pattern regex = likeToRegex(pattern);
+                        for (Map.Entry<String, Postings> entry : keywords.entrySet()) {
+                            if (regex.matcher(entry.getKey()).matches()) {
+                                found.put(typeId + "::" + entry.getKey(), entry.getValue());
+                            }
+                        }
+                    }
+                }
+            }
+            return found.values();
+        }
+
+        private static int indexOfWildcard(String pattern) {
+            for (int i = 0; i < pattern.length(); i++) {
+                if (pattern.charAt(i) == '%' || pattern.charAt(i) == '_') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Makes the regular expression of a LIKE pattern, where % matches any characters and _ a single one.
+     * @param pattern the LIKE pattern
+     * @return the compiled regular expression
+     */
+    static Pattern likeToRegex(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : pattern.toCharArray()) {
+            if (c == '%' || c == '_') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '%' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private interface PostingVisitor {
+        void visit(int doc, int weight);
+    }
+
+    /**
+     * The products having a keyword, as ascending product ordinal deltas each followed by the relevancy weight,
+     * both written as variable length integers. Instances are immutable.
+     */
+    private static final class Postings {
+        private final byte[] data;
+        private final int size;
+
+        private Postings(byte[] data, int size) {
+            this.data = data;
+            this.size = size;
+        }
+
+        private void forEach(PostingVisitor visitor) {
+            int pos = 0;
+            int doc = 0;
+            for (int i = 0; i < size; i++) {
+                int value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    value |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                doc += value;
+                int weight = 0;
+                shift = 0;
+                do {
+                    b = data[pos++];
+                    weight |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                visitor.visit(doc, weight);
+            }
+        }
+
+        /**
+         * Returns the postings with some entries changed, a null weight removing the entry.
+         * @return the changed postings, {@code null} when there is no entry left
+         */
+        private static Postings apply(Postings postings, Map<Integer, Integer> changes) {
+            TreeMap<Integer, Integer> entries = new TreeMap<>();
+            if (postings != null) {
+                postings.forEach(entries::put);
+            }
+            for (Map.Entry<Integer, Integer> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    entries.remove(change.getKey());
+                } else {
+                    entries.put(change.getKey(), change.getValue());
+                }
+            }
+            return entries.isEmpty() ? null : write(entries);
+        }
+
+        private static Postings write(TreeMap<Integer, Integer> entries) {
+            PostingsWriter writer = new PostingsWriter();
+            entries.forEach(writer::add);
+            return writer.toPostings();
+        }
+    }
+
+    private static final class PostingsWriter {
+        private byte[] buffer = new byte[8];
+        private int length = 0;
+        private int size = 0;
+        private int lastDoc = 0;
+
+        private void add(int doc, int weight) {
+            writeVarInt(doc - lastDoc);
+            writeVarInt(weight);
+            lastDoc = doc;
+            size++;
+        }
+
+        private void writeVarInt(int value) {
+            if (length + 5 > buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            while ((value & ~0x7F) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        private Postings toPostings() {
+            return new Postings(Arrays.copyOf(buffer, length), size);
+        }
+    }
+}
@@ -448,6 +448,7 @@ public final class ProductUtilServices {
                             + product.getRelatedDummyPK("ProductKeyword"), MODULE);
                     Debug.logInfo("Test mode, would remove: " + product, MODULE);
                 } else {
+                    ProductSearchCache.clearKeywordResults(delegator, product.getString("productId"));
                     product.removeRelated("ProductKeyword");
                     product.remove();
                 }
@@ -38,9 +38,9 @@ import java.util.Map;
 import javax.xml.transform.TransformerException;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.ofbiz.base.util.AsyncHttpClient;
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.GeneralException;
-import org.apache.ofbiz.base.util.HttpClient;
 import org.apache.ofbiz.base.util.HttpClientException;
 import org.apache.ofbiz.base.util.StringUtil;
 import org.apache.ofbiz.base.util.UtilGenerics;
@@ -1747,14 +1747,12 @@ public class UspsServices {
             Debug.logError(e, "Unable to set timeout to " + timeOutStr + " using default " + timeout);
         }
 
-        HttpClient http = new HttpClient(conUrl);
-        http.setTimeout(timeout * 1000);
-        http.setParameter("API", requestType);
-        http.setParameter("XML", xmlString);
-
         String responseString = null;
         try {
-            responseString = http.get();
+            // Shared client so that connections to the USPS servers are kept alive between requests
+            AsyncHttpClient http = AsyncHttpClient.getInstance();
+            responseString = AsyncHttpClient.await(http.get(conUrl, UtilMisc.toMap("API", requestType, "XML", xmlString), null,
+                    timeout * 1000L), timeout * 1000L);
         } catch (HttpClientException e) {
             throw new UspsRequestException(UtilProperties.getMessage(RES_ERROR,
                     "FacilityShipmentUspsConnectionProblem",
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.base.util;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.ofbiz.base.config.GenericConfigException;
+
+/**
+ * Non-blocking HTTP client for calls to remote gateways (shipping carriers, payment processors...).
+ * <p>
+ * Instances are shared: there is one per client certificate alias and trust mode, each backed by a
+ * {@link java.net.http.HttpClient} which keeps connections alive and reuses them per host, and negotiates
+ * HTTP/2 when the remote server supports it. Requests return a {@link CompletableFuture} so that a caller
+ * can send several requests at once and only wait for the results it needs.
+ * <p>
+ * Timeouts and the size of the pool completing the futures are read from <code>httpclient.properties</code>; a caller
+ * with its own timeout, such as a gateway configured timeout, passes it on each request. As with {@link HttpClient}, a
+ * response with a status code other than 2xx fails the request with an {@link HttpClientException}. Unlike
+ * {@link HttpClient}, the host name of a remote certificate is always verified.
+ */
+public final class AsyncHttpClient {
+
+    private static final String MODULE = AsyncHttpClient.class.getName();
+    private static final String RESOURCE = "httpclient";
+    private static final Map<String, AsyncHttpClient> INSTANCES = new ConcurrentHashMap<>();
+    private static volatile ExecutorService executor;
+
+    private final java.net.http.HttpClient client;
+    private final Duration requestTimeout;
+
+    private AsyncHttpClient(String clientCertAlias, boolean trustAny) throws HttpClientException {
+        SSLUtil.loadJsseProperties();
+        java.net.http.HttpClient.Builder builder = java.net.http.HttpClient.newBuilder()
+                .version(java.net.http.HttpClient.Version.HTTP_2)
+                .followRedirects(java.net.http.HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(UtilProperties.getPropertyAsLong(RESOURCE, "connect.timeout", 30000L)))
+                .executor(getExecutor());
+        if (clientCertAlias != null || trustAny) {
+            try {
+                SSLContext sslContext = SSLUtil.getSSLContext(clientCertAlias, trustAny);
+                builder.sslContext(sslContext);
+            } catch (IOException | GeneralSecurityException | GenericConfigException e) {
+                throw new HttpClientException("Unable to set up the SSL context for client certificate alias [" + clientCertAlias + "]", e);
+            }
+        }
+        this.client = builder.build();
+        this.requestTimeout = Duration.ofMillis(UtilProperties.getPropertyAsLong(RESOURCE, "request.timeout", 60000L));
+    }
+
+    private static ExecutorService getExecutor() {
+        ExecutorService result = executor;
+        if (result == null) {
+            synchronized (AsyncHttpClient.class) {
+                result = executor;
+                if (result == null) {
+                    int poolSize = UtilProperties.getPropertyAsInteger(RESOURCE, "executor.pool.size", 8);
+                    AtomicInteger count = new AtomicInteger(1);
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                            r -> {
+                                Thread t = new Thread(r, "OFBiz-http-client-" + count.getAndIncrement());
+                                t.setDaemon(true);
+                                return t;
+                            });
+                    pool.allowCoreThreadTimeOut(true);
+                    executor = pool;
+                    result = pool;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the shared client using the default trust store and no client certificate.
+     * @return the shared client
+     * @throws HttpClientException when the client cannot be set up
+     */
+    public static AsyncHttpClient getInstance() throws HttpClientException {
+        return getInstance(null, false);
+    }
+
+    /**
+     * Returns a shared client.
+     * @param clientCertAlias the alias of the client certificate to present, may be {@code null}
+     * @param trustAny when {@code true} any server certificate is accepted
+     * @return the shared client
+     * @throws HttpClientException when the client cannot be set up
+     */
+    public static AsyncHttpClient getInstance(String clientCertAlias, boolean trustAny) throws HttpClientException {
+        String key = Objects.toString(clientCertAlias, "") + "::" + trustAny;
+        AsyncHttpClient instance = INSTANCES.get(key);
+        if (instance == null) {
+            instance = new AsyncHttpClient(clientCertAlias, trustAny);
+            AsyncHttpClient existing = INSTANCES.putIfAbsent(key, instance);
+            if (existing != null) {
+                instance = existing;
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Creates a request builder for {@code url} with the default request timeout.
+     * @param url the target URL
+     * @return a request builder
+     */
+    public HttpRequest.Builder newRequest(String url) {
+        return HttpRequest.newBuilder(URI.create(url)).timeout(requestTimeout);
+    }
+
+    /**
+     * Creates a request builder for {@code url} with its own request timeout.
+     * @param url the target URL
+     * @param timeoutMillis the time allowed for the request to complete
+     * @return a request builder
+     */
+    public HttpRequest.Builder newRequest(String url, long timeoutMillis) {
+        return HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofMillis(timeoutMillis));
+    }
+
+    /**
+     * Sends a request asynchronously.
+     * @param request the request to send
+     * @return a future completed with the response, whatever its status code
+     */
+    public CompletableFuture<HttpResponse<String>> send(HttpRequest request) {
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("Sending " + request.method() + " request to " + request.uri(), MODULE);
+        }
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a GET request with URL encoded parameters and the default request timeout.
+     * @param url the target URL
+     * @param parameters the query parameters, may be {@code null}
+     * @param headers additional headers, may be {@code null}
+     * @return a future completed with the response body, or with an {@link HttpClientException} when the status code is
+     * not 2xx
+     */
+    public CompletableFuture<String> get(String url, Map<String, ? extends Object> parameters, Map<String, String> headers) {
+        return get(url, parameters, headers, requestTimeout.toMillis());
+    }
+
+    /**
+     * Sends a GET request with URL encoded parameters.
+     * @param url the target URL
+     * @param parameters the query parameters, may be {@code null}
+     * @param headers additional headers, may be {@code null}
+     * @param timeoutMillis the time allowed for the request to complete
+     * @return a future completed with the response body, or with an {@link HttpClientException} when the status code is
+     * not 2xx
+     */
+    public CompletableFuture<String> get(String url, Map<String, ? extends Object> parameters, Map<String, String> headers,
+            long timeoutMillis) {
+        String target = url;
+        if (UtilValidate.isNotEmpty(parameters)) {
+            target = url + (url.contains("?") ? "&" : "?") + UtilHttp.urlEncodeArgs(parameters, false);
+        }
+        HttpRequest.Builder builder = newRequest(target, timeoutMillis).GET();
+        addHeaders(builder, headers);
+        return send(builder.build()).thenApply(AsyncHttpClient::getBody);
+    }
+
+    /**
+     * Sends a POST request with the default request timeout.
+     * @param url the target URL
+     * @param body the request body
+     * @param contentType the content type of the body, <code>application/x-www-form-urlencoded</code> when {@code null}
+     * @param headers additional headers, may be {@code null}
+     * @return a future completed with the response body, or with an {@link HttpClientException} when the status code is
+     * not 2xx
+     */
+    public CompletableFuture<String> post(String url, String body, String contentType, Map<String, String> headers) {
+        return post(url, body, contentType, headers, requestTimeout.toMillis());
+    }
+
+    /**
+     * Sends a POST request.
+     * @param url the target URL
+     * @param body the request body
+     * @param contentType the content type of the body, <code>application/x-www-form-urlencoded</code> when {@code null}
+     * @param headers additional headers, may be {@code null}
+     * @param timeoutMillis the time allowed for the request to complete
+     * @return a future completed with the response body, or with an {@link HttpClientException} when the status code is
+     * not 2xx
+     */
+    public CompletableFuture<String> post(String url, String body, String contentType, Map<String, String> headers,
+            long timeoutMillis) {
+        HttpRequest.Builder builder = newRequest(url, timeoutMillis)
+                .header("Content-Type", contentType != null ? contentType : "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(body != null ? body : "", StandardCharsets.UTF_8));
+        addHeaders(builder, headers);
+        return send(builder.build()).thenApply(AsyncHttpClient::getBody);
+    }
+
+    private static String getBody(HttpResponse<String> response) {
+        int statusCode = response.statusCode();
+        if (statusCode < 200 || statusCode >= 300) {
+            throw new CompletionException(new HttpClientException("HTTP request to " + response.uri() + " failed with status code "
+                    + statusCode));
+        }
+        return response.body();
+    }
+
+    private static void addHeaders(HttpRequest.Builder builder, Map<String, String> headers) {
+        if (headers != null) {
+            headers.forEach(builder::header);
+        }
+    }
+
+    /**
+     * Waits for the result of a request, for callers which cannot go on without it.
+     * @param <T> the type of the result
+     * @param future the future returned by this client
+     * @param timeoutMillis the maximum time to wait
+     * @return the result of the request
+     * @throws HttpClientException when the request failed or did not complete in time
+     */
+    public static <T> T await(CompletableFuture<T> future, long timeoutMillis) throws HttpClientException {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new HttpClientException("HTTP request did not complete within " + timeoutMillis + "ms", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof HttpClientException) {
+                throw (HttpClientException) e.getCause();
+            }
+            throw new HttpClientException("IO Error processing request", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpClientException("Interrupted while waiting for HTTP response", e);
+        }
+    }
+}
@@ -1712,7 +1712,12 @@ public final class UtilHttp {
         return "autoId_" + uniqueIdNumber;
     }
 
-    private static void setContentDisposition(final HttpServletResponse response, final String filename) {
+    /**
+     * Sets the Content-Disposition header, its type is set by content-disposition-type in requestHandler.properties
+     * @param response the response
+     * @param filename the file name to tell the browser
+     */
+    public static void setContentDisposition(final HttpServletResponse response, final String filename) {
         String dispositionType = UtilProperties.getPropertyValue("requestHandler", "content-disposition-type", "attachment");
         response.setHeader("Content-Disposition", String.format("%s; filename=\"%s\"", dispositionType, filename));
     }
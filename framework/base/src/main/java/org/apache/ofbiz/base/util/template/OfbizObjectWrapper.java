@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.base.util.template;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.apache.ofbiz.base.util.Debug;
+
+import freemarker.ext.beans.BeansWrapper;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.Version;
+
+/**
+ * The OFBiz FreeMarker object wrapper.
+ * <p>
+ * Behaves like a {@link BeansWrapper} except for the objects handled by a {@link TemplateModelFactory}
+ * declared in a <code>META-INF/services</code> file, like the entity values.
+ */
+public class OfbizObjectWrapper extends BeansWrapper {
+
+    private static final String MODULE = OfbizObjectWrapper.class.getName();
+
+    private final List<TemplateModelFactory> factories;
+
+    public OfbizObjectWrapper(Version version) {
+        super(version);
+        List<TemplateModelFactory> factories = new ArrayList<>();
+        Iterator<TemplateModelFactory> it = ServiceLoader.load(TemplateModelFactory.class,
+                Thread.currentThread().getContextClassLoader()).iterator();
+        while (it.hasNext()) {
+            try {
+                factories.add(it.next());
+            } catch (ServiceConfigurationError e) {
+                Debug.logError(e, MODULE);
+            }
+        }
+        this.factories = Collections.unmodifiableList(factories);
+    }
+
+    @Override
+    public TemplateModel wrap(Object object) throws TemplateModelException {
+        if (object != null) {
+            for (TemplateModelFactory factory : factories) {
+                TemplateModel model = factory.wrap(object, this);
+                if (model != null) {
+                    return model;
+                }
+            }
+        }
+        return super.wrap(object);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.base.util.template;
+
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+
+/**
+ * Specialized wrapping of some objects for FreeMarker, used by {@link OfbizObjectWrapper}.
+ * <p>
+ * Implementations are found with {@link java.util.ServiceLoader}, and a new instance is created for
+ * each wrapper, so an implementation may keep models it has already created.
+ */
+public interface TemplateModelFactory {
+
+    /**
+     * Wraps an object.
+     * @param object the object to wrap, never {@code null}
+     * @param wrapper the wrapper to use for the nested objects
+     * @return the template model or {@code null} when this factory does not handle {@code object}
+     * @throws TemplateModelException when the object cannot be wrapped
+     */
+    TemplateModel wrap(Object object, OfbizObjectWrapper wrapper) throws TemplateModelException;
+}
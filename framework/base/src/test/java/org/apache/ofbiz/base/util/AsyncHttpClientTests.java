@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.base.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks {@link AsyncHttpClient} against a local stub server, in the same spirit as the
+ * mock API servlets used for the shipment gateways.
+ */
+public class AsyncHttpClientTests {
+    private HttpServer server;
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/echo", this::echo);
+        server.createContext("/error", this::error);
+        server.createContext("/slow", this::slow);
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void echo(HttpExchange exchange) throws IOException {
+        String body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        String query = exchange.getRequestURI().getRawQuery();
+        byte[] response = (exchange.getRequestMethod() + ":" + (query == null ? "" : query) + ":" + body).getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private void error(HttpExchange exchange) throws IOException {
+        byte[] response = "<html><body>Internal Server Error</body></html>".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(500, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private void slow(HttpExchange exchange) throws IOException {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        echo(exchange);
+    }
+
+    @Test
+    public void testGetWithParameters() throws Exception {
+        CompletableFuture<String> future = AsyncHttpClient.getInstance().get(baseUrl + "/echo", UtilMisc.toMap("API", "RateV2"), null);
+        assertEquals("GET:API=RateV2:", AsyncHttpClient.await(future, 10000));
+    }
+
+    @Test
+    public void testPost() throws Exception {
+        CompletableFuture<String> future = AsyncHttpClient.getInstance().post(baseUrl + "/echo", "<Request/>", "text/xml", null);
+        assertEquals("POST::<Request/>", AsyncHttpClient.await(future, 10000));
+    }
+
+    @Test
+    public void testParallelRequests() throws Exception {
+        AsyncHttpClient client = AsyncHttpClient.getInstance();
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(client.get(baseUrl + "/echo", UtilMisc.toMap("i", Integer.toString(i)), null));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals("GET:i=" + i + ":", AsyncHttpClient.await(futures.get(i), 10000));
+        }
+    }
+
+    @Test
+    public void testErrorStatusFails() throws Exception {
+        try {
+            AsyncHttpClient.await(AsyncHttpClient.getInstance().post(baseUrl + "/error", "<Request/>", "text/xml", null), 10000);
+            fail("The error page was returned as a response");
+        } catch (HttpClientException e) {
+            assertEquals("HTTP request to " + baseUrl + "/error failed with status code 500", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testRequestTimeout() throws Exception {
+        AsyncHttpClient client = AsyncHttpClient.getInstance();
+        assertEquals("GET:i=1:", AsyncHttpClient.await(client.get(baseUrl + "/slow", UtilMisc.toMap("i", "1"), null, 5000), 10000));
+        try {
+            AsyncHttpClient.await(client.get(baseUrl + "/slow", UtilMisc.toMap("i", "2"), null, 100), 10000);
+            fail("The request did not time out");
+        } catch (HttpClientException e) {
+            // the request timeout applies, not the longer wait of the caller
+        }
+    }
+}
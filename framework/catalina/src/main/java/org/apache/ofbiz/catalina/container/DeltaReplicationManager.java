@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.catalina.container;
+
+import java.io.IOException;
+
+import org.apache.catalina.ha.ClusterManager;
+import org.apache.catalina.ha.session.DeltaManager;
+import org.apache.catalina.ha.session.DeltaRequest;
+import org.apache.catalina.ha.session.DeltaSession;
+
+/**
+ * A {@link DeltaManager} telling the session attributes when they are serialized for the replication of a session
+ * change to all the cluster members, which already hold the previous values. An attribute can then write only its
+ * changes since the value it last replicated, see {@link #isReplicating()}. The whole sessions sent to a member
+ * joining the cluster, and the sessions persisted, are serialized as usual.
+ */
+public class DeltaReplicationManager extends DeltaManager {
+
+    private static final ThreadLocal<Boolean> REPLICATING = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    /**
+     * Tells if the current thread is serializing a session change replicated to all the cluster members.
+     * @return {@code true} while the session attributes are written for the replication
+     */
+    public static boolean isReplicating() {
+        return REPLICATING.get();
+    }
+
+    @Override
+    protected byte[] serializeDeltaRequest(DeltaSession session, DeltaRequest deltaRequest) throws IOException {
+        boolean nested = REPLICATING.get();
+        REPLICATING.set(Boolean.TRUE);
+        try {
+            return super.serializeDeltaRequest(session, deltaRequest);
+        } finally {
+            REPLICATING.set(nested);
+        }
+    }
+
+    @Override
+    public ClusterManager cloneFromTemplate() {
+        DeltaReplicationManager result = new DeltaReplicationManager();
+        clone(result);
+        result.setExpireSessionsOnShutdown(isExpireSessionsOnShutdown());
+        result.setNotifySessionListenersOnReplication(isNotifySessionListenersOnReplication());
+        result.setNotifyContainerListenersOnReplication(isNotifyContainerListenersOnReplication());
+        result.setStateTransferTimeout(getStateTransferTimeout());
+        result.setSendAllSessions(isSendAllSessions());
+        result.setSendAllSessionsSize(getSendAllSessionsSize());
+        result.setSendAllSessionsWaitTime(getSendAllSessionsWaitTime());
+        result.setStateTimestampDrop(isStateTimestampDrop());
+        return result;
+    }
+}
@@ -18,8 +18,10 @@
  *******************************************************************************/
 package org.apache.ofbiz.common.image;
 
+import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileInputStream;
@@ -95,21 +97,19 @@ public class ImageTransform {
     }
 
     /**
-     * scaleImage
+     * getScaleFactor
      * <p>
-     * scale original image related to the ImageProperties.xml dimensions
-     * @param   bufImg          Buffered image to scale
+     * Get the factor scaling an image to the ImageProperties.xml dimensions of a size type
      * @param   imgHeight       Original image height
      * @param   imgWidth        Original image width
      * @param   dimensionMap    Image dimensions by size type
      * @param   sizeType        Size type to scale
-     * @return                  New scaled buffered image
+     * @return                  The scale factor
      */
-    public static Map<String, Object> scaleImage(BufferedImage bufImg, double imgHeight, double imgWidth, Map<String, Map<String, String>>
-            dimensionMap, String sizeType, Locale locale) {
+    public static Map<String, Object> getScaleFactor(double imgHeight, double imgWidth, Map<String, Map<String, String>> dimensionMap,
+            String sizeType, Locale locale) {
 
         /* VARIABLES */
-        BufferedImage bufNewImg;
         double defaultHeight;
         double defaultWidth;
         double scaleFactor;
@@ -189,6 +189,33 @@ public class ImageTransform {
             result.put(ModelService.ERROR_MESSAGE, errMsg);
             return result;
         }
+        result.put("responseMessage", "success");
+        result.put("scaleFactor", scaleFactor);
+        return result;
+    }
+
+    /**
+     * scaleImage
+     * <p>
+     * scale original image related to the ImageProperties.xml dimensions
+     * @param   bufImg          Buffered image to scale
+     * @param   imgHeight       Original image height
+     * @param   imgWidth        Original image width
+     * @param   dimensionMap    Image dimensions by size type
+     * @param   sizeType        Size type to scale
+     * @return                  New scaled buffered image
+     */
+    public static Map<String, Object> scaleImage(BufferedImage bufImg, double imgHeight, double imgWidth, Map<String, Map<String, String>>
+            dimensionMap, String sizeType, Locale locale) {
+
+        /* VARIABLES */
+        BufferedImage bufNewImg;
+        Map<String, Object> result = getScaleFactor(imgHeight, imgWidth, dimensionMap, sizeType, locale);
+        if (!"success".equals(result.get("responseMessage"))) {
+            return result;
+        }
+        double scaleFactor = (Double) result.get("scaleFactor");
+
         int bufImgType;
         if (BufferedImage.TYPE_CUSTOM == bufImg.getType()) {
             String errMsg = UtilProperties.getMessage(RESOURCE, "ImageTransform.unknown_buffered_image_type", locale);
@@ -310,4 +337,41 @@ public class ImageTransform {
 
         return (bufferedImage);
     }
+
+    /**
+     * resizeImage
+     * <p>
+     * Resize an image with Graphics2D, halving it at most on each step when downscaling so that the bilinear or bicubic
+     * interpolation uses every source pixel
+     * @param bufImg            Source image
+     * @param width             Width of the new image
+     * @param height            Height of the new image
+     * @param interpolation     A RenderingHints.KEY_INTERPOLATION value
+     * @param bufImgType        Type of the new image, an alpha channel is painted over white when it has none
+     * @return BufferedImage
+     */
+    public static BufferedImage resizeImage(BufferedImage bufImg, int width, int height, Object interpolation, int bufImgType) {
+        BufferedImage current = bufImg;
+        int currentWidth = bufImg.getWidth();
+        int currentHeight = bufImg.getHeight();
+        do {
+            currentWidth = Math.max(width, currentWidth / 2);
+            currentHeight = Math.max(height, currentHeight / 2);
+            BufferedImage step = new BufferedImage(currentWidth, currentHeight, bufImgType);
+            Graphics2D g = step.createGraphics();
+            try {
+                if (!step.getColorModel().hasAlpha()) {
+                    g.setColor(Color.WHITE);
+                    g.fillRect(0, 0, currentWidth, currentHeight);
+                }
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+            } finally {
+                g.dispose();
+            }
+            current = step;
+        } while (currentWidth != width || currentHeight != height);
+        return current;
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.entity.test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.template.FreeMarkerWorker;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.testtools.EntityTestCase;
+import org.apache.ofbiz.entity.util.GenericEntityTemplateModelFactory.GenericEntityModel;
+
+import freemarker.ext.beans.BeansWrapper;
+import freemarker.ext.beans.BeansWrapperBuilder;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+/**
+ * Checks that the entity values are rendered by FreeMarker through a {@link GenericEntityModel}
+ * the same way as with the plain {@link BeansWrapper}, and compares the time spent by both.
+ */
+public class GenericEntityTemplateModelTestSuite extends EntityTestCase {
+    private static final String MODULE = GenericEntityTemplateModelTestSuite.class.getName();
+    private static final String TEMPLATE = "<#list values as v>${v.testingTypeId}|${v.description!\"-\"}|${v.getString(\"description\")!}"
+            + "|${v.get(\"testingTypeId\")}|${v.entityName}|${v.isMutable()?c}|${v?size}<#if v.description?has_content>+</#if>;</#list>";
+
+    public GenericEntityTemplateModelTestSuite(String name) {
+        super(name);
+    }
+
+    private List<GenericValue> makeValues(int count, boolean immutable) {
+        List<GenericValue> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            GenericValue value = getDelegator().makeValue("TestingType", "testingTypeId", "TT" + i);
+            if (i % 3 != 0) {
+                value.set("description", "Testing type <" + i + ">");
+            }
+            if (immutable) {
+                value.setImmutable();
+            }
+            values.add(value);
+        }
+        return values;
+    }
+
+    private static String render(Template template, Map<String, Object> context) throws IOException, TemplateException {
+        StringWriter writer = new StringWriter();
+        template.process(context, writer);
+        return writer.toString();
+    }
+
+    private static Template makeTemplate(BeansWrapper wrapper) throws IOException {
+        Configuration config = FreeMarkerWorker.makeConfiguration(wrapper);
+        return new Template("GenericEntityTemplateModelTest", new StringReader(TEMPLATE), config);
+    }
+
+    /**
+     * Test wrapping.
+     * @throws Exception the exception
+     */
+    public void testWrapping() throws Exception {
+        GenericValue value = makeValues(1, true).get(0);
+        assertTrue(FreeMarkerWorker.getDefaultOfbizWrapper().wrap(value) instanceof GenericEntityModel);
+        assertSame("immutable values are wrapped once", FreeMarkerWorker.getDefaultOfbizWrapper().wrap(value),
+                FreeMarkerWorker.getDefaultOfbizWrapper().wrap(value));
+        GenericValue mutable = makeValues(1, false).get(0);
+        assertNotSame(FreeMarkerWorker.getDefaultOfbizWrapper().wrap(mutable), FreeMarkerWorker.getDefaultOfbizWrapper().wrap(mutable));
+    }
+
+    /**
+     * Test rendering.
+     * @throws Exception the exception
+     */
+    public void testRendering() throws Exception {
+        Template beansTemplate = makeTemplate(new BeansWrapperBuilder(FreeMarkerWorker.VERSION).build());
+        Template entityTemplate = makeTemplate(FreeMarkerWorker.getDefaultOfbizWrapper());
+        for (boolean immutable : new boolean[] {false, true}) {
+            Map<String, Object> context = UtilMisc.toMap("values", makeValues(10, immutable));
+            String expected = render(beansTemplate, context);
+            assertEquals(expected, render(entityTemplate, context));
+            // a second rendering uses the cached models of the immutable values
+            assertEquals(expected, render(entityTemplate, context));
+        }
+    }
+
+    /**
+     * Compares the rendering time of cached entity values with the plain {@link BeansWrapper}
+     * and with the entity template models.
+     * @throws Exception the exception
+     */
+    public void testRenderingBenchmark() throws Exception {
+        Template beansTemplate = makeTemplate(new BeansWrapperBuilder(FreeMarkerWorker.VERSION).build());
+        Template entityTemplate = makeTemplate(FreeMarkerWorker.getDefaultOfbizWrapper());
+        Map<String, Object> context = UtilMisc.toMap("values", makeValues(2000, true));
+        int rounds = 20;
+        // warm up
+        String expected = render(beansTemplate, context);
+        assertEquals(expected, render(entityTemplate, context));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            render(beansTemplate, context);
+        }
+        long beansNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            render(entityTemplate, context);
+        }
+        long entityNanos = System.nanoTime() - start;
+        Debug.logInfo("Rendering " + rounds + " times 2000 cached values: BeansWrapper " + beansNanos / 1000000 + "ms, "
+                + "GenericEntityModel " + entityNanos / 1000000 + "ms", MODULE);
+    }
+}
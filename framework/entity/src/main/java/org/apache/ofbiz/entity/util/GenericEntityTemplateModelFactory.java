@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.entity.util;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.template.OfbizObjectWrapper;
+import org.apache.ofbiz.base.util.template.TemplateModelFactory;
+import org.apache.ofbiz.entity.GenericEntity;
+
+import freemarker.ext.beans.BeansWrapper;
+import freemarker.ext.beans.MapModel;
+import freemarker.ext.util.ModelCache;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+
+/**
+ * Wraps the entity values for FreeMarker.
+ * <p>
+ * A {@link GenericEntityModel} is a {@link MapModel} reading the entity fields directly, instead of
+ * going through the bean introspection done on each access by a {@code MapModel}. Methods and bean
+ * properties keep precedence over fields of the same name, as with a {@code MapModel}.
+ * <p>
+ * The models of immutable values, like the values read from the entity cache, are kept by the factory
+ * along with the models of their fields, so a value rendered many times is only wrapped once.
+ */
+public class GenericEntityTemplateModelFactory implements TemplateModelFactory {
+
+    private static final String MODULE = GenericEntityTemplateModelFactory.class.getName();
+
+    /** The method and bean property names of an entity class, which shadow the field names. */
+    private static final ClassValue<Set<String>> SHADOWING_NAMES = new ClassValue<Set<String>>() {
+        @Override
+        protected Set<String> computeValue(Class<?> type) {
+            Set<String> names = new HashSet<>();
+            for (Method method : type.getMethods()) {
+                names.add(method.getName());
+            }
+            try {
+                BeanInfo beanInfo = Introspector.getBeanInfo(type);
+                for (PropertyDescriptor descriptor : beanInfo.getPropertyDescriptors()) {
+                    names.add(descriptor.getName());
+                }
+            } catch (IntrospectionException e) {
+                Debug.logWarning(e, "Unable to introspect " + type.getName(), MODULE);
+            }
+            return Collections.unmodifiableSet(names);
+        }
+    };
+
+    private volatile EntityModelCache immutableModels;
+
+    @Override
+    public TemplateModel wrap(Object object, OfbizObjectWrapper wrapper) throws TemplateModelException {
+        if (!(object instanceof GenericEntity)) {
+            return null;
+        }
+        GenericEntity entity = (GenericEntity) object;
+        if (entity.isMutable()) {
+            return new GenericEntityModel(entity, wrapper);
+        }
+        return getImmutableModels(wrapper).getInstance(entity);
+    }
+
+    private EntityModelCache getImmutableModels(BeansWrapper wrapper) {
+        EntityModelCache cache = immutableModels;
+        if (cache == null) {
+            synchronized (this) {
+                cache = immutableModels;
+                if (cache == null) {
+                    cache = new EntityModelCache(wrapper);
+                    immutableModels = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * The models of immutable entity values, using the identity based cache of FreeMarker
+     * which releases the models through soft references.
+     */
+    private static final class EntityModelCache extends ModelCache {
+        private final BeansWrapper wrapper;
+
+        private EntityModelCache(BeansWrapper wrapper) {
+            this.wrapper = wrapper;
+            setUseCache(true);
+        }
+
+        @Override
+        protected boolean isCacheable(Object object) {
+            return true;
+        }
+
+        @Override
+        protected TemplateModel create(Object object) {
+            return new GenericEntityModel((GenericEntity) object, wrapper);
+        }
+    }
+
+    /**
+     * Template model of an entity value.
+     */
+    public static final class GenericEntityModel extends MapModel {
+        private final GenericEntity entity;
+        private final Set<String> shadowingNames;
+        private final Map<String, TemplateModel> fieldModels;
+
+        public GenericEntityModel(GenericEntity entity, BeansWrapper wrapper) {
+            super(entity, wrapper);
+            this.entity = entity;
+            this.shadowingNames = SHADOWING_NAMES.get(entity.getClass());
+            this.fieldModels = entity.isMutable() ? null : new ConcurrentHashMap<>();
+        }
+
+        @Override
+        public TemplateModel get(String key) throws TemplateModelException {
+            if (shadowingNames.contains(key) || !entity.getModelEntity().isField(key)) {
+                return super.get(key);
+            }
+            if (fieldModels == null) {
+                return wrap(entity.get(key));
+            }
+            TemplateModel model = fieldModels.get(key);
+            if (model == null) {
+                Object value = entity.get(key);
+                if (value == null) {
+                    return wrap(null);
+                }
+                model = wrap(value);
+                fieldModels.putIfAbsent(key, model);
+            }
+            return model;
+        }
+    }
+}
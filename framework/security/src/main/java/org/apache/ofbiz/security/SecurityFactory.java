@@ -99,6 +99,7 @@ public final class SecurityFactory {
             if (userLogin != null) {
                 delegator.getCache().remove("UserLoginSecurityGroup", EntityCondition.makeCondition("userLoginId", EntityOperator.EQUALS,
                         userLogin.getString("userLoginId")));
+                UserPermissionSet.clear(delegator, userLogin.getString("userLoginId"));
             }
         }
 
@@ -124,20 +125,7 @@ public final class SecurityFactory {
         @Override
         public boolean hasEntityPermission(String entity, String action, GenericValue userLogin) {
             if (userLogin == null || entity == null || action == null) return false;
-            String permission = entity.concat(action);
-            String adminPermission = entity.concat("_ADMIN");
-            Iterator<GenericValue> iterator = findUserLoginSecurityGroupByUserLoginId(userLogin.getString("userLoginId"));
-            while (iterator.hasNext()) {
-                GenericValue userLoginSecurityGroup = iterator.next();
-                if (securityGroupPermissionExists(userLoginSecurityGroup.getString("groupId"), permission)) {
-                    return true;
-                }
-                if (securityGroupPermissionExists(userLoginSecurityGroup.getString("groupId"), adminPermission)) {
-                    return true;
-                }
-            }
-
-            return false;
+            return UserPermissionSet.getInstance(delegator, userLogin.getString("userLoginId")).hasEntityPermission(entity, action);
         }
 
         @Override
@@ -157,13 +145,7 @@ public final class SecurityFactory {
             if (userLogin == null) {
                 return false;
             }
-            Iterator<GenericValue> iterator = findUserLoginSecurityGroupByUserLoginId(userLogin.getString("userLoginId"));
-            GenericValue userLoginSecurityGroup = null;
-            while (iterator.hasNext()) {
-                userLoginSecurityGroup = iterator.next();
-                if (securityGroupPermissionExists(userLoginSecurityGroup.getString("groupId"), permission)) return true;
-            }
-            return false;
+            return UserPermissionSet.getInstance(delegator, userLogin.getString("userLoginId")).hasPermission(permission);
         }
 
         @Override
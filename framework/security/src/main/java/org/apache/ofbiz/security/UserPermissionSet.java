@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.security;
+
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.ofbiz.base.util.Assert;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.cache.CacheListener;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityFieldMap;
+import org.apache.ofbiz.entity.util.EntityQuery;
+
+/**
+ * The permissions granted to a user login, compiled from its security groups.
+ * <p>
+ * The set is built once from the <code>UserLoginSecurityGroup</code> and <code>SecurityGroupPermission</code>
+ * records effective at build time, so a permission check is a single hash lookup. A compiled set is dropped
+ * when the entity list cache entry of its user login or of one of its security groups is removed, and is
+ * rebuilt when the next <code>fromDate</code>/<code>thruDate</code> boundary of its records is reached.
+ */
+public final class UserPermissionSet {
+
+    private static final String MODULE = UserPermissionSet.class.getName();
+    private static final UtilCache<String, UserPermissionSet> PERMISSION_SET_CACHE = UtilCache.createUtilCache("security.UserPermissionSetCache");
+    private static final String[] SOURCE_ENTITIES = {"UserLoginSecurityGroup", "SecurityGroupPermission"};
+    private static final Set<String> LISTENED_CACHES = ConcurrentHashMap.newKeySet();
+    // Incremented on each invalidation so that a set compiled concurrently with a change is not cached.
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    private final Set<String> groupIds;
+    private final Set<String> permissions;
+    private final long validUntil;
+
+    private UserPermissionSet(Set<String> groupIds, Set<String> permissions, long validUntil) {
+        this.groupIds = groupIds;
+        this.permissions = Collections.unmodifiableSet(permissions);
+        this.validUntil = validUntil;
+    }
+
+    /**
+     * Returns the compiled permission set of a user login.
+     * @param delegator the delegator used to read the security groups
+     * @param userLoginId the user login ID
+     * @return the permission set, empty when {@code userLoginId} is {@code null}
+     */
+    public static UserPermissionSet getInstance(Delegator delegator, String userLoginId) {
+        Assert.notNull("delegator", delegator);
+        if (userLoginId == null) {
+            return new UserPermissionSet(Collections.emptySet(), Collections.emptySet(), Long.MAX_VALUE);
+        }
+        String cacheKey = delegator.getDelegatorName().concat("::").concat(userLoginId);
+        UserPermissionSet permissionSet = PERMISSION_SET_CACHE.get(cacheKey);
+        if (permissionSet == null || permissionSet.validUntil <= System.currentTimeMillis()) {
+            long generation = GENERATION.get();
+            permissionSet = compile(delegator, userLoginId);
+            if (generation == GENERATION.get()) {
+                PERMISSION_SET_CACHE.put(cacheKey, permissionSet);
+            }
+        }
+        return permissionSet;
+    }
+
+    /**
+     * Removes the compiled permission set of a user login.
+     * @param delegator the delegator
+     * @param userLoginId the user login ID
+     */
+    public static void clear(Delegator delegator, String userLoginId) {
+        if (userLoginId != null) {
+            PERMISSION_SET_CACHE.remove(delegator.getDelegatorName().concat("::").concat(userLoginId));
+        }
+    }
+
+    private static UserPermissionSet compile(Delegator delegator, String userLoginId) {
+        Timestamp now = UtilDateTime.nowTimestamp();
+        long validUntil = Long.MAX_VALUE;
+        Set<String> groupIds = new HashSet<>();
+        Set<String> permissions = new HashSet<>();
+        try {
+            List<GenericValue> userLoginSecurityGroups = EntityQuery.use(delegator).from("UserLoginSecurityGroup")
+                    .where("userLoginId", userLoginId).cache(true).queryList();
+            for (GenericValue userLoginSecurityGroup : userLoginSecurityGroups) {
+                validUntil = Math.min(validUntil, nextBoundary(userLoginSecurityGroup, now));
+                if (!isEffective(userLoginSecurityGroup, now)) {
+                    continue;
+                }
+                String groupId = userLoginSecurityGroup.getString("groupId");
+                groupIds.add(groupId);
+                List<GenericValue> securityGroupPermissions = EntityQuery.use(delegator).from("SecurityGroupPermission")
+                        .where("groupId", groupId).cache(true).queryList();
+                for (GenericValue securityGroupPermission : securityGroupPermissions) {
+                    validUntil = Math.min(validUntil, nextBoundary(securityGroupPermission, now));
+                    if (isEffective(securityGroupPermission, now)) {
+                        permissions.add(securityGroupPermission.getString("permissionId"));
+                    }
+                }
+            }
+        } catch (GenericEntityException e) {
+            Debug.logWarning(e, MODULE);
+            // Do not keep a partial set around, retry on next check.
+            return new UserPermissionSet(groupIds, permissions, 0L);
+        }
+        registerListeners(delegator);
+        return new UserPermissionSet(groupIds, permissions, validUntil);
+    }
+
+    private static boolean isEffective(GenericValue value, Timestamp now) {
+        Timestamp fromDate = value.getTimestamp("fromDate");
+        Timestamp thruDate = value.getTimestamp("thruDate");
+        return (fromDate == null || !fromDate.after(now)) && (thruDate == null || thruDate.after(now));
+    }
+
+    private static long nextBoundary(GenericValue value, Timestamp now) {
+        long boundary = Long.MAX_VALUE;
+        Timestamp fromDate = value.getTimestamp("fromDate");
+        if (fromDate != null && fromDate.after(now)) {
+            boundary = fromDate.getTime();
+        }
+        Timestamp thruDate = value.getTimestamp("thruDate");
+        if (thruDate != null && thruDate.after(now)) {
+            boundary = Math.min(boundary, thruDate.getTime());
+        }
+        return boundary;
+    }
+
+    /**
+     * Listens to the entity list caches filled by {@link #compile}. The entity engine removes the cached
+     * lists of an entity when one of its records is created, updated or deleted, so the removal of the
+     * list of a user login or of a security group drops the sets compiled from it.
+     */
+    private static void registerListeners(Delegator delegator) {
+        String delegatorName = delegator.getDelegatorName();
+        for (String entityName : SOURCE_ENTITIES) {
+            String cacheName = "entitycache.entity-list.".concat(delegatorName).concat(".").concat(entityName);
+            if (!LISTENED_CACHES.contains(cacheName)) {
+                UtilCache<Object, Object> entityListCache = UtilCache.findCache(cacheName);
+                if (entityListCache != null && LISTENED_CACHES.add(cacheName)) {
+                    String fieldName = "UserLoginSecurityGroup".equals(entityName) ? "userLoginId" : "groupId";
+                    entityListCache.addListener(new InvalidationListener(delegatorName, fieldName));
+                }
+            }
+        }
+    }
+
+    private static void clearGroup(String delegatorName, String groupId) {
+        String keyPrefix = delegatorName.concat("::");
+        for (String cacheKey : PERMISSION_SET_CACHE.getCacheLineKeys()) {
+            if (cacheKey.startsWith(keyPrefix)) {
+                UserPermissionSet permissionSet = PERMISSION_SET_CACHE.get(cacheKey);
+                if (permissionSet != null && permissionSet.groupIds.contains(groupId)) {
+                    PERMISSION_SET_CACHE.remove(cacheKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if this set contains a permission.
+     * @param permission the permission ID
+     * @return {@code true} when the permission is granted
+     */
+    public boolean hasPermission(String permission) {
+        return permission != null && permissions.contains(permission);
+    }
+
+    /**
+     * Checks if this set contains an entity permission, either the {@code entity + action} permission
+     * or the {@code entity + "_ADMIN"} one.
+     * @param entity the entity permission prefix, like <code>ORDERMGR</code>
+     * @param action the action suffix, like <code>_VIEW</code>
+     * @return {@code true} when the permission is granted
+     */
+    public boolean hasEntityPermission(String entity, String action) {
+        if (entity == null || action == null) {
+            return false;
+        }
+        return permissions.contains(entity.concat(action)) || permissions.contains(entity.concat("_ADMIN"));
+    }
+
+    /**
+     * Gets the granted permission IDs.
+     * @return an unmodifiable set of permission IDs
+     */
+    public Set<String> getPermissions() {
+        return permissions;
+    }
+
+    /**
+     * Drops the sets compiled from a removed entity list. The lists read by {@link #compile} are keyed by
+     * a <code>userLoginId</code> or <code>groupId</code> field map; other lists of the entity do not feed
+     * any set, and their removal is ignored.
+     */
+    private static final class InvalidationListener implements CacheListener<Object, Object> {
+        private final String delegatorName;
+        private final String fieldName;
+
+        private InvalidationListener(String delegatorName, String fieldName) {
+            this.delegatorName = delegatorName;
+            this.fieldName = fieldName;
+        }
+
+        private void invalidate(Object key) {
+            if (!(key instanceof EntityFieldMap)) {
+                return;
+            }
+            EntityFieldMap fieldMap = (EntityFieldMap) key;
+            Object value = fieldMap.getField(fieldName);
+            if (!(value instanceof String)) {
+                return;
+            }
+            // Compiles running while the list changes must not cache their result.
+            GENERATION.incrementAndGet();
+            if ("userLoginId".equals(fieldName)) {
+                PERMISSION_SET_CACHE.remove(delegatorName.concat("::").concat((String) value));
+            } else {
+                clearGroup(delegatorName, (String) value);
+            }
+        }
+
+        @Override
+        public void noteKeyRemoval(UtilCache<Object, Object> cache, Object key, Object oldValue) {
+            invalidate(key);
+        }
+
+        @Override
+        public void noteKeyAddition(UtilCache<Object, Object> cache, Object key, Object newValue) {
+        }
+
+        @Override
+        public void noteKeyUpdate(UtilCache<Object, Object> cache, Object key, Object newValue, Object oldValue) {
+            invalidate(key);
+        }
+    }
+}
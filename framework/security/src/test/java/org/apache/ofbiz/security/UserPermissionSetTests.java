@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityFieldMap;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UserPermissionSetTests {
+    private static final String DELEGATOR_NAME = "userPermissionSetTest";
+    private static final long HOUR = 3600000L;
+
+    private Delegator delegator;
+    private Map<String, List<GenericValue>> userLoginSecurityGroups;
+    private Map<String, List<GenericValue>> securityGroupPermissions;
+    private UtilCache<Object, Object> userLoginSecurityGroupCache;
+    private UtilCache<Object, Object> securityGroupPermissionCache;
+
+    @Before
+    public void setUp() throws Exception {
+        delegator = mock(Delegator.class);
+        when(delegator.getDelegatorName()).thenReturn(DELEGATOR_NAME);
+        userLoginSecurityGroups = new HashMap<>();
+        securityGroupPermissions = new HashMap<>();
+        userLoginSecurityGroupCache = UtilCache.getOrCreateUtilCache("entitycache.entity-list." + DELEGATOR_NAME + ".UserLoginSecurityGroup",
+                0, 0, 0, false);
+        securityGroupPermissionCache = UtilCache.getOrCreateUtilCache("entitycache.entity-list." + DELEGATOR_NAME + ".SecurityGroupPermission",
+                0, 0, 0, false);
+        userLoginSecurityGroupCache.clear();
+        securityGroupPermissionCache.clear();
+        for (String userLoginId : Arrays.asList("admin", "clerk", "viewer", "nobody")) {
+            UserPermissionSet.clear(delegator, userLoginId);
+        }
+        when(delegator.findList(eq("UserLoginSecurityGroup"), any(), any(), any(), any(), any(), anyBoolean()))
+                .thenAnswer(invocation -> lookup(userLoginSecurityGroups, userLoginSecurityGroupCache, invocation.getArgument(1), "userLoginId"));
+        when(delegator.findList(eq("SecurityGroupPermission"), any(), any(), any(), any(), any(), anyBoolean()))
+                .thenAnswer(invocation -> lookup(securityGroupPermissions, securityGroupPermissionCache, invocation.getArgument(1), "groupId"));
+
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Timestamp past = new Timestamp(now.getTime() - HOUR);
+        Timestamp future = new Timestamp(now.getTime() + HOUR);
+        userLoginSecurityGroups.put("admin", Arrays.asList(record("groupId", "FULLADMIN", null, null),
+                record("groupId", "EXPIRED", null, past)));
+        userLoginSecurityGroups.put("clerk", Arrays.asList(record("groupId", "ORDERCLERK", past, null),
+                record("groupId", "FULLADMIN", future, null)));
+        userLoginSecurityGroups.put("viewer", Collections.singletonList(record("groupId", "VIEWER", null, null)));
+        securityGroupPermissions.put("FULLADMIN", Arrays.asList(record("permissionId", "ORDERMGR_ADMIN", null, null),
+                record("permissionId", "PARTYMGR_ADMIN", null, null)));
+        securityGroupPermissions.put("EXPIRED", Collections.singletonList(record("permissionId", "CATALOG_ADMIN", null, null)));
+        securityGroupPermissions.put("ORDERCLERK", Arrays.asList(record("permissionId", "ORDERMGR_VIEW", null, null),
+                record("permissionId", "ORDERMGR_CREATE", null, past), record("permissionId", "ORDERMGR_UPDATE", future, null)));
+        securityGroupPermissions.put("VIEWER", Collections.singletonList(record("permissionId", "PARTYMGR_VIEW", null, null)));
+    }
+
+    private static List<GenericValue> lookup(Map<String, List<GenericValue>> records, UtilCache<Object, Object> cache,
+            EntityCondition condition, String fieldName) {
+        cache.putIfAbsent(condition, new ConcurrentHashMap<>());
+        List<GenericValue> values = records.get((String) ((EntityFieldMap) condition).getField(fieldName));
+        return values == null ? Collections.emptyList() : new ArrayList<>(values);
+    }
+
+    private static GenericValue record(String fieldName, String value, Timestamp fromDate, Timestamp thruDate) {
+        GenericValue record = mock(GenericValue.class);
+        when(record.getString(fieldName)).thenReturn(value);
+        when(record.getTimestamp("fromDate")).thenReturn(fromDate);
+        when(record.getTimestamp("thruDate")).thenReturn(thruDate);
+        return record;
+    }
+
+    // The check done by the default Security implementation before permission sets were compiled.
+    private boolean legacyHasPermission(String userLoginId, String permission) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (GenericValue userLoginSecurityGroup : userLoginSecurityGroups.getOrDefault(userLoginId, Collections.emptyList())) {
+            if (!isEffective(userLoginSecurityGroup, now)) {
+                continue;
+            }
+            for (GenericValue permissionValue : securityGroupPermissions.getOrDefault(userLoginSecurityGroup.getString("groupId"),
+                    Collections.emptyList())) {
+                if (isEffective(permissionValue, now) && permission.equals(permissionValue.getString("permissionId"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isEffective(GenericValue value, Timestamp now) {
+        Timestamp fromDate = value.getTimestamp("fromDate");
+        Timestamp thruDate = value.getTimestamp("thruDate");
+        return (fromDate == null || !fromDate.after(now)) && (thruDate == null || thruDate.after(now));
+    }
+
+    @Test
+    public void grantedAndDeniedPermissionsMatchGroupLookup() {
+        List<String> permissions = Arrays.asList("ORDERMGR_ADMIN", "PARTYMGR_ADMIN", "CATALOG_ADMIN", "ORDERMGR_VIEW",
+                "ORDERMGR_CREATE", "ORDERMGR_UPDATE", "PARTYMGR_VIEW", "UNKNOWN_VIEW");
+        for (String userLoginId : Arrays.asList("admin", "clerk", "viewer", "nobody")) {
+            UserPermissionSet permissionSet = UserPermissionSet.getInstance(delegator, userLoginId);
+            for (String permission : permissions) {
+                assertEquals(userLoginId + " " + permission, legacyHasPermission(userLoginId, permission),
+                        permissionSet.hasPermission(permission));
+            }
+        }
+        UserPermissionSet clerk = UserPermissionSet.getInstance(delegator, "clerk");
+        assertTrue(clerk.hasPermission("ORDERMGR_VIEW"));
+        assertFalse(clerk.hasPermission("ORDERMGR_CREATE"));
+        assertFalse(clerk.hasPermission("ORDERMGR_UPDATE"));
+        assertFalse(clerk.hasPermission("ORDERMGR_ADMIN"));
+        assertFalse(UserPermissionSet.getInstance(delegator, "admin").hasPermission("CATALOG_ADMIN"));
+        assertFalse(UserPermissionSet.getInstance(delegator, null).hasPermission("ORDERMGR_VIEW"));
+    }
+
+    @Test
+    public void entityPermissionGrantedByActionOrAdmin() {
+        UserPermissionSet admin = UserPermissionSet.getInstance(delegator, "admin");
+        assertTrue(admin.hasEntityPermission("ORDERMGR", "_UPDATE"));
+        assertFalse(admin.hasEntityPermission("CATALOG", "_VIEW"));
+        UserPermissionSet viewer = UserPermissionSet.getInstance(delegator, "viewer");
+        assertTrue(viewer.hasEntityPermission("PARTYMGR", "_VIEW"));
+        assertFalse(viewer.hasEntityPermission("PARTYMGR", "_UPDATE"));
+        assertFalse(viewer.hasEntityPermission(null, "_VIEW"));
+    }
+
+    @Test
+    public void userLoginChangeDropsOnlyThatUser() {
+        UserPermissionSet admin = UserPermissionSet.getInstance(delegator, "admin");
+        UserPermissionSet viewer = UserPermissionSet.getInstance(delegator, "viewer");
+        assertSame(viewer, UserPermissionSet.getInstance(delegator, "viewer"));
+
+        userLoginSecurityGroups.put("viewer", Collections.singletonList(record("groupId", "FULLADMIN", null, null)));
+        userLoginSecurityGroupCache.remove(EntityCondition.makeCondition(UtilMisc.toMap("userLoginId", "viewer")));
+
+        assertSame(admin, UserPermissionSet.getInstance(delegator, "admin"));
+        UserPermissionSet changed = UserPermissionSet.getInstance(delegator, "viewer");
+        assertNotSame(viewer, changed);
+        assertTrue(changed.hasPermission("ORDERMGR_ADMIN"));
+        assertFalse(changed.hasPermission("PARTYMGR_VIEW"));
+    }
+
+    @Test
+    public void securityGroupChangeDropsOnlyGroupMembers() {
+        UserPermissionSet admin = UserPermissionSet.getInstance(delegator, "admin");
+        UserPermissionSet viewer = UserPermissionSet.getInstance(delegator, "viewer");
+
+        securityGroupPermissions.put("FULLADMIN", Collections.singletonList(record("permissionId", "PARTYMGR_ADMIN", null, null)));
+        securityGroupPermissionCache.remove(EntityCondition.makeCondition(UtilMisc.toMap("groupId", "FULLADMIN")));
+        // Lists not read by a compile do not drop any set.
+        securityGroupPermissionCache.put("other", new ConcurrentHashMap<>());
+        securityGroupPermissionCache.remove("other");
+
+        assertSame(viewer, UserPermissionSet.getInstance(delegator, "viewer"));
+        UserPermissionSet changed = UserPermissionSet.getInstance(delegator, "admin");
+        assertNotSame(admin, changed);
+        assertFalse(changed.hasPermission("ORDERMGR_ADMIN"));
+        assertTrue(changed.hasPermission("PARTYMGR_ADMIN"));
+    }
+}
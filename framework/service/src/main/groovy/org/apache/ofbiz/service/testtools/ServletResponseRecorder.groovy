@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License") you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.ofbiz.service.testtools
+
+import javax.servlet.ServletOutputStream
+import javax.servlet.WriteListener
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+/**
+ * Records what is sent to a servlet response, for the tests calling servlets and events without a container.
+ */
+class ServletResponseRecorder {
+
+    int status = HttpServletResponse.SC_OK
+    Map<String, Object> headers = [:]
+    String contentType
+    long contentLength = -1L
+    final ByteArrayOutputStream body = new ByteArrayOutputStream()
+
+    /**
+     * Makes a GET request with a path info and headers, the date headers being absent.
+     * @param pathInfo the path info, may be {@code null}
+     * @param requestHeaders the request headers by name
+     * @return the request
+     */
+    static HttpServletRequest makeRequest(String pathInfo, Map<String, String> requestHeaders) {
+        return [
+            getMethod: { -> 'GET' },
+            getPathInfo: { -> pathInfo },
+            getHeader: { String name -> requestHeaders[name] },
+            getDateHeader: { String name -> -1L }
+        ] as HttpServletRequest
+    }
+
+    /**
+     * Makes a response recording its status, headers, content type and length, and body in this recorder.
+     * @return the response
+     */
+    HttpServletResponse makeResponse() {
+        ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            boolean isReady() {
+                return true
+            }
+
+            @Override
+            void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            void write(int b) {
+                body.write(b)
+            }
+        }
+        return [
+            setStatus: { int status -> this.status = status },
+            sendError: { int status -> this.status = status },
+            setHeader: { String name, String value -> headers[name] = value },
+            setDateHeader: { String name, long value -> headers[name] = value },
+            setContentLengthLong: { long length -> contentLength = length },
+            setContentType: { String contentType -> this.contentType = contentType },
+            getOutputStream: { -> out },
+            reset: { -> headers.clear() }
+        ] as HttpServletResponse
+    }
+
+    byte[] getBodyBytes() {
+        return body.toByteArray()
+    }
+
+    String getBodyText() {
+        return body.toString('UTF-8')
+    }
+}
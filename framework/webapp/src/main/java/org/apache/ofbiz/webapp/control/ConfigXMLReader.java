@@ -269,6 +269,7 @@ public final class ConfigXMLReader {
         private final Map<String, String> viewHandlerMap = new HashMap<>();
         private MultivaluedMapContext<String, RequestMap> requestMapMap = new MultivaluedMapContext<>();
         private Map<String, ViewMap> viewMapMap = new HashMap<>();
+        private volatile ControllerDispatchTable dispatchTable;
 
         /**
          * Instantiates a new Controller config.
@@ -469,6 +470,20 @@ public final class ConfigXMLReader {
             return url;
         }
 
+        /**
+         * Gets the dispatch table compiled from this controller and its includes.
+         * The table is built on first access and kept for the lifetime of this configuration.
+         * @return the dispatch table
+         */
+        public ControllerDispatchTable getDispatchTable() {
+            ControllerDispatchTable table = dispatchTable;
+            if (table == null) {
+                table = new ControllerDispatchTable(this);
+                dispatchTable = table;
+            }
+            return table;
+        }
+
         /**
          * Computes the name of an XML element.
          * @param el
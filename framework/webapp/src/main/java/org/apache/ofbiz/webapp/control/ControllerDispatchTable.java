@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.webapp.control;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.MultivaluedHashMap;
+
+import org.apache.cxf.jaxrs.model.URITemplate;
+import org.apache.ofbiz.webapp.control.ConfigXMLReader.ControllerConfig;
+import org.apache.ofbiz.webapp.control.ConfigXMLReader.Event;
+import org.apache.ofbiz.webapp.control.ConfigXMLReader.RequestMap;
+import org.apache.ofbiz.webapp.control.ConfigXMLReader.ViewMap;
+
+/**
+ * Pre-compiled routing information of a controller.
+ * <p>
+ * A {@code ControllerConfig} resolves its settings by walking its include chain on every
+ * call, which is too costly to be done several times for each HTTP request. This table
+ * flattens the include chain once: request maps are indexed by URI,
+ * URI templates are compiled, and the event lists and general settings are resolved.
+ * A table is built lazily by {@link ControllerConfig#getDispatchTable()} so a reloaded
+ * controller gets a fresh table.
+ * <p>
+ * Each URI also carries hit and latency statistics which can be retrieved with
+ * {@link #getRequestStats()}.
+ */
+public final class ControllerDispatchTable {
+
+    private final Map<String, Route> routes;
+    private final Map<String, RequestMap> requestMapMap;
+    private final List<Route> templateRoutes;
+    private final Map<String, ViewMap> viewMapMap;
+    private final Collection<Event> firstVisitEvents;
+    private final Collection<Event> preprocessorEvents;
+    private final Collection<Event> postprocessorEvents;
+    private final String defaultRequest;
+    private final String protectView;
+    private final String statusCode;
+
+    /**
+     * Compiles the dispatch table of a controller.
+     * @param ccfg the controller configuration to flatten
+     */
+    public ControllerDispatchTable(ControllerConfig ccfg) {
+        Map<String, List<RequestMap>> multiMap = ccfg.getRequestMapMultiMap();
+        Map<String, Route> routes = new LinkedHashMap<>();
+        Map<String, RequestMap> firstByUri = new LinkedHashMap<>();
+        List<Route> templateRoutes = new ArrayList<>();
+        for (String uri : multiMap.keySet()) {
+            List<RequestMap> rmaps = multiMap.get(uri);
+            if (rmaps == null || rmaps.isEmpty()) {
+                continue;
+            }
+            Route route = new Route(uri, rmaps);
+            routes.put(uri, route);
+            firstByUri.put(uri, rmaps.get(0));
+            if (route.template != null) {
+                templateRoutes.add(route);
+            }
+        }
+        this.routes = Collections.unmodifiableMap(routes);
+        this.requestMapMap = Collections.unmodifiableMap(firstByUri);
+        this.templateRoutes = Collections.unmodifiableList(templateRoutes);
+        this.viewMapMap = Collections.unmodifiableMap(new LinkedHashMap<>(ccfg.getViewMapMap()));
+        this.firstVisitEvents = copyEvents(ccfg.getFirstVisitEventList());
+        this.preprocessorEvents = copyEvents(ccfg.getPreprocessorEventList());
+        this.postprocessorEvents = copyEvents(ccfg.getPostprocessorEventList());
+        this.defaultRequest = ccfg.getDefaultRequest();
+        this.protectView = ccfg.getProtectView();
+        this.statusCode = ccfg.getStatusCode();
+    }
+
+    private static Collection<Event> copyEvents(Map<String, Event> events) {
+        return events == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(events.values()));
+    }
+
+    /**
+     * Finds the request maps matching {@code req}.
+     * <p>
+     * A literal URI is looked up first, then the URI templates are tried, then the
+     * {@code requestUri/overrideView} form is handled, and finally the default request is used.
+     * @param req the HTTP request to match
+     * @return a collection of request maps which might be empty but not {@code null}
+     */
+    public Collection<RequestMap> resolveURI(HttpServletRequest req) {
+        String path = req.getPathInfo();
+        Route route = routes.get(path.substring(1));
+        if (route != null) {
+            return route.requestMaps;
+        }
+        if (!templateRoutes.isEmpty()) {
+            String segments = path.substring(1);
+            MultivaluedHashMap<String, String> vars = new MultivaluedHashMap<>();
+            for (Route candidate : templateRoutes) {
+                if (candidate.template.match(segments, vars) && "/".equals(vars.getFirst("FINAL_MATCH_GROUP"))) {
+                    // Set attributes from template variables to be used in context.
+                    candidate.template.getVariables().forEach(var -> req.setAttribute(var, vars.getFirst(var)));
+                    return candidate.requestMaps;
+                }
+                vars.clear();
+            }
+        }
+        String requestUri = RequestHandler.getRequestUri(path);
+        String overrideViewUri = RequestHandler.getOverrideViewUri(path);
+        route = routes.get(requestUri);
+        if (route != null
+                // Ensure that overridden view exists.
+                && (overrideViewUri == null || viewMapMap.containsKey(overrideViewUri)
+                || ("SOAPService".equals(requestUri) && "wsdl".equalsIgnoreCase(req.getQueryString())))) {
+            req.setAttribute("overriddenView", overrideViewUri);
+            return route.requestMaps;
+        }
+        if (defaultRequest != null) {
+            route = routes.get(defaultRequest);
+            if (route != null) {
+                return route.requestMaps;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Records a processed hit on a request map.
+     * @param uri the URI of the request map which has been processed
+     * @param elapsedMillis the time spent processing the request
+     */
+    public void recordHit(String uri, long elapsedMillis) {
+        Route route = routes.get(uri);
+        if (route != null) {
+            route.stats.record(elapsedMillis);
+        }
+    }
+
+    /**
+     * Provides the statistics of the request maps which have been hit at least once.
+     * @return a map associating request map URIs to their statistics
+     */
+    public Map<String, RequestMapStats> getRequestStats() {
+        Map<String, RequestMapStats> result = new LinkedHashMap<>();
+        routes.forEach((uri, route) -> {
+            if (route.stats.getHitCount() > 0) {
+                result.put(uri, route.stats);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Gets the request map map, keeping only the first request map of each URI.
+     * @return an unmodifiable request map map
+     */
+    public Map<String, RequestMap> getRequestMapMap() {
+        return requestMapMap;
+    }
+
+    /**
+     * Gets a request map by URI.
+     * @param uri the request map URI
+     * @return the first request map defined for {@code uri} or {@code null}
+     */
+    public RequestMap getRequestMap(String uri) {
+        return uri == null ? null : requestMapMap.get(uri);
+    }
+
+    /**
+     * Gets the view map map.
+     * @return an unmodifiable view map map
+     */
+    public Map<String, ViewMap> getViewMapMap() {
+        return viewMapMap;
+    }
+
+    /**
+     * Gets the first visit events.
+     * @return the first visit events
+     */
+    public Collection<Event> getFirstVisitEvents() {
+        return firstVisitEvents;
+    }
+
+    /**
+     * Gets the preprocessor events.
+     * @return the preprocessor events
+     */
+    public Collection<Event> getPreprocessorEvents() {
+        return preprocessorEvents;
+    }
+
+    /**
+     * Gets the postprocessor events.
+     * @return the postprocessor events
+     */
+    public Collection<Event> getPostprocessorEvents() {
+        return postprocessorEvents;
+    }
+
+    /**
+     * Gets the default request.
+     * @return the default request
+     */
+    public String getDefaultRequest() {
+        return defaultRequest;
+    }
+
+    /**
+     * Gets the protect view.
+     * @return the protect view
+     */
+    public String getProtectView() {
+        return protectView;
+    }
+
+    /**
+     * Gets the status code used when redirecting an HTTP client.
+     * @return an HTTP response status code
+     */
+    public String getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * All the request maps sharing the same URI, the HTTP method being resolved by
+     * {@link RequestHandler#resolveMethod}.
+     */
+    private static final class Route {
+        private final List<RequestMap> requestMaps;
+        private final URITemplate template;
+        private final RequestMapStats stats = new RequestMapStats();
+
+        private Route(String uri, List<RequestMap> requestMaps) {
+            this.requestMaps = Collections.unmodifiableList(new ArrayList<>(requestMaps));
+            this.template = uri.indexOf('{') >= 0 ? URITemplate.createExactTemplate(uri) : null;
+        }
+    }
+
+    /**
+     * Hit count and latency of a request map.
+     */
+    public static final class RequestMapStats {
+        private final LongAdder hitCount = new LongAdder();
+        private final LongAdder totalMillis = new LongAdder();
+        private final LongAccumulator maxMillis = new LongAccumulator(Long::max, 0L);
+
+        private void record(long elapsedMillis) {
+            hitCount.increment();
+            totalMillis.add(elapsedMillis);
+            maxMillis.accumulate(elapsedMillis);
+        }
+
+        /**
+         * Gets the number of processed hits.
+         * @return the hit count
+         */
+        public long getHitCount() {
+            return hitCount.sum();
+        }
+
+        /**
+         * Gets the cumulated processing time.
+         * @return the total time in milliseconds
+         */
+        public long getTotalMillis() {
+            return totalMillis.sum();
+        }
+
+        /**
+         * Gets the longest processing time.
+         * @return the maximum time in milliseconds
+         */
+        public long getMaxMillis() {
+            return maxMillis.get();
+        }
+
+        /**
+         * Gets the average processing time.
+         * @return the average time in milliseconds
+         */
+        public double getAverageMillis() {
+            long hits = getHitCount();
+            return hits == 0 ? 0.0 : (double) getTotalMillis() / hits;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + getHitCount() + ", avgMillis=" + getAverageMillis() + ", maxMillis=" + getMaxMillis();
+        }
+    }
+}
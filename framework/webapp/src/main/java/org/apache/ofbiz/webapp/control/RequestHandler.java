@@ -42,9 +42,7 @@ import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
-import javax.ws.rs.core.MultivaluedHashMap;
 
-import org.apache.cxf.jaxrs.model.URITemplate;
 import org.apache.ofbiz.base.location.FlexibleLocation;
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.SSLUtil;
@@ -126,27 +124,7 @@ public final class RequestHandler {
      * @return a collection of request maps which might be empty
      */
     static Collection<RequestMap> resolveURI(ControllerConfig ccfg, HttpServletRequest req) {
-        Map<String, List<RequestMap>> requestMapMap = ccfg.getRequestMapMultiMap();
-        Collection<RequestMap> rmaps = resolveTemplateURI(requestMapMap, req);
-        if (rmaps.isEmpty()) {
-            Map<String, ConfigXMLReader.ViewMap> viewMapMap = ccfg.getViewMapMap();
-            String defaultRequest = ccfg.getDefaultRequest();
-            String path = req.getPathInfo();
-            String requestUri = getRequestUri(path);
-            String overrideViewUri = getOverrideViewUri(path);
-            if (requestMapMap.containsKey(requestUri)
-                    // Ensure that overridden view exists.
-                    && (overrideViewUri == null || viewMapMap.containsKey(overrideViewUri)
-                    || ("SOAPService".equals(requestUri) && "wsdl".equalsIgnoreCase(req.getQueryString())))) {
-                rmaps = requestMapMap.get(requestUri);
-                req.setAttribute("overriddenView", overrideViewUri);
-            } else if (defaultRequest != null) {
-                rmaps = requestMapMap.get(defaultRequest);
-            } else {
-                rmaps = null;
-            }
-        }
-        return rmaps != null ? rmaps : Collections.emptyList();
+        return ccfg.getDispatchTable().resolveURI(req);
     }
 
     /**
@@ -172,31 +150,6 @@ public final class RequestHandler {
         }
     }
 
-    /**
-     * Finds the request maps matching a segmented path.
-     * <p>A segmented path can match request maps where the {@code uri} attribute
-     * contains an URI template like in the {@code foo/bar/{baz}} example.
-     * @param rMapMap the map associating URIs to a list of request maps corresponding to different HTTP methods
-     * @param request the HTTP request to match
-     * @return a collection of request maps which might be empty but not {@code null}
-     */
-    private static Collection<RequestMap> resolveTemplateURI(Map<String, List<RequestMap>> rMapMap,
-                                                             HttpServletRequest request) {
-        // Retrieve the request path without the leading '/' character.
-        String path = request.getPathInfo().substring(1);
-        MultivaluedHashMap<String, String> vars = new MultivaluedHashMap<>();
-        for (Map.Entry<String, List<RequestMap>> entry : rMapMap.entrySet()) {
-            URITemplate uriTemplate = URITemplate.createExactTemplate(entry.getKey());
-            // Check if current path the URI template exactly.
-            if (uriTemplate.match(path, vars) && vars.getFirst("FINAL_MATCH_GROUP").equals("/")) {
-                // Set attributes from template variables to be used in context.
-                uriTemplate.getVariables().forEach(var -> request.setAttribute(var, vars.getFirst(var)));
-                return entry.getValue();
-            }
-        }
-        return Collections.emptyList();
-    }
-
     public static String getRequestUri(String path) {
         List<String> pathInfo = StringUtil.split(path, "/");
         if (UtilValidate.isEmpty(pathInfo)) {
@@ -356,8 +309,33 @@ public final class RequestHandler {
         return null;
     }
 
+    /**
+     * Provides the hit count and latency of the request maps processed by this handler
+     * since the controller configuration has been loaded.
+     * @return a map associating request map URIs to their statistics
+     */
+    public Map<String, ControllerDispatchTable.RequestMapStats> getRequestStats() {
+        ControllerConfig controllerConfig = getControllerConfig();
+        return controllerConfig == null ? Collections.emptyMap() : controllerConfig.getDispatchTable().getRequestStats();
+    }
+
     public void doRequest(HttpServletRequest request, HttpServletResponse response, String chain,
                           GenericValue userLogin, Delegator delegator) throws RequestHandlerException, RequestHandlerExceptionAllowExternalRequests {
+        long startTime = System.currentTimeMillis();
+        try {
+            doRequest(request, response, chain, userLogin, delegator, startTime);
+        } finally {
+            // count every dispatch of a request map, including the redirects and the errors
+            RequestMap dispatched = chain == null ? (RequestMap) request.getAttribute("_DISPATCHED_REQUEST_MAP_") : null;
+            ControllerConfig controllerConfig = dispatched == null ? null : getControllerConfig();
+            if (controllerConfig != null) {
+                controllerConfig.getDispatchTable().recordHit(dispatched.getUri(), System.currentTimeMillis() - startTime);
+            }
+        }
+    }
+
+    private void doRequest(HttpServletRequest request, HttpServletResponse response, String chain, GenericValue userLogin,
+            Delegator delegator, long startTime) throws RequestHandlerException, RequestHandlerExceptionAllowExternalRequests {
 
         if (!hostHeadersAllowed.contains(request.getServerName())) {
             Debug.logError("Domain " + request.getServerName() + " not accepted to prevent host header injection."
@@ -368,7 +346,6 @@ public final class RequestHandler {
 
         final boolean throwRequestHandlerExceptionOnMissingLocalRequest = EntityUtilProperties.propertyValueEqualsIgnoreCase(
                 "requestHandler", "throwRequestHandlerExceptionOnMissingLocalRequest", "Y", delegator);
-        long startTime = System.currentTimeMillis();
         HttpSession session = request.getSession();
 
         // Parse controller config.
@@ -378,6 +355,7 @@ public final class RequestHandler {
             Debug.logError(e, "Exception thrown while parsing controller.xml file: ", MODULE);
             throw new RequestHandlerException(e);
         }
+        ControllerDispatchTable dispatchTable = ccfg.getDispatchTable();
 
         // workaround if we are in the root webapp
         String cname = UtilHttp.getApplicationName(request);
@@ -392,7 +370,7 @@ public final class RequestHandler {
         String path = request.getPathInfo();
         String requestUri = getRequestUri(path);
 
-        Collection<RequestMap> rmaps = resolveURI(ccfg, request);
+        Collection<RequestMap> rmaps = dispatchTable.resolveURI(request);
         if (rmaps.isEmpty()) {
             if (throwRequestHandlerExceptionOnMissingLocalRequest) {
                 if (path.contains("/checkLogin/") || path.contains("/sendconfirmationmail/") || path.contains("/getUiLabels")) {
@@ -427,6 +405,9 @@ public final class RequestHandler {
             eventReturn = "threshold-exceeded";
         }
         ConfigXMLReader.RequestMap originalRequestMap = requestMap; // Save this so we can update the correct performance metrics.
+        if (chain == null) {
+            request.setAttribute("_DISPATCHED_REQUEST_MAP_", originalRequestMap);
+        }
 
 
         boolean interruptRequest = false;
@@ -434,7 +415,7 @@ public final class RequestHandler {
         // Check for chained request.
         if (chain != null) {
             String chainRequestUri = RequestHandler.getRequestUri(chain);
-            requestMap = ccfg.getRequestMapMap().get(chainRequestUri);
+            requestMap = dispatchTable.getRequestMap(chainRequestUri);
             if (requestMap == null) {
                 throw new RequestHandlerException("Unknown chained request [" + chainRequestUri + "]; this request does not exist");
             }
@@ -461,12 +442,13 @@ public final class RequestHandler {
             // Check to make sure we are allowed to access this request directly. (Also checks if this request is defined.)
             // If the request cannot be called, or is not defined, check and see if there is a default-request we can process
             if (!requestMap.isSecurityDirectRequest()) {
-                if (ccfg.getDefaultRequest() == null || !ccfg.getRequestMapMap().get(ccfg.getDefaultRequest()).isSecurityDirectRequest()) {
+                RequestMap defaultRequestMap = dispatchTable.getRequestMap(dispatchTable.getDefaultRequest());
+                if (defaultRequestMap == null || !defaultRequestMap.isSecurityDirectRequest()) {
                     // use the same message as if it was missing for security reasons, ie so can't tell if it is missing or direct request is not
                     // allowed
                     throw new RequestHandlerException(requestMissingErrorMessage);
                 } else {
-                    requestMap = ccfg.getRequestMapMap().get(ccfg.getDefaultRequest());
+                    requestMap = defaultRequestMap;
                 }
             }
             // Check if we SHOULD be secure and are not.
@@ -514,7 +496,7 @@ public final class RequestHandler {
                     String newUrl = RequestHandler.makeUrl(request, response, urlBuf.toString());
                     if (newUrl.toUpperCase().startsWith("HTTPS")) {
                         // if we are supposed to be secure, redirect secure.
-                        callRedirect(newUrl, response, request, ccfg.getStatusCode());
+                        callRedirect(newUrl, response, request, dispatchTable.getStatusCode());
                         return;
                     }
                 }
@@ -534,7 +516,7 @@ public final class RequestHandler {
                     Debug.logInfo("This is the first request in this visit." + showSessionId(request), MODULE);
                 }
                 session.setAttribute("_FIRST_VISIT_EVENTS_", "complete");
-                for (ConfigXMLReader.Event event : ccfg.getFirstVisitEventList().values()) {
+                for (ConfigXMLReader.Event event : dispatchTable.getFirstVisitEvents()) {
                     try {
                         String returnString = this.runEvent(request, response, event, null, "firstvisit");
                         if (returnString == null || "none".equalsIgnoreCase(returnString)) {
@@ -549,7 +531,7 @@ public final class RequestHandler {
             }
 
             // Invoke the pre-processor (but NOT in a chain)
-            for (ConfigXMLReader.Event event : ccfg.getPreprocessorEventList().values()) {
+            for (ConfigXMLReader.Event event : dispatchTable.getPreprocessorEvents()) {
                 try {
                     String returnString = this.runEvent(request, response, event, null, "preprocessor");
                     if (returnString == null || "none".equalsIgnoreCase(returnString)) {
@@ -565,8 +547,8 @@ public final class RequestHandler {
                             eventReturn = null;
                             // check to see if there is a "protect" response, if so it's ok else show the default_error_response_view
                             if (!requestMap.getRequestResponseMap().containsKey("protect")) {
-                                if (ccfg.getProtectView() != null) {
-                                    overrideViewUri = ccfg.getProtectView();
+                                if (dispatchTable.getProtectView() != null) {
+                                    overrideViewUri = dispatchTable.getProtectView();
                                 } else {
                                     overrideViewUri = EntityUtilProperties.getPropertyValue("security", "default.error.response.view", delegator);
                                     overrideViewUri = overrideViewUri.replace("view:", "");
@@ -598,7 +580,7 @@ public final class RequestHandler {
         request.setAttribute("thisRequestUri", requestMap.getUri()); // store the actual request URI
 
         // Store current requestMap map to be referred later when generating csrf token
-        request.setAttribute("requestMapMap", getControllerConfig().getRequestMapMap());
+        request.setAttribute("requestMapMap", dispatchTable.getRequestMapMap());
 
         // Perform CSRF token check when request not on chain
         if (chain == null && originalRequestMap.isSecurityCsrfToken()) {
@@ -612,7 +594,7 @@ public final class RequestHandler {
             if (Debug.verboseOn()) {
                 Debug.logVerbose("[RequestHandler]: AuthRequired. Running security check. " + showSessionId(request), MODULE);
             }
-            ConfigXMLReader.Event checkLoginEvent = ccfg.getRequestMapMap().get("checkLogin").getEvent();
+            ConfigXMLReader.Event checkLoginEvent = dispatchTable.getRequestMap("checkLogin").getEvent();
             String checkLoginReturnString = null;
 
             try {
@@ -625,9 +607,9 @@ public final class RequestHandler {
                 eventReturn = checkLoginReturnString;
                 // if the request is an ajax request we don't want to return the default login check
                 if (!"XMLHttpRequest".equals(request.getHeader("X-Requested-With"))) {
-                    requestMap = ccfg.getRequestMapMap().get("checkLogin");
+                    requestMap = dispatchTable.getRequestMap("checkLogin");
                 } else {
-                    requestMap = ccfg.getRequestMapMap().get("ajaxCheckLogin");
+                    requestMap = dispatchTable.getRequestMap("ajaxCheckLogin");
                 }
             }
         } else if (requestUri != null) {
@@ -806,7 +788,7 @@ public final class RequestHandler {
                 String tokenValue = CsrfUtil.generateTokenForNonAjax(request, redirectTarget);
                 link = CsrfUtil.addOrUpdateTokenInUrl(link, tokenValue);
 
-                callRedirect(link, response, request, ccfg.getStatusCode());
+                callRedirect(link, response, request, dispatchTable.getStatusCode());
                 return;
             }
         }
@@ -866,7 +848,7 @@ public final class RequestHandler {
             // ======== handle views ========
 
             // first invoke the post-processor events.
-            for (ConfigXMLReader.Event event : ccfg.getPostprocessorEventList().values()) {
+            for (ConfigXMLReader.Event event : dispatchTable.getPostprocessorEvents()) {
                 try {
                     String returnString = this.runEvent(request, response, event, requestMap, "postprocessor");
                     if (returnString != null && !"success".equalsIgnoreCase(returnString)) {
@@ -879,7 +861,7 @@ public final class RequestHandler {
 
             // The status code used to redirect the HTTP client.
             String redirectSC = UtilValidate.isNotEmpty(nextRequestResponse.getStatusCode())
-                    ? nextRequestResponse.getStatusCode() : ccfg.getStatusCode();
+                    ? nextRequestResponse.getStatusCode() : dispatchTable.getStatusCode();
 
             if ("url".equals(nextRequestResponse.getType())) {
                 if (Debug.verboseOn()) {
@@ -1190,14 +1172,14 @@ public final class RequestHandler {
             req.getSession().removeAttribute("_SAVED_VIEW_PARAMS_");
         }
 
-        ConfigXMLReader.ViewMap viewMap = (view == null) ? null : getControllerConfig().getViewMapMap().get(view);
+        ConfigXMLReader.ViewMap viewMap = (view == null) ? null : getControllerConfig().getDispatchTable().getViewMapMap().get(view);
         if (viewMap == null) {
             throw new RequestHandlerException("No definition found for view with name [" + view + "]");
         }
 
         // Perform security check.
         if (viewMap.isSecurityAuth() && UtilValidate.isEmpty(userLogin)) {
-            ConfigXMLReader.Event checkLoginEvent = ccfg.getRequestMapMap().get("checkLogin").getEvent();
+            ConfigXMLReader.Event checkLoginEvent = getControllerConfig().getDispatchTable().getRequestMap("checkLogin").getEvent();
             String checkLoginReturnString = null;
 
             try {
@@ -1370,7 +1352,7 @@ public final class RequestHandler {
         String requestUri = RequestHandler.getRequestUri(url);
         ConfigXMLReader.RequestMap requestMap = null;
         if (requestUri != null) {
-            requestMap = getControllerConfig().getRequestMapMap().get(requestUri);
+            requestMap = getControllerConfig().getDispatchTable().getRequestMap(requestUri);
         }
         boolean didFullSecure = false;
         boolean didFullStandard = false;
@@ -1527,10 +1509,10 @@ public final class RequestHandler {
         if (uriString == null) {
             uriString = "";
         }
-        Map<String, RequestMap> rmaps = getControllerConfig().getRequestMapMap();
-        RequestMap requestMap = rmaps.get(uriString);
+        ControllerDispatchTable dispatchTable = getControllerConfig().getDispatchTable();
+        RequestMap requestMap = dispatchTable.getRequestMap(uriString);
         if (requestMap == null) {
-            requestMap = rmaps.get(getControllerConfig().getDefaultRequest());
+            requestMap = dispatchTable.getRequestMap(dispatchTable.getDefaultRequest());
             if (requestMap == null) {
                 return false;
             }
@@ -63,6 +63,8 @@ public class RequestHandlerTests {
             when(ccfg.getDefaultRequest()).thenReturn(null);
             when(ccfg.getRequestMapMultiMap()).thenReturn(reqMaps);
             when(ccfg.getViewMapMap()).thenReturn(viewMaps);
+            // the request maps are changed by the tests, so each resolution compiles a fresh table
+            when(ccfg.getDispatchTable()).thenAnswer(invocation -> new ControllerDispatchTable(ccfg));
             req = mock(HttpServletRequest.class);
             dummyElement = mock(Element.class);
             when(dummyElement.getAttribute("method")).thenReturn("all");
@@ -219,6 +221,19 @@ public class RequestHandlerTests {
             when(req.getPathInfo()).thenReturn("/baz");
             assertTrue(RequestHandler.resolveURI(ccfg, req).isEmpty());
         }
+
+        @Test
+        public void dispatchTableStats() throws Exception {
+            RequestMap fooAll = new RequestMap(dummyElement);
+            reqMaps.add("foo", fooAll);
+
+            ControllerDispatchTable table = new ControllerDispatchTable(ccfg);
+            assertTrue(table.getRequestStats().isEmpty());
+            table.recordHit("foo", 10);
+            table.recordHit("foo", 30);
+            assertThat(table.getRequestStats().get("foo").getHitCount(), is(2L));
+            assertThat(table.getRequestStats().get("foo").getMaxMillis(), is(30L));
+        }
     }
 
     public static class ResolveMethodTests {